@@ -11,7 +11,7 @@
 
 package com.couchbase.jdbc;
 
-import org.boon.json.JsonFactory;
+import com.couchbase.jdbc.core.JsonCodec;
 
 import java.sql.*;
 import java.util.Arrays;
@@ -52,7 +52,7 @@ public class CBArray implements Array
 
 
     }
-    CBArray(List arrayList)
+    CBArray(List arrayList, JsonCodec codec)
     {
         if (arrayList == null )
         {
@@ -62,14 +62,14 @@ public class CBArray implements Array
         else
         {
             array = arrayList.toArray();
-            jsonArray = JsonFactory.toJson(array);
+            jsonArray = codec.toJson(array);
         }
     }
-    CBArray(String typeName, Object[] array)
+    CBArray(String typeName, Object[] array, JsonCodec codec)
     {
         this.array = array;
         baseType = typeName;
-        jsonArray = JsonFactory.toJson(array);
+        jsonArray = codec.toJson(array);
     }
     /**
      * Retrieves the SQL type name of the elements in
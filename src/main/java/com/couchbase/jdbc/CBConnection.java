@@ -13,7 +13,11 @@
 package com.couchbase.jdbc;
 
 import com.couchbase.jdbc.connect.Protocol;
+import com.couchbase.jdbc.core.BulkLoader;
+import com.couchbase.jdbc.core.DiskResultCache;
+import com.couchbase.jdbc.core.KeyLookupBatcher;
 import com.couchbase.jdbc.core.ProtocolImpl;
+import com.couchbase.jdbc.core.ResultCache;
 import com.couchbase.jdbc.core.SqlJsonImplementation;
 import com.couchbase.json.SQLJSON;
 import org.apache.http.NameValuePair;
@@ -1479,7 +1483,7 @@ public class CBConnection implements java.sql.Connection
     public Array createArrayOf(String typeName, Object[] elements) throws SQLException
     {
         checkClosed();
-        return new CBArray(typeName, elements);
+        return new CBArray(typeName, elements, protocol.getJsonCodec());
     }
 
     /**
@@ -1765,8 +1769,45 @@ public class CBConnection implements java.sql.Connection
 
     public SQLJSON createSQLJSON()
     {
-        return new SqlJsonImplementation();
+        return new SqlJsonImplementation(protocol.getJsonCodec());
     }
+
+    /**
+     * Creates a loader that upserts newline delimited JSON files into keyspace over this
+     * connection. Set MaxConnections to at least the loader's concurrency.
+     */
+    public BulkLoader createBulkLoader(String keyspace) throws SQLException
+    {
+        checkClosed();
+        return new BulkLoader(protocol, keyspace);
+    }
+    /**
+     * Returns the cache of query results, to invalidate entries or read its hit ratio and size;
+     * null unless ResultCacheTtl is set. Only read only connections use it.
+     */
+    public ResultCache getResultCache()
+    {
+        return protocol.getResultCache();
+    }
+
+    /**
+     * Returns the on disk cache of expensive query results, null unless DiskCacheDir is set.
+     * Only read only connections use it.
+     */
+    public DiskResultCache getDiskResultCache()
+    {
+        return protocol.getDiskResultCache();
+    }
+
+    /**
+     * Returns the batcher that reads point lookups together, to read how many lookups each
+     * request answered; null unless KeyBatching is set
+     */
+    public KeyLookupBatcher getKeyLookupBatcher()
+    {
+        return protocol.getKeyLookupBatcher();
+    }
+
     protected void pollCluster() throws SQLException
     {
         protocol.pollCluster();
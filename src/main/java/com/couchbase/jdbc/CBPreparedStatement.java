@@ -15,7 +15,7 @@ package com.couchbase.jdbc;
 import com.couchbase.jdbc.connect.Protocol;
 import com.couchbase.jdbc.core.CouchResponse;
 import com.couchbase.jdbc.util.SqlParser;
-import com.couchbase.jdbc.util.TimestampUtils;
+import com.couchbase.jdbc.util.TemporalCodec;
 import com.couchbase.json.SQLJSON;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,7 +46,6 @@ public class CBPreparedStatement extends CBStatement implements java.sql.Prepare
 
     final Object []fields;
     Map <String,Object> parameters = new HashMap<String,Object>();
-    TimestampUtils timestampUtils = new TimestampUtils();
     String []returning = null;
 
 
@@ -64,6 +63,7 @@ public class CBPreparedStatement extends CBStatement implements java.sql.Prepare
 
         // we have to put the result into $1 for raw results
         preparedStatement = new CBPreparedResult((Map)ret.getFirstResult().get("$1"));
+        ret.close();
     }
 
     public CBPreparedStatement(Connection con, Protocol protocol, String sql, String []returning) throws SQLException
@@ -81,6 +81,7 @@ public class CBPreparedStatement extends CBStatement implements java.sql.Prepare
 
         // we have to put the result into $1 for raw results
         preparedStatement = new CBPreparedResult((Map)ret.getFirstResult().get("$1"));
+        ret.close();
     }
     /**
      * Executes the SQL query in this <code>PreparedStatement</code> object
@@ -151,7 +152,7 @@ public class CBPreparedStatement extends CBStatement implements java.sql.Prepare
             parameters.put(ARGS,fields);
         }
 
-        CouchResponse couchResponse = protocol.doQuery(sql, parameters);
+        CouchResponse couchResponse = protocol.doUpdate(sql, parameters);
         return (int)couchResponse.getMetrics().getMutationCount();
     }
 
@@ -763,6 +764,7 @@ public class CBPreparedStatement extends CBStatement implements java.sql.Prepare
         }
         else
         {
+            couchResponse.close();
             return false;
         }
     }
@@ -991,12 +993,7 @@ public class CBPreparedStatement extends CBStatement implements java.sql.Prepare
         }
         else
         {
-            if (cal != null)
-            {
-                cal = (Calendar) cal.clone();
-            }
-
-            fields[parameterIndex - 1] =timestampUtils.toString(cal, x) ;
+            fields[parameterIndex - 1] = TemporalCodec.format(cal, x);
         }
     }
 
@@ -1031,12 +1028,8 @@ public class CBPreparedStatement extends CBStatement implements java.sql.Prepare
             return;
         }
         {
-            if (cal != null)
-            {
-                cal = (Calendar) cal.clone();
-            }
 
-            fields[parameterIndex - 1] = timestampUtils.toString(cal, x);
+            fields[parameterIndex - 1] = TemporalCodec.format(cal, x);
         }
     }
 
@@ -1071,12 +1064,8 @@ public class CBPreparedStatement extends CBStatement implements java.sql.Prepare
         }
         else
         {
-            if (cal != null)
-            {
-                cal = (Calendar) cal.clone();
-            }
 
-            fields[parameterIndex - 1] = timestampUtils.toString(cal, x);
+            fields[parameterIndex - 1] = TemporalCodec.format(cal, x);
         }
     }
 
@@ -13,19 +13,18 @@
 package com.couchbase.jdbc;
 
 import com.couchbase.jdbc.core.*;
-import com.couchbase.jdbc.util.TimestampUtils;
+import com.couchbase.jdbc.util.TemporalCodec;
 import com.couchbase.json.SQLJSON;
-import org.boon.json.JsonFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.sql.Date;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -36,7 +35,10 @@ public class CBResultSet implements java.sql.ResultSet
 {
     private final static Logger logger = LoggerFactory.getLogger(CBResultSet.class);
 
-    final CouchResponse response;
+    CouchResponse response;
+
+    // further pages of the result once response runs out, null for a result in one response
+    private final PageSource pages;
 
     AtomicBoolean closed = new AtomicBoolean(false);
 
@@ -47,13 +49,26 @@ public class CBResultSet implements java.sql.ResultSet
     int index=-1;
     List <Field> fields = new ArrayList<Field>();
 
-    private final TimestampUtils timestampUtils = new TimestampUtils();
-
     public CBResultSet(Statement statement, CouchResponse response)
+    {
+        this(statement, response, null);
+    }
+
+    /**
+     * A forward only result set over the pages of source, each page is read when the rows of
+     * the one before have all been visited and is released right after
+     */
+    public CBResultSet(Statement statement, PageSource pages) throws SQLException
+    {
+        this(statement, firstPage(pages), pages);
+    }
+
+    private CBResultSet(Statement statement, CouchResponse response, PageSource pages)
     {
 
         this.statement = statement;
         this.response = response;
+        this.pages = pages;
 
         if ( response.getMetrics().getResultSize()  == 0 )
         {
@@ -95,10 +110,94 @@ public class CBResultSet implements java.sql.ResultSet
     {
         checkClosed();
         index++;
-        return (index < response.getResults().size() );
+        while (pages != null && index >= response.getResults().size())
+        {
+            CouchResponse page = pages.nextPage();
+            if (page == null)
+            {
+                break;
+            }
+            response.close();
+            response = page;
+            index = 0;
+            if (fields.isEmpty())
+            {
+                fields = page.getFields();
+            }
+        }
+        if (index < response.getResults().size())
+        {
+            // a select * row may bring columns the earlier rows did not have
+            response.observeRow(index);
+            return true;
+        }
+        return false;
 
     }
 
+    /**
+     * Returns the position of the current row in a paged result, which resumes the scan with
+     * the row after this one when handed back to the page source, see
+     * {@link KeysetCursor#setCheckpoint(Object)}
+     *
+     * @throws SQLException if this result set is not paged or there is no current row
+     */
+    public Object getCheckpoint() throws SQLException
+    {
+        checkClosed();
+        if (pages == null)
+        {
+            throw new SQLException("Result set is not paged");
+        }
+        checkIndex();
+        if (index >= response.getResults().size())
+        {
+            throw new SQLException("No current row");
+        }
+        return pages.checkpoint(response.getResults().get(index));
+    }
+
+    private static CouchResponse firstPage(PageSource pages) throws SQLException
+    {
+        CouchResponse page = pages.nextPage();
+        if (page != null)
+        {
+            return page;
+        }
+        CouchResponse empty = new CouchResponse();
+        empty.setResults(new ArrayList<Map<String, Object>>());
+        empty.setMetrics(new CouchMetrics());
+        return empty;
+    }
+
+    /**
+     * Maps the current row onto a new instance of type, see {@link RowMapper}
+     *
+     * @throws SQLException if there is no current row or a value does not fit its property
+     */
+    public <T> T mapRow(Class<T> type) throws SQLException
+    {
+        checkClosed();
+        checkIndex();
+        return RowMapper.of(type).map(response.getResults().get(index));
+    }
+
+    /**
+     * Maps every row after the current one onto new instances of type, leaving the result set
+     * after its last row
+     */
+    public <T> List<T> mapTo(Class<T> type) throws SQLException
+    {
+        checkClosed();
+        RowMapper<T> mapper = RowMapper.of(type);
+        List<T> rows = new ArrayList<>();
+        while (next())
+        {
+            rows.add(mapper.map(response.getResults().get(index)));
+        }
+        return rows;
+    }
+
     /**
      * Releases this <code>ResultSet</code> object's database and
      * JDBC resources immediately instead of waiting for
@@ -130,8 +229,14 @@ public class CBResultSet implements java.sql.ResultSet
     @Override
     public void close() throws SQLException
     {
-        closed.set(true);
-
+        if (!closed.getAndSet(true))
+        {
+            response.close();
+            if (pages != null)
+            {
+                pages.close();
+            }
+        }
     }
 
     /**
@@ -611,6 +716,14 @@ public class CBResultSet implements java.sql.ResultSet
             return null;
         }
 
+        // documents and arrays are handed back as the server sent them
+        int raw = rawContainerColumn(jsonObject, columnLabel);
+        if (raw >= 0)
+        {
+            wasNull = false;
+            return ((LazyRow) jsonObject).getRawString(raw);
+        }
+
         Object object = jsonObject.get(columnLabel);
 
         if (wasNull = (object == null))
@@ -620,7 +733,7 @@ public class CBResultSet implements java.sql.ResultSet
 
         if (object instanceof  Map)
         {
-            return JsonFactory.toJson(object);
+            return response.getCodec().toJson(object);
         }
         else
         {
@@ -702,6 +815,13 @@ public class CBResultSet implements java.sql.ResultSet
         byte value;
         Map <String,Object> jsonObject = response.getResults().get(index);
         checkColumnLabelMissing(jsonObject, columnLabel);
+
+        int column = rawNumberColumn(jsonObject, columnLabel);
+        if ( column >= 0 )
+        {
+            return (byte)rawLong(jsonObject, column, Byte.MIN_VALUE, Byte.MAX_VALUE);
+        }
+
         try
         {
             Object object = jsonObject.get(columnLabel);
@@ -757,6 +877,12 @@ public class CBResultSet implements java.sql.ResultSet
         Map <String,Object> jsonObject = response.getResults().get(index);
         checkColumnLabelMissing(jsonObject, columnLabel);
 
+        int column = rawNumberColumn(jsonObject, columnLabel);
+        if ( column >= 0 )
+        {
+            return (short)rawLong(jsonObject, column, Short.MIN_VALUE, Short.MAX_VALUE);
+        }
+
         try
         {
             Object object = jsonObject.get(columnLabel);
@@ -815,6 +941,12 @@ public class CBResultSet implements java.sql.ResultSet
        }
 
 
+        int column = rawNumberColumn(jsonObject, columnLabel);
+        if ( column >= 0 )
+        {
+            return (int)rawLong(jsonObject, column, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
         try
         {
             Object object = jsonObject.get(columnLabel);
@@ -871,6 +1003,12 @@ public class CBResultSet implements java.sql.ResultSet
         checkColumnLabelMissing(jsonObject, columnLabel);
 
 
+        int column = rawNumberColumn(jsonObject, columnLabel);
+        if ( column >= 0 )
+        {
+            return rawLong(jsonObject, column, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+
         try
         {
             Object object = jsonObject.get(columnLabel);
@@ -881,7 +1019,7 @@ public class CBResultSet implements java.sql.ResultSet
             }
             else if ( object instanceof  Number )
             {
-                value = ((Number)object).intValue();
+                value = ((Number)object).longValue();
             }
             else if (object instanceof String)
             {
@@ -1052,6 +1190,13 @@ public class CBResultSet implements java.sql.ResultSet
         Map <String,Object> jsonObject = response.getResults().get(index);
         checkColumnLabelMissing(jsonObject, columnLabel);
 
+        int column = rawNumberColumn(jsonObject, columnLabel);
+        if ( column >= 0 )
+        {
+            wasNull = false;
+            return ((LazyRow)jsonObject).getBigDecimal(column).setScale(scale, BigDecimal.ROUND_HALF_UP);
+        }
+
         Object json = jsonObject.get(columnLabel);
 
         if ( wasNull = (json == null) )
@@ -1061,7 +1206,7 @@ public class CBResultSet implements java.sql.ResultSet
 
         try
         {
-            value = new BigDecimal((double)json);
+            value = toBigDecimal(json);
             value = value.setScale(scale,BigDecimal.ROUND_HALF_UP);
         }
         catch( Exception ex)
@@ -1132,14 +1277,12 @@ public class CBResultSet implements java.sql.ResultSet
      *                               if a database access error occurs or this method is
      *                               called on a closed result set
      */
-    private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd") ;
     @Override
     public Date getDate(String columnLabel) throws SQLException
     {
        return getDate(columnLabel,null);
     }
 
-    SimpleDateFormat tf = new SimpleDateFormat("HH:mm:ss");
     /**
      * Retrieves the value of the designated column in the current row
      * of this <code>ResultSet</code> object as
@@ -1161,7 +1304,6 @@ public class CBResultSet implements java.sql.ResultSet
         return getTimeChecked(columnLabel, null);
     }
 
-    SimpleDateFormat tsf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     /**
      * Retrieves the value of the designated column in the current row
      * of this <code>ResultSet</code> object as
@@ -1343,6 +1485,12 @@ public class CBResultSet implements java.sql.ResultSet
         {
             return null;
         }
+        int raw = rawContainerColumn(jsonObject, columnLabel);
+        if (raw >= 0)
+        {
+            wasNull = false;
+            return ((LazyRow) jsonObject).getRawStream(raw);
+        }
         Object json = jsonObject.get(columnLabel);
         if ( wasNull = (json == null) )
         {
@@ -1386,16 +1534,17 @@ public class CBResultSet implements java.sql.ResultSet
         if ( response == null ) throw new SQLException("Result Set is closed");
 
         SQLWarning sqlWarning=null;
+        if ( response.getWarnings() == null ) return null;
 
         for (CouchError warning : response.getWarnings())
         {
-            if ( sqlWarning != null )
+            if ( sqlWarning == null )
             {
-                sqlWarning = new SQLWarning(warning.getMsg(),null, warning.getCode());
+                sqlWarning = new SQLWarning(warning.getMsg(),null, warning.getCode() == null ? 0 : warning.getCode());
             }
             else
             {
-                sqlWarning.setNextWarning(new SQLWarning(warning.getMsg(),null, warning.getCode()));
+                sqlWarning.setNextWarning(new SQLWarning(warning.getMsg(),null, warning.getCode() == null ? 0 : warning.getCode()));
             }
         }
         return sqlWarning;
@@ -1559,29 +1708,27 @@ public class CBResultSet implements java.sql.ResultSet
             return null;
         }
 
-        for (Field field:fields)
+        Field field = findField(columnLabel);
+        if (field != null)
         {
-            if (field.getName().equals(columnLabel))
+            switch (field.getSqlType())
             {
-                switch (field.getSqlType())
-                {
-                    case Types.NUMERIC:
-                    case Types.BOOLEAN:
+                case Types.NUMERIC:
+                case Types.BOOLEAN:
+                    return object;
+
+                case Types.VARCHAR:
+                    if (object instanceof java.util.Date) {
+                        return new java.sql.Date(((java.util.Date)object).getTime());   //TODO this might fail also
+                    } else {
                         return object;
+                    }
+                case Types.ARRAY:
+                case Types.JAVA_OBJECT:
+                    return object;
 
-                    case Types.VARCHAR:
-                        if (object instanceof java.util.Date) {
-                            return new java.sql.Date(((java.util.Date)object).getTime());   //TODO this might fail also
-                        } else {
-                            return object;
-                        }
-                    case Types.ARRAY:
-                    case Types.JAVA_OBJECT:
-                        return object;
-
-                    case Types.NULL:
-                        return null;
-                }
+                case Types.NULL:
+                    return null;
             }
         }
 
@@ -1611,6 +1758,12 @@ public class CBResultSet implements java.sql.ResultSet
         {
             return null;
         }
+        int raw = rawContainerColumn(jsonObject, columnLabel);
+        if (raw >= 0)
+        {
+            wasNull = false;
+            return new SqlJsonImplementation((LazyRow) jsonObject, raw, fields.get(findColumn(columnLabel)-1), response.getCodec());
+        }
 
         Object object = jsonObject.get(columnLabel);
         if ( wasNull = (object == null) )
@@ -1619,7 +1772,7 @@ public class CBResultSet implements java.sql.ResultSet
         }
         int columnIndex = findColumn(columnLabel)-1;
 
-        return new SqlJsonImplementation( object, fields.get(columnIndex));
+        return new SqlJsonImplementation( object, fields.get(columnIndex), response.getCodec());
     }
     /**
      * Maps the given <code>ResultSet</code> column label to its
@@ -1635,13 +1788,10 @@ public class CBResultSet implements java.sql.ResultSet
     public int findColumn(String columnLabel) throws SQLException
     {
 
-        for (int i=0; i < fields.size();i++)
+        int ordinal = ordinalOf(columnLabel);
+        if (ordinal >= 0)
         {
-
-            if (fields.get(i).getName().equals(columnLabel) )
-            {
-                return i+1;
-            }
+            return ordinal+1;
         }
         throw new SQLException("column " + columnLabel + " does not exist");
     }
@@ -1699,6 +1849,12 @@ public class CBResultSet implements java.sql.ResultSet
         {
             return null;
         }
+        int raw = rawContainerColumn(jsonObject, columnLabel);
+        if (raw >= 0)
+        {
+            wasNull = false;
+            return new InputStreamReader(((LazyRow) jsonObject).getRawStream(raw), StandardCharsets.UTF_8);
+        }
         Object object = jsonObject.get(columnLabel);
         if (wasNull = (object == null ))
         {
@@ -1762,6 +1918,13 @@ public class CBResultSet implements java.sql.ResultSet
             return null;
         }
 
+        int column = rawNumberColumn(jsonObject, columnLabel);
+        if ( column >= 0 )
+        {
+            wasNull = false;
+            return ((LazyRow)jsonObject).getBigDecimal(column);
+        }
+
         try
         {
             Object object =  jsonObject.get(columnLabel);
@@ -1769,15 +1932,7 @@ public class CBResultSet implements java.sql.ResultSet
             {
                 return null;
             }
-
-            else if( object instanceof Number )
-            {
-                value = new BigDecimal(((Number) object).doubleValue());
-            }
-            else if (object instanceof BigDecimal)
-            {
-                value = (BigDecimal) object;
-            }
+            value = toBigDecimal(object);
         }
         catch( Exception ex)
         {
@@ -3674,7 +3829,7 @@ public class CBResultSet implements java.sql.ResultSet
         {
             throw new SQLException("Column is not a list ");
         }
-        return new CBArray((List)json);
+        return new CBArray((List)json, response.getCodec());
     }
 
     /**
@@ -3767,7 +3922,7 @@ public class CBResultSet implements java.sql.ResultSet
             }
             else if ( json instanceof  String)
             {
-                date = new Date(df.parse((String)json).getTime());
+                date = TemporalCodec.parseDate((String)json, cal);
             }
             else
             {
@@ -3775,15 +3930,10 @@ public class CBResultSet implements java.sql.ResultSet
 
             }
         }
-        catch( ParseException ex)
+        catch( IllegalArgumentException ex)
         {
             throw new SQLException("value " + json +" is not a Date",ex);
         }
-
-        if ( cal != null )
-        {
-            date = timestampUtils.applyCalendar(cal, date);
-        }
         return date;
     }
 
@@ -3860,18 +4010,12 @@ public class CBResultSet implements java.sql.ResultSet
 
         try
         {
-            time = new Time(tf.parse(json).getTime());
+            time = TemporalCodec.parseTime(json, cal);
         }
         catch( Exception ex)
         {
             throw new SQLException("value " + json +" is not a Time", ex);
         }
-
-        // check to see if there is a calendar and that it is different than the one used to parse
-        if ( cal != null )
-        {
-            time = timestampUtils.applyCalendar( cal, time );
-        }
         return time;
     }
 
@@ -3957,7 +4101,7 @@ public class CBResultSet implements java.sql.ResultSet
             }
             else if (json instanceof String)
             {
-                ts = timestampUtils.parseTimestamp((String)json);
+                ts = TemporalCodec.parseTimestamp((String)json, cal);
             }
             else
             {
@@ -3968,12 +4112,6 @@ public class CBResultSet implements java.sql.ResultSet
         {
             throw new SQLException("value " + json+ "is not a Timestamp", ex);
         }
-
-        // check to see if there is a calendar and that it is different than the one used to parse
-        if ( cal != null )
-        {
-            ts = timestampUtils.applyCalendar(cal, ts);
-        }
         return ts;
     }
 
@@ -5735,6 +5873,78 @@ public class CBResultSet implements java.sql.ResultSet
         if (closed.get()) throw new SQLException("ResultSet is closed");
     }
 
+    // position of the column in a lazily decoded row if its value is a number, so it can be read from the raw digits
+    private int rawNumberColumn(Map<String, Object> jsonObject, String label)
+    {
+        if (jsonObject instanceof LazyRow)
+        {
+            LazyRow row = (LazyRow) jsonObject;
+            int column = row.indexOf(label);
+            if (column >= 0 && row.isNumber(column))
+            {
+                return column;
+            }
+        }
+        return -1;
+    }
+
+    // reads a raw number column, refusing values that the caller's type cannot hold rather than letting them wrap
+    private long rawLong(Map<String, Object> jsonObject, int column, long min, long max) throws SQLException
+    {
+        long value;
+        try
+        {
+            value = ((LazyRow)jsonObject).getLong(column);
+        }
+        catch( NumberFormatException ex)
+        {
+            throw new SQLException("numeric value out of range", ex);
+        }
+        if ( value < min || value > max )
+        {
+            throw new SQLException("numeric value out of range");
+        }
+        wasNull = false;
+        return value;
+    }
+
+    // the position of an object or array column whose bytes can be handed out undecoded, or -1
+    private int rawContainerColumn(Map<String, Object> jsonObject, String label)
+    {
+        if (jsonObject instanceof LazyRow)
+        {
+            LazyRow row = (LazyRow) jsonObject;
+            int column = row.indexOf(label);
+            if (column >= 0 && row.isContainer(column))
+            {
+                return column;
+            }
+        }
+        return -1;
+    }
+
+    // exact conversion, doubles go through their shortest decimal representation rather than their binary expansion
+    private static BigDecimal toBigDecimal(Object object)
+    {
+        if (object instanceof BigDecimal)
+        {
+            return (BigDecimal) object;
+        }
+        if (object instanceof BigInteger)
+        {
+            return new BigDecimal((BigInteger) object);
+        }
+        if (object instanceof Double || object instanceof Float)
+        {
+            return BigDecimal.valueOf(((Number) object).doubleValue());
+        }
+        if (object instanceof Number)
+        {
+            return BigDecimal.valueOf(((Number) object).longValue());
+        }
+        return new BigDecimal(object.toString());
+    }
+
     boolean checkColumnLabelMissing(Map<String, Object> jsonObject, String label)  throws SQLException
     {
         boolean fieldExists     = (findField(label) != null);
@@ -5756,15 +5966,26 @@ public class CBResultSet implements java.sql.ResultSet
     }
     private Field findField(String fieldName)
     {
+        int ordinal = ordinalOf(fieldName);
+        return ordinal < 0 ? null : fields.get(ordinal);
+    }
 
-        for (Field field:fields)
+    // the schema keeps a name to ordinal map, an empty result never asked for one
+    private int ordinalOf(String fieldName)
+    {
+        SchemaTracker schema = response.getSchema();
+        if (schema != null)
+        {
+            return schema.ordinalOf(fieldName);
+        }
+        for (int i = 0; i < fields.size(); i++)
         {
-            if (field.getName().equals(fieldName))
+            if (fields.get(i).getName().equals(fieldName))
             {
-                return field;
+                return i;
             }
         }
-        return null;
+        return -1;
     }
     public boolean wasMissing()
     {
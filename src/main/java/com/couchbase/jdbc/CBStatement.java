@@ -12,11 +12,29 @@
 
 package com.couchbase.jdbc;
 
+import com.couchbase.jdbc.arrow.ArrowExporter;
 import com.couchbase.jdbc.connect.Protocol;
+import com.couchbase.jdbc.core.ChunkedMutation;
+import com.couchbase.jdbc.core.KeysetCursor;
+import com.couchbase.jdbc.core.PageSource;
+import com.couchbase.jdbc.core.ParallelExtractor;
+import com.couchbase.jdbc.core.ResultExporter;
+import com.couchbase.jdbc.core.ResultStream;
+import com.couchbase.jdbc.core.RowSpliterator;
+import com.couchbase.jdbc.reactive.RowPublisher;
 import com.couchbase.jdbc.util.SqlParser;
+import org.reactivestreams.Publisher;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by davec on 2015-02-20.
@@ -32,6 +50,8 @@ public class CBStatement implements java.sql.Statement
     protected int maxRows = -1;
     protected boolean poolable=false;
     protected boolean closeOnCompletion = false;
+    // the chunked update running on this statement, stopped by cancel
+    private volatile ChunkedMutation chunked;
 
     public CBStatement( Connection connection, Protocol protocol )
     {
@@ -104,6 +124,264 @@ public class CBStatement implements java.sql.Statement
         return protocol.executeUpdate(this, sql);
     }
 
+    /**
+     * Returns an UPDATE or DELETE split into chunks that each stay well under the query
+     * timeout, set its mode or chunk size and run it with {@link #executeChunked(ChunkedMutation)}
+     *
+     * @param sql an UPDATE or DELETE without LIMIT or RETURNING
+     * @throws SQLException if the statement cannot be chunked
+     */
+    public ChunkedMutation chunkedUpdate(String sql) throws SQLException
+    {
+        checkClosed();
+        SqlParser sqlParser = new SqlParser("");
+        sql = sqlParser.replaceProcessing(sql, escapeProcessing);
+        return new ChunkedMutation(protocol, sql);
+    }
+
+    /**
+     * Runs every chunk of mutation, {@link #cancel()} stops it and aborts the chunk under way
+     *
+     * @return the documents mutated by all chunks together, after a cancel at least that many
+     */
+    public long executeChunked(ChunkedMutation mutation) throws SQLException
+    {
+        checkClosed();
+        chunked = mutation;
+        try
+        {
+            long mutated = mutation.execute();
+            updateCount = (int) Math.min(Integer.MAX_VALUE, mutated);
+            return mutated;
+        }
+        finally
+        {
+            chunked = null;
+        }
+    }
+
+    /**
+     * Runs the query and streams its rows to out as they arrive from the server, without
+     * building a result set. For select * each line or record is the document itself.
+     *
+     * @param sql the query
+     * @param out where the rows go, it is flushed but not closed
+     * @param format NDJSON, CSV or ARROW
+     * @return the number of rows written
+     * @throws SQLException if the query fails, including after some rows have been written
+     */
+    public long exportTo(String sql, OutputStream out, ExportFormat format) throws SQLException
+    {
+        return exportTo(sql, out, format, false);
+    }
+
+    /**
+     * Same as {@link #exportTo(String, OutputStream, ExportFormat)}, optionally gzip compressing
+     * what is written to out
+     */
+    public long exportTo(String sql, OutputStream out, ExportFormat format, boolean gzip) throws SQLException
+    {
+        checkClosed();
+        SqlParser sqlParser = new SqlParser("");
+        sql = sqlParser.replaceProcessing(sql, escapeProcessing);
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("statement", sql);
+
+        try (ResultStream stream = protocol.openStream(sql, parameters);
+             GZIPOutputStream compressor = gzip ? new GzipExportStream(out) : null)
+        {
+            OutputStream target = gzip ? compressor : out;
+            long rows = format == ExportFormat.ARROW ? exportArrow(stream, target)
+                    : new ResultExporter(target, ResultStream.DEFAULT_BUFFER_SIZE).export(stream, format);
+            if (gzip)
+            {
+                compressor.finish();
+            }
+            out.flush();
+            return rows;
+        }
+        catch (IOException ex)
+        {
+            throw new SQLException("Error exporting query results", ex);
+        }
+    }
+
+    /**
+     * Runs the query and returns its rows as a lazily evaluated stream. Rows are read from the
+     * response as the stream pulls them, a parallel stream decodes them on its worker threads.
+     * Close the stream, for instance with try with resources, to release the connection when
+     * it is not read to its end.
+     *
+     * @param sql the query
+     * @return the rows of the result in order
+     * @throws SQLException if the query cannot be sent or fails before its first row
+     */
+    public Stream<Row> stream(String sql) throws SQLException
+    {
+        checkClosed();
+        SqlParser sqlParser = new SqlParser("");
+        sql = sqlParser.replaceProcessing(sql, escapeProcessing);
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("statement", sql);
+
+        ResultStream results = protocol.openStream(sql, parameters);
+        try
+        {
+            results.start();
+        }
+        catch (IOException ex)
+        {
+            closeQuietly(results);
+            throw new SQLException("Error reading query results", ex);
+        }
+        catch (SQLException ex)
+        {
+            closeQuietly(results);
+            throw ex;
+        }
+        RowSpliterator rows = new RowSpliterator(results);
+        return StreamSupport.stream(rows, false).onClose(rows::close);
+    }
+
+    /**
+     * Returns a cursor that reads the query in pages ordered by a unique key, set its page size
+     * or checkpoint and run it with {@link #executeQuery(PageSource)}
+     *
+     * @param sql a select without LIMIT or OFFSET, its ORDER BY if any is replaced
+     * @param keyExpression the unique key to order and page by, for instance META(b).id
+     * @param keyColumn the column the key is selected as
+     * @throws SQLException if the query cannot be paged
+     */
+    public KeysetCursor keysetCursor(String sql, String keyExpression, String keyColumn) throws SQLException
+    {
+        checkClosed();
+        SqlParser sqlParser = new SqlParser("");
+        sql = sqlParser.replaceProcessing(sql, escapeProcessing);
+        return new KeysetCursor(protocol, sql, keyExpression, keyColumn);
+    }
+
+    /**
+     * Returns an extract that reads the query as several key ranges at the same time, set its
+     * partitions, split points or merge order and run it with {@link #executeQuery(PageSource)}
+     *
+     * @param sql a select without LIMIT or OFFSET, its ORDER BY if any is replaced
+     * @param keyExpression the unique key to split and order by, for instance META(b).id
+     * @param keyColumn the column the key is selected as
+     * @throws SQLException if the query cannot be paged
+     */
+    public ParallelExtractor parallelExtract(String sql, String keyExpression, String keyColumn) throws SQLException
+    {
+        checkClosed();
+        SqlParser sqlParser = new SqlParser("");
+        sql = sqlParser.replaceProcessing(sql, escapeProcessing);
+        return new ParallelExtractor(protocol, sql, keyExpression, keyColumn);
+    }
+
+    /**
+     * Returns one forward only result set over every page of pages, only the current page is
+     * held in memory. Wrap pages in a {@link com.couchbase.jdbc.core.PrefetchingPageSource} to
+     * have the next pages read while the current one is consumed.
+     */
+    public CBResultSet executeQuery(PageSource pages) throws SQLException
+    {
+        checkClosed();
+        return new CBResultSet(this, pages);
+    }
+
+    /**
+     * Same as {@link #publish(String, Executor)}, reading responses on a shared pool of daemon threads
+     */
+    public Publisher<Row> publish(String sql) throws SQLException
+    {
+        return publish(sql, null);
+    }
+
+    /**
+     * Returns a publisher of the rows of the query. Every subscription runs the query once rows
+     * are requested and reads no further into the response than the subscriber has asked for;
+     * cancelling it stops the request on the query node.
+     *
+     * @param sql the query
+     * @param executor reads the responses, the threads calling request are never blocked
+     */
+    public Publisher<Row> publish(String sql, Executor executor) throws SQLException
+    {
+        checkClosed();
+        SqlParser sqlParser = new SqlParser("");
+        final String query = sqlParser.replaceProcessing(sql, escapeProcessing);
+
+        RowPublisher.Source source = new RowPublisher.Source()
+        {
+            @Override
+            public ResultStream open() throws SQLException
+            {
+                Map<String, Object> parameters = new HashMap<>();
+                parameters.put("statement", query);
+                return protocol.openStream(query, parameters);
+            }
+
+            @Override
+            public void cancel(ResultStream stream) throws SQLException
+            {
+                String requestId = stream.getResponse().getRequestId();
+                if (stream.getAdminEndpoint() != null && requestId != null)
+                {
+                    protocol.cancelRequest(stream.getAdminEndpoint(), requestId);
+                }
+            }
+        };
+        return new RowPublisher(source, executor);
+    }
+
+    private static void closeQuietly(ResultStream results)
+    {
+        try
+        {
+            results.close();
+        }
+        catch (IOException ignored)
+        {
+            // already failing
+        }
+    }
+
+    // arrow is an optional dependency, only touched when asked for
+    private static long exportArrow(ResultStream stream, OutputStream out) throws SQLException, IOException
+    {
+        try
+        {
+            return new ArrowExporter().export(stream, out);
+        }
+        catch (NoClassDefFoundError ex)
+        {
+            throw new SQLFeatureNotSupportedException("Arrow export needs arrow-vector on the class path", ex);
+        }
+    }
+
+    // gzip over the caller's stream, closing it ends the deflater and leaves out open
+    private static final class GzipExportStream extends GZIPOutputStream
+    {
+        GzipExportStream(OutputStream out) throws IOException
+        {
+            super(out, ResultStream.DEFAULT_BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                finish();
+            }
+            finally
+            {
+                def.end();
+            }
+        }
+    }
+
     /**
      * Releases this <code>Statement</code> object's database
      * and JDBC resources immediately instead of waiting for
@@ -305,6 +583,12 @@ public class CBStatement implements java.sql.Statement
     @Override
     public void cancel() throws SQLException
     {
+        ChunkedMutation running = chunked;
+        if (running != null)
+        {
+            // no further chunks, and the abort below stops the one under way
+            running.cancel();
+        }
         protocol.cancel();
 
 //        throw CBDriver.notImplemented(CBStatement.class, "cancel");
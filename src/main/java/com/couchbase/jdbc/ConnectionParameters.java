@@ -23,4 +23,20 @@ public class ConnectionParameters
     public final static String ENABLE_SSL="EnableSSL";
     public final static String REDUNDANCY="Redundancy";
     public final static String SSL_CERTIFICATE="SSLCertificate";
+    public final static String LAZY_DECODING="LazyDecoding";
+    public final static String DECODING_PARALLELISM="DecodingParallelism";
+    public final static String PARALLEL_DECODING_THRESHOLD="ParallelDecodingThreshold";
+    public final static String JSON_CODEC="JsonCodec";
+    public final static String DICTIONARY_ENCODING="DictionaryEncoding";
+    public final static String MAX_CONNECTIONS="MaxConnections";
+    public final static String COALESCE_READS="CoalesceReads";
+    public final static String RESULT_CACHE_TTL="ResultCacheTtl";
+    public final static String RESULT_CACHE_SIZE="ResultCacheSize";
+    public final static String DISK_CACHE_DIR="DiskCacheDir";
+    public final static String DISK_CACHE_SIZE="DiskCacheSize";
+    public final static String DISK_CACHE_TTL="DiskCacheTtl";
+    public final static String DISK_CACHE_MIN_MILLIS="DiskCacheMinMillis";
+    public final static String KEY_BATCHING="KeyBatching";
+    public final static String KEY_BATCH_WINDOW="KeyBatchWindow";
+    public final static String KEY_BATCH_SIZE="KeyBatchSize";
 }
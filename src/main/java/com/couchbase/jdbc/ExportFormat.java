@@ -0,0 +1,25 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+/**
+ * Formats query results can be exported in, see {@link CBStatement#exportTo}
+ */
+public enum ExportFormat
+{
+    /** one compact JSON document per line, the document itself for select * */
+    NDJSON,
+    /** RFC 4180 comma separated values with a header line, objects and arrays as JSON text */
+    CSV,
+    /** Arrow IPC stream of record batches, needs arrow-vector on the class path */
+    ARROW
+}
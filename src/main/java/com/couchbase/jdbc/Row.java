@@ -0,0 +1,128 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.RowMapper;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One row of a query result outside of a result set, as handed out by
+ * {@link CBStatement#stream(String)}. For select raw the value is the single column "$1".
+ */
+public class Row
+{
+    private final Map<String, Object> values;
+
+    public Row(Map<String, Object> values)
+    {
+        this.values = values;
+    }
+
+    /**
+     * @return the decoded value of the column, a map or list for objects and arrays, null if the
+     * value is null or missing
+     */
+    public Object get(String name)
+    {
+        return values.get(name);
+    }
+
+    public boolean isNull(String name)
+    {
+        return values.get(name) == null;
+    }
+
+    public String getString(String name)
+    {
+        Object value = values.get(name);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * @return the value as a long, 0 if it is null
+     */
+    public long getLong(String name)
+    {
+        Object value = values.get(name);
+        if (value instanceof Number)
+        {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    /**
+     * @return the value as a double, 0 if it is null
+     */
+    public double getDouble(String name)
+    {
+        Object value = values.get(name);
+        if (value instanceof Number)
+        {
+            return ((Number) value).doubleValue();
+        }
+        return value == null ? 0 : Double.parseDouble(value.toString());
+    }
+
+    /**
+     * @return the value as a boolean, false if it is null
+     */
+    public boolean getBoolean(String name)
+    {
+        Object value = values.get(name);
+        if (value instanceof Boolean)
+        {
+            return (Boolean) value;
+        }
+        return value != null && Boolean.parseBoolean(value.toString());
+    }
+
+    /**
+     * Maps the row onto a new instance of type, see {@link RowMapper}
+     */
+    public <T> T mapTo(Class<T> type) throws SQLException
+    {
+        return RowMapper.of(type).map(values);
+    }
+
+    public Set<String> getNames()
+    {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    public Map<String, Object> asMap()
+    {
+        return Collections.unmodifiableMap(values);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return o instanceof Row && values.equals(((Row) o).values);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return values.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return values.toString();
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.arrow;
+
+import com.couchbase.jdbc.core.JsonScanner;
+import com.couchbase.jdbc.core.ResultStream;
+import com.couchbase.jdbc.core.RowBuffer;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the rows of a result stream as Arrow record batches in the IPC stream format, decoding
+ * each value from the response bytes straight into its vector.
+ *
+ * Columns come from the signature, or for select * from the documents of the first batch.
+ * A column is a double if every value of it is a number, a boolean if every value is a boolean
+ * and UTF-8 text otherwise; N1QL does not tell integers from doubles, so neither does this.
+ * Objects and arrays in a text column are kept as their JSON text. Types the signature
+ * declares win over what the first batch holds, members first seen after it are left out.
+ *
+ * Needs arrow-vector and one of the arrow memory modules on the class path.
+ */
+public class ArrowExporter
+{
+    public static final int DEFAULT_BATCH_ROWS = 8192;
+
+    private static final ArrowType DOUBLE = new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+
+    private final BufferAllocator allocator;
+    private final int batchRows;
+
+    public ArrowExporter()
+    {
+        this(null, DEFAULT_BATCH_ROWS);
+    }
+
+    /**
+     * @param allocator where the vectors are allocated, null to use an allocator of its own
+     * @param batchRows the number of rows in each record batch, only the last one may be smaller
+     */
+    public ArrowExporter(BufferAllocator allocator, int batchRows)
+    {
+        this.allocator = allocator;
+        this.batchRows = Math.max(1, batchRows);
+    }
+
+    /**
+     * Writes every row of the stream, the stream is read to its end but neither it nor out
+     * are closed
+     *
+     * @return the number of rows written
+     */
+    public long export(ResultStream stream, OutputStream out) throws SQLException, IOException
+    {
+        stream.start();
+
+        // the first batch is kept as bytes until the columns have been decided from it
+        RowBuffer first = new RowBuffer();
+        while (first.getRows() < batchRows && stream.next())
+        {
+            first.add(stream.getScanner(), stream.getValueStart(), stream.getValueEnd());
+        }
+        JsonScanner firstScanner = first.scanner();
+        Schema schema = schemaOf(stream, firstScanner, first);
+
+        byte[][] names = new byte[schema.getFields().size()][];
+        for (int c = 0; c < names.length; c++)
+        {
+            names[c] = schema.getFields().get(c).getName().getBytes(StandardCharsets.UTF_8);
+        }
+        int[] starts = new int[names.length];
+        int[] ends = new int[names.length];
+
+        try (BufferAllocator exportAllocator = allocator == null ? new RootAllocator()
+                     : allocator.newChildAllocator("export", 0, Long.MAX_VALUE);
+             VectorSchemaRoot root = VectorSchemaRoot.create(schema, exportAllocator))
+        {
+            // the writer is not closed, closing it would close out
+            ArrowStreamWriter writer = new ArrowStreamWriter(root, null, Channels.newChannel(out));
+            writer.start();
+            List<FieldVector> vectors = root.getFieldVectors();
+            root.allocateNew();
+
+            int row = 0;
+            for (int r = 0; r < first.getRows(); r++)
+            {
+                locate(stream, firstScanner, first.getStart(r), first.getEnd(r), names, starts, ends);
+                write(firstScanner, vectors, row++, starts, ends);
+            }
+            while (true)
+            {
+                if (row == batchRows)
+                {
+                    root.setRowCount(row);
+                    writer.writeBatch();
+                    root.allocateNew();
+                    row = 0;
+                }
+                if (!stream.next())
+                {
+                    break;
+                }
+                JsonScanner scanner = stream.getScanner();
+                locate(stream, scanner, stream.getValueStart(), stream.getValueEnd(), names, starts, ends);
+                write(scanner, vectors, row++, starts, ends);
+            }
+            if (row > 0)
+            {
+                root.setRowCount(row);
+                writer.writeBatch();
+            }
+            writer.end();
+        }
+        out.flush();
+        return stream.getRowCount();
+    }
+
+    private static void locate(ResultStream stream, JsonScanner scanner, int start, int end, byte[][] names, int[] starts, int[] ends)
+    {
+        if (stream.isRaw())
+        {
+            starts[0] = start;
+            ends[0] = end;
+        }
+        else
+        {
+            scanner.locateMembers(start, names, starts, ends);
+        }
+    }
+
+    private static void write(JsonScanner scanner, List<FieldVector> vectors, int row, int[] starts, int[] ends)
+    {
+        for (int c = 0; c < starts.length; c++)
+        {
+            int start = starts[c];
+            if (start < 0 || scanner.byteAt(start) == 'n')
+            {
+                continue;
+            }
+            FieldVector vector = vectors.get(c);
+            if (vector instanceof Float8Vector)
+            {
+                if (scanner.isNumber(start))
+                {
+                    ((Float8Vector) vector).setSafe(row, scanner.parseDouble(start, ends[c]));
+                }
+            }
+            else if (vector instanceof BitVector)
+            {
+                byte b = scanner.byteAt(start);
+                if (b == 't' || b == 'f')
+                {
+                    ((BitVector) vector).setSafe(row, b == 't' ? 1 : 0);
+                }
+            }
+            else
+            {
+                writeText(scanner, (VarCharVector) vector, row, start, ends[c]);
+            }
+        }
+    }
+
+    private static void writeText(JsonScanner scanner, VarCharVector vector, int row, int start, int end)
+    {
+        ByteBuffer buffer = scanner.getBuffer();
+        if (scanner.byteAt(start) != '"')
+        {
+            // objects, arrays and anything else in a text column keep their JSON text
+            vector.setSafe(row, buffer, start, end - start);
+            return;
+        }
+        for (int i = start + 1; i < end - 1; i++)
+        {
+            if (scanner.byteAt(i) == '\\')
+            {
+                vector.setSafe(row, scanner.readString(start).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        vector.setSafe(row, buffer, start + 1, end - start - 2);
+    }
+
+    private static Schema schemaOf(ResultStream stream, JsonScanner scanner, RowBuffer first)
+    {
+        List<String> names = new ArrayList<>();
+        List<String> declared = new ArrayList<>();
+        Map<String, String> signature = stream.getSignature();
+        if (signature != null && !stream.isSelectStar())
+        {
+            for (Map.Entry<String, String> column : signature.entrySet())
+            {
+                names.add(column.getKey());
+                declared.add(column.getValue());
+            }
+        }
+        if (!stream.isRaw())
+        {
+            for (int r = 0; r < first.getRows(); r++)
+            {
+                addMembers(scanner, first.getStart(r), names, declared);
+            }
+        }
+
+        byte[][] columns = new byte[names.size()][];
+        for (int c = 0; c < columns.length; c++)
+        {
+            columns[c] = names.get(c).getBytes(StandardCharsets.UTF_8);
+        }
+        int[] starts = new int[columns.length];
+        int[] ends = new int[columns.length];
+        // bit 0 number, 1 boolean, 2 anything else, nulls say nothing
+        int[] kinds = new int[columns.length];
+        for (int r = 0; r < first.getRows(); r++)
+        {
+            locate(stream, scanner, first.getStart(r), first.getEnd(r), columns, starts, ends);
+            for (int c = 0; c < columns.length; c++)
+            {
+                if (starts[c] < 0)
+                {
+                    continue;
+                }
+                byte b = scanner.byteAt(starts[c]);
+                if (b == 'n')
+                {
+                    continue;
+                }
+                kinds[c] |= scanner.isNumber(starts[c]) ? 1 : b == 't' || b == 'f' ? 2 : 4;
+            }
+        }
+
+        List<Field> fields = new ArrayList<>();
+        for (int c = 0; c < columns.length; c++)
+        {
+            fields.add(Field.nullable(names.get(c), typeOf(declared.get(c), kinds[c])));
+        }
+        return new Schema(fields);
+    }
+
+    private static ArrowType typeOf(String declared, int kinds)
+    {
+        if ("number".equals(declared) || (!"string".equals(declared) && !"boolean".equals(declared) && kinds == 1))
+        {
+            return DOUBLE;
+        }
+        if ("boolean".equals(declared) || (!"string".equals(declared) && kinds == 2))
+        {
+            return ArrowType.Bool.INSTANCE;
+        }
+        return ArrowType.Utf8.INSTANCE;
+    }
+
+    // adds the names of members of the object at pos that are not known yet, in the order they come in
+    private static void addMembers(JsonScanner scanner, int pos, List<String> names, List<String> declared)
+    {
+        if (scanner.byteAt(pos) != '{')
+        {
+            return;
+        }
+        int i = scanner.skipWhitespace(pos + 1);
+        while (scanner.byteAt(i) != '}')
+        {
+            String name = scanner.readString(i);
+            if (!names.contains(name))
+            {
+                names.add(name);
+                declared.add(null);
+            }
+            i = scanner.skipWhitespace(scanner.skipValue(scanner.skipWhitespace(scanner.expect(scanner.skipString(i), ':'))));
+            if (scanner.byteAt(i) == ',')
+            {
+                i = scanner.skipWhitespace(i + 1);
+            }
+        }
+    }
+}
@@ -14,6 +14,11 @@ package com.couchbase.jdbc.connect;
 import com.couchbase.jdbc.CBResultSet;
 import com.couchbase.jdbc.CBStatement;
 import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.DiskResultCache;
+import com.couchbase.jdbc.core.JsonCodec;
+import com.couchbase.jdbc.core.KeyLookupBatcher;
+import com.couchbase.jdbc.core.ResultCache;
+import com.couchbase.jdbc.core.ResultStream;
 
 import java.sql.SQLException;
 import java.sql.SQLWarning;
@@ -38,9 +43,34 @@ public interface Protocol
     CouchResponse prepareStatement(String sql, String[] returning) throws SQLException;
     CouchResponse doQuery(String query, Map queryParameters) throws SQLException;
 
+    /**
+     * Runs a statement for its mutation count only, the response carries no signature or results
+     */
+    CouchResponse doUpdate(String query, Map queryParameters) throws SQLException;
+
+    /**
+     * Runs a statement and hands back its response unread, to be consumed one row at a time.
+     * Closing the stream ends the HTTP exchange.
+     */
+    ResultStream openStream(String query, Map queryParameters) throws SQLException;
+
+    /**
+     * Asks the query node behind adminEndpoint to stop running a request
+     */
+    void cancelRequest(String adminEndpoint, String requestId) throws SQLException;
+
     long getUpdateCount();
     CBResultSet getResultSet();
 
+    JsonCodec getJsonCodec();
+
+    /**
+     * @return the cache reads on a read only connection are answered from, null if it is not enabled
+     */
+    ResultCache getResultCache();
+    DiskResultCache getDiskResultCache();
+    KeyLookupBatcher getKeyLookupBatcher();
+
     String getURL();
     String getUserName();
     String getPassword();
@@ -0,0 +1,202 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+package com.couchbase.jdbc.core;
+
+import org.boon.core.value.LazyValueMap;
+import org.boon.json.JsonFactory;
+import org.boon.json.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The original Boon based codec. The response is read into a String and decoded into Boon's lazy maps.
+ */
+public class BoonJsonCodec implements JsonCodec
+{
+    private static final Logger logger = LoggerFactory.getLogger(BoonJsonCodec.class);
+
+    @Override
+    public String getName()
+    {
+        return JsonCodecs.BOON;
+    }
+
+    @Override
+    public String toJson(Object value)
+    {
+        return JsonFactory.toJson(value);
+    }
+
+    @Override
+    public void writeJson(Object value, OutputStream out) throws IOException
+    {
+        out.write(JsonFactory.toJson(value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Object fromJson(String json)
+    {
+        return JsonFactory.fromJson(json);
+    }
+
+    @Override
+    public CouchResponse decodeResponse(InputStream inputStream, long contentLength) throws IOException, SQLException
+    {
+        ObjectMapper mapper = JsonFactory.create();
+
+        CouchResponse couchResponse = new CouchResponse();
+
+        String strResponse = readString(inputStream, contentLength);
+
+        Map<String, Object> foo = mapper.readValue(strResponse, Map.class);
+        Map<String, Object> rootAsMap = null;
+        if (foo != null)
+        {
+            //noinspection unchecked
+            rootAsMap = foo;
+        }
+        else
+        {
+            logger.debug("error");
+        }
+        couchResponse.status = (String) rootAsMap.get("status");
+        couchResponse.requestId = (String) rootAsMap.get("requestID");
+        Object signature = rootAsMap.get("signature");
+
+        RowShape shape = RowShape.of(signature);
+        if ( signature instanceof Map )
+        {
+            //noinspection unchecked
+            couchResponse.signature = (Map) signature;
+        }
+        else if ( signature instanceof String )
+        {
+            couchResponse.signature = new HashMap<>();
+            couchResponse.signature.put(RowShape.RAW_COLUMN, (String) signature);
+        }
+        else if (signature != null)
+        {
+            throw new SQLException("Error reading signature" + signature );
+        }
+        if ( signature != null && rootAsMap.get("results") != null )
+        {
+            couchResponse.results = toRows((List) rootAsMap.get("results"), shape);
+        }
+        couchResponse.metrics   = toMetrics((Map)rootAsMap.get("metrics"));
+        couchResponse.errors    = toErrors((List)rootAsMap.get("errors"));
+        couchResponse.warnings  = toErrors((List)rootAsMap.get("warnings"));
+        return couchResponse;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> toRows(List list, RowShape shape)
+    {
+        List<Map<String, Object>> rows = new ArrayList<>(list.size());
+        for (int i = 0, size = list.size(); i < size; i++)
+        {
+            Object row = list.get(i);
+            switch (shape)
+            {
+                case RAW:
+                    rows.add(RowShape.rawRow(row));
+                    break;
+                case UNWRAP:
+                    rows.add(unwrap((LazyValueMap) row));
+                    break;
+                default:
+                    rows.add((Map<String, Object>) row);
+                    break;
+            }
+        }
+        return rows;
+    }
+
+    // reads the single member straight out of the parsed items, the map itself is never built
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> unwrap(LazyValueMap row)
+    {
+        if (!row.hydrated() && row.len() == 1)
+        {
+            Object document = row.items()[0].getValue().toValue();
+            if (document instanceof Map)
+            {
+                return (Map<String, Object>) document;
+            }
+        }
+        return row;
+    }
+
+    static CouchMetrics toMetrics(Map map)
+    {
+        if (map == null)
+        {
+            return null;
+        }
+        CouchMetrics metrics = new CouchMetrics();
+        metrics.setExecutionTime((String) map.get("executionTime"));
+        metrics.setElapsedTime((String) map.get("elapsedTime"));
+        metrics.resultCount = longValue(map.get("resultCount"));
+        metrics.resultSize = longValue(map.get("resultSize"));
+        metrics.errorCount = longValue(map.get("errorCount"));
+        metrics.warningCount = longValue(map.get("warningCount"));
+        metrics.mutationCount = longValue(map.get("mutationCount"));
+        return metrics;
+    }
+
+    private static long longValue(Object number)
+    {
+        return number == null ? 0 : ((Number) number).longValue();
+    }
+
+    static List<CouchError> toErrors(List list)
+    {
+        if (list == null)
+        {
+            return null;
+        }
+        List<CouchError> errors = new ArrayList<>(list.size());
+        for (Object object : list)
+        {
+            Map map = (Map) object;
+            CouchError error = new CouchError();
+            Object code = map.get("code");
+            error.code = code == null ? null : ((Number) code).intValue();
+            error.msg = (String) map.get("msg");
+            errors.add(error);
+        }
+        return errors;
+    }
+
+    private static String readString(InputStream inputStream, long contentLength) throws IOException
+    {
+        StringBuilder sb = new StringBuilder(contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : 4096);
+        Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
+        char [] chunk = new char[8192];
+        int n;
+        while ((n = reader.read(chunk)) >= 0)
+        {
+            sb.append(chunk, 0, n);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct byte buffers used to hold raw query responses.
+ *
+ * Buffers are handed out in power of two size classes starting at 64KB. Only a few
+ * buffers per class are retained; anything beyond that is simply dropped and left to the
+ * garbage collector. Requests larger than the biggest class get a heap buffer: direct memory
+ * is only given back once a heap collection finds its buffer, and a few huge results could
+ * otherwise exhaust MaxDirectMemorySize long before one runs.
+ */
+public final class BufferPool
+{
+    static final int MIN_CAPACITY = 64 * 1024;
+    static final int NUM_CLASSES = 10;              // 64KB .. 32MB
+    static final int MAX_RETAINED_PER_CLASS = 4;
+
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] pools = new ConcurrentLinkedQueue[NUM_CLASSES];
+    private static final AtomicInteger[] retained = new AtomicInteger[NUM_CLASSES];
+
+    static
+    {
+        for (int i = 0; i < NUM_CLASSES; i++)
+        {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            retained[i] = new AtomicInteger(0);
+        }
+    }
+
+    private BufferPool()
+    {
+    }
+
+    /**
+     * Returns a cleared buffer with at least the requested capacity, direct unless it is larger
+     * than the biggest size class
+     */
+    public static ByteBuffer acquire(int capacity)
+    {
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0)
+        {
+            return ByteBuffer.allocate(capacity);
+        }
+
+        ByteBuffer buffer = pools[sizeClass].poll();
+        if (buffer != null)
+        {
+            retained[sizeClass].decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(MIN_CAPACITY << sizeClass);
+    }
+
+    /**
+     * Hands a buffer back to the pool. The caller must not touch the buffer afterwards.
+     */
+    public static void release(ByteBuffer buffer)
+    {
+        if (buffer == null || !buffer.isDirect())
+        {
+            return;
+        }
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+
+        // only exact size classes go back, mapped files and other odd sized buffers are not ours
+        if (sizeClass < 0 || (MIN_CAPACITY << sizeClass) != capacity)
+        {
+            return;
+        }
+        if (retained[sizeClass].incrementAndGet() > MAX_RETAINED_PER_CLASS)
+        {
+            retained[sizeClass].decrementAndGet();
+            return;
+        }
+        pools[sizeClass].offer(buffer);
+    }
+
+    static int sizeClass(int capacity)
+    {
+        int size = MIN_CAPACITY;
+        for (int i = 0; i < NUM_CLASSES; i++, size <<= 1)
+        {
+            if (capacity <= size)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters kept by a {@link BulkLoader} while it runs. Workers update them concurrently, so they
+ * can be read from another thread to report progress before the load finishes.
+ */
+public class BulkLoadStats
+{
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder rowsLoaded = new LongAdder();
+    private final LongAdder rowsRejected = new LongAdder();
+    private final LongAdder rowsFailed = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final AtomicReference<SQLException> firstError = new AtomicReference<>();
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong elapsedNanos = new AtomicLong(-1);
+
+    void read()
+    {
+        rowsRead.increment();
+    }
+
+    void scanned(long bytes)
+    {
+        bytesRead.add(bytes);
+    }
+
+    void rejected()
+    {
+        rowsRejected.increment();
+    }
+
+    void retried()
+    {
+        retries.increment();
+    }
+
+    void loaded(long mutations)
+    {
+        batches.increment();
+        rowsLoaded.add(mutations);
+    }
+
+    void failed(int rows, SQLException ex)
+    {
+        rowsFailed.add(rows);
+        firstError.compareAndSet(null, ex);
+    }
+
+    void finish()
+    {
+        elapsedNanos.compareAndSet(-1, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the non blank lines read from the file
+     */
+    public long getRowsRead()
+    {
+        return rowsRead.sum();
+    }
+
+    /**
+     * @return the mutation count reported by the server for every batch that succeeded
+     */
+    public long getRowsLoaded()
+    {
+        return rowsLoaded.sum();
+    }
+
+    /**
+     * @return lines that were not a JSON object or had no usable key, these are never sent
+     */
+    public long getRowsRejected()
+    {
+        return rowsRejected.sum();
+    }
+
+    /**
+     * @return rows in batches that still failed after every retry
+     */
+    public long getRowsFailed()
+    {
+        return rowsFailed.sum();
+    }
+
+    public long getBytesRead()
+    {
+        return bytesRead.sum();
+    }
+
+    /**
+     * @return the batches that succeeded
+     */
+    public long getBatches()
+    {
+        return batches.sum();
+    }
+
+    public long getRetries()
+    {
+        return retries.sum();
+    }
+
+    /**
+     * @return the error of the first batch that failed for good, null if none did
+     */
+    public SQLException getFirstError()
+    {
+        return firstError.get();
+    }
+
+    /**
+     * @return the time the load took, or has taken so far while it is still running
+     */
+    public long getElapsedNanos()
+    {
+        long elapsed = elapsedNanos.get();
+        return elapsed >= 0 ? elapsed : System.nanoTime() - startNanos;
+    }
+
+    public double getRowsPerSecond()
+    {
+        return perSecond(getRowsLoaded());
+    }
+
+    public double getBytesPerSecond()
+    {
+        return perSecond(getBytesRead());
+    }
+
+    private double perSecond(long count)
+    {
+        long elapsed = Math.max(1, getElapsedNanos());
+        return count * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("read %d rows (%d bytes), loaded %d, rejected %d, failed %d in %d batches with %d retries,"
+                                     + " %.1f rows/s, %.1f MB/s over %d ms",
+                             getRowsRead(), getBytesRead(), getRowsLoaded(), getRowsRejected(), getRowsFailed(),
+                             getBatches(), getRetries(), getRowsPerSecond(), getBytesPerSecond() / (1024 * 1024),
+                             TimeUnit.NANOSECONDS.toMillis(getElapsedNanos()));
+    }
+}
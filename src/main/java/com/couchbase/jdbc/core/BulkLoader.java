@@ -0,0 +1,415 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import com.couchbase.jdbc.connect.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads a file of newline delimited JSON documents into a keyspace with multi document UPSERTs.
+ *
+ * The file is memory mapped and cut into splits at line boundaries, each split is read by one
+ * worker which scans its lines in place and sends a statement whenever the batch reaches the
+ * row or byte limit. No more than concurrency statements are in flight at once, the connection
+ * pool should allow at least that many connections (see MaxConnections). UPSERT is idempotent,
+ * so a failed batch is simply sent again after a backoff.
+ */
+public class BulkLoader
+{
+    // a split is mapped in one piece, so it has to stay well below 2GB
+    static final long SPLIT_BYTES = 256L * 1024 * 1024;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final Protocol protocol;
+    private final String keyspace;
+
+    private String keyField;
+    private int concurrency = 4;
+    private int maxBatchRows = 1000;
+    private int maxBatchBytes = 512 * 1024;
+    private int maxRetries = 3;
+    private long retryDelayMillis = 100;
+
+    /**
+     * @param protocol the connection statements are sent over
+     * @param keyspace the keyspace to load into
+     */
+    public BulkLoader(Protocol protocol, String keyspace)
+    {
+        this.protocol = protocol;
+        this.keyspace = keyspace.startsWith("`") ? keyspace : '`' + keyspace + '`';
+    }
+
+    /**
+     * @param keyField the top level field holding the document key, a string or an integer.
+     * When not set every document gets a random UUID.
+     */
+    public void setKeyField(String keyField)
+    {
+        this.keyField = keyField;
+    }
+
+    /**
+     * @param concurrency the number of workers, which is also the most statements in flight
+     */
+    public void setConcurrency(int concurrency)
+    {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    public void setMaxBatchRows(int maxBatchRows)
+    {
+        this.maxBatchRows = Math.max(1, maxBatchRows);
+    }
+
+    /**
+     * @param maxBatchBytes a batch is sent before it grows past this many bytes of documents and
+     * keys, a single larger document is still sent on its own
+     */
+    public void setMaxBatchBytes(int maxBatchBytes)
+    {
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+    }
+
+    public void setMaxRetries(int maxRetries)
+    {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * @param retryDelayMillis the wait before the first retry, doubled for every further one
+     */
+    public void setRetryDelayMillis(long retryDelayMillis)
+    {
+        this.retryDelayMillis = Math.max(0, retryDelayMillis);
+    }
+
+    /**
+     * Loads every line of the file. Lines that are not a JSON object, or have no usable key,
+     * are counted as rejected; batches that fail after every retry are counted as failed and
+     * the load carries on with the next one.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public BulkLoadStats load(File file) throws IOException
+    {
+        BulkLoadStats stats = new BulkLoadStats();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            long[] bounds = split(channel, channel.size());
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+                Thread thread = new Thread(runnable, "couchbase-bulk-load-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            try
+            {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i + 1 < bounds.length; i++)
+                {
+                    long start = bounds[i];
+                    long end = bounds[i + 1];
+                    if (end > start)
+                    {
+                        futures.add(executor.submit(() -> {
+                            loadSplit(channel, start, end, stats);
+                            return null;
+                        }));
+                    }
+                }
+                for (Future<?> future : futures)
+                {
+                    future.get();
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Bulk load interrupted");
+            }
+            catch (ExecutionException ex)
+            {
+                if (ex.getCause() instanceof IOException)
+                {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException("Error loading " + file, ex.getCause());
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+        finally
+        {
+            stats.finish();
+        }
+        return stats;
+    }
+
+    /**
+     * Cuts the file into at least concurrency splits, every one of them except the first
+     * starting just after a newline
+     */
+    long[] split(FileChannel channel, long size) throws IOException
+    {
+        int splits = (int) Math.max(concurrency, (size + SPLIT_BYTES - 1) / SPLIT_BYTES);
+        long[] bounds = new long[splits + 1];
+        bounds[splits] = size;
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (int i = 1; i < splits; i++)
+        {
+            bounds[i] = nextLine(channel, Math.max(bounds[i - 1], size / splits * i), size, buffer);
+        }
+        return bounds;
+    }
+
+    private static long nextLine(FileChannel channel, long pos, long size, ByteBuffer buffer) throws IOException
+    {
+        if (pos == 0)
+        {
+            return 0;
+        }
+        // the split starts at pos unless pos is in the middle of a line
+        pos--;
+        while (pos < size)
+        {
+            buffer.clear();
+            int read = channel.read(buffer, pos);
+            if (read <= 0)
+            {
+                break;
+            }
+            for (int i = 0; i < read; i++)
+            {
+                if (buffer.get(i) == '\n')
+                {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+        return size;
+    }
+
+    private void loadSplit(FileChannel channel, long start, long end, BulkLoadStats stats) throws IOException
+    {
+        if (end - start > Integer.MAX_VALUE)
+        {
+            throw new IOException("Line too long at offset " + start);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        JsonScanner scanner = new JsonScanner(buffer);
+        Batch batch = new Batch();
+        int limit = scanner.limit();
+        int pos = 0;
+        while (pos < limit)
+        {
+            if (Thread.currentThread().isInterrupted())
+            {
+                throw new InterruptedIOException("Bulk load interrupted");
+            }
+            int eol = pos;
+            while (eol < limit && scanner.byteAt(eol) != '\n')
+            {
+                eol++;
+            }
+            int first = Math.min(scanner.skipWhitespace(pos), eol);
+            int last = eol;
+            while (last > first && isWhitespace(scanner.byteAt(last - 1)))
+            {
+                last--;
+            }
+            if (first < last)
+            {
+                stats.read();
+                String key = keyOf(scanner, first, last);
+                if (key == null)
+                {
+                    stats.rejected();
+                }
+                else
+                {
+                    String document = new String(scanner.copy(first, last - first), StandardCharsets.UTF_8);
+                    int bytes = key.length() + last - first;
+                    if (batch.rows > 0 && (batch.rows >= maxBatchRows || batch.bytes + bytes > maxBatchBytes))
+                    {
+                        send(batch, stats);
+                    }
+                    batch.add(key, document, bytes);
+                }
+            }
+            pos = eol + 1;
+        }
+        stats.scanned(end - start);
+        if (batch.rows > 0)
+        {
+            send(batch, stats);
+        }
+    }
+
+    private static boolean isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * @return the key of the document between first and last as a N1QL string literal, null if
+     * the line is not a single JSON object or the key field is missing or of the wrong type
+     */
+    String keyOf(JsonScanner scanner, int first, int last)
+    {
+        try
+        {
+            if (scanner.byteAt(first) != '{' || scanner.skipValue(first) != last)
+            {
+                return null;
+            }
+            if (keyField == null)
+            {
+                return '"' + UUID.randomUUID().toString() + '"';
+            }
+            byte[] name = keyField.getBytes(StandardCharsets.UTF_8);
+            int i = scanner.skipWhitespace(first + 1);
+            if (scanner.byteAt(i) == '}')
+            {
+                return null;
+            }
+            while (true)
+            {
+                boolean match = scanner.stringEquals(i, name);
+                int value = scanner.skipWhitespace(scanner.expect(scanner.skipString(i), ':'));
+                int valueEnd = scanner.skipValue(value);
+                if (match)
+                {
+                    byte b = scanner.byteAt(value);
+                    if (b == '"')
+                    {
+                        // a JSON string is also a valid N1QL string literal
+                        return new String(scanner.copy(value, valueEnd - value), StandardCharsets.UTF_8);
+                    }
+                    if (scanner.isNumber(value) && scanner.isIntegral(value, valueEnd))
+                    {
+                        return '"' + new String(scanner.copy(value, valueEnd - value), StandardCharsets.UTF_8) + '"';
+                    }
+                    return null;
+                }
+                i = scanner.skipWhitespace(valueEnd);
+                if (scanner.byteAt(i) == '}')
+                {
+                    return null;
+                }
+                i = scanner.skipWhitespace(scanner.expect(i, ','));
+            }
+        }
+        catch (IllegalStateException ex)
+        {
+            return null;
+        }
+    }
+
+    private void send(Batch batch, BulkLoadStats stats)
+    {
+        String statement = batch.statement.toString();
+        int rows = batch.rows;
+        batch.clear();
+        for (int attempt = 0; ; attempt++)
+        {
+            try
+            {
+                stats.loaded(execute(statement));
+                return;
+            }
+            catch (SQLException ex)
+            {
+                if (attempt >= maxRetries)
+                {
+                    stats.failed(rows, ex);
+                    return;
+                }
+            }
+            stats.retried();
+            try
+            {
+                Thread.sleep(retryDelayMillis << Math.min(attempt, 16));
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                stats.failed(rows, new SQLException("Bulk load interrupted", ex));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs one UPSERT statement
+     *
+     * @return the mutation count reported by the server
+     */
+    protected long execute(String statement) throws SQLException
+    {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("statement", statement);
+        CouchMetrics metrics = protocol.doUpdate(statement, parameters).getMetrics();
+        return metrics == null ? 0 : metrics.getMutationCount();
+    }
+
+    private class Batch
+    {
+        final StringBuilder statement = new StringBuilder();
+        int rows;
+        int bytes;
+
+        void add(String key, String document, int length)
+        {
+            if (rows == 0)
+            {
+                statement.append("UPSERT INTO ").append(keyspace).append(" (KEY, VALUE) VALUES ");
+            }
+            else
+            {
+                statement.append(", ");
+            }
+            statement.append('(').append(key).append(", ").append(document).append(')');
+            rows++;
+            bytes += length;
+        }
+
+        void clear()
+        {
+            statement.setLength(0);
+            rows = 0;
+            bytes = 0;
+        }
+    }
+}
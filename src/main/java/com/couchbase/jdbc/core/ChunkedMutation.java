@@ -0,0 +1,347 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import com.couchbase.jdbc.connect.Protocol;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an UPDATE or DELETE as a series of smaller statements, so no single request runs into
+ * the query timeout and a failure or cancel leaves behind a known number of finished chunks.
+ * A cancel also aborts the chunk under way, which may have mutated documents that are not
+ * counted, so after a cancel the mutation count is a lower bound.
+ *
+ * In LIMIT mode the statement is sent with LIMIT chunk until a chunk mutates fewer documents
+ * than that. This only ends when a mutated document no longer matches the condition, as with a
+ * DELETE or an UPDATE that clears what it selects on. In KEY_RANGE mode every chunk is bounded
+ * by keys: a probe finds the key chunk documents further on, the statement runs for the keys
+ * up to it, and the next chunk starts after it. That works for any statement, at the price of
+ * one index lookup per chunk.
+ *
+ * The chunk size follows the observed latency, growing or shrinking by up to a factor of two
+ * per chunk to keep every chunk close to the target time.
+ */
+public class ChunkedMutation
+{
+    public enum Mode
+    {
+        LIMIT,
+        KEY_RANGE
+    }
+
+    static final String AFTER_KEY = "$chunk_after";
+    static final String UPTO_KEY = "$chunk_upto";
+
+    private final Protocol protocol;
+
+    // the statement up to and including WHERE, and the condition after it
+    private final String head;
+    private final String condition;
+    // the keyspace the statement mutates, with its alias and USE clause
+    private final String keyspace;
+
+    private Mode mode;
+    private String keyExpression = "META().id";
+    private int chunkSize = 1000;
+    private int minChunkSize = 10;
+    private int maxChunkSize = 100000;
+    private long targetMillis = 5000;
+
+    private volatile boolean cancelled;
+    private long mutationCount;
+    private int chunks;
+
+    /**
+     * @param protocol the connection the chunks are sent over
+     * @param dml an UPDATE or DELETE without LIMIT or RETURNING
+     * @throws SQLException if the statement cannot be chunked
+     */
+    public ChunkedMutation(Protocol protocol, String dml) throws SQLException
+    {
+        this.protocol = protocol;
+
+        String query = dml.trim();
+        if (query.endsWith(";"))
+        {
+            query = query.substring(0, query.length() - 1);
+        }
+        List<int[]> words = KeysetCursor.topLevelWords(query);
+        String verb = words.isEmpty() ? "" : word(query, words.get(0));
+        if (!verb.equals("UPDATE") && !verb.equals("DELETE"))
+        {
+            throw new SQLException("Chunked execution needs an UPDATE or DELETE statement");
+        }
+        // the keyspace follows UPDATE, or the FROM of a DELETE
+        int keyspaceStart = verb.equals("UPDATE") ? words.get(0)[1] : -1;
+        int keyspaceEnd = -1;
+        int where = -1;
+        for (int i = 1; i < words.size(); i++)
+        {
+            int[] word = words.get(i);
+            String keyword = word(query, word);
+            switch (keyword)
+            {
+                case "FROM":
+                    keyspaceStart = keyspaceStart < 0 ? word[1] : keyspaceStart;
+                    break;
+                case "SET":
+                case "UNSET":
+                    keyspaceEnd = keyspaceEnd < 0 ? word[0] : keyspaceEnd;
+                    break;
+                case "WHERE":
+                    if (where < 0)
+                    {
+                        where = word[1];
+                        keyspaceEnd = keyspaceEnd < 0 ? word[0] : keyspaceEnd;
+                    }
+                    break;
+                case "LIMIT":
+                case "RETURNING":
+                    throw new SQLException("Chunked execution cannot run a statement with " + keyword);
+                default:
+                    break;
+            }
+        }
+        if (keyspaceStart < 0)
+        {
+            throw new SQLException("Chunked execution needs a DELETE FROM statement");
+        }
+        keyspace = query.substring(keyspaceStart, keyspaceEnd < 0 ? query.length() : keyspaceEnd).trim();
+        if (where >= 0)
+        {
+            head = query.substring(0, where);
+            condition = query.substring(where).trim();
+        }
+        else
+        {
+            head = query + " WHERE";
+            condition = null;
+        }
+        mode = verb.equals("DELETE") ? Mode.LIMIT : Mode.KEY_RANGE;
+    }
+
+    private static String word(String query, int[] word)
+    {
+        return query.substring(word[0], word[1]).toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @param mode LIMIT by default for a DELETE, KEY_RANGE for an UPDATE
+     */
+    public void setMode(Mode mode)
+    {
+        this.mode = mode;
+    }
+
+    /**
+     * @param keyExpression the key KEY_RANGE chunks are bounded by, META().id by default
+     */
+    public void setKeyExpression(String keyExpression)
+    {
+        this.keyExpression = keyExpression;
+    }
+
+    /**
+     * @param chunkSize the documents mutated by the first chunk
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * @param minChunkSize the smallest and largest chunk the size adapts between
+     */
+    public void setChunkSizeRange(int minChunkSize, int maxChunkSize)
+    {
+        this.minChunkSize = Math.max(1, minChunkSize);
+        this.maxChunkSize = Math.max(this.minChunkSize, maxChunkSize);
+    }
+
+    /**
+     * @param targetMillis the time a chunk should take, well under the query timeout
+     */
+    public void setTargetMillis(long targetMillis)
+    {
+        this.targetMillis = Math.max(1, targetMillis);
+    }
+
+    /**
+     * Runs chunks until every matching document is mutated or the run is cancelled.
+     *
+     * @return the documents mutated by all finished chunks together, after a cancel at least
+     * that many were mutated
+     * @throws SQLException if a chunk fails, getMutationCount still tells how far it got
+     */
+    public long execute() throws SQLException
+    {
+        try
+        {
+            run();
+        }
+        catch (SQLException ex)
+        {
+            if (!cancelled)
+            {
+                throw ex;
+            }
+            // the chunk under way was aborted by the cancel, what it did is not counted
+        }
+        return mutationCount;
+    }
+
+    private void run() throws SQLException
+    {
+        int size = Math.min(maxChunkSize, Math.max(minChunkSize, chunkSize));
+        Object after = null;
+        while (!cancelled)
+        {
+            long start = System.nanoTime();
+            Map<String, Object> parameters = new HashMap<>();
+            boolean last;
+            if (mode == Mode.LIMIT)
+            {
+                String statement = bounded(head, null, null) + " LIMIT " + size;
+                long mutated = mutate(statement, parameters);
+                last = mutated < size;
+            }
+            else
+            {
+                Object upto = probe(after, size);
+                String statement = bounded(head, after, upto);
+                if (after != null)
+                {
+                    parameters.put(AFTER_KEY, after);
+                }
+                if (upto != null)
+                {
+                    parameters.put(UPTO_KEY, upto);
+                }
+                mutate(statement, parameters);
+                last = upto == null;
+                after = upto;
+            }
+            if (last)
+            {
+                break;
+            }
+            size = adapt(size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Stops the run before its next chunk. The chunk under way is left to finish unless its
+     * request is aborted as well, as {@link com.couchbase.jdbc.CBStatement#cancel()} does.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * @return the documents mutated by finished chunks, a lower bound when a chunk was aborted
+     */
+    public long getMutationCount()
+    {
+        return mutationCount;
+    }
+
+    public int getChunks()
+    {
+        return chunks;
+    }
+
+    /**
+     * Sends one statement, overridden by tests
+     */
+    protected CouchResponse send(String statement, Map<String, Object> parameters, boolean mutation) throws SQLException
+    {
+        parameters.put("statement", statement);
+        return mutation ? protocol.doUpdate(statement, parameters) : protocol.doQuery(statement, parameters);
+    }
+
+    private long mutate(String statement, Map<String, Object> parameters) throws SQLException
+    {
+        CouchResponse response = send(statement, parameters, true);
+        long mutated = response.getMetrics() == null ? 0 : response.getMetrics().getMutationCount();
+        response.close();
+        mutationCount += mutated;
+        chunks++;
+        return mutated;
+    }
+
+    // the key size documents after the given one, null when fewer are left
+    private Object probe(Object after, int size) throws SQLException
+    {
+        Map<String, Object> parameters = new HashMap<>();
+        if (after != null)
+        {
+            parameters.put(AFTER_KEY, after);
+        }
+        String statement = bounded("SELECT " + keyExpression + " AS k FROM " + keyspace + " WHERE", after, null)
+                + " ORDER BY " + keyExpression + " OFFSET " + (size - 1) + " LIMIT 1";
+        CouchResponse response = send(statement, parameters, false);
+        try
+        {
+            List<Map<String, Object>> rows = response.getResults();
+            return rows == null || rows.isEmpty() ? null : rows.get(0).get("k");
+        }
+        finally
+        {
+            response.close();
+        }
+    }
+
+    private String bounded(String start, Object after, Object upto)
+    {
+        StringBuilder sb = new StringBuilder(start);
+        String and = " ";
+        if (condition != null)
+        {
+            sb.append(" (").append(condition).append(')');
+            and = " AND ";
+        }
+        if (after != null)
+        {
+            sb.append(and).append(keyExpression).append(" > ").append(AFTER_KEY);
+            and = " AND ";
+        }
+        if (upto != null)
+        {
+            sb.append(and).append(keyExpression).append(" <= ").append(UPTO_KEY);
+        }
+        else if (and.equals(" "))
+        {
+            // nothing to bound by, drop the WHERE
+            sb.setLength(sb.length() - " WHERE".length());
+        }
+        return sb.toString();
+    }
+
+    int adapt(int size, long elapsedMillis)
+    {
+        long scaled = size * targetMillis / Math.max(1, elapsedMillis);
+        long next = Math.max(size / 2, Math.min(2L * size, scaled));
+        return (int) Math.max(minChunkSize, Math.min(maxChunkSize, next));
+    }
+}
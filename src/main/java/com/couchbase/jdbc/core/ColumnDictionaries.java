@@ -0,0 +1,51 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The string dictionaries of one result: one for the column names and one per column for
+ * its values, so a column with many distinct values does not crowd out the ones with few.
+ */
+final class ColumnDictionaries
+{
+    // rows of one result rarely have more distinct keys than this
+    private static final int MAX_KEYS = 1024;
+
+    private final int maxEntries;
+    private final StringDictionary keys = new StringDictionary(MAX_KEYS);
+    private final ConcurrentHashMap<String, StringDictionary> columns = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxEntries the most distinct values kept for any one column
+     */
+    ColumnDictionaries(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+    StringDictionary keys()
+    {
+        return keys;
+    }
+
+    StringDictionary column(String name)
+    {
+        StringDictionary dictionary = columns.get(name);
+        if (dictionary == null)
+        {
+            dictionary = columns.computeIfAbsent(name, key -> new StringDictionary(maxEntries));
+        }
+        return dictionary;
+    }
+}
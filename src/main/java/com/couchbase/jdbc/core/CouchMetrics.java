@@ -19,6 +19,10 @@ public class CouchMetrics
     String executionTime;
     String elapsedTime;
 
+    // the durations above in nanoseconds, -1 if missing or unreadable
+    long executionTimeNanos = -1;
+    long elapsedTimeNanos = -1;
+
     long resultCount;
     long errorCount;
     long resultSize;
@@ -35,6 +39,147 @@ public class CouchMetrics
         return elapsedTime;
     }
 
+    public long getExecutionTimeNanos()
+    {
+        return executionTimeNanos;
+    }
+
+    public long getElapsedTimeNanos()
+    {
+        return elapsedTimeNanos;
+    }
+
+    void setExecutionTime(String executionTime)
+    {
+        this.executionTime = executionTime;
+        this.executionTimeNanos = parseDurationOrMissing(executionTime);
+    }
+
+    void setElapsedTime(String elapsedTime)
+    {
+        this.elapsedTime = elapsedTime;
+        this.elapsedTimeNanos = parseDurationOrMissing(elapsedTime);
+    }
+
+    private static long parseDurationOrMissing(String duration)
+    {
+        try
+        {
+            return duration == null ? -1 : parseDuration(duration);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a duration the way the query service prints them, which is Go's time.Duration format:
+     * a sequence of decimal numbers each with a unit, e.g. "1.5ms", "2m3.25s" or "12.345\u00b5s".
+     * Valid units are ns, us, \u00b5s, ms, s, m and h.
+     *
+     * @return the duration in nanoseconds, fractions of a nanosecond are truncated
+     * @throws IllegalArgumentException if the string is not a duration
+     */
+    public static long parseDuration(String duration)
+    {
+        int length = duration.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < length && (duration.charAt(i) == '-' || duration.charAt(i) == '+'))
+        {
+            negative = duration.charAt(i++) == '-';
+        }
+        if (length - i == 1 && duration.charAt(i) == '0')
+        {
+            return 0;
+        }
+        if (i == length)
+        {
+            throw new IllegalArgumentException("Invalid duration " + duration);
+        }
+
+        long total = 0;
+        while (i < length)
+        {
+            long whole = 0;
+            long fraction = 0;
+            long scale = 1;
+            int digits = 0;
+            char c;
+            while (i < length && (c = duration.charAt(i)) >= '0' && c <= '9')
+            {
+                whole = whole * 10 + (c - '0');
+                if (whole < 0)
+                {
+                    throw new IllegalArgumentException("Duration out of range " + duration);
+                }
+                digits++;
+                i++;
+            }
+            if (i < length && duration.charAt(i) == '.')
+            {
+                i++;
+                while (i < length && (c = duration.charAt(i)) >= '0' && c <= '9')
+                {
+                    // digits past nanosecond precision of an hour can not matter
+                    if (scale < 1000000000000000L)
+                    {
+                        fraction = fraction * 10 + (c - '0');
+                        scale *= 10;
+                    }
+                    digits++;
+                    i++;
+                }
+            }
+            if (digits == 0)
+            {
+                throw new IllegalArgumentException("Invalid duration " + duration);
+            }
+
+            int unitStart = i;
+            while (i < length && ((c = duration.charAt(i)) < '0' || c > '9') && c != '.')
+            {
+                i++;
+            }
+            long unit = unitNanos(duration.substring(unitStart, i), duration);
+
+            if (whole > Long.MAX_VALUE / unit)
+            {
+                throw new IllegalArgumentException("Duration out of range " + duration);
+            }
+            total += whole * unit + (long)(fraction * ((double) unit / scale));
+            if (total < 0)
+            {
+                throw new IllegalArgumentException("Duration out of range " + duration);
+            }
+        }
+        return negative ? -total : total;
+    }
+
+    private static long unitNanos(String unit, String duration)
+    {
+        switch (unit)
+        {
+            case "ns":
+                return 1L;
+            case "us":
+            case "\u00b5s":  // micro sign
+            case "\u03bcs":  // greek small letter mu
+                return 1000L;
+            case "ms":
+                return 1000000L;
+            case "s":
+                return 1000000000L;
+            case "m":
+                return 60 * 1000000000L;
+            case "h":
+                return 3600 * 1000000000L;
+            default:
+                throw new IllegalArgumentException("Unknown unit '" + unit + "' in duration " + duration);
+        }
+    }
+
     public long getResultCount()
     {
         return resultCount;
@@ -67,4 +212,8 @@ public class CouchMetrics
     {
         resultSize = size;
     }
+    public void setMutationCount(long count)
+    {
+        mutationCount = count;
+    }
 }
@@ -17,8 +17,6 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by davec on 2015-06-23.
@@ -26,10 +24,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class CouchResponse {
     private static final Logger logger = LoggerFactory.getLogger(CouchResponse.class);
 
-    AtomicBoolean fieldsInitialized = new AtomicBoolean(false);
-
     Map<String, String> signature = null;
-    ArrayList<Field> fields;
+    SchemaTracker schema;
 
     List<CouchError> errors;
     List<CouchError> warnings;
@@ -38,12 +34,33 @@ public class CouchResponse {
     String status;
     List<Map<String, Object>> results;
 
+    // raw bytes the results point into when the response was decoded lazily
+    ResponseBuffer buffer;
+
+    // the codec the response was read with, documents are written back out with the same one
+    JsonCodec codec;
+
+
+    public JsonCodec getCodec()
+    {
+        return codec == null ? JsonCodecs.getDefault() : codec;
+    }
 
     public CouchMetrics getMetrics()
     {
         return metrics;
     }
 
+    public String getStatus()
+    {
+        return status;
+    }
+
+    public String getRequestId()
+    {
+        return requestId;
+    }
+
 
     // we don't know which will get called first so set the fields in getFields()
 
@@ -52,52 +69,41 @@ public class CouchResponse {
         this.signature = signature;
     }
 
-    public ArrayList<Field> getFields() {
-        // check to make sure we haven't set these yet
-        if (! fieldsInitialized.getAndSet(true)) {
-            if (signature != null) {
-                fields = new ArrayList<>(signature.size());
-            }
-
-            if (signature.containsKey("*")) {
-                if (metrics.getResultSize() > 0) {
-                    Map<String, Object> firstRow = results.get(0);
-                    Set<String> keySet = firstRow.keySet();
-
-                    for (String key : keySet) {
-                        Object object = firstRow.get(key);
-                        if (object == null) {
-                            fields.add(new Field(key, "null"));
-                        } else {
-                            Object type = firstRow.get(key);
-                            String jsonType = "json";
-
-                            if (type instanceof Number)
-                                jsonType = "number";
-                            else if ( type instanceof Boolean)
-                                jsonType = "boolean";
-                            else if ( type instanceof String)
-                                jsonType = "string";
-                            else if (type instanceof Map)
-                                jsonType = "json";
-                            else if ( type instanceof List)
-                                jsonType = "json";
-
-                            fields.add(new Field(key, jsonType));
-                        }
-                    }
-                }
+    public synchronized ArrayList<Field> getFields() {
+        // set up once; a flag set before the schema exists let a second caller through to a null schema
+        if (schema == null) {
+            if (signature != null && signature.containsKey("*")) {
+                // select * declares no columns, they are learned from the rows as the cursor reaches them
+                schema = SchemaTracker.inferred();
+                schema.observeThrough(results, 0);
             }
             else
             {
-                for (String key : signature.keySet())
-                {
-                    fields.add(new Field(key, signature.get(key)));
-                }
+                schema = SchemaTracker.declared(signature);
             }
         }
-        return fields;
+        return schema.getFields();
+    }
+
+    /**
+     * @return the columns of the result, null until {@link #getFields()} has been called
+     */
+    public SchemaTracker getSchema()
+    {
+        return schema;
     }
+
+    /**
+     * Lets the schema of a select * result see every row up to and including index
+     */
+    public void observeRow(int index)
+    {
+        if (schema != null)
+        {
+            schema.observeThrough(results, index);
+        }
+    }
+
     public List <Map<String,Object>> getResults()
     {
         return results;
@@ -118,4 +124,15 @@ public class CouchResponse {
     {
         return (Map)results.get(0);
     }
+
+    /**
+     * Releases the raw response buffer, if there is one. Rows must not be read after this.
+     */
+    public void close()
+    {
+        if (buffer != null)
+        {
+            buffer.release();
+        }
+    }
 }
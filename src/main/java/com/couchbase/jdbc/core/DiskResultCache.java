@@ -0,0 +1,633 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the responses of expensive reads in files under a directory, so they are answered
+ * without a request even after the process restarts. A hit maps the file and decodes it lazily
+ * like a response read off the network, the rows are never copied onto the heap.
+ *
+ * Each file is named after the digest of its {@link QueryKey} and holds a small header, the
+ * digest again and when the entry expires, followed by the response as JSON. Files are written
+ * aside and moved into place, readers never see half of one. The least recently used files are
+ * deleted once they take more than maxBytes.
+ *
+ * Queries hand their results over with {@link #putInBackground}, which writes the file on
+ * another thread so the query does not wait for the disk.
+ */
+public class DiskResultCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(DiskResultCache.class);
+
+    static final int MAGIC = 0x43425243; // CBRC
+    static final int VERSION = 1;
+    // magic, version, digest, expiry in epoch millis and the length of the body
+    static final int HEADER_BYTES = 4 + 4 + 32 + 8 + 8;
+    static final String SUFFIX = ".cbrc";
+
+    // files waiting to be written, results beyond that are not cached rather than held on to
+    static final int MAX_PENDING_WRITES = 16;
+
+    private static final Map<Path, DiskResultCache> caches = new HashMap<>();
+
+    private static final ExecutorService DEFAULT_WRITER = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_PENDING_WRITES), runnable -> {
+                Thread thread = new Thread(runnable, "couchbase-disk-cache");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final Path directory;
+    private final Executor writer;
+
+    // guarded by this, in access order, keyed by file name
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Opens the cache in directory, creating it if need be, and picks up the files a previous
+     * process left there. Expired and unreadable files are deleted.
+     *
+     * @param maxBytes the most bytes of files kept
+     */
+    public DiskResultCache(Path directory, long maxBytes) throws IOException
+    {
+        this(directory, maxBytes, DEFAULT_WRITER);
+    }
+
+    /**
+     * @param writer runs the writes of {@link #putInBackground}
+     */
+    public DiskResultCache(Path directory, long maxBytes, Executor writer) throws IOException
+    {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.writer = writer;
+        Files.createDirectories(directory);
+        load();
+    }
+
+    /**
+     * Returns the cache of directory, shared by every connection using it in this process and as
+     * large as the largest size any of them asked for
+     */
+    public static DiskResultCache open(Path directory, long maxBytes) throws IOException
+    {
+        Path path = directory.toAbsolutePath().normalize();
+        synchronized (caches)
+        {
+            DiskResultCache cache = caches.get(path);
+            if (cache == null)
+            {
+                cache = new DiskResultCache(path, maxBytes);
+                caches.put(path, cache);
+            }
+            cache.ensureCapacity(maxBytes);
+            return cache;
+        }
+    }
+
+    /**
+     * Grows the cache to hold at least maxBytes
+     */
+    public synchronized void ensureCapacity(long maxBytes)
+    {
+        this.maxBytes = Math.max(this.maxBytes, maxBytes);
+    }
+
+    public Path getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Returns the cached response for key, null if there is none that is still fresh. The
+     * response reads straight from the mapped file, closing it is all it takes to let go of it.
+     */
+    public CouchResponse get(QueryKey key)
+    {
+        byte[] digest = key.digest();
+        String name = fileName(digest);
+        Entry entry;
+        synchronized (this)
+        {
+            entry = entries.get(name);
+            if (entry != null && entry.expires <= currentTimeMillis())
+            {
+                remove(name);
+                entry = null;
+            }
+        }
+        CouchResponse response = entry == null ? null : map(name, entry, digest);
+        if (response == null)
+        {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return response;
+    }
+
+    /**
+     * Writes response to disk for key unless a fresh entry for key is already there. The
+     * response is only read, the caller still owns it; a response too large to ever fit is not
+     * written, and failing to write one is logged rather than failing the query.
+     */
+    public void put(QueryKey key, CouchResponse response, long ttlMillis)
+    {
+        Runnable write = prepare(key, response, ttlMillis, false);
+        if (write != null)
+        {
+            write.run();
+        }
+    }
+
+    /**
+     * Same as {@link #put}, but only takes what it needs out of response and leaves the file to
+     * the writer thread. The caller can close response as soon as this returns.
+     */
+    public void putInBackground(QueryKey key, CouchResponse response, long ttlMillis)
+    {
+        Runnable write = prepare(key, response, ttlMillis, true);
+        if (write != null)
+        {
+            try
+            {
+                writer.execute(write);
+            }
+            catch (RejectedExecutionException ex)
+            {
+                logger.debug("Too many cached results waiting to be written, not caching {}", key.getStatement());
+            }
+        }
+    }
+
+    // the write of response, null if there is nothing to write
+    private Runnable prepare(QueryKey key, CouchResponse response, long ttlMillis, boolean detach)
+    {
+        byte[] digest = key.digest();
+        String name = fileName(digest);
+        if (ttlMillis <= 0 || fresh(name))
+        {
+            return null;
+        }
+        ByteBuffer body;
+        try
+        {
+            body = body(response, detach);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            logger.warn("Error writing cached result {}: {}", name, ex.getMessage());
+            return null;
+        }
+        synchronized (this)
+        {
+            if (HEADER_BYTES + body.remaining() > maxBytes)
+            {
+                return null;
+            }
+        }
+        return () -> write(name, digest, body, ttlMillis);
+    }
+
+    private void write(String name, byte[] digest, ByteBuffer body, long ttlMillis)
+    {
+        // a write queued earlier for the same result may have got there first
+        if (fresh(name))
+        {
+            return;
+        }
+        Path tmp = null;
+        try
+        {
+            long size = HEADER_BYTES + body.remaining();
+            long expires = currentTimeMillis() + ttlMillis;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).put(digest).putLong(expires).putLong(body.remaining());
+            header.flip();
+
+            tmp = Files.createTempFile(directory, name, ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE))
+            {
+                ByteBuffer[] buffers = {header, body};
+                while (body.hasRemaining())
+                {
+                    channel.write(buffers);
+                }
+            }
+            Files.move(tmp, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            tmp = null;
+
+            synchronized (this)
+            {
+                // the file it was in has just been replaced, only the accounting is left
+                Entry previous = entries.remove(name);
+                if (previous != null)
+                {
+                    bytes -= previous.size;
+                }
+                entries.put(name, new Entry(size, expires));
+                bytes += size;
+                evict();
+            }
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            logger.warn("Error writing cached result {}: {}", name, ex.getMessage());
+        }
+        finally
+        {
+            if (tmp != null)
+            {
+                delete(tmp);
+            }
+        }
+    }
+
+    // callers that missed at the same time all fetched the same result, one file is enough
+    private synchronized boolean fresh(String name)
+    {
+        Entry existing = entries.get(name);
+        return existing != null && existing.expires > currentTimeMillis();
+    }
+
+    /**
+     * Drops the entry for key
+     */
+    public synchronized void invalidate(QueryKey key)
+    {
+        remove(fileName(key.digest()));
+    }
+
+    public synchronized void invalidateAll()
+    {
+        for (String name : new ArrayList<>(entries.keySet()))
+        {
+            remove(name);
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return the share of lookups answered from the cache, 0 before the first one
+     */
+    public double getHitRatio()
+    {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * @return the files deleted to make room, expired ones are not counted
+     */
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    public synchronized int getEntries()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the bytes the cached files take, headers included
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public synchronized long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    private CouchResponse map(String name, Entry entry, byte[] digest)
+    {
+        Path path = directory.resolve(name);
+        try
+        {
+            MappedByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                long length = checkHeader(readHeader(channel), channel.size(), digest);
+                if (length < 0)
+                {
+                    throw new IOException("corrupt cache file");
+                }
+                // the mapping stays valid once the channel is closed, and after the file is deleted
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, length);
+            }
+            CouchResponse response = new LazyResponseDecoder(new ResponseBuffer(mapped, false)).decode();
+            touch(path);
+            return response;
+        }
+        catch (IOException | SQLException | RuntimeException ex)
+        {
+            if (!(ex instanceof NoSuchFileException))
+            {
+                logger.warn("Error reading cached result {}: {}", name, ex.getMessage());
+            }
+            synchronized (this)
+            {
+                // only if it is still the entry that failed, a newer one may have replaced it
+                if (entries.get(name) == entry)
+                {
+                    remove(name);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns the length of the body, -1 unless the header is one this version wrote for digest
+     * and the file is as long as the header says. A null digest accepts any.
+     */
+    private static long checkHeader(ByteBuffer header, long fileSize, byte[] digest)
+    {
+        if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION)
+        {
+            return -1;
+        }
+        byte[] stored = new byte[32];
+        header.get(stored);
+        header.getLong();
+        long length = header.getLong();
+        if (digest != null && !Arrays.equals(stored, digest))
+        {
+            return -1;
+        }
+        return length >= 0 && HEADER_BYTES + length == fileSize ? length : -1;
+    }
+
+    /**
+     * The body of a response read off the network is its buffer as it is, copied when detached
+     * from a pooled buffer that goes to another response once this one is closed. Decoded
+     * responses are written back out with the fields a replay needs; select * rows were
+     * unwrapped from their keyspace name, so they are wrapped again for the decoder to take off.
+     */
+    private static ByteBuffer body(CouchResponse response, boolean detach) throws IOException
+    {
+        ResponseBuffer buffer = response.buffer;
+        if (buffer != null && !buffer.isReleased())
+        {
+            ByteBuffer raw = buffer.getBuffer().duplicate();
+            raw.position(0).limit(buffer.length());
+            if (detach && buffer.isPooled())
+            {
+                ByteBuffer copy = ByteBuffer.allocate(raw.remaining());
+                copy.put(raw).flip();
+                return copy;
+            }
+            return raw;
+        }
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("requestID", response.requestId);
+        json.put("signature", response.signature);
+        List<Map<String, Object>> results = response.results;
+        if (results != null && RowShape.of(response.signature) == RowShape.UNWRAP)
+        {
+            List<Map<String, Object>> wrapped = new ArrayList<>(results.size());
+            for (Map<String, Object> row : results)
+            {
+                wrapped.add(Collections.singletonMap("_", (Object) row));
+            }
+            results = wrapped;
+        }
+        json.put("results", results);
+        json.put("status", response.status);
+        if (response.metrics != null)
+        {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("resultCount", response.metrics.getResultCount());
+            metrics.put("resultSize", response.metrics.getResultSize());
+            json.put("metrics", metrics);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getCodec().writeJson(json, out);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    // the order files were last read in is kept in their modification time, for the next process
+    private static void touch(Path path)
+    {
+        try
+        {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException ex)
+        {
+            logger.trace("Could not touch {}: {}", path, ex.getMessage());
+        }
+    }
+
+    private void load() throws IOException
+    {
+        Map<String, Entry> found = new HashMap<>();
+        Map<String, Long> lastUsed = new HashMap<>();
+        long now = currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path path : files)
+            {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp"))
+                {
+                    // left behind by a process that died writing it
+                    delete(path);
+                    continue;
+                }
+                if (!name.endsWith(SUFFIX))
+                {
+                    continue;
+                }
+                long expires = -1;
+                long size = 0;
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+                {
+                    ByteBuffer header = readHeader(channel);
+                    size = channel.size();
+                    if (checkHeader(header, size, null) >= 0)
+                    {
+                        expires = header.getLong(4 + 4 + 32);
+                    }
+                }
+                catch (IOException ex)
+                {
+                    logger.debug("Error reading cached result {}: {}", name, ex.getMessage());
+                }
+                if (expires <= now)
+                {
+                    delete(path);
+                    continue;
+                }
+                found.put(name, new Entry(size, expires));
+                lastUsed.put(name, Files.getLastModifiedTime(path).toMillis());
+            }
+        }
+        // least recently used first, the same order the index keeps
+        List<String> names = new ArrayList<>(found.keySet());
+        names.sort((a, b) -> Long.compare(lastUsed.get(a), lastUsed.get(b)));
+        synchronized (this)
+        {
+            for (String name : names)
+            {
+                Entry entry = found.get(name);
+                entries.put(name, entry);
+                bytes += entry.size;
+            }
+            evict();
+        }
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining() && channel.read(header) >= 0)
+        {
+            // a short read only happens near the end of a truncated file
+        }
+        header.flip();
+        return header;
+    }
+
+    // called holding the lock
+    private void remove(String name)
+    {
+        Entry entry = entries.remove(name);
+        if (entry != null)
+        {
+            bytes -= entry.size;
+            delete(directory.resolve(name));
+        }
+    }
+
+    // called holding the lock, expired entries go first, then the least recently used
+    private void evict()
+    {
+        if (bytes <= maxBytes)
+        {
+            return;
+        }
+        long now = currentTimeMillis();
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<String, Entry> entry = it.next();
+            if (entry.getValue().expires <= now)
+            {
+                it.remove();
+                bytes -= entry.getValue().size;
+                delete(directory.resolve(entry.getKey()));
+            }
+        }
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext() && bytes > maxBytes; )
+        {
+            Map.Entry<String, Entry> entry = it.next();
+            it.remove();
+            bytes -= entry.getValue().size;
+            delete(directory.resolve(entry.getKey()));
+            evictions.increment();
+        }
+    }
+
+    // a reader that still has the file mapped keeps its rows, the name is all that goes
+    private static void delete(Path path)
+    {
+        try
+        {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException ex)
+        {
+            logger.debug("Could not delete {}: {}", path, ex.getMessage());
+        }
+    }
+
+    private static String fileName(byte[] digest)
+    {
+        StringBuilder sb = new StringBuilder(digest.length * 2 + SUFFIX.length());
+        for (byte b : digest)
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.append(SUFFIX).toString();
+    }
+
+    private static final class Entry
+    {
+        final long size;
+        final long expires;
+
+        Entry(long size, long expires)
+        {
+            this.size = size;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+package com.couchbase.jdbc.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+
+/**
+ * Everything the driver needs from a JSON library: encoding requests, decoding query responses
+ * and converting SQLJSON values.
+ *
+ * Implementations are found with {@link java.util.ServiceLoader} and chosen per connection with
+ * the JsonCodec connection property, see {@link JsonCodecs}. Values are plain java objects;
+ * objects are Maps, arrays are Lists, numbers are Integer, Long, BigInteger or Double.
+ */
+public interface JsonCodec
+{
+    /**
+     * @return the name the codec is selected by
+     */
+    String getName();
+
+    /**
+     * Encodes maps, lists, arrays, strings, numbers, booleans and null
+     */
+    String toJson(Object value);
+
+    /**
+     * Encodes the value as UTF-8 straight to the stream, used for request bodies
+     */
+    void writeJson(Object value, OutputStream out) throws IOException;
+
+    /**
+     * Decodes a single JSON value
+     */
+    Object fromJson(String json);
+
+    /**
+     * Decodes a complete query response. The rows are fully decoded, nothing refers back to the stream afterwards.
+     *
+     * @param inputStream the response body
+     * @param contentLength the length of the body or a negative number if it is not known
+     */
+    CouchResponse decodeResponse(InputStream inputStream, long contentLength) throws IOException, SQLException;
+}
@@ -0,0 +1,77 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+package com.couchbase.jdbc.core;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Looks up {@link JsonCodec} implementations by name.
+ */
+public final class JsonCodecs
+{
+    public static final String BOON = "boon";
+    public static final String STREAMING = "streaming";
+
+    private static final Map<String, JsonCodec> codecs = new ConcurrentHashMap<>();
+
+    static
+    {
+        codecs.put(BOON, new BoonJsonCodec());
+        codecs.put(STREAMING, new StreamingJsonCodec());
+
+        Iterator<JsonCodec> iterator = ServiceLoader.load(JsonCodec.class, JsonCodecs.class.getClassLoader()).iterator();
+        while (true)
+        {
+            try
+            {
+                if (!iterator.hasNext())
+                {
+                    break;
+                }
+                JsonCodec codec = iterator.next();
+                codecs.putIfAbsent(codec.getName().toLowerCase(), codec);
+            }
+            catch (ServiceConfigurationError error)
+            {
+                // a broken provider on the classpath must not take the driver down with it
+            }
+        }
+    }
+
+    private JsonCodecs()
+    {
+    }
+
+    /**
+     * @return the codec used when the connection does not ask for one, Boon for compatibility
+     */
+    public static JsonCodec getDefault()
+    {
+        return codecs.get(BOON);
+    }
+
+    /**
+     * @throws IllegalArgumentException if no codec has that name
+     */
+    public static JsonCodec forName(String name)
+    {
+        JsonCodec codec = codecs.get(name.trim().toLowerCase());
+        if (codec == null)
+        {
+            throw new IllegalArgumentException("Unknown JSON codec " + name + ", expected one of " + codecs.keySet());
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,761 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scans and decodes JSON in place in a byte buffer.
+ *
+ * All methods work on absolute offsets and never move the position of the buffer, so one
+ * buffer can be scanned by several threads at once. Offsets passed in point at the first
+ * byte of a value, offsets returned point just past the end of it.
+ */
+public class JsonScanner
+{
+    private final ByteBuffer buffer;
+    private final int limit;
+
+    // heap buffers are read through their array, which is a lot cheaper than going through the buffer
+    private final byte[] array;
+    private final int arrayOffset;
+
+    public JsonScanner(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+        if (buffer.hasArray())
+        {
+            this.array = buffer.array();
+            this.arrayOffset = buffer.arrayOffset();
+        }
+        else
+        {
+            this.array = null;
+            this.arrayOffset = 0;
+        }
+    }
+
+    private byte get(int pos)
+    {
+        return array != null ? array[arrayOffset + pos] : buffer.get(pos);
+    }
+
+    public ByteBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    public int limit()
+    {
+        return limit;
+    }
+
+    public byte byteAt(int pos)
+    {
+        if (pos >= limit)
+        {
+            throw malformed(pos, "unexpected end of input");
+        }
+        return get(pos);
+    }
+
+    public int skipWhitespace(int pos)
+    {
+        while (pos < limit)
+        {
+            byte b = get(pos);
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t')
+            {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Skips whitespace and checks that the next byte is the expected one
+     *
+     * @return the offset just past the expected byte
+     */
+    public int expect(int pos, char expected)
+    {
+        pos = skipWhitespace(pos);
+        if (byteAt(pos) != expected)
+        {
+            throw malformed(pos, "expected '" + expected + "'");
+        }
+        return pos + 1;
+    }
+
+    /**
+     * @return the offset just past the value starting at pos
+     */
+    public int skipValue(int pos)
+    {
+        switch (byteAt(pos))
+        {
+            case '"':
+                return skipString(pos);
+            case '{':
+            case '[':
+                return skipContainer(pos);
+            case 't':
+                return skipLiteral(pos, "true");
+            case 'f':
+                return skipLiteral(pos, "false");
+            case 'n':
+                return skipLiteral(pos, "null");
+            default:
+                return skipNumber(pos);
+        }
+    }
+
+    public int skipString(int pos)
+    {
+        int i = pos + 1;
+        while (true)
+        {
+            byte b = byteAt(i++);
+            if (b == '"')
+            {
+                return i;
+            }
+            if (b == '\\')
+            {
+                i++;
+            }
+        }
+    }
+
+    private int skipContainer(int pos)
+    {
+        int depth = 0;
+        int i = pos;
+        while (true)
+        {
+            byte b = byteAt(i);
+            switch (b)
+            {
+                case '"':
+                    i = skipString(i);
+                    continue;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    if (--depth == 0)
+                    {
+                        return i + 1;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            i++;
+        }
+    }
+
+    private int skipLiteral(int pos, String literal)
+    {
+        for (int i = 0; i < literal.length(); i++)
+        {
+            if (byteAt(pos + i) != literal.charAt(i))
+            {
+                throw malformed(pos, "expected " + literal);
+            }
+        }
+        return pos + literal.length();
+    }
+
+    private int skipNumber(int pos)
+    {
+        int i = pos;
+        while (i < limit)
+        {
+            byte b = get(i);
+            if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E')
+            {
+                i++;
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (i == pos)
+        {
+            throw malformed(pos, "unexpected character '" + (char)get(pos) + "'");
+        }
+        return i;
+    }
+
+    /**
+     * Decodes the value starting at pos into plain java objects: maps, lists, strings, numbers and booleans
+     */
+    public Object readValue(int pos)
+    {
+        return readValue(pos, new int[1]);
+    }
+
+    /**
+     * Same as {@link #readValue(int)}, leaving the offset just past the value in end[0] so
+     * containers are not scanned a second time to find where they stop
+     */
+    Object readValue(int pos, int[] end)
+    {
+        switch (byteAt(pos))
+        {
+            case '"':
+                return readString(pos, end);
+            case '{':
+                return readObject(pos, end);
+            case '[':
+                return readArray(pos, end);
+            case 't':
+                end[0] = skipLiteral(pos, "true");
+                return Boolean.TRUE;
+            case 'f':
+                end[0] = skipLiteral(pos, "false");
+                return Boolean.FALSE;
+            case 'n':
+                end[0] = skipLiteral(pos, "null");
+                return null;
+            default:
+                int numberEnd = skipNumber(pos);
+                end[0] = numberEnd;
+                return readNumber(pos, numberEnd);
+        }
+    }
+
+    private Map<String, Object> readObject(int pos, int[] end)
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        int i = skipWhitespace(pos + 1);
+        if (byteAt(i) == '}')
+        {
+            end[0] = i + 1;
+            return map;
+        }
+        while (true)
+        {
+            i = skipWhitespace(i);
+            String key = readString(i, end);
+            i = skipWhitespace(expect(end[0], ':'));
+            map.put(key, readValue(i, end));
+            i = skipWhitespace(end[0]);
+
+            byte b = byteAt(i++);
+            if (b == '}')
+            {
+                end[0] = i;
+                return map;
+            }
+            if (b != ',')
+            {
+                throw malformed(i - 1, "expected ',' or '}'");
+            }
+        }
+    }
+
+    /**
+     * Same as reading a row object with {@link #readValue(int, int[])}, except that its keys and
+     * its string values come out of the dictionaries, so repeated ones share a single instance
+     */
+    Map<String, Object> readRow(int pos, int[] end, ColumnDictionaries dictionaries)
+    {
+        if (byteAt(pos) != '{')
+        {
+            throw malformed(pos, "expected a row object");
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        int i = skipWhitespace(pos + 1);
+        if (byteAt(i) == '}')
+        {
+            end[0] = i + 1;
+            return map;
+        }
+        while (true)
+        {
+            i = skipWhitespace(i);
+            String key = readString(i, end, dictionaries.keys());
+            i = skipWhitespace(expect(end[0], ':'));
+            if (byteAt(i) == '"')
+            {
+                map.put(key, readString(i, end, dictionaries.column(key)));
+            }
+            else
+            {
+                map.put(key, readValue(i, end));
+            }
+            i = skipWhitespace(end[0]);
+
+            byte b = byteAt(i++);
+            if (b == '}')
+            {
+                end[0] = i;
+                return map;
+            }
+            if (b != ',')
+            {
+                throw malformed(i - 1, "expected ',' or '}'");
+            }
+        }
+    }
+
+    private List<Object> readArray(int pos, int[] end)
+    {
+        List<Object> list = new ArrayList<>();
+        int i = skipWhitespace(pos + 1);
+        if (byteAt(i) == ']')
+        {
+            end[0] = i + 1;
+            return list;
+        }
+        while (true)
+        {
+            i = skipWhitespace(i);
+            list.add(readValue(i, end));
+            i = skipWhitespace(end[0]);
+
+            byte b = byteAt(i++);
+            if (b == ']')
+            {
+                end[0] = i;
+                return list;
+            }
+            if (b != ',')
+            {
+                throw malformed(i - 1, "expected ',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * Decodes the string starting at pos, which must point at the opening quote
+     */
+    public String readString(int pos)
+    {
+        return readString(pos, new int[1]);
+    }
+
+    private String readString(int pos, int[] end)
+    {
+        return readString(pos, end, null);
+    }
+
+    private String readString(int pos, int[] end, StringDictionary dictionary)
+    {
+        if (byteAt(pos) != '"')
+        {
+            throw malformed(pos, "expected a string");
+        }
+        int start = pos + 1;
+        int i = start;
+
+        // fast path, plain ascii is widened straight into the chars of the string
+        while (true)
+        {
+            byte b = byteAt(i);
+            if (b == '"')
+            {
+                end[0] = i + 1;
+                if (dictionary != null)
+                {
+                    String canonical = dictionary.lookup(this, start, i);
+                    if (canonical != null)
+                    {
+                        return canonical;
+                    }
+                }
+                if (array != null)
+                {
+                    return new String(array, arrayOffset + start, i - start, StandardCharsets.ISO_8859_1);
+                }
+                char[] chars = new char[i - start];
+                for (int k = 0; k < chars.length; k++)
+                {
+                    chars[k] = (char) get(start + k);
+                }
+                return new String(chars);
+            }
+            if (b == '\\' || b < 0)
+            {
+                break;
+            }
+            i++;
+        }
+        // multi byte characters go through the decoder, escapes through the slow path
+        while (true)
+        {
+            byte b = byteAt(i);
+            if (b == '"')
+            {
+                end[0] = i + 1;
+                return new String(copy(start, i - start), StandardCharsets.UTF_8);
+            }
+            if (b == '\\')
+            {
+                break;
+            }
+            i++;
+        }
+        return readEscapedString(start, end);
+    }
+
+    private String readEscapedString(int start, int[] end)
+    {
+        StringBuilder sb = new StringBuilder();
+        int runStart = start;
+        int i = start;
+        while (true)
+        {
+            byte b = byteAt(i);
+            if (b == '"')
+            {
+                appendRun(sb, runStart, i);
+                end[0] = i + 1;
+                return sb.toString();
+            }
+            if (b != '\\')
+            {
+                i++;
+                continue;
+            }
+            appendRun(sb, runStart, i);
+            byte escape = byteAt(i + 1);
+            i += 2;
+            switch (escape)
+            {
+                case '"':  sb.append('"'); break;
+                case '\\': sb.append('\\'); break;
+                case '/':  sb.append('/'); break;
+                case 'b':  sb.append('\b'); break;
+                case 'f':  sb.append('\f'); break;
+                case 'n':  sb.append('\n'); break;
+                case 'r':  sb.append('\r'); break;
+                case 't':  sb.append('\t'); break;
+                case 'u':
+                    sb.append((char)hex4(i));
+                    i += 4;
+                    break;
+                default:
+                    throw malformed(i - 1, "invalid escape");
+            }
+            runStart = i;
+        }
+    }
+
+    private void appendRun(StringBuilder sb, int start, int end)
+    {
+        if (end > start)
+        {
+            sb.append(new String(copy(start, end - start), StandardCharsets.UTF_8));
+        }
+    }
+
+    private int hex4(int pos)
+    {
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            int digit = Character.digit(byteAt(pos + i), 16);
+            if (digit < 0)
+            {
+                throw malformed(pos + i, "invalid unicode escape");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Decodes the number between start and end into an Integer, Long, BigInteger or Double
+     */
+    public Number readNumber(int start, int end)
+    {
+        if (isIntegral(start, end))
+        {
+            // up to 18 digits always fits in a long
+            if (end - start < 19)
+            {
+                long value = parseLong(start, end);
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+                {
+                    return (int)value;
+                }
+                return value;
+            }
+            BigInteger big = parseBigDecimal(start, end).toBigInteger();
+            return big.bitLength() < 64 ? (Number)big.longValue() : big;
+        }
+        try
+        {
+            return Double.parseDouble(new String(copy(start, end - start), StandardCharsets.US_ASCII));
+        }
+        catch (NumberFormatException ex)
+        {
+            throw malformed(start, "invalid number");
+        }
+    }
+
+    public boolean isNumber(int pos)
+    {
+        byte b = byteAt(pos);
+        return b == '-' || (b >= '0' && b <= '9');
+    }
+
+    /**
+     * Parses the number between start and end straight from the digits. Fractions are truncated
+     * the way a narrowing conversion would.
+     *
+     * @throws NumberFormatException if the value does not fit in a long
+     */
+    public long parseLong(int start, int end)
+    {
+        if (!isIntegral(start, end))
+        {
+            BigDecimal decimal = parseBigDecimal(start, end);
+            try
+            {
+                return decimal.toBigInteger().longValueExact();
+            }
+            catch (ArithmeticException ex)
+            {
+                throw new NumberFormatException("value " + decimal + " does not fit in a long");
+            }
+        }
+        int i = start;
+        boolean negative = get(i) == '-';
+        if (negative)
+        {
+            i++;
+        }
+        if (i == end)
+        {
+            throw malformed(start, "invalid number");
+        }
+
+        // accumulate negatively so that Long.MIN_VALUE does not overflow
+        long value = 0;
+        for (; i < end; i++)
+        {
+            int digit = get(i) - '0';
+            if (digit < 0 || digit > 9)
+            {
+                throw malformed(i, "invalid number");
+            }
+            if (value < (Long.MIN_VALUE + digit) / 10)
+            {
+                throw new NumberFormatException("value " + parseBigDecimal(start, end) + " does not fit in a long");
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative)
+        {
+            if (value == Long.MIN_VALUE)
+            {
+                throw new NumberFormatException("value " + parseBigDecimal(start, end) + " does not fit in a long");
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * Builds the exact decimal value of the number between start and end from its characters
+     */
+    public BigDecimal parseBigDecimal(int start, int end)
+    {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++)
+        {
+            chars[i - start] = (char)get(i);
+        }
+        try
+        {
+            return new BigDecimal(chars);
+        }
+        catch (NumberFormatException ex)
+        {
+            throw malformed(start, "invalid number " + new String(chars));
+        }
+    }
+
+    /**
+     * Parses the number between start and end as a double. Integers that fit in a long are
+     * converted from the digits without going through a string.
+     */
+    public double parseDouble(int start, int end)
+    {
+        if (isIntegral(start, end) && end - start < 19)
+        {
+            return parseLong(start, end);
+        }
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++)
+        {
+            chars[i - start] = (char)get(i);
+        }
+        try
+        {
+            return Double.parseDouble(new String(chars));
+        }
+        catch (NumberFormatException ex)
+        {
+            throw malformed(start, "invalid number " + new String(chars));
+        }
+    }
+
+    boolean isIntegral(int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            byte b = get(i);
+            if (b == '.' || b == 'e' || b == 'E')
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the string starting at pos with the given UTF-8 bytes without decoding it.
+     * Strings containing escapes never compare equal.
+     */
+    public boolean stringEquals(int pos, byte[] utf8)
+    {
+        if (byteAt(pos) != '"' || pos + utf8.length + 1 >= limit)
+        {
+            return false;
+        }
+        for (int i = 0; i < utf8.length; i++)
+        {
+            if (get(pos + 1 + i) != utf8[i])
+            {
+                return false;
+            }
+        }
+        return get(pos + 1 + utf8.length) == '"';
+    }
+
+    /**
+     * Finds the values of the named members of the object at pos. Members usually come in the
+     * order of the names, so the name at the same position is tried first.
+     *
+     * @param names the UTF-8 bytes of each member name
+     * @param starts set to the offset of each value, -1 if the member is missing or pos is not an object
+     * @param ends set to the offset just past each value
+     */
+    public void locateMembers(int pos, byte[][] names, int[] starts, int[] ends)
+    {
+        Arrays.fill(starts, -1);
+        if (byteAt(pos) != '{')
+        {
+            return;
+        }
+        int member = 0;
+        int i = skipWhitespace(pos + 1);
+        while (byteAt(i) != '}')
+        {
+            int key = i;
+            i = skipWhitespace(expect(skipString(i), ':'));
+            int end = skipValue(i);
+
+            int found = -1;
+            if (member < names.length && stringEquals(key, names[member]))
+            {
+                found = member;
+            }
+            else
+            {
+                for (int n = 0; n < names.length; n++)
+                {
+                    if (stringEquals(key, names[n]))
+                    {
+                        found = n;
+                        break;
+                    }
+                }
+            }
+            if (found >= 0)
+            {
+                starts[found] = i;
+                ends[found] = end;
+            }
+            member++;
+
+            i = skipWhitespace(end);
+            if (byteAt(i) == ',')
+            {
+                i = skipWhitespace(i + 1);
+            }
+        }
+    }
+
+    /**
+     * Compares the raw bytes of two spans
+     */
+    public boolean regionEquals(int start1, int start2, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            if (get(start1 + i) != get(start2 + i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] copy(int start, int length)
+    {
+        byte[] bytes = new byte[length];
+        if (array != null)
+        {
+            System.arraycopy(array, arrayOffset + start, bytes, 0, length);
+            return bytes;
+        }
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(start);
+        duplicate.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return a read only view of the bytes between start and end, sharing the response memory
+     */
+    public ByteBuffer slice(int start, int end)
+    {
+        ByteBuffer duplicate = buffer.asReadOnlyBuffer();
+        duplicate.limit(end);
+        duplicate.position(start);
+        return duplicate.slice();
+    }
+
+    IllegalStateException malformed(int pos, String message)
+    {
+        return new IllegalStateException("Malformed JSON response at offset " + pos + ": " + message);
+    }
+}
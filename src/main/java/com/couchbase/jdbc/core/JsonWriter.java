@@ -0,0 +1,255 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+package com.couchbase.jdbc.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Writes java values as UTF-8 JSON into a growable byte array, without going through a String.
+ *
+ * Maps become objects, iterables and arrays become arrays, numbers and booleans are written as
+ * they are and anything else is written as the string of its toString().
+ */
+class JsonWriter
+{
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] bytes;
+    private int count;
+
+    JsonWriter(int capacity)
+    {
+        bytes = new byte[capacity];
+    }
+
+    JsonWriter value(Object value)
+    {
+        if (value == null)
+        {
+            write(NULL);
+        }
+        else if (value instanceof CharSequence)
+        {
+            string((CharSequence) value);
+        }
+        else if (value instanceof Boolean)
+        {
+            write((Boolean) value ? TRUE : FALSE);
+        }
+        else if (value instanceof Double || value instanceof Float)
+        {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d))
+            {
+                write(NULL);
+            }
+            else
+            {
+                ascii(value.toString());
+            }
+        }
+        else if (value instanceof Number)
+        {
+            ascii(value.toString());
+        }
+        else if (value instanceof Map)
+        {
+            map((Map<?, ?>) value);
+        }
+        else if (value instanceof Iterable)
+        {
+            iterable((Iterable<?>) value);
+        }
+        else if (value.getClass().isArray())
+        {
+            array(value);
+        }
+        else
+        {
+            string(value.toString());
+        }
+        return this;
+    }
+
+    private void map(Map<?, ?> map)
+    {
+        ch('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet())
+        {
+            if (!first)
+            {
+                ch(',');
+            }
+            first = false;
+            string(String.valueOf(entry.getKey()));
+            ch(':');
+            value(entry.getValue());
+        }
+        ch('}');
+    }
+
+    private void iterable(Iterable<?> iterable)
+    {
+        ch('[');
+        boolean first = true;
+        for (Object element : iterable)
+        {
+            if (!first)
+            {
+                ch(',');
+            }
+            first = false;
+            value(element);
+        }
+        ch(']');
+    }
+
+    private void array(Object array)
+    {
+        ch('[');
+        int length = Array.getLength(array);
+        for (int i = 0; i < length; i++)
+        {
+            if (i > 0)
+            {
+                ch(',');
+            }
+            value(Array.get(array, i));
+        }
+        ch(']');
+    }
+
+    private void string(CharSequence s)
+    {
+        int length = s.length();
+        // worst case every char is a three byte sequence, escapes are handled as they come
+        ensure(length * 3 + 2);
+        bytes[count++] = '"';
+        for (int i = 0; i < length; i++)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80)
+            {
+                if (c == '"' || c == '\\')
+                {
+                    ensure(2 + (length - i) * 3);
+                    bytes[count++] = '\\';
+                    bytes[count++] = (byte) c;
+                }
+                else if (c < 0x20)
+                {
+                    ensure(6 + (length - i) * 3);
+                    escape(c);
+                }
+                else
+                {
+                    bytes[count++] = (byte) c;
+                }
+            }
+            else if (c < 0x800)
+            {
+                bytes[count++] = (byte) (0xc0 | (c >> 6));
+                bytes[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                // four bytes for the pair, which is two chars worth of room
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                bytes[count++] = (byte) (0xf0 | (cp >> 18));
+                bytes[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                bytes[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[count++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                // unpaired surrogates can not be encoded, same as String.getBytes
+                bytes[count++] = '?';
+            }
+            else
+            {
+                bytes[count++] = (byte) (0xe0 | (c >> 12));
+                bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        bytes[count++] = '"';
+    }
+
+    private void escape(char c)
+    {
+        bytes[count++] = '\\';
+        switch (c)
+        {
+            case '\n': bytes[count++] = 'n'; break;
+            case '\r': bytes[count++] = 'r'; break;
+            case '\t': bytes[count++] = 't'; break;
+            case '\b': bytes[count++] = 'b'; break;
+            case '\f': bytes[count++] = 'f'; break;
+            default:
+                bytes[count++] = 'u';
+                bytes[count++] = '0';
+                bytes[count++] = '0';
+                bytes[count++] = HEX[c >> 4];
+                bytes[count++] = HEX[c & 0xf];
+        }
+    }
+
+    private void ascii(String s)
+    {
+        int length = s.length();
+        ensure(length);
+        for (int i = 0; i < length; i++)
+        {
+            bytes[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void ch(char b)
+    {
+        ensure(1);
+        bytes[count++] = (byte) b;
+    }
+
+    private void write(byte[] b)
+    {
+        ensure(b.length);
+        System.arraycopy(b, 0, bytes, count, b.length);
+        count += b.length;
+    }
+
+    private void ensure(int extra)
+    {
+        if (count + extra > bytes.length)
+        {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + extra));
+        }
+    }
+
+    void writeTo(OutputStream out) throws IOException
+    {
+        out.write(bytes, 0, count);
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(bytes, 0, count, StandardCharsets.UTF_8);
+    }
+}
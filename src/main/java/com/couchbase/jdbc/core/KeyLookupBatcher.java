@@ -0,0 +1,475 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import com.couchbase.jdbc.util.SqlParser;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Gathers point reads, select ... from keyspace use keys $n with a single key, into one request.
+ * A lookup that finds another one of its statement still in flight opens a batch and waits up
+ * to a window for others reading different keys with the same statement, arguments and
+ * connection options, then reads all their keys with one use keys [..] and hands every caller
+ * the rows of its own key. A batch that fills up is sent right away. A lookup with nothing else
+ * in flight is sent at once, it has no one to wait for.
+ *
+ * To tell the rows apart the statement also selects META().id, so only statements where every
+ * row comes from exactly one key are batched: no joins, grouping, aggregates, ordering, limits
+ * or distinct, and the key placeholder must not be used anywhere else in the statement. A
+ * caller left alone at the end of the window sends its own statement unchanged. Rows are frozen
+ * before they are handed out, callers asking for the same key share them.
+ */
+public class KeyLookupBatcher
+{
+    public static final long DEFAULT_WINDOW_MICROS = 1000;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    static final String BATCH_KEY = "$batch_key";
+
+    private static final ConcurrentHashMap<String, KeyLookupBatcher> batchers = new ConcurrentHashMap<>();
+
+    private static final Set<String> UNBATCHABLE = new HashSet<>(Arrays.asList(
+            "DISTINCT", "JOIN", "NEST", "UNNEST", "GROUP", "LETTING", "HAVING", "ORDER", "LIMIT", "OFFSET", "OVER",
+            "UNION", "INTERSECT", "EXCEPT"));
+    private static final Pattern AGGREGATE = Pattern.compile(
+            "\\b(COUNT|COUNTN|SUM|AVG|MEAN|MEDIAN|MIN|MAX|ARRAY_AGG|STDDEV\\w*|VARIANCE\\w*|VAR_\\w+)\\s*\\(",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\$(\\d+)");
+    // statements are parsed once, a null lookup remembers one that can't be batched
+    private static final int MAX_STATEMENTS = 1000;
+
+    /**
+     * Sends a batched statement with its positional arguments
+     */
+    public interface Fetch
+    {
+        CouchResponse fetch(String statement, Object[] args) throws SQLException;
+    }
+
+    private final long windowNanos;
+    private final int maxBatchSize;
+
+    private final ConcurrentHashMap<String, Lookup> statements = new ConcurrentHashMap<>();
+    // guarded by this, the batches still taking keys
+    private final Map<QueryKey, Batch> open = new HashMap<>();
+    // guarded by this, the lookups of each statement that have not got their rows yet
+    private final Map<QueryKey, Integer> inFlight = new HashMap<>();
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+
+    /**
+     * @param windowMicros how long the first lookup of a batch waits for others
+     * @param maxBatchSize the most distinct keys read by one request
+     */
+    public KeyLookupBatcher(long windowMicros, int maxBatchSize)
+    {
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Returns the batcher shared by every connection asking for the same window and size
+     */
+    public static KeyLookupBatcher shared(long windowMicros, int maxBatchSize)
+    {
+        return batchers.computeIfAbsent(windowMicros + ":" + maxBatchSize, k -> new KeyLookupBatcher(windowMicros, maxBatchSize));
+    }
+
+    /**
+     * Returns the rows of a point lookup, read together with the lookups other callers make at
+     * the same time. A statement this cannot batch, or a lookup nobody else came along for, is
+     * sent on its own with alone.
+     *
+     * @param principal the cluster and credentials of the connection
+     * @param options the settings the connection sends with a request, namespace, scan consistency,
+     * timeout and so on; lookups are only batched with those of the same principal and options
+     * @param statement the statement, with ? or $n placeholders
+     * @param args the positional arguments
+     * @param fetch sends the batch, only the fetch of the first caller is used
+     * @param alone sends the statement as the caller gave it
+     * @throws SQLException if the request fails, every caller in a batch gets the error
+     */
+    public CouchResponse lookup(String principal, String options, String statement, Object[] args, Fetch fetch,
+                                QueryCoalescer.Fetch alone) throws SQLException
+    {
+        Lookup lookup = statement == null ? null : parsed(statement);
+        if (lookup == null || lookup.keyIndex >= args.length || !(args[lookup.keyIndex] instanceof String))
+        {
+            return alone.fetch();
+        }
+        String key = (String) args[lookup.keyIndex];
+        Object[] others = args.clone();
+        others[lookup.keyIndex] = null;
+        // the options include the namespace and scan consistency
+        QueryKey group = new QueryKey(principal, lookup.statement, others, null, options, null);
+
+        Batch batch;
+        boolean leader;
+        synchronized (this)
+        {
+            int pending = inFlight.getOrDefault(group, 0);
+            inFlight.put(group, pending + 1);
+            batch = open.get(group);
+            leader = batch == null;
+            if (leader && pending > 0)
+            {
+                batch = new Batch(lookup, others, fetch);
+                open.put(group, batch);
+            }
+            if (batch != null)
+            {
+                batch.callers++;
+                batch.keys.add(key);
+                if (batch.keys.size() >= maxBatchSize)
+                {
+                    open.remove(group);
+                    batch.full.countDown();
+                }
+            }
+        }
+        lookups.increment();
+        try
+        {
+            if (batch == null)
+            {
+                return alone.fetch();
+            }
+            return leader ? lead(group, batch, key, alone) : batch.await(key);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                int pending = inFlight.remove(group) - 1;
+                if (pending > 0)
+                {
+                    inFlight.put(group, pending);
+                }
+            }
+        }
+    }
+
+    // waits for the window or a full batch, then sends it
+    private CouchResponse lead(QueryKey group, Batch batch, String key, QueryCoalescer.Fetch alone) throws SQLException
+    {
+        boolean interrupted = false;
+        try
+        {
+            batch.full.await(windowNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+            // the others are waiting on this batch, it is sent all the same
+            interrupted = true;
+        }
+        synchronized (this)
+        {
+            open.remove(group, batch);
+        }
+        try
+        {
+            if (batch.callers == 1)
+            {
+                batch.done.countDown();
+                return alone.fetch();
+            }
+            batches.increment();
+            batch.run();
+            return batch.await(key);
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the batched requests sent
+     */
+    public long getBatches()
+    {
+        return batches.sum();
+    }
+
+    /**
+     * @return the batchable lookups, including the ones that were sent alone
+     */
+    public long getLookups()
+    {
+        return lookups.sum();
+    }
+
+    private Lookup parsed(String statement)
+    {
+        Lookup lookup = statements.get(statement);
+        if (lookup == null)
+        {
+            if (statements.size() >= MAX_STATEMENTS)
+            {
+                statements.clear();
+            }
+            lookup = parse(statement);
+            statements.put(statement, lookup == null ? Lookup.NONE : lookup);
+        }
+        return lookup == Lookup.NONE ? null : lookup;
+    }
+
+    /**
+     * Returns the batched form of statement, null unless it is a select whose only keyspace is
+     * read with use keys and a single placeholder and every row it returns comes from one key
+     */
+    static Lookup parse(String statement)
+    {
+        String sql = statement.trim();
+        while (sql.endsWith(";"))
+        {
+            sql = sql.substring(0, sql.length() - 1).trim();
+        }
+        SqlParser parser = new SqlParser(sql);
+        parser.parse();
+        sql = parser.toString();
+
+        List<int[]> words = KeysetCursor.topLevelWords(sql);
+        if (words.isEmpty() || !word(sql, words.get(0)).equals("SELECT"))
+        {
+            return null;
+        }
+        int from = -1;
+        int keys = -1;
+        for (int i = 1; i < words.size(); i++)
+        {
+            String word = word(sql, words.get(i));
+            if (UNBATCHABLE.contains(word))
+            {
+                return null;
+            }
+            if (word.equals("FROM") && from < 0)
+            {
+                from = i;
+            }
+            else if (word.equals("USE") && i + 1 < words.size() && word(sql, words.get(i + 1)).equals("KEYS"))
+            {
+                keys = i + 1;
+            }
+        }
+        if (from < 0 || keys < from)
+        {
+            return null;
+        }
+
+        // the keys have to be a placeholder on their own, followed by nothing but a where clause
+        int operandEnd = keys + 1 < words.size() ? words.get(keys + 1)[0] : sql.length();
+        if (keys + 1 < words.size() && !word(sql, words.get(keys + 1)).equals("WHERE"))
+        {
+            return null;
+        }
+        Matcher placeholder = PLACEHOLDER.matcher(sql.substring(words.get(keys)[1], operandEnd).trim());
+        if (!placeholder.matches())
+        {
+            return null;
+        }
+        // the argument becomes a list of keys, anywhere else it is used would read that list too
+        Matcher uses = Pattern.compile(Pattern.quote(placeholder.group()) + "(?!\\d)").matcher(sql);
+        int count = 0;
+        while (uses.find())
+        {
+            count++;
+        }
+        if (count > 1)
+        {
+            return null;
+        }
+
+        int fromStart = words.get(from)[0];
+        boolean raw = words.size() > 1 && from > 1 && isRaw(word(sql, words.get(1)));
+        int projectionStart = raw ? words.get(1)[1] : words.get(0)[1];
+        String projection = sql.substring(projectionStart, fromStart).trim();
+        if (projection.isEmpty() || AGGREGATE.matcher(projection).find())
+        {
+            return null;
+        }
+        // a raw value becomes the $1 column it is read back as anyway
+        String select = raw ? sql.substring(0, words.get(1)[0]) + projection + " AS `" + RowShape.RAW_COLUMN + "`"
+                            : sql.substring(0, fromStart).trim();
+        String batched = select + ", META().id AS `" + BATCH_KEY + "` " + sql.substring(fromStart);
+        return new Lookup(batched, Integer.parseInt(placeholder.group(1)) - 1);
+    }
+
+    private static boolean isRaw(String word)
+    {
+        return word.equals("RAW") || word.equals("ELEMENT") || word.equals("VALUE");
+    }
+
+    private static String word(String sql, int[] span)
+    {
+        return sql.substring(span[0], span[1]).toUpperCase(Locale.ROOT);
+    }
+
+    // a statement rewritten to read many keys at once, and which argument held the key
+    static final class Lookup
+    {
+        static final Lookup NONE = new Lookup(null, -1);
+
+        final String statement;
+        final int keyIndex;
+
+        Lookup(String statement, int keyIndex)
+        {
+            this.statement = statement;
+            this.keyIndex = keyIndex;
+        }
+    }
+
+    // the keys of one batch and, once it has been sent, the rows of each
+    private static final class Batch
+    {
+        final Lookup lookup;
+        final Object[] args;
+        final Fetch fetch;
+        // guarded by the batcher until the batch is taken out of the open ones
+        final Set<String> keys = new LinkedHashSet<>();
+        int callers;
+
+        final CountDownLatch full = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile SQLException failure;
+        private Map<String, String> signature;
+        private Map<String, List<Map<String, Object>>> rows;
+        private CouchResponse batched;
+        private long resultCount;
+
+        Batch(Lookup lookup, Object[] args, Fetch fetch)
+        {
+            this.lookup = lookup;
+            this.args = args;
+            this.fetch = fetch;
+        }
+
+        void run()
+        {
+            Object[] batchArgs = args.clone();
+            batchArgs[lookup.keyIndex] = new ArrayList<>(keys);
+            try
+            {
+                CouchResponse response = fetch.fetch(lookup.statement, batchArgs);
+                try
+                {
+                    split(response);
+                }
+                finally
+                {
+                    response.close();
+                }
+            }
+            catch (SQLException ex)
+            {
+                failure = ex;
+            }
+            catch (RuntimeException ex)
+            {
+                failure = new SQLException("Error running batched lookup", ex);
+            }
+            done.countDown();
+        }
+
+        // rows are copied off the response so it can be closed, there are only a few per key
+        private void split(CouchResponse response)
+        {
+            signature = new LinkedHashMap<>();
+            if (response.signature != null)
+            {
+                signature.putAll(response.signature);
+            }
+            signature.remove(BATCH_KEY);
+            boolean unwrap = RowShape.of(signature) == RowShape.UNWRAP;
+
+            rows = new HashMap<>();
+            List<Map<String, Object>> results = response.results == null ? Collections.<Map<String, Object>>emptyList() : response.results;
+            for (Map<String, Object> result : results)
+            {
+                Map<String, Object> row = new LinkedHashMap<>(result);
+                Object id = row.remove(BATCH_KEY);
+                // select * rows are unwrapped from their keyspace name, as the decoder would have
+                if (unwrap && row.size() == 1)
+                {
+                    Object document = row.values().iterator().next();
+                    if (document instanceof Map)
+                    {
+                        //noinspection unchecked
+                        row = (Map<String, Object>) document;
+                    }
+                }
+                // callers reading the same key share the row, none of them may change it for the others
+                rows.computeIfAbsent(String.valueOf(id), k -> new ArrayList<>()).add(SharedResponse.freezeRow(row));
+            }
+            resultCount = results.size();
+            batched = response;
+        }
+
+        CouchResponse await(String key) throws SQLException
+        {
+            try
+            {
+                done.await();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a batched lookup", ex);
+            }
+            if (failure != null)
+            {
+                throw new SQLException(failure.getMessage(), failure.getSQLState(), failure.getErrorCode(), failure);
+            }
+            List<Map<String, Object>> mine = rows.get(key);
+            CouchResponse response = new CouchResponse();
+            response.signature = signature;
+            response.results = mine == null ? new ArrayList<Map<String, Object>>() : new ArrayList<>(mine);
+            response.requestId = batched.requestId;
+            response.status = batched.status;
+            response.warnings = batched.warnings;
+            response.codec = batched.codec;
+
+            CouchMetrics metrics = new CouchMetrics();
+            metrics.setResultCount(response.results.size());
+            // each key is charged its share of the bytes sent for the batch
+            if (batched.metrics != null && resultCount > 0)
+            {
+                metrics.setResultSize((int) (batched.metrics.getResultSize() * response.results.size() / resultCount));
+            }
+            response.metrics = metrics;
+            return response;
+        }
+    }
+}
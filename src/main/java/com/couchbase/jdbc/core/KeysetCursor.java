@@ -0,0 +1,355 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import com.couchbase.jdbc.connect.Protocol;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the result of a query in pages ordered by a unique key, each page starting right after
+ * the last key of the one before:
+ *
+ *   ... WHERE (condition) AND key > $last ORDER BY key LIMIT pageSize
+ *
+ * Unlike OFFSET every page is an index range scan that costs the same however deep into the
+ * keyspace it is, and no single request runs long enough to hit the server timeout. Pages are
+ * separate requests, so rows written while the scan runs may or may not be seen.
+ *
+ * The key has to be one of the selected columns so the cursor can read it back, for instance
+ * SELECT META(b).id AS id, b.* FROM b with key expression META(b).id and key column id.
+ */
+public class KeysetCursor implements PageSource
+{
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    // the last key is sent as a named parameter so it never has to be quoted into the statement
+    static final String LAST_KEY = "$keyset_last";
+    static final String UPPER_KEY = "$keyset_upper";
+
+    private final Protocol protocol;
+    private final String keyExpression;
+    private final String keyColumn;
+
+    // the query cut where the key predicate goes: up to and including WHERE, the condition,
+    // and whatever follows the condition up to the original ORDER BY
+    private final String head;
+    private final String condition;
+    private final String tail;
+    // FROM up to the end of the condition, null for a select without FROM
+    private final String scan;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private Object lastKey;
+    private Object upperBound;
+    private boolean done;
+
+    /**
+     * @param protocol the connection pages are read over
+     * @param sql a select without LIMIT, OFFSET or set operators, its ORDER BY if any is replaced
+     * by the key ordering
+     * @param keyExpression the unique key the rows are ordered by, as written in the query
+     * @param keyColumn the name of the column that holds the key in every row
+     * @throws SQLException if the query cannot be paged
+     */
+    public KeysetCursor(Protocol protocol, String sql, String keyExpression, String keyColumn) throws SQLException
+    {
+        this.protocol = protocol;
+        this.keyExpression = keyExpression;
+        this.keyColumn = keyColumn;
+
+        String query = sql.trim();
+        if (query.endsWith(";"))
+        {
+            query = query.substring(0, query.length() - 1);
+        }
+        if (!query.regionMatches(true, 0, "select", 0, 6))
+        {
+            throw new SQLException("A keyset cursor needs a SELECT statement");
+        }
+
+        int from = -1;
+        int where = -1;
+        int group = -1;
+        int order = query.length();
+        for (int[] word : topLevelWords(query))
+        {
+            String keyword = query.substring(word[0], word[1]).toUpperCase(Locale.ROOT);
+            switch (keyword)
+            {
+                case "FROM":
+                    from = from < 0 ? word[0] : from;
+                    break;
+                case "WHERE":
+                    where = where < 0 ? word[1] : where;
+                    break;
+                case "GROUP":
+                    group = group < 0 ? word[0] : group;
+                    break;
+                case "ORDER":
+                    order = Math.min(order, word[0]);
+                    break;
+                case "LIMIT":
+                case "OFFSET":
+                case "UNION":
+                case "INTERSECT":
+                case "EXCEPT":
+                    throw new SQLException("A keyset cursor cannot page a query with " + keyword);
+                default:
+                    break;
+            }
+        }
+        int conditionEnd = group >= 0 && group < order ? group : order;
+        if (where >= 0)
+        {
+            head = query.substring(0, where);
+            condition = query.substring(where, conditionEnd).trim();
+        }
+        else
+        {
+            head = query.substring(0, conditionEnd).trim() + " WHERE";
+            condition = null;
+        }
+        tail = query.substring(conditionEnd, order).trim();
+        scan = from >= 0 ? query.substring(from, conditionEnd).trim() : null;
+    }
+
+    /**
+     * @param pageSize the rows asked for per request
+     */
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * Starts the scan after the given key instead of at the first row, typically a value
+     * returned by {@link com.couchbase.jdbc.CBResultSet#getCheckpoint()} before a failure
+     */
+    public void setCheckpoint(Object lastKey)
+    {
+        this.lastKey = lastKey;
+    }
+
+    /**
+     * Ends the scan with the given key, inclusive, instead of at the last row
+     */
+    public void setUpperBound(Object upperBound)
+    {
+        this.upperBound = upperBound;
+    }
+
+    @Override
+    public CouchResponse nextPage() throws SQLException
+    {
+        if (done)
+        {
+            return null;
+        }
+        String statement = pageStatement();
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("statement", statement);
+        if (lastKey != null)
+        {
+            parameters.put(LAST_KEY, lastKey);
+        }
+        if (upperBound != null)
+        {
+            parameters.put(UPPER_KEY, upperBound);
+        }
+
+        CouchResponse page = fetch(statement, parameters);
+        List<Map<String, Object>> rows = page.getResults();
+        int count = rows == null ? 0 : rows.size();
+        // a short page is the last one, which saves asking for an empty page
+        done = count < pageSize;
+        if (count == 0)
+        {
+            page.close();
+            return null;
+        }
+        Object key = rows.get(count - 1).get(keyColumn);
+        if (key == null)
+        {
+            page.close();
+            done = true;
+            throw new SQLException("Keyset cursor rows have no key in column " + keyColumn);
+        }
+        lastKey = key;
+        return page;
+    }
+
+    @Override
+    public Object checkpoint(Map<String, Object> row) throws SQLException
+    {
+        Object key = row.get(keyColumn);
+        if (key == null)
+        {
+            throw new SQLException("Keyset cursor rows have no key in column " + keyColumn);
+        }
+        return key;
+    }
+
+    @Override
+    public void close()
+    {
+        done = true;
+    }
+
+    /**
+     * Runs one page, overridden by tests
+     */
+    protected CouchResponse fetch(String statement, Map<String, Object> parameters) throws SQLException
+    {
+        return protocol.doQuery(statement, parameters);
+    }
+
+    String pageStatement()
+    {
+        StringBuilder sb = new StringBuilder(head.length() + 64);
+        if (condition == null && lastKey == null && upperBound == null)
+        {
+            // no condition of its own and no bounds yet, drop the WHERE added for the key
+            sb.append(head, 0, head.length() - " WHERE".length());
+        }
+        else
+        {
+            sb.append(head);
+            String and = " ";
+            if (condition != null)
+            {
+                sb.append(" (").append(condition).append(')');
+                and = " AND ";
+            }
+            if (lastKey != null)
+            {
+                sb.append(and).append(keyExpression).append(" > ").append(LAST_KEY);
+                and = " AND ";
+            }
+            if (upperBound != null)
+            {
+                sb.append(and).append(keyExpression).append(" <= ").append(UPPER_KEY);
+            }
+        }
+        if (!tail.isEmpty())
+        {
+            sb.append(' ').append(tail);
+        }
+        return sb.append(" ORDER BY ").append(keyExpression).append(" LIMIT ").append(pageSize).toString();
+    }
+
+    /**
+     * Returns a statement over the same keyspace and condition with another select list, for
+     * instance to count the rows or sample the keys
+     *
+     * @throws SQLException if the query has no FROM clause
+     */
+    String project(String selectList, String suffix) throws SQLException
+    {
+        if (scan == null)
+        {
+            throw new SQLException("A keyset cursor query without FROM cannot be partitioned");
+        }
+        return "SELECT " + selectList + ' ' + scan + suffix;
+    }
+
+    String getKeyExpression()
+    {
+        return keyExpression;
+    }
+
+    // the offsets of the words outside of strings, quoted identifiers, comments and parentheses
+    static List<int[]> topLevelWords(String query)
+    {
+        List<int[]> words = new ArrayList<>();
+        int depth = 0;
+        int i = 0;
+        int length = query.length();
+        while (i < length)
+        {
+            char c = query.charAt(i);
+            if (c == '\'' || c == '"' || c == '`')
+            {
+                i = skipQuoted(query, i, c);
+            }
+            else if (c == '/' && i + 1 < length && query.charAt(i + 1) == '*')
+            {
+                int close = query.indexOf("*/", i + 2);
+                i = close < 0 ? length : close + 2;
+            }
+            else if (c == '(' || c == '[' || c == '{')
+            {
+                depth++;
+                i++;
+            }
+            else if (c == ')' || c == ']' || c == '}')
+            {
+                depth--;
+                i++;
+            }
+            else if (Character.isLetter(c) || c == '_')
+            {
+                int start = i;
+                while (i < length && (Character.isLetterOrDigit(query.charAt(i)) || query.charAt(i) == '_' || query.charAt(i) == '$'))
+                {
+                    i++;
+                }
+                // a word directly after a dot is a field name, not a keyword
+                if (depth == 0 && (start == 0 || query.charAt(start - 1) != '.'))
+                {
+                    words.add(new int[] {start, i});
+                }
+            }
+            else
+            {
+                i++;
+            }
+        }
+        return words;
+    }
+
+    private static int skipQuoted(String query, int start, char quote)
+    {
+        int i = start + 1;
+        while (i < query.length())
+        {
+            char c = query.charAt(i++);
+            if (c == '\\')
+            {
+                i++;
+            }
+            else if (c == quote)
+            {
+                // a doubled quote stands for itself
+                if (i < query.length() && query.charAt(i) == quote)
+                {
+                    i++;
+                }
+                else
+                {
+                    return i;
+                }
+            }
+        }
+        return i;
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes a query response held in a {@link ResponseBuffer} into a {@link CouchResponse}.
+ *
+ * Only the envelope is decoded up front. The results array is indexed into {@link LazyRow}s
+ * that point back into the buffer, so the buffer has to stay alive until the response is closed.
+ */
+public class LazyResponseDecoder
+{
+    private static final String[] RAW_NAMES = { RowShape.RAW_COLUMN };
+
+    private static final byte[] EXECUTION_TIME = ascii("executionTime");
+    private static final byte[] ELAPSED_TIME = ascii("elapsedTime");
+    private static final byte[] RESULT_COUNT = ascii("resultCount");
+    private static final byte[] RESULT_SIZE = ascii("resultSize");
+    private static final byte[] ERROR_COUNT = ascii("errorCount");
+    private static final byte[] WARNING_COUNT = ascii("warningCount");
+    private static final byte[] MUTATION_COUNT = ascii("mutationCount");
+    private static final byte[] CODE = ascii("code");
+    private static final byte[] MSG = ascii("msg");
+
+    private final ResponseBuffer buffer;
+    private final JsonScanner scanner;
+
+    // when set the rows are decoded eagerly and the buffer is released once decoding is done
+    private ParallelRowDecoder rowDecoder;
+
+    // when set the signature and results are skipped over without being looked at
+    private boolean skipResults;
+
+    // key spans of the row being indexed, start and end of the quoted key
+    private int[] keySpans = new int[32];
+    private int[] valueSpans = new int[32];
+
+    // shape of the previous row, reused as long as the keys are byte for byte the same
+    private String[] lastNames;
+    private int[] lastKeySpans;
+
+    // offset just past the last row indexed by readRow
+    private int rowEnd;
+
+    private static byte[] ascii(String key)
+    {
+        return key.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public LazyResponseDecoder(ResponseBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.scanner = new JsonScanner(buffer.getBuffer());
+    }
+
+    /**
+     * Decodes the rows up front with the given decoder instead of indexing them into lazy rows
+     */
+    public void setRowDecoder(ParallelRowDecoder rowDecoder)
+    {
+        this.rowDecoder = rowDecoder;
+    }
+
+    /**
+     * Only decodes status, errors, warnings and metrics, for statements where all that matters is
+     * the mutation count. The buffer is released once decoding is done.
+     */
+    public void setSkipResults(boolean skipResults)
+    {
+        this.skipResults = skipResults;
+    }
+
+    @SuppressWarnings("unchecked")
+    public CouchResponse decode() throws SQLException
+    {
+        CouchResponse couchResponse = new CouchResponse();
+        boolean keepBuffer = rowDecoder == null && !skipResults;
+        if (keepBuffer)
+        {
+            couchResponse.buffer = buffer;
+        }
+
+        try
+        {
+            int resultsStart = -1;
+            int resultsEnd = -1;
+            Object signature = null;
+
+            int pos = scanner.skipWhitespace(scanner.expect(0, '{'));
+            if (scanner.byteAt(pos) == '}')
+            {
+                return couchResponse;
+            }
+            while (true)
+            {
+                pos = scanner.skipWhitespace(pos);
+                String key = scanner.readString(pos);
+                pos = scanner.skipWhitespace(scanner.expect(scanner.skipString(pos), ':'));
+
+                switch (key)
+                {
+                    case "status":
+                        couchResponse.status = (String) scanner.readValue(pos);
+                        break;
+                    case "requestID":
+                        couchResponse.requestId = (String) scanner.readValue(pos);
+                        break;
+                    case "signature":
+                        if (!skipResults)
+                        {
+                            signature = scanner.readValue(pos);
+                        }
+                        break;
+                    case "results":
+                        if (!skipResults)
+                        {
+                            resultsStart = pos;
+                        }
+                        break;
+                    case "metrics":
+                        couchResponse.metrics = readMetrics(pos);
+                        break;
+                    case "errors":
+                        couchResponse.errors = readErrors(pos);
+                        break;
+                    case "warnings":
+                        couchResponse.warnings = readErrors(pos);
+                        break;
+                    default:
+                        break;
+                }
+
+                int end = scanner.skipValue(pos);
+                if (pos == resultsStart)
+                {
+                    resultsEnd = end;
+                }
+                pos = scanner.skipWhitespace(end);
+                byte b = scanner.byteAt(pos++);
+                if (b == '}')
+                {
+                    break;
+                }
+                if (b != ',')
+                {
+                    throw scanner.malformed(pos - 1, "expected ',' or '}'");
+                }
+            }
+
+            RowShape shape = RowShape.of(signature);
+            if (signature instanceof Map)
+            {
+                couchResponse.signature = (Map) signature;
+            }
+            else if (signature instanceof String)
+            {
+                couchResponse.signature = new HashMap<>();
+                couchResponse.signature.put(RowShape.RAW_COLUMN, (String) signature);
+            }
+            else if (signature != null)
+            {
+                throw new SQLException("Error reading signature" + signature);
+            }
+            if (signature != null && resultsStart >= 0)
+            {
+                couchResponse.results = readRows(resultsStart, resultsEnd, shape);
+            }
+            return couchResponse;
+        }
+        catch (IllegalStateException | ClassCastException ex)
+        {
+            throw new SQLException("Error decoding query response", ex);
+        }
+        finally
+        {
+            if (!keepBuffer)
+            {
+                buffer.release();
+            }
+        }
+    }
+
+    private CouchMetrics readMetrics(int pos)
+    {
+        CouchMetrics metrics = new CouchMetrics();
+        int i = scanner.skipWhitespace(scanner.expect(pos, '{'));
+        if (scanner.byteAt(i) == '}')
+        {
+            return metrics;
+        }
+        while (true)
+        {
+            i = scanner.skipWhitespace(i);
+            int key = i;
+            i = scanner.skipWhitespace(scanner.expect(scanner.skipString(i), ':'));
+            int end = scanner.skipValue(i);
+
+            // keys are compared as bytes, nothing is allocated for the ones that are skipped
+            if (scanner.stringEquals(key, EXECUTION_TIME))
+            {
+                metrics.setExecutionTime(scanner.readString(i));
+            }
+            else if (scanner.stringEquals(key, ELAPSED_TIME))
+            {
+                metrics.setElapsedTime(scanner.readString(i));
+            }
+            else if (scanner.stringEquals(key, RESULT_COUNT))
+            {
+                metrics.resultCount = scanner.parseLong(i, end);
+            }
+            else if (scanner.stringEquals(key, RESULT_SIZE))
+            {
+                metrics.resultSize = scanner.parseLong(i, end);
+            }
+            else if (scanner.stringEquals(key, ERROR_COUNT))
+            {
+                metrics.errorCount = scanner.parseLong(i, end);
+            }
+            else if (scanner.stringEquals(key, WARNING_COUNT))
+            {
+                metrics.warningCount = scanner.parseLong(i, end);
+            }
+            else if (scanner.stringEquals(key, MUTATION_COUNT))
+            {
+                metrics.mutationCount = scanner.parseLong(i, end);
+            }
+
+            i = scanner.skipWhitespace(end);
+            byte b = scanner.byteAt(i++);
+            if (b == '}')
+            {
+                return metrics;
+            }
+            if (b != ',')
+            {
+                throw scanner.malformed(i - 1, "expected ',' or '}'");
+            }
+        }
+    }
+
+    private List<CouchError> readErrors(int pos)
+    {
+        if (scanner.byteAt(pos) == 'n')
+        {
+            return null;
+        }
+        List<CouchError> errors = new ArrayList<>();
+        int i = scanner.skipWhitespace(scanner.expect(pos, '['));
+        if (scanner.byteAt(i) == ']')
+        {
+            return errors;
+        }
+        while (true)
+        {
+            i = scanner.skipWhitespace(i);
+            errors.add(readError(i));
+            i = scanner.skipWhitespace(scanner.skipValue(i));
+            byte b = scanner.byteAt(i++);
+            if (b == ']')
+            {
+                return errors;
+            }
+            if (b != ',')
+            {
+                throw scanner.malformed(i - 1, "expected ',' or ']'");
+            }
+        }
+    }
+
+    private CouchError readError(int pos)
+    {
+        CouchError error = new CouchError();
+        int i = scanner.skipWhitespace(scanner.expect(pos, '{'));
+        if (scanner.byteAt(i) == '}')
+        {
+            return error;
+        }
+        while (true)
+        {
+            i = scanner.skipWhitespace(i);
+            int keyStart = i;
+            i = scanner.skipWhitespace(scanner.expect(scanner.skipString(i), ':'));
+            int end = scanner.skipValue(i);
+
+            if (scanner.stringEquals(keyStart, CODE) && scanner.isNumber(i))
+            {
+                error.code = scanner.readNumber(i, end).intValue();
+            }
+            else if (scanner.stringEquals(keyStart, MSG) && scanner.byteAt(i) == '"')
+            {
+                error.msg = scanner.readString(i);
+            }
+
+            i = scanner.skipWhitespace(end);
+            byte b = scanner.byteAt(i++);
+            if (b == '}')
+            {
+                return error;
+            }
+            if (b != ',')
+            {
+                throw scanner.malformed(i - 1, "expected ',' or '}'");
+            }
+        }
+    }
+
+    private List<Map<String, Object>> readRows(int pos, int limit, RowShape shape)
+    {
+        if (rowDecoder != null)
+        {
+            return scanner.byteAt(pos) == 'n' ? new ArrayList<Map<String, Object>>() : rowDecoder.decode(scanner, pos, limit - pos, shape);
+        }
+        List<Map<String, Object>> rows = new ArrayList<>();
+
+        if (scanner.byteAt(pos) == 'n')
+        {
+            return rows;
+        }
+        int i = scanner.skipWhitespace(scanner.expect(pos, '['));
+        if (scanner.byteAt(i) == ']')
+        {
+            return rows;
+        }
+        while (true)
+        {
+            i = scanner.skipWhitespace(i);
+            int end;
+            if (shape == RowShape.RAW)
+            {
+                end = scanner.skipValue(i);
+                rows.add(new LazyRow(buffer, scanner, RAW_NAMES, new int[] { i, end }));
+            }
+            else
+            {
+                rows.add(readRow(i, shape));
+                end = rowEnd;
+            }
+
+            i = scanner.skipWhitespace(end);
+            byte b = scanner.byteAt(i++);
+            if (b == ']')
+            {
+                return rows;
+            }
+            if (b != ',')
+            {
+                throw scanner.malformed(i - 1, "expected ',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * Indexes the row object at pos in a single pass and leaves the offset past it in rowEnd
+     */
+    private LazyRow readRow(int pos, RowShape shape)
+    {
+        if (scanner.byteAt(pos) != '{')
+        {
+            throw scanner.malformed(pos, "expected a row object");
+        }
+        if (shape == RowShape.UNWRAP)
+        {
+            // select * wraps every document in an object named after the keyspace
+            int inner = ParallelRowDecoder.wrappedDocument(scanner, pos);
+            if (inner >= 0)
+            {
+                LazyRow document = readRow(inner, RowShape.PLAIN);
+                int close = scanner.skipWhitespace(rowEnd);
+                if (scanner.byteAt(close) == '}')
+                {
+                    rowEnd = close + 1;
+                    return document;
+                }
+            }
+        }
+        int count = 0;
+        int i = scanner.skipWhitespace(pos + 1);
+        if (scanner.byteAt(i) == '}')
+        {
+            i++;
+        }
+        else
+        {
+            while (true)
+            {
+                i = scanner.skipWhitespace(i);
+                int keyStart = i;
+                int keyEnd = scanner.skipString(i);
+                i = scanner.skipWhitespace(scanner.expect(keyEnd, ':'));
+                int valueEnd = scanner.skipValue(i);
+
+                if (2 * count + 2 > keySpans.length)
+                {
+                    keySpans = Arrays.copyOf(keySpans, keySpans.length * 2);
+                    valueSpans = Arrays.copyOf(valueSpans, valueSpans.length * 2);
+                }
+                keySpans[2 * count] = keyStart;
+                keySpans[2 * count + 1] = keyEnd;
+                valueSpans[2 * count] = i;
+                valueSpans[2 * count + 1] = valueEnd;
+                count++;
+
+                i = scanner.skipWhitespace(valueEnd);
+                byte b = scanner.byteAt(i++);
+                if (b == '}')
+                {
+                    break;
+                }
+                if (b != ',')
+                {
+                    throw scanner.malformed(i - 1, "expected ',' or '}'");
+                }
+            }
+        }
+        rowEnd = i;
+        return new LazyRow(buffer, scanner, namesFor(count), Arrays.copyOf(valueSpans, 2 * count));
+    }
+
+    private String[] namesFor(int count)
+    {
+        if (lastNames != null && lastNames.length == count && sameKeys(count))
+        {
+            return lastNames;
+        }
+        String[] names = new String[count];
+        for (int k = 0; k < count; k++)
+        {
+            names[k] = scanner.readString(keySpans[2 * k]);
+        }
+        lastNames = names;
+        lastKeySpans = Arrays.copyOf(keySpans, 2 * count);
+        return names;
+    }
+
+    private boolean sameKeys(int count)
+    {
+        for (int k = 0; k < count; k++)
+        {
+            int length = keySpans[2 * k + 1] - keySpans[2 * k];
+            if (length != lastKeySpans[2 * k + 1] - lastKeySpans[2 * k]
+                    || !scanner.regionEquals(keySpans[2 * k], lastKeySpans[2 * k], length))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
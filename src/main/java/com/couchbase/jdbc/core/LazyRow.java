@@ -0,0 +1,244 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import com.couchbase.jdbc.util.JSONTypes;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A result row backed by the raw response bytes.
+ *
+ * The row only holds the offsets of its values; a value is decoded the first time it is
+ * asked for and cached afterwards. Rows of the same shape share a single names array.
+ *
+ * Only scalars are cached, objects and arrays are decoded again on every call. Every caller gets
+ * a map or list of its own to change, and rows can be read from several threads since a cached
+ * value is always immutable.
+ */
+public class LazyRow extends AbstractMap<String, Object>
+{
+    private static final Object UNDECODED = new Object();
+
+    private final ResponseBuffer owner;
+    private final JsonScanner scanner;
+    private final String[] names;
+    private final int[] spans;          // start, end pairs, one per name
+    // rows can be shared between readers, see SharedResponse, so decoded scalars are published safely
+    private final AtomicReferenceArray<Object> values;
+
+    LazyRow(ResponseBuffer owner, JsonScanner scanner, String[] names, int[] spans)
+    {
+        this.owner = owner;
+        this.scanner = scanner;
+        this.names = names;
+        this.spans = spans;
+        this.values = new AtomicReferenceArray<>(names.length);
+        for (int i = 0; i < names.length; i++)
+        {
+            values.lazySet(i, UNDECODED);
+        }
+    }
+
+    String[] names()
+    {
+        return names;
+    }
+
+    /**
+     * @return the position of the column in this row or -1 if it is not present
+     */
+    public int indexOf(Object name)
+    {
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(name))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Object getValue(int i)
+    {
+        Object value = values.get(i);
+        if (value == UNDECODED)
+        {
+            value = scanner.readValue(spans[2 * i]);
+            if (!(value instanceof Map) && !(value instanceof List))
+            {
+                values.lazySet(i, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the value is a JSON number, whose digits can be read exactly with
+     * {@link #getLong(int)} and {@link #getBigDecimal(int)}
+     */
+    public boolean isNumber(int i)
+    {
+        return scanner.isNumber(spans[2 * i]);
+    }
+
+    /**
+     * @return true if the value is a JSON object or array
+     */
+    public boolean isContainer(int i)
+    {
+        byte b = scanner.byteAt(spans[2 * i]);
+        return b == '{' || b == '[';
+    }
+
+    /**
+     * @return the {@link JSONTypes} kind of the value, read from its first byte without decoding it
+     */
+    public int jsonType(int i)
+    {
+        switch (scanner.byteAt(spans[2 * i]))
+        {
+            case '{':
+                return JSONTypes.JSON_MAP;
+            case '[':
+                return JSONTypes.JSON_ARRAY;
+            case '"':
+                return JSONTypes.JSON_STRING;
+            case 't':
+            case 'f':
+                return JSONTypes.JSON_BOOLEAN;
+            case 'n':
+                return JSONTypes.JSON_NULL;
+            default:
+                return JSONTypes.JSON_NUMBER;
+        }
+    }
+
+    /**
+     * @return the value exactly as the server sent it, without decoding it
+     */
+    public String getRawString(int i)
+    {
+        return new String(scanner.copy(spans[2 * i], spans[2 * i + 1] - spans[2 * i]), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a stream over the UTF-8 bytes of the value as the server sent it. Nothing is copied,
+     * so the stream can only be read until the response is closed
+     */
+    public InputStream getRawStream(int i)
+    {
+        return new RawJsonInputStream(owner, scanner.slice(spans[2 * i], spans[2 * i + 1]));
+    }
+
+    /**
+     * @return true once the response this row points into has been closed
+     */
+    public boolean isReleased()
+    {
+        return owner != null && owner.isReleased();
+    }
+
+    public long getLong(int i)
+    {
+        return scanner.parseLong(spans[2 * i], spans[2 * i + 1]);
+    }
+
+    public BigDecimal getBigDecimal(int i)
+    {
+        return scanner.parseBigDecimal(spans[2 * i], spans[2 * i + 1]);
+    }
+
+    public int valueStart(int i)
+    {
+        return spans[2 * i];
+    }
+
+    public int valueEnd(int i)
+    {
+        return spans[2 * i + 1];
+    }
+
+    public JsonScanner getScanner()
+    {
+        return scanner;
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+        int i = indexOf(key);
+        return i < 0 ? null : getValue(i);
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size()
+    {
+        return names.length;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet()
+    {
+        return new AbstractSet<Entry<String, Object>>()
+        {
+            @Override
+            public Iterator<Entry<String, Object>> iterator()
+            {
+                return new Iterator<Entry<String, Object>>()
+                {
+                    int next = 0;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return next < names.length;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next()
+                    {
+                        if (next >= names.length)
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        int i = next++;
+                        return new SimpleImmutableEntry<>(names[i], getValue(i));
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return names.length;
+            }
+        };
+    }
+}
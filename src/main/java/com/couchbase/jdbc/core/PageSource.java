@@ -0,0 +1,39 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Supplies the rows of one logical result as a sequence of responses, see
+ * {@link com.couchbase.jdbc.CBResultSet#CBResultSet(java.sql.Statement, PageSource)}
+ */
+public interface PageSource
+{
+    /**
+     * Returns the next page, null once there are no more rows. The caller closes every page
+     * it is handed.
+     */
+    CouchResponse nextPage() throws SQLException;
+
+    /**
+     * Returns a position that, when the source is opened again from it, resumes with the row
+     * following row
+     */
+    Object checkpoint(Map<String, Object> row) throws SQLException;
+
+    /**
+     * Stops fetching, pages already handed out stay usable
+     */
+    void close() throws SQLException;
+}
@@ -0,0 +1,441 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import com.couchbase.jdbc.connect.Protocol;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts the result of a query as several key ranges read at the same time, each through its
+ * own {@link KeysetCursor}. Requests are spread over the query nodes of the cluster the same way
+ * as any other, so with enough partitions every node and every client core has work; the pool
+ * should allow one connection per partition (see MaxConnections).
+ *
+ * The ranges are cut at split points, either given or sampled from the keys: the first range
+ * holds the keys up to and including the first split point, the last one everything after the
+ * last split point. Merged UNORDERED, pages are handed out as they arrive from any partition.
+ * Merged ORDERED, the ranges are disjoint and ascending, so a merge by key amounts to reading
+ * them one after the other while the later ones are already read ahead; that keeps the rows in
+ * key order and the position of any row is a checkpoint to resume the whole extract from.
+ */
+public class ParallelExtractor implements PageSource
+{
+    public enum Merge
+    {
+        UNORDERED,
+        ORDERED
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "couchbase-extract-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Protocol protocol;
+    private final String sql;
+    private final String keyExpression;
+    private final String keyColumn;
+
+    private int partitions = Runtime.getRuntime().availableProcessors();
+    private List<Object> splitPoints;
+    private Merge merge = Merge.UNORDERED;
+    private int pageSize = KeysetCursor.DEFAULT_PAGE_SIZE;
+    private int depth = PrefetchingPageSource.DEFAULT_DEPTH;
+    private long maxBytes = PrefetchingPageSource.DEFAULT_MAX_BYTES;
+    private Executor executor = DEFAULT_EXECUTOR;
+    private Object checkpoint;
+
+    // ORDERED: one read ahead source per range, consumed in turn
+    private List<PrefetchingPageSource> ranges;
+    private int current;
+
+    // UNORDERED: pages of every range in arrival order, guarded by this
+    private final ArrayDeque<CouchResponse> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private int running;
+    private SQLException failure;
+
+    private boolean started;
+    private volatile boolean closed;
+
+    /**
+     * @param protocol the connection the ranges are read over
+     * @param sql a select that a {@link KeysetCursor} can page
+     * @param keyExpression the unique key to split and order by, for instance META(b).id
+     * @param keyColumn the column the key is selected as
+     * @throws SQLException if the query cannot be paged
+     */
+    public ParallelExtractor(Protocol protocol, String sql, String keyExpression, String keyColumn) throws SQLException
+    {
+        this.protocol = protocol;
+        this.sql = sql;
+        this.keyExpression = keyExpression;
+        this.keyColumn = keyColumn;
+        // fail on a query that cannot be paged before anything is sent
+        new KeysetCursor(protocol, sql, keyExpression, keyColumn);
+    }
+
+    /**
+     * @param partitions the number of ranges read at the same time when the split points are
+     * sampled, by default the number of cores
+     */
+    public void setPartitions(int partitions)
+    {
+        this.partitions = Math.max(1, partitions);
+    }
+
+    /**
+     * @param splitPoints ascending keys to cut the ranges at instead of sampling them
+     */
+    public void setSplitPoints(List<?> splitPoints)
+    {
+        this.splitPoints = splitPoints == null ? null : new ArrayList<Object>(splitPoints);
+    }
+
+    public void setMerge(Merge merge)
+    {
+        this.merge = merge;
+    }
+
+    /**
+     * @param pageSize the rows asked for per request in every range
+     */
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * @param depth the most pages of a range read ahead of the consumer
+     * @param maxBytes the most bytes of results of a range read ahead of the consumer
+     */
+    public void setReadAhead(int depth, long maxBytes)
+    {
+        this.depth = Math.max(1, depth);
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    /**
+     * @param executor runs the ranges, it has to be able to run one task per range at once
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor == null ? DEFAULT_EXECUTOR : executor;
+    }
+
+    /**
+     * Resumes an ORDERED extract after the given key, see
+     * {@link com.couchbase.jdbc.CBResultSet#getCheckpoint()}
+     */
+    public void setCheckpoint(Object checkpoint)
+    {
+        this.checkpoint = checkpoint;
+    }
+
+    @Override
+    public CouchResponse nextPage() throws SQLException
+    {
+        if (!started)
+        {
+            startRanges();
+            started = true;
+        }
+        return merge == Merge.ORDERED ? nextOrdered() : nextUnordered();
+    }
+
+    @Override
+    public Object checkpoint(Map<String, Object> row) throws SQLException
+    {
+        if (merge != Merge.ORDERED)
+        {
+            throw new SQLException("An unordered extract has no single position to resume from");
+        }
+        Object key = row.get(keyColumn);
+        if (key == null)
+        {
+            throw new SQLException("Extracted rows have no key in column " + keyColumn);
+        }
+        return key;
+    }
+
+    @Override
+    public void close() throws SQLException
+    {
+        closed = true;
+        if (ranges != null)
+        {
+            for (PrefetchingPageSource range : ranges)
+            {
+                range.close();
+            }
+        }
+        synchronized (this)
+        {
+            for (CouchResponse page : queue)
+            {
+                page.close();
+            }
+            queue.clear();
+            queuedBytes = 0;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns a cursor over the whole query, overridden by tests
+     */
+    protected KeysetCursor cursor() throws SQLException
+    {
+        return new KeysetCursor(protocol, sql, keyExpression, keyColumn);
+    }
+
+    /**
+     * Runs one of the statements sampling the split points, overridden by tests
+     */
+    protected CouchResponse query(String statement) throws SQLException
+    {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("statement", statement);
+        return protocol.doQuery(statement, parameters);
+    }
+
+    /**
+     * Samples partitions - 1 keys that cut the rows into ranges of about the same size. Every
+     * sample is an OFFSET into the key order, which the index answers without fetching documents.
+     */
+    List<Object> sampleSplitPoints() throws SQLException
+    {
+        KeysetCursor probe = cursor();
+        List<Object> points = new ArrayList<>();
+        if (partitions < 2)
+        {
+            return points;
+        }
+        long count = ((Number) firstValue(probe.project("COUNT(*) AS n", ""), "n")).longValue();
+        for (int i = 1; i < partitions; i++)
+        {
+            long offset = i * count / partitions - 1;
+            if (offset < 0)
+            {
+                continue;
+            }
+            Object key = firstValue(probe.project(keyExpression + " AS k", " ORDER BY " + keyExpression + " OFFSET " + offset + " LIMIT 1"), "k");
+            if (key != null && (points.isEmpty() || compareKeys(points.get(points.size() - 1), key) < 0))
+            {
+                points.add(key);
+            }
+        }
+        return points;
+    }
+
+    private Object firstValue(String statement, String column) throws SQLException
+    {
+        CouchResponse response = query(statement);
+        try
+        {
+            List<Map<String, Object>> rows = response.getResults();
+            return rows == null || rows.isEmpty() ? null : rows.get(0).get(column);
+        }
+        finally
+        {
+            response.close();
+        }
+    }
+
+    private void startRanges() throws SQLException
+    {
+        List<Object> points = splitPoints != null ? splitPoints : sampleSplitPoints();
+        List<KeysetCursor> cursors = new ArrayList<>();
+        for (int i = 0; i <= points.size(); i++)
+        {
+            Object lower = i > 0 ? points.get(i - 1) : null;
+            Object upper = i < points.size() ? points.get(i) : null;
+            if (checkpoint != null)
+            {
+                // ranges wholly before the checkpoint are done, the one holding it resumes after it
+                if (upper != null && compareKeys(upper, checkpoint) <= 0)
+                {
+                    continue;
+                }
+                if (lower == null || compareKeys(checkpoint, lower) > 0)
+                {
+                    lower = checkpoint;
+                }
+            }
+            KeysetCursor cursor = cursor();
+            cursor.setPageSize(pageSize);
+            cursor.setCheckpoint(lower);
+            cursor.setUpperBound(upper);
+            cursors.add(cursor);
+        }
+
+        if (merge == Merge.ORDERED)
+        {
+            ranges = new ArrayList<>();
+            for (KeysetCursor cursor : cursors)
+            {
+                ranges.add(new PrefetchingPageSource(cursor, depth, maxBytes, executor));
+            }
+            for (PrefetchingPageSource range : ranges)
+            {
+                range.start();
+            }
+            return;
+        }
+        synchronized (this)
+        {
+            running = cursors.size();
+        }
+        for (final KeysetCursor cursor : cursors)
+        {
+            executor.execute(() -> readRange(cursor));
+        }
+    }
+
+    private CouchResponse nextOrdered() throws SQLException
+    {
+        while (current < ranges.size())
+        {
+            CouchResponse page = ranges.get(current).nextPage();
+            if (page != null)
+            {
+                return page;
+            }
+            current++;
+        }
+        return null;
+    }
+
+    private synchronized CouchResponse nextUnordered() throws SQLException
+    {
+        try
+        {
+            while (queue.isEmpty() && running > 0 && failure == null && !closed)
+            {
+                wait();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for the next page", ex);
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+        CouchResponse page = queue.poll();
+        if (page != null)
+        {
+            queuedBytes -= bytes(page);
+            notifyAll();
+        }
+        return page;
+    }
+
+    // runs on the executor, every range may queue depth pages of its own
+    private void readRange(KeysetCursor cursor)
+    {
+        try
+        {
+            while (true)
+            {
+                synchronized (this)
+                {
+                    while (!closed && failure == null && !queue.isEmpty()
+                            && (queue.size() >= depth * running || queuedBytes >= maxBytes * running))
+                    {
+                        wait();
+                    }
+                    if (closed || failure != null)
+                    {
+                        return;
+                    }
+                }
+                CouchResponse page = cursor.nextPage();
+                synchronized (this)
+                {
+                    if (page == null)
+                    {
+                        return;
+                    }
+                    if (closed)
+                    {
+                        page.close();
+                        return;
+                    }
+                    queue.add(page);
+                    queuedBytes += bytes(page);
+                    notifyAll();
+                }
+            }
+        }
+        catch (SQLException | RuntimeException | InterruptedException ex)
+        {
+            synchronized (this)
+            {
+                if (failure == null)
+                {
+                    failure = ex instanceof SQLException ? (SQLException) ex : new SQLException("Error extracting a range", ex);
+                }
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                running--;
+                notifyAll();
+            }
+        }
+    }
+
+    private static long bytes(CouchResponse page)
+    {
+        return page.getMetrics() == null ? 0 : page.getMetrics().getResultSize();
+    }
+
+    // orders keys the way the query service does for the types a key can have
+    static int compareKeys(Object a, Object b) throws SQLException
+    {
+        if (a instanceof Number && b instanceof Number)
+        {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof String && b instanceof String)
+        {
+            return ((String) a).compareTo((String) b);
+        }
+        if (a instanceof Number && b instanceof String)
+        {
+            return -1;
+        }
+        if (a instanceof String && b instanceof Number)
+        {
+            return 1;
+        }
+        throw new SQLException("Keys must be strings or numbers to split on");
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fully decodes the rows of a results array, splitting large arrays into segments that are
+ * decoded on a fork join pool.
+ *
+ * Finding the row boundaries is a single pass that only skips over bytes; materializing the
+ * strings, numbers and maps of each row is the expensive part and that is what runs in parallel.
+ * Every row is written into its own slot so the order of the results is kept.
+ */
+public class ParallelRowDecoder
+{
+    // rows are never split further than this
+    static final int SEGMENT_BYTES = 256 * 1024;
+
+    private static final ConcurrentHashMap<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+    private final int dictionarySize;
+
+    /**
+     * @param pool the pool to decode on
+     * @param threshold results smaller than this many bytes are decoded on the calling thread
+     */
+    public ParallelRowDecoder(ForkJoinPool pool, int threshold)
+    {
+        this(pool, threshold, 0);
+    }
+
+    /**
+     * @param pool the pool to decode on, null if every result is below the threshold
+     * @param threshold results smaller than this many bytes are decoded on the calling thread
+     * @param dictionarySize when positive, the string values of each column are kept in a
+     * dictionary of up to this many distinct values so repeated ones share one instance
+     */
+    public ParallelRowDecoder(ForkJoinPool pool, int threshold, int dictionarySize)
+    {
+        this.pool = pool;
+        this.threshold = threshold;
+        this.dictionarySize = dictionarySize;
+    }
+
+    /**
+     * Returns a pool shared by all connections asking for the same parallelism
+     */
+    public static ForkJoinPool poolFor(int parallelism)
+    {
+        return pools.computeIfAbsent(parallelism, ForkJoinPool::new);
+    }
+
+    /**
+     * @param scanner the scanner over the response
+     * @param pos the offset of the opening bracket of the results array
+     * @param length the length of the results array in bytes
+     * @param shape the shape of the rows, decided from the signature
+     */
+    List<Map<String, Object>> decode(JsonScanner scanner, int pos, int length, RowShape shape)
+    {
+        // dictionaries live as long as one result, values are only shared within it
+        ColumnDictionaries dictionaries = dictionarySize > 0 ? new ColumnDictionaries(dictionarySize) : null;
+        if (length < threshold)
+        {
+            return decodeSequential(scanner, pos, shape, dictionaries);
+        }
+        int[] spans = new int[64];
+        int count = 0;
+
+        int i = scanner.skipWhitespace(scanner.expect(pos, '['));
+        if (scanner.byteAt(i) != ']')
+        {
+            while (true)
+            {
+                i = scanner.skipWhitespace(i);
+                int end = scanner.skipValue(i);
+                if (2 * count + 2 > spans.length)
+                {
+                    spans = Arrays.copyOf(spans, spans.length * 2);
+                }
+                spans[2 * count] = i;
+                spans[2 * count + 1] = end;
+                count++;
+
+                i = scanner.skipWhitespace(end);
+                byte b = scanner.byteAt(i++);
+                if (b == ']')
+                {
+                    break;
+                }
+                if (b != ',')
+                {
+                    throw scanner.malformed(i - 1, "expected ',' or ']'");
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object>[] rows = new Map[count];
+        if (count > 1)
+        {
+            pool.invoke(new SegmentTask(scanner, spans, rows, 0, count, shape, dictionaries));
+        }
+        else
+        {
+            for (int row = 0; row < count; row++)
+            {
+                rows[row] = decodeRow(scanner, spans[2 * row], shape, dictionaries);
+            }
+        }
+        return Arrays.asList(rows);
+    }
+
+    // small results are decoded in a single pass, without finding the row boundaries first
+    private static List<Map<String, Object>> decodeSequential(JsonScanner scanner, int pos, RowShape shape, ColumnDictionaries dictionaries)
+    {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        int[] end = new int[1];
+        int i = scanner.skipWhitespace(scanner.expect(pos, '['));
+        if (scanner.byteAt(i) == ']')
+        {
+            return rows;
+        }
+        while (true)
+        {
+            i = scanner.skipWhitespace(i);
+            rows.add(decodeRow(scanner, i, end, shape, dictionaries));
+            i = scanner.skipWhitespace(end[0]);
+            byte b = scanner.byteAt(i++);
+            if (b == ']')
+            {
+                return rows;
+            }
+            if (b != ',')
+            {
+                throw scanner.malformed(i - 1, "expected ',' or ']'");
+            }
+        }
+    }
+
+    static Map<String, Object> decodeRow(JsonScanner scanner, int start, RowShape shape, ColumnDictionaries dictionaries)
+    {
+        return decodeRow(scanner, start, new int[1], shape, dictionaries);
+    }
+
+    private static Map<String, Object> decodeRow(JsonScanner scanner, int start, int[] end, RowShape shape, ColumnDictionaries dictionaries)
+    {
+        switch (shape)
+        {
+            case RAW:
+                return RowShape.rawRow(scanner.readValue(start, end));
+            case UNWRAP:
+                int inner = wrappedDocument(scanner, start);
+                if (inner >= 0)
+                {
+                    // only the document itself is materialized, never the map around it
+                    Map<String, Object> document = readObject(scanner, inner, end, dictionaries);
+                    int close = scanner.skipWhitespace(end[0]);
+                    if (scanner.byteAt(close) == '}')
+                    {
+                        end[0] = close + 1;
+                        return document;
+                    }
+                }
+                return readObject(scanner, start, end, dictionaries);
+            default:
+                return readObject(scanner, start, end, dictionaries);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readObject(JsonScanner scanner, int start, int[] end, ColumnDictionaries dictionaries)
+    {
+        if (dictionaries != null)
+        {
+            return scanner.readRow(start, end, dictionaries);
+        }
+        return (Map<String, Object>) scanner.readValue(start, end);
+    }
+
+    /**
+     * Returns the offset of the value of the first member when the row at start is an object whose
+     * first member is an object, -1 otherwise. select * wraps every document in its keyspace name,
+     * the caller still has to check that no other member follows.
+     */
+    static int wrappedDocument(JsonScanner scanner, int start)
+    {
+        if (scanner.byteAt(start) != '{')
+        {
+            return -1;
+        }
+        int i = scanner.skipWhitespace(start + 1);
+        if (scanner.byteAt(i) != '"')
+        {
+            return -1;
+        }
+        i = scanner.skipWhitespace(scanner.expect(scanner.skipString(i), ':'));
+        return scanner.byteAt(i) == '{' ? i : -1;
+    }
+
+    private static class SegmentTask extends RecursiveAction
+    {
+        private final JsonScanner scanner;
+        private final int[] spans;
+        private final Map<String, Object>[] rows;
+        private final int from;
+        private final int to;
+        private final RowShape shape;
+        private final ColumnDictionaries dictionaries;
+
+        SegmentTask(JsonScanner scanner, int[] spans, Map<String, Object>[] rows, int from, int to, RowShape shape,
+                    ColumnDictionaries dictionaries)
+        {
+            this.scanner = scanner;
+            this.spans = spans;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.shape = shape;
+            this.dictionaries = dictionaries;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > 1 && spans[2 * to - 1] - spans[2 * from] > SEGMENT_BYTES)
+            {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SegmentTask(scanner, spans, rows, from, middle, shape, dictionaries),
+                          new SegmentTask(scanner, spans, rows, middle, to, shape, dictionaries));
+                return;
+            }
+            for (int i = from; i < to; i++)
+            {
+                rows[i] = decodeRow(scanner, spans[2 * i], shape, dictionaries);
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the pages of another source ahead of the consumer, so the next page is usually already
+ * there when the rows of the current one run out and the network round trip is not waited for.
+ *
+ * Pages are fetched one after the other on the executor and queued until the queue holds depth
+ * pages or maxBytes bytes of results, whichever comes first; a single page larger than maxBytes
+ * is still fetched once the queue is empty. The source is only ever called from one thread at a
+ * time, so it does not have to be thread safe.
+ */
+public class PrefetchingPageSource implements PageSource
+{
+    public static final int DEFAULT_DEPTH = 2;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "couchbase-prefetch-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final PageSource source;
+    private final int depth;
+    private final long maxBytes;
+    private final Executor executor;
+
+    // guarded by this
+    private final ArrayDeque<CouchResponse> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private boolean started;
+    private boolean exhausted;
+    private boolean closed;
+    private SQLException failure;
+
+    /**
+     * @param source the pages to read ahead
+     * @param depth the most pages waiting to be consumed
+     * @param maxBytes the most bytes of results waiting to be consumed
+     * @param executor fetches the pages, null to use a shared pool of daemon threads
+     */
+    public PrefetchingPageSource(PageSource source, int depth, long maxBytes, Executor executor)
+    {
+        this.source = source;
+        this.depth = Math.max(1, depth);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.executor = executor == null ? DEFAULT_EXECUTOR : executor;
+    }
+
+    public PrefetchingPageSource(PageSource source)
+    {
+        this(source, DEFAULT_DEPTH, DEFAULT_MAX_BYTES, null);
+    }
+
+    /**
+     * Starts reading ahead before the first page is asked for, otherwise nothing is fetched
+     * until then
+     */
+    public synchronized void start()
+    {
+        if (!started && !closed)
+        {
+            started = true;
+            executor.execute(this::fetchAhead);
+        }
+    }
+
+    @Override
+    public synchronized CouchResponse nextPage() throws SQLException
+    {
+        start();
+        try
+        {
+            while (queue.isEmpty() && !exhausted && failure == null && !closed)
+            {
+                wait();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for the next page", ex);
+        }
+        CouchResponse page = queue.poll();
+        if (page != null)
+        {
+            queuedBytes -= bytes(page);
+            notifyAll();
+            return page;
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+        return null;
+    }
+
+    @Override
+    public Object checkpoint(Map<String, Object> row) throws SQLException
+    {
+        return source.checkpoint(row);
+    }
+
+    /**
+     * Stops reading ahead and releases the pages nobody is going to consume, a fetch already
+     * under way is released when it returns
+     */
+    @Override
+    public void close() throws SQLException
+    {
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            for (CouchResponse page : queue)
+            {
+                page.close();
+            }
+            queue.clear();
+            queuedBytes = 0;
+            notifyAll();
+        }
+        source.close();
+    }
+
+    // runs on the executor until the source is exhausted, fails, or this is closed
+    private void fetchAhead()
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                try
+                {
+                    while (!closed && !queue.isEmpty() && (queue.size() >= depth || queuedBytes >= maxBytes))
+                    {
+                        wait();
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    failure = new SQLException("Interrupted reading ahead", ex);
+                    notifyAll();
+                    return;
+                }
+                if (closed)
+                {
+                    return;
+                }
+            }
+
+            CouchResponse page;
+            try
+            {
+                page = source.nextPage();
+            }
+            catch (SQLException ex)
+            {
+                synchronized (this)
+                {
+                    failure = ex;
+                    notifyAll();
+                }
+                return;
+            }
+            catch (RuntimeException ex)
+            {
+                synchronized (this)
+                {
+                    failure = new SQLException("Error reading ahead", ex);
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this)
+            {
+                if (closed)
+                {
+                    if (page != null)
+                    {
+                        page.close();
+                    }
+                    return;
+                }
+                if (page == null)
+                {
+                    exhausted = true;
+                    notifyAll();
+                    return;
+                }
+                queue.add(page);
+                queuedBytes += bytes(page);
+                notifyAll();
+            }
+        }
+    }
+
+    private static long bytes(CouchResponse page)
+    {
+        return page.getMetrics() == null ? 0 : page.getMetrics().getResultSize();
+    }
+}
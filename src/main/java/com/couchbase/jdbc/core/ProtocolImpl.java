@@ -23,6 +23,7 @@ import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
@@ -30,21 +31,16 @@ import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.ConnectTimeoutException;
-import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.ssl.*;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
-import org.boon.core.reflection.MapObjectConversion;
-import org.boon.core.value.LazyValueMap;
-import org.boon.json.JsonFactory;
-import org.boon.json.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,6 +48,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -59,11 +56,13 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -111,6 +110,25 @@ public class ProtocolImpl implements Protocol {
 
     Cluster cluster;
     boolean ssl = false;
+    boolean lazyDecoding = false;
+    int decodingParallelism = 0;
+    int parallelDecodingThreshold = 1024 * 1024;
+    // most distinct string values kept per column of a decoded result, 0 keeps every string separately
+    int dictionarySize = 0;
+    // connections allowed to each node, 0 keeps the http client default of two
+    int maxConnections = 0;
+    // shares identical reads in flight between connections, null unless enabled
+    QueryCoalescer coalescer;
+    // keeps the results of reads on a read only connection for resultCacheTtl milliseconds, null unless enabled
+    ResultCache resultCache;
+    long resultCacheTtl;
+    // keeps the results of reads that took at least diskCacheMinMillis in files, null unless enabled
+    DiskResultCache diskCache;
+    long diskCacheTtl = 60 * 60 * 1000;
+    long diskCacheMinMillis = 1000;
+    // reads single keys together with the point lookups of other callers, null unless enabled
+    KeyLookupBatcher batcher;
+    JsonCodec codec = JsonCodecs.getDefault();
 
     int connectTimeout = 0;
     int queryTimeout = 75;
@@ -121,6 +139,26 @@ public class ProtocolImpl implements Protocol {
     List <String> batchStatements = new ArrayList<>();
 
 
+    public JsonCodec getJsonCodec()
+    {
+        return codec;
+    }
+
+    public ResultCache getResultCache()
+    {
+        return resultCache;
+    }
+
+    public DiskResultCache getDiskResultCache()
+    {
+        return diskCache;
+    }
+
+    public KeyLookupBatcher getKeyLookupBatcher()
+    {
+        return batcher;
+    }
+
     public String getURL()
     {
         return url;
@@ -170,6 +208,67 @@ public class ProtocolImpl implements Protocol {
         {
             scanConsistency=props.getProperty(ConnectionParameters.SCAN_CONSISTENCY);
         }
+        if (props.containsKey(ConnectionParameters.LAZY_DECODING))
+        {
+            lazyDecoding = Boolean.parseBoolean(props.getProperty(ConnectionParameters.LAZY_DECODING));
+        }
+        if (props.containsKey(ConnectionParameters.DECODING_PARALLELISM))
+        {
+            decodingParallelism = Integer.parseInt(props.getProperty(ConnectionParameters.DECODING_PARALLELISM));
+        }
+        if (props.containsKey(ConnectionParameters.PARALLEL_DECODING_THRESHOLD))
+        {
+            parallelDecodingThreshold = Integer.parseInt(props.getProperty(ConnectionParameters.PARALLEL_DECODING_THRESHOLD));
+        }
+        if (props.containsKey(ConnectionParameters.DICTIONARY_ENCODING))
+        {
+            dictionarySize = Integer.parseInt(props.getProperty(ConnectionParameters.DICTIONARY_ENCODING));
+        }
+        if (props.containsKey(ConnectionParameters.MAX_CONNECTIONS))
+        {
+            maxConnections = Integer.parseInt(props.getProperty(ConnectionParameters.MAX_CONNECTIONS));
+        }
+        if (props.containsKey(ConnectionParameters.COALESCE_READS)
+                && Boolean.parseBoolean(props.getProperty(ConnectionParameters.COALESCE_READS)))
+        {
+            coalescer = QueryCoalescer.shared();
+        }
+        if (props.containsKey(ConnectionParameters.RESULT_CACHE_TTL))
+        {
+            resultCacheTtl = Long.parseLong(props.getProperty(ConnectionParameters.RESULT_CACHE_TTL));
+            if (resultCacheTtl > 0)
+            {
+                resultCache = ResultCache.shared();
+                resultCache.ensureCapacity(Long.parseLong(props.getProperty(ConnectionParameters.RESULT_CACHE_SIZE,
+                                                                            "" + 64L * 1024 * 1024)));
+            }
+        }
+        if (props.containsKey(ConnectionParameters.KEY_BATCHING)
+                && Boolean.parseBoolean(props.getProperty(ConnectionParameters.KEY_BATCHING)))
+        {
+            batcher = KeyLookupBatcher.shared(
+                    Long.parseLong(props.getProperty(ConnectionParameters.KEY_BATCH_WINDOW, "" + KeyLookupBatcher.DEFAULT_WINDOW_MICROS)),
+                    Integer.parseInt(props.getProperty(ConnectionParameters.KEY_BATCH_SIZE, "" + KeyLookupBatcher.DEFAULT_MAX_BATCH_SIZE)));
+        }
+        if (props.containsKey(ConnectionParameters.DISK_CACHE_DIR))
+        {
+            diskCacheTtl = Long.parseLong(props.getProperty(ConnectionParameters.DISK_CACHE_TTL, "" + diskCacheTtl));
+            diskCacheMinMillis = Long.parseLong(props.getProperty(ConnectionParameters.DISK_CACHE_MIN_MILLIS, "" + diskCacheMinMillis));
+            long size = Long.parseLong(props.getProperty(ConnectionParameters.DISK_CACHE_SIZE, "" + 1024L * 1024 * 1024));
+            try
+            {
+                diskCache = DiskResultCache.open(Paths.get(props.getProperty(ConnectionParameters.DISK_CACHE_DIR)), size);
+            }
+            catch (IOException ex)
+            {
+                // queries still run, they are just not cached
+                logger.error("Error opening result cache directory {}", ex.getMessage());
+            }
+        }
+        if (props.containsKey(ConnectionParameters.JSON_CODEC))
+        {
+            codec = JsonCodecs.forName(props.getProperty(ConnectionParameters.JSON_CODEC));
+        }
 
         requestConfig = RequestConfig.custom()
                 .setConnectionRequestTimeout(0)
@@ -217,7 +316,8 @@ public class ProtocolImpl implements Protocol {
                 Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder
                         .<ConnectionSocketFactory> create().register("https", sslsf)
                         .build();
-                HttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+                PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+                limitConnections(cm);
                 httpClient = HttpClients.custom()
                         .setConnectionManager(cm)
                         .setConnectionManagerShared(true)
@@ -232,6 +332,12 @@ public class ProtocolImpl implements Protocol {
 
 
 
+        }
+        else if (maxConnections > 0)
+        {
+            PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+            limitConnections(cm);
+            httpClient = HttpClientBuilder.create().setConnectionManager(cm).setDefaultRequestConfig(requestConfig).build();
         }
         else
         {
@@ -239,6 +345,16 @@ public class ProtocolImpl implements Protocol {
         }
     }
 
+    // the default pool only allows two connections to a node, too few for concurrent statements
+    private void limitConnections(PoolingHttpClientConnectionManager cm)
+    {
+        if (maxConnections > 0)
+        {
+            cm.setDefaultMaxPerRoute(maxConnections);
+            cm.setMaxTotal(Math.max(cm.getMaxTotal(), maxConnections));
+        }
+    }
+
     public void connect() throws Exception
     {
 
@@ -285,16 +401,14 @@ public class ProtocolImpl implements Protocol {
         HttpEntity entity = response.getEntity();
         String string = EntityUtils.toString(entity);
         logger.trace ("Cluster response {}", string);
-        ObjectMapper mapper = JsonFactory.create();
-
-        // has to be an object here since we can get a 404 back which is a string
-        Object jsonArray = mapper.fromJson(string);
 
         String message="";
 
         switch (status)
         {
             case 200:
+                // only parse on success, a 404 comes back as plain text
+                Object jsonArray = codec.fromJson(string);
                 //noinspection unchecked
                 rewriteURLs((List<Map>)jsonArray);
                 return new Cluster((List)jsonArray, ssl);
@@ -330,7 +444,17 @@ public class ProtocolImpl implements Protocol {
 
     }
 
-    public CBResultSet query(CBStatement statement, String sql) throws SQLException
+    public CBResultSet query(CBStatement statement, final String sql) throws SQLException
+    {
+        if (isShareable(sql))
+        {
+            QueryKey key = new QueryKey(principal(), sql, null, null, schema, scanConsistency);
+            return new CBResultSet(statement, read(key, () -> get(sql)));
+        }
+        return new CBResultSet(statement, get(sql));
+    }
+
+    private CouchResponse get(String sql) throws SQLException
     {
 
         Instance instance = getNextEndpoint();
@@ -368,7 +492,7 @@ public class ProtocolImpl implements Protocol {
 
             try (CloseableHttpResponse response = httpClient.execute(httpRequest)) {
 
-                return new CBResultSet(statement, handleResponse(sql, response));
+                return handleResponse(sql, response);
 
             } catch (ConnectTimeoutException cte) {
                 logger.trace(cte.getLocalizedMessage());
@@ -392,122 +516,107 @@ public class ProtocolImpl implements Protocol {
 
     public int executeUpdate(CBStatement statement, String query) throws SQLException
     {
-        boolean hasResultSet = execute(statement, query);
-        if (!hasResultSet)
-        {
-            return (int)getUpdateCount();
-        }
-        else
-        {
-            return 0;
-        }
+        Map parameters = new HashMap();
+        //noinspection unchecked
+        parameters.put(STATEMENT, query);
 
+        CouchMetrics metrics = doUpdate(query, parameters).metrics;
+        updateCount = metrics == null ? 0 : metrics.mutationCount;
+        return (int)updateCount;
     }
 
     public CouchResponse handleResponse(String sql, CloseableHttpResponse response) throws SQLException, IOException {
+        return handleResponse(sql, response, false);
+    }
+
+    private CouchResponse handleResponse(String sql, CloseableHttpResponse response, boolean mutationOnly) throws SQLException, IOException {
         int status = response.getStatusLine().getStatusCode();
         HttpEntity entity = response.getEntity();
 
-
-        ObjectMapper mapper = JsonFactory.create();
-
-        CouchResponse couchResponse = new CouchResponse();
-
-        String strResponse = EntityUtils.toString(entity);
-//        logger.trace( "Response to query {} {}", sql, strResponse );
-
-        Map<String, Object> foo = mapper.readValue(strResponse, Map.class);
-        Map<String, Object> rootAsMap = null;
-        if (foo != null)
+        CouchResponse couchResponse;
+        if ( mutationOnly )
         {
-            //noinspection unchecked
-            rootAsMap = foo;
+            couchResponse = decodeMutation(entity);
         }
-        else
+        else if ( lazyDecoding || decodingParallelism > 0 || dictionarySize > 0 )
         {
-            logger.debug("error");
+            couchResponse = decodeBuffered(entity);
         }
-        couchResponse.status = (String) rootAsMap.get("status");
-        couchResponse.requestId = (String) rootAsMap.get("requestID");
-        Object signature = rootAsMap.get("signature");
-
-        if ( signature instanceof Map )
+        else
         {
-            //noinspection unchecked
-            couchResponse.signature = (Map) signature;
-            //noinspection unchecked
-            Iterator iterator = ((List) rootAsMap.get("results")).iterator();
-
-            couchResponse.results = new ArrayList<>();
-            while ( iterator.hasNext() )
-            {
-                LazyValueMap object = (LazyValueMap) iterator.next();
-
-                //noinspection unchecked
-                if (object.values().iterator().next() instanceof Map) {
-                    couchResponse.results.add((LazyValueMap) object.entrySet().iterator().next().getValue());
-                } else {
-                    couchResponse.results.add(object);
-                }
-            }
+            couchResponse = codec.decodeResponse(entity.getContent(), entity.getContentLength());
         }
-        else if ( signature instanceof String )
-        {
-            couchResponse.signature = new HashMap<>();
-            couchResponse.signature.put("$1", (String) signature);
-
-            Iterator iterator = ((List) rootAsMap.get("results")).iterator();
-
-            couchResponse.results = new ArrayList<>();
-            while ( iterator.hasNext() )
-            {
-                Object object = iterator.next();
+        couchResponse.codec = codec;
+        collectWarnings(couchResponse);
 
-                HashMap entry = new HashMap();
-                //noinspection unchecked
-                entry.put("$1", object );
-                //noinspection unchecked
-                couchResponse.results.add(entry);
-            }
-        }
-        else if (signature != null)
+        try
         {
-            throw new SQLException("Error reading signature" + signature );
+            checkStatus(sql, status, couchResponse);
         }
-        //noinspection unchecked
-        couchResponse.metrics   = MapObjectConversion.fromMap((Map)rootAsMap.get("metrics"), CouchMetrics.class);
-        List errorList = (List)rootAsMap.get("errors");
-        if ( errorList != null )
+        catch (SQLException | IOException ex)
         {
-            //noinspection unchecked,unchecked
-            couchResponse.errors    = MapObjectConversion.convertListOfMapsToObjects(CouchError.class, errorList);
+            couchResponse.close();
+            throw ex;
         }
-        List  warningList = (List)rootAsMap.get("warnings");
-        if ( warningList != null )
-        {
-            //noinspection unchecked,unchecked
-            couchResponse.warnings  = MapObjectConversion.convertListOfMapsToObjects(CouchError.class, warningList );
+        return couchResponse;
+    }
 
+    private void collectWarnings(CouchResponse couchResponse)
+    {
+        if ( couchResponse.warnings != null )
+        {
             for (CouchError warning : couchResponse.warnings)
             {
-                if ( sqlWarning != null )
+                if ( sqlWarning == null )
                 {
-                    sqlWarning = new SQLWarning(warning.msg,null, warning.code);
+                    sqlWarning = new SQLWarning(warning.msg,null, warning.code == null ? 0 : warning.code);
                 }
                 else
                 {
-                    sqlWarning.setNextWarning(new SQLWarning(warning.msg,null, warning.code));
+                    sqlWarning.setNextWarning(new SQLWarning(warning.msg,null, warning.code == null ? 0 : warning.code));
                 }
             }
         }
+    }
 
+    // whatever the codec, rows an update echoes back are skipped over without being decoded
+    private CouchResponse decodeMutation(HttpEntity entity) throws SQLException, IOException
+    {
+        LazyResponseDecoder decoder = new LazyResponseDecoder(ResponseBuffer.readHeap(entity.getContent(), entity.getContentLength()));
+        decoder.setSkipResults(true);
+        return decoder.decode();
+    }
 
-        //JsonObject jsonObject = jsonReader.readObject();
-        //logger.trace( "response from query {} {}", sql, jsonObject.toString());
-
+    private CouchResponse decodeBuffered(HttpEntity entity) throws SQLException, IOException
+    {
+        ResponseBuffer responseBuffer = ResponseBuffer.read(entity.getContent(), entity.getContentLength());
+        try
+        {
+            LazyResponseDecoder decoder = new LazyResponseDecoder(responseBuffer);
 
-        //String statusString = (String)jsonObject.get("status");
+            // lazy rows win, there is nothing left to decode in parallel
+            if ( !lazyDecoding )
+            {
+                if ( decodingParallelism > 0 )
+                {
+                    decoder.setRowDecoder(new ParallelRowDecoder(ParallelRowDecoder.poolFor(decodingParallelism), parallelDecodingThreshold, dictionarySize));
+                }
+                else
+                {
+                    decoder.setRowDecoder(new ParallelRowDecoder(null, Integer.MAX_VALUE, dictionarySize));
+                }
+            }
+            return decoder.decode();
+        }
+        catch (SQLException | RuntimeException ex)
+        {
+            responseBuffer.release();
+            throw ex;
+        }
+    }
 
+    private void checkStatus(String sql, int status, CouchResponse couchResponse) throws SQLException, IOException
+    {
         Integer iStatus = statusStrings.get(couchResponse.status);
         String message;
 
@@ -521,7 +630,7 @@ public class ProtocolImpl implements Protocol {
                         throw new SQLException(errors.get(0).msg);
 
                     case N1QL_SUCCESS:
-                        return couchResponse;
+                        return;
 
                     case N1QL_COMPLETED:
                     case N1QL_FATAL:
@@ -607,8 +716,214 @@ public class ProtocolImpl implements Protocol {
 
 
     public CouchResponse doQuery(String query, Map queryParameters) throws SQLException
+    {
+        return doQuery(query, queryParameters, false);
+    }
+
+    public CouchResponse doUpdate(String query, Map queryParameters) throws SQLException
+    {
+        return doQuery(query, queryParameters, true);
+    }
+
+    private CouchResponse doQuery(final String query, final Map queryParameters, boolean mutationOnly) throws SQLException
+    {
+        if (!mutationOnly && isShareable(query))
+        {
+            return read(readKey(query, queryParameters), () -> lookup(query, queryParameters));
+        }
+        return mutationOnly ? send(query, queryParameters, true) : lookup(query, queryParameters);
+    }
+
+    // a point read goes out together with the lookups of other callers when batching is enabled
+    private CouchResponse lookup(String query, Map queryParameters) throws SQLException
+    {
+        Object args = queryParameters.get("args");
+        if (batcher != null && args instanceof Object[] && !hasNamedArgs(queryParameters))
+        {
+            return batcher.lookup(principal(), requestOptions(), query, (Object[]) args, this::sendBatch,
+                                  () -> send(query, queryParameters, false));
+        }
+        return send(query, queryParameters, false);
+    }
+
+    // a batch only carries positional arguments
+    private static boolean hasNamedArgs(Map<?, ?> queryParameters)
+    {
+        for (Object name : queryParameters.keySet())
+        {
+            if (name instanceof String && ((String) name).startsWith("$"))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the settings addOptions sends with every request, batched lookups share them
+    private String requestOptions()
+    {
+        return schema + '\0' + scanConsistency + '\0' + readOnly + '\0' + queryTimeout;
+    }
+
+    private CouchResponse sendBatch(String statement, Object[] args) throws SQLException
+    {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(STATEMENT, statement);
+        parameters.put("args", args);
+        return send(statement, parameters, false);
+    }
+
+    private CouchResponse send(String query, Map queryParameters, boolean mutationOnly) throws SQLException
+    {
+        CloseableHttpResponse response = post(query, queryParameters);
+        try
+        {
+            return handleResponse(query, response, mutationOnly);
+        }
+        catch (Exception ex)
+        {
+            throw queryFailed(query, ex);
+        }
+    }
+
+    // a read answered from memory, from disk, or from a request another caller sent, when any of them is enabled
+    private CouchResponse read(QueryKey key, QueryCoalescer.Fetch fetch) throws SQLException
+    {
+        boolean cached = resultCache != null && readOnly;
+        boolean onDisk = diskCache != null && readOnly;
+        if (cached)
+        {
+            CouchResponse response = resultCache.get(key);
+            if (response != null)
+            {
+                return response;
+            }
+        }
+        if (onDisk)
+        {
+            CouchResponse response = diskCache.get(key);
+            if (response != null)
+            {
+                return cached ? resultCache.put(key, response, resultCacheTtl) : response;
+            }
+        }
+        // only the caller that sends the request stores its result, the others get a view of what it stored
+        QueryCoalescer.Fetch store = () ->
+        {
+            long start = System.nanoTime();
+            CouchResponse response = fetch.fetch();
+            // only reads that were expensive to answer are worth a file, the file is written in the background
+            if (onDisk && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= diskCacheMinMillis)
+            {
+                diskCache.putInBackground(key, response, diskCacheTtl);
+            }
+            return cached ? resultCache.put(key, response, resultCacheTtl) : response;
+        };
+        return coalescer != null ? coalescer.execute(key, store) : store.fetch();
+    }
+
+    // only reads that may see any recent state are shared, request_plus promises the caller its own writes
+    private boolean isShareable(String sql)
+    {
+        if (coalescer == null && resultCache == null && diskCache == null)
+        {
+            return false;
+        }
+        if (!"not_bounded".equals(scanConsistency) || sql == null)
+        {
+            return false;
+        }
+        int i = 0;
+        while (i < sql.length() && (Character.isWhitespace(sql.charAt(i)) || sql.charAt(i) == '('))
+        {
+            i++;
+        }
+        return sql.regionMatches(true, i, "select", 0, 6);
+    }
+
+    private QueryKey readKey(String query, Map<?, ?> queryParameters)
+    {
+        Object prepared = queryParameters.get("prepared");
+        Object statement = prepared != null ? prepared : queryParameters.get(STATEMENT);
+        Map<String, Object> namedArgs = new HashMap<>();
+        for (Map.Entry<?, ?> entry : queryParameters.entrySet())
+        {
+            if (entry.getKey() instanceof String && ((String) entry.getKey()).startsWith("$"))
+            {
+                namedArgs.put((String) entry.getKey(), entry.getValue());
+            }
+        }
+        return new QueryKey(principal(), statement != null ? statement.toString() : query, queryParameters.get("args"),
+                            namedArgs, schema, scanConsistency);
+    }
+
+    // who a shared response may be handed to
+    private String principal()
+    {
+        return url + '\0' + user + '\0' + credentials;
+    }
+
+    public ResultStream openStream(final String query, Map queryParameters) throws SQLException
+    {
+        Instance[] endpoint = new Instance[1];
+        CloseableHttpResponse response = post(query, queryParameters, endpoint);
+        final int status = response.getStatusLine().getStatusCode();
+        try
+        {
+            ResultStream stream = new ResultStream(response.getEntity().getContent(), response, new ResultStream.Completion()
+            {
+                @Override
+                public void complete(CouchResponse couchResponse) throws SQLException, IOException
+                {
+                    couchResponse.codec = codec;
+                    collectWarnings(couchResponse);
+                    checkStatus(query, status, couchResponse);
+                }
+            }, ResultStream.DEFAULT_BUFFER_SIZE);
+            stream.setAdminEndpoint(endpoint[0].getAdminEndPoint());
+            return stream;
+        }
+        catch (IOException ex)
+        {
+            try
+            {
+                response.close();
+            }
+            catch (IOException ignored)
+            {
+                // already failing
+            }
+            throw queryFailed(query, ex);
+        }
+    }
+
+    private CloseableHttpResponse post(String query, Map queryParameters) throws SQLException
+    {
+        return post(query, queryParameters, null);
+    }
+
+    // sends the statement to the next endpoint that answers, moving past the ones that time out.
+    // The endpoint that took it is handed back in used when that is not null
+    private CloseableHttpResponse post(String query, Map queryParameters, Instance[] used) throws SQLException
     {
         Instance endPoint = getNextEndpoint();
+        ByteArrayEntity entity;
+        try
+        {
+            addOptions(queryParameters);
+
+            if (queryParameters.containsKey(CREDENTIALS)) {
+                queryParameters.put(CREDENTIALS, codec.fromJson((String) queryParameters.get(CREDENTIALS)));
+            }
+            ByteArrayOutputStream jsonParameters = new ByteArrayOutputStream(512);
+            codec.writeJson(queryParameters, jsonParameters);
+            entity = new ByteArrayEntity(jsonParameters.toByteArray(), ContentType.APPLICATION_JSON);
+            logger.trace("entity: {}", entity);
+        }
+        catch (Exception ex)
+        {
+            throw queryFailed(query, ex);
+        }
 
         // keep trying endpoints
         while(true)
@@ -622,21 +937,15 @@ public class ProtocolImpl implements Protocol {
                 httpRequest.setHeader("Accept", "application/json");
 
                 logger.trace("do query {}", httpRequest.toString());
-                addOptions(queryParameters);
-
-                if (queryParameters.containsKey(CREDENTIALS)) {
-                    queryParameters.put(CREDENTIALS, JsonFactory.fromJson((String) queryParameters.get(CREDENTIALS)));
-                }
-                String jsonParameters = JsonFactory.toJson(queryParameters);
-                logger.error("jsonParameters: {}", jsonParameters);
-                StringEntity entity = new StringEntity(jsonParameters, ContentType.APPLICATION_JSON);
-                logger.error("entity: {}", entity);
 
                 ((HttpPost) httpRequest).setEntity(entity);
 
                 CloseableHttpResponse response = httpClient.execute(httpRequest);
-
-                return handleResponse(query, response);
+                if (used != null)
+                {
+                    used[0] = endPoint;
+                }
+                return response;
 
             }
             catch (ConnectTimeoutException cte)
@@ -653,17 +962,22 @@ public class ProtocolImpl implements Protocol {
 
 
             } catch (Exception ex) {
-                logger.error("Error executing doQuery [{}] {}", query, ex.getMessage());
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw);
-                ex.printStackTrace(pw);
-                pw.flush();
-                logger.error("stackTrace: {}", sw.getBuffer().toString());
-                throw new SQLException("Error executing update", ex);
+                throw queryFailed(query, ex);
             }
         }
     }
 
+    private SQLException queryFailed(String query, Exception ex)
+    {
+        logger.error("Error executing doQuery [{}] {}", query, ex.getMessage());
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        ex.printStackTrace(pw);
+        pw.flush();
+        logger.error("stackTrace: {}", sw.getBuffer().toString());
+        return new SQLException("Error executing update", ex);
+    }
+
     public boolean execute(CBStatement statement, String query) throws SQLException
     {
         try
@@ -680,11 +994,16 @@ public class ProtocolImpl implements Protocol {
             updateCount = response.metrics.mutationCount;
             if ( updateCount > 0 )
             {
+                response.close();
                 return false;
             }
 
             // no sense creating the object if it is false
-            if ( response.metrics.resultCount == 0 ) return false;
+            if ( response.metrics.resultCount == 0 )
+            {
+                response.close();
+                return false;
+            }
             resultSet = new CBResultSet(statement, response);
                 return true;
 
@@ -746,8 +1065,7 @@ public class ProtocolImpl implements Protocol {
             if ( status >= 200 && status < 300 )
             {
                 HttpEntity entity = response.getEntity();
-                ObjectMapper mapper = JsonFactory.create();
-                @SuppressWarnings("unchecked") Map <String,Object> jsonObject = (Map)mapper.fromJson(EntityUtils.toString(entity));
+                @SuppressWarnings("unchecked") Map <String,Object> jsonObject = (Map)codec.fromJson(EntityUtils.toString(entity));
 
                 String statusString = (String)jsonObject.get("status");
 
@@ -859,6 +1177,26 @@ public class ProtocolImpl implements Protocol {
         httpRequest.abort();
     }
 
+    @Override
+    public void cancelRequest(String adminEndpoint, String requestId) throws SQLException
+    {
+        HttpDelete httpDelete = new HttpDelete(adminEndpoint + "/active_requests/" + requestId);
+        httpDelete.setHeader("Accept", "application/json");
+        try (CloseableHttpResponse response = httpClient.execute(httpDelete))
+        {
+            int status = response.getStatusLine().getStatusCode();
+            // 404 means the request finished before it could be cancelled
+            if (status >= 300 && status != 404)
+            {
+                throw new SQLException("Error cancelling request " + requestId + ", status " + status);
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new SQLException("Error cancelling request " + requestId, ex);
+        }
+    }
+
     @Override
     public SQLWarning getWarnings() throws SQLException
     {
@@ -942,6 +1280,7 @@ public class ProtocolImpl implements Protocol {
         try
         {
             CouchResponse response = doQuery(query, parameters);
+            response.close();
             return response.getMetrics().getResultCount() == 1;
         }
         catch (Exception ex)
@@ -0,0 +1,167 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lets concurrent identical reads share one request. The first caller for a key sends the
+ * request, everyone asking for the same key while it is in flight waits for that response
+ * instead of sending their own. A key is only shared while its request is in flight, there is
+ * no caching beyond that.
+ *
+ * Every caller gets a view of its own over the shared rows, with its own cursor and columns;
+ * the raw response buffer is released once the last view is closed.
+ */
+public class QueryCoalescer
+{
+    private static final QueryCoalescer shared = new QueryCoalescer();
+
+    /**
+     * Sends the request of a flight
+     */
+    public interface Fetch
+    {
+        CouchResponse fetch() throws SQLException;
+    }
+
+    private final ConcurrentHashMap<QueryKey, Flight> flights = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Returns the coalescer shared by every connection that enables it
+     */
+    public static QueryCoalescer shared()
+    {
+        return shared;
+    }
+
+    /**
+     * Returns a view of the response for key, sending the request only if no identical one is
+     * in flight
+     *
+     * @throws SQLException if the shared request fails, every caller waiting on it gets the error
+     */
+    public CouchResponse execute(QueryKey key, Fetch fetch) throws SQLException
+    {
+        while (true)
+        {
+            Flight flight = flights.get(key);
+            if (flight == null)
+            {
+                Flight mine = new Flight();
+                flight = flights.putIfAbsent(key, mine);
+                if (flight == null)
+                {
+                    requests.increment();
+                    return lead(key, mine, fetch);
+                }
+            }
+            // a flight that has ended, or went to its lone caller unfrozen, can still be found for a moment, start over
+            if (flight.acquire())
+            {
+                coalesced.increment();
+                return flight.await();
+            }
+        }
+    }
+
+    private CouchResponse lead(QueryKey key, Flight flight, Fetch fetch) throws SQLException
+    {
+        CouchResponse response;
+        try
+        {
+            response = fetch.fetch();
+        }
+        catch (SQLException | RuntimeException ex)
+        {
+            flights.remove(key, flight);
+            flight.fail(ex instanceof SQLException ? (SQLException) ex : new SQLException("Error running query", ex));
+            throw ex;
+        }
+        // later callers send a request of their own, the rows they get are fresher
+        flights.remove(key, flight);
+        flight.complete(response);
+        return flight.view();
+    }
+
+    /**
+     * @return the requests sent
+     */
+    public long getRequests()
+    {
+        return requests.sum();
+    }
+
+    /**
+     * @return the calls that were answered by a request another caller sent
+     */
+    public long getCoalesced()
+    {
+        return coalesced.sum();
+    }
+
+    // one request and the callers sharing it
+    private static final class Flight
+    {
+        private final CountDownLatch done = new CountDownLatch(1);
+        // counts the caller that sent the request and everyone who joined it
+        private final SharedResponse shared = new SharedResponse(null);
+        private volatile SQLException failure;
+
+        boolean acquire()
+        {
+            return shared.acquire();
+        }
+
+        void complete(CouchResponse response)
+        {
+            shared.set(response);
+            done.countDown();
+        }
+
+        void fail(SQLException failure)
+        {
+            this.failure = failure;
+            shared.discard();
+            done.countDown();
+        }
+
+        CouchResponse await() throws SQLException
+        {
+            try
+            {
+                done.await();
+            }
+            catch (InterruptedException ex)
+            {
+                shared.release();
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a shared query", ex);
+            }
+            if (failure != null)
+            {
+                throw new SQLException(failure.getMessage(), failure.getSQLState(), failure.getErrorCode(), failure);
+            }
+            return shared.view();
+        }
+
+        CouchResponse view()
+        {
+            return shared.view();
+        }
+    }
+}
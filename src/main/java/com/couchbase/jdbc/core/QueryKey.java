@@ -0,0 +1,126 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Identifies a read: the statement or prepared name, its arguments, the namespace and the scan
+ * consistency, plus who is asking so results never cross credentials or clusters
+ */
+public final class QueryKey
+{
+    private final String principal;
+    private final String statement;
+    private final Object args;
+    private final Map<String, Object> namedArgs;
+    private final String namespace;
+    private final String scanConsistency;
+    private final int hash;
+
+    /**
+     * @param principal the cluster and credentials of the connection
+     * @param statement the statement text, or the name of a prepared statement
+     * @param args the positional arguments, an array or a list, null if there are none
+     * @param namedArgs the named arguments, null if there are none
+     */
+    public QueryKey(String principal, String statement, Object args, Map<String, Object> namedArgs, String namespace,
+                    String scanConsistency)
+    {
+        this.principal = principal;
+        this.statement = statement;
+        this.args = copy(args);
+        this.namedArgs = namedArgs == null || namedArgs.isEmpty() ? null : new TreeMap<>(namedArgs);
+        this.namespace = namespace;
+        this.scanConsistency = scanConsistency;
+        this.hash = Objects.hash(principal, statement, Arrays.deepHashCode(new Object[] {args}), this.namedArgs, namespace,
+                                 scanConsistency);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof QueryKey))
+        {
+            return false;
+        }
+        QueryKey other = (QueryKey) o;
+        return hash == other.hash
+                && Objects.equals(statement, other.statement)
+                && Objects.equals(principal, other.principal)
+                && Objects.deepEquals(args, other.args)
+                && Objects.equals(namedArgs, other.namedArgs)
+                && Objects.equals(namespace, other.namespace)
+                && Objects.equals(scanConsistency, other.scanConsistency);
+    }
+
+    // prepared statements pass the array their setters write to, the key must not change with it
+    private static Object copy(Object args)
+    {
+        if (args instanceof Object[])
+        {
+            return ((Object[]) args).clone();
+        }
+        if (args instanceof List)
+        {
+            return new ArrayList<>((List<?>) args);
+        }
+        return args;
+    }
+
+    String getStatement()
+    {
+        return statement;
+    }
+
+    /**
+     * Returns a SHA-256 of every part of the key. It is the same in every process, so it can name
+     * a file, and it is all that is kept of the credentials.
+     */
+    byte[] digest()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(principal).append('\0')
+          .append(statement).append('\0')
+          .append(Arrays.deepToString(new Object[] {args})).append('\0')
+          .append(namedArgs).append('\0')
+          .append(namespace).append('\0')
+          .append(scanConsistency);
+        try
+        {
+            return MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            // every java platform is required to have SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Streams one value straight out of a {@link ResponseBuffer} without copying it.
+ *
+ * The stream is only good while the response is open, once the buffer goes back to the pool
+ * every read fails.
+ */
+class RawJsonInputStream extends InputStream
+{
+    private final ResponseBuffer owner;
+    private final ByteBuffer bytes;
+    private int mark;
+
+    RawJsonInputStream(ResponseBuffer owner, ByteBuffer bytes)
+    {
+        this.owner = owner;
+        this.bytes = bytes;
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (owner != null && owner.isReleased())
+        {
+            throw new IOException("The result set this value came from has been closed");
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        checkOpen();
+        return bytes.hasRemaining() ? bytes.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        checkOpen();
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (!bytes.hasRemaining())
+        {
+            return -1;
+        }
+        int n = Math.min(len, bytes.remaining());
+        bytes.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+        int skipped = (int) Math.max(0, Math.min(n, bytes.remaining()));
+        bytes.position(bytes.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+        return bytes.remaining();
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit)
+    {
+        mark = bytes.position();
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+        bytes.position(mark);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Raw UTF-8 bytes of a query response, held in a pooled direct buffer or, see {@link #readHeap}, a plain array.
+ * Responses larger than the biggest pooled buffer end up on the heap as well.
+ *
+ * The buffer is flipped after reading so that position is 0 and limit is the length of the
+ * response. Readers must only use absolute gets, which keeps the buffer safe to share between
+ * threads without copying.
+ */
+public class ResponseBuffer
+{
+    private final ByteBuffer buffer;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    // a mapped file is direct memory too, but never the pool's to take
+    private final boolean pooled;
+
+    ResponseBuffer(ByteBuffer buffer)
+    {
+        this(buffer, true);
+    }
+
+    ResponseBuffer(ByteBuffer buffer, boolean pooled)
+    {
+        this.buffer = buffer;
+        this.pooled = pooled;
+    }
+
+    /**
+     * Reads the stream to the end into a pooled buffer
+     *
+     * @param inputStream the response body
+     * @param contentLength the expected length or a negative number if it is not known
+     */
+    public static ResponseBuffer read(InputStream inputStream, long contentLength) throws IOException
+    {
+        int initial = contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int)contentLength : BufferPool.MIN_CAPACITY;
+        ByteBuffer buffer = BufferPool.acquire(initial);
+
+        try
+        {
+            ReadableByteChannel channel = Channels.newChannel(inputStream);
+            while (true)
+            {
+                if (!buffer.hasRemaining())
+                {
+                    // a body that fills the buffer exactly has usually ended, look for the end before growing
+                    boolean probed = contentLength >= 0 && buffer.position() >= contentLength;
+                    int next = probed ? inputStream.read() : 0;
+                    if (next < 0)
+                    {
+                        break;
+                    }
+                    ByteBuffer bigger = BufferPool.acquire(buffer.capacity() * 2);
+                    buffer.flip();
+                    bigger.put(buffer);
+                    BufferPool.release(buffer);
+                    buffer = bigger;
+                    if (probed)
+                    {
+                        bigger.put((byte) next);
+                    }
+                }
+                if (channel.read(buffer) < 0)
+                {
+                    break;
+                }
+            }
+        }
+        catch (IOException|RuntimeException ex)
+        {
+            BufferPool.release(buffer);
+            throw ex;
+        }
+        buffer.flip();
+        return new ResponseBuffer(buffer);
+    }
+
+    /**
+     * Reads the stream to the end into a plain heap buffer that is never pooled. Scanning heap
+     * memory is cheaper, which pays off when the whole response is decoded straight away.
+     */
+    public static ResponseBuffer readHeap(InputStream inputStream, long contentLength) throws IOException
+    {
+        byte[] bytes = new byte[contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int)contentLength + 1 : 8192];
+        int count = 0;
+        while (true)
+        {
+            if (count == bytes.length)
+            {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            int n = inputStream.read(bytes, count, bytes.length - count);
+            if (n < 0)
+            {
+                break;
+            }
+            count += n;
+        }
+        return new ResponseBuffer(ByteBuffer.wrap(bytes, 0, count));
+    }
+
+    public ByteBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    public int length()
+    {
+        return buffer.limit();
+    }
+
+    // pooled buffers are handed to the next response once released
+    boolean isPooled()
+    {
+        return pooled;
+    }
+
+    public boolean isReleased()
+    {
+        return released.get();
+    }
+
+    /**
+     * Hands the memory back to the pool, anything still referring to this response is invalid afterwards
+     */
+    public void release()
+    {
+        if (!released.getAndSet(true) && pooled)
+        {
+            BufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the responses of read only queries for a while so repeated reads are answered without
+ * a request. Entries expire after the time to live they were stored with, and the least
+ * recently used ones are evicted once the cached responses hold more than maxBytes.
+ *
+ * A hit hands out a view over the cached rows like {@link QueryCoalescer} does, an entry that
+ * is evicted while views are still open is closed after the last of them.
+ */
+public class ResultCache
+{
+    private static final ResultCache shared = new ResultCache(0);
+
+    // decoded rows take about eight times their JSON text on the heap, measured with the Boon
+    // and streaming codecs: map entries, boxed numbers and strings of UTF-16 chars
+    public static final int DECODED_EXPANSION = 8;
+
+    // guarded by this, in access order
+    private final LinkedHashMap<QueryKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes the most bytes of responses kept, estimated from their buffers or decoded rows
+     */
+    public ResultCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cache shared by every connection that enables one, as large as the largest
+     * size any of them asked for
+     */
+    public static ResultCache shared()
+    {
+        return shared;
+    }
+
+    /**
+     * Grows the cache to hold at least maxBytes
+     */
+    public synchronized void ensureCapacity(long maxBytes)
+    {
+        this.maxBytes = Math.max(this.maxBytes, maxBytes);
+    }
+
+    /**
+     * Returns a view of the cached response for key, null if there is none that is still fresh
+     */
+    public CouchResponse get(QueryKey key)
+    {
+        SharedResponse response = null;
+        synchronized (this)
+        {
+            Entry entry = entries.get(key);
+            if (entry != null)
+            {
+                if (entry.expires - now() > 0)
+                {
+                    // the cache holds a reference until the entry is removed, so this never fails
+                    entry.response.acquire();
+                    response = entry.response;
+                }
+                else
+                {
+                    remove(key);
+                }
+            }
+        }
+        // the rows are frozen on the first hit, which waits until the caller that stored them is done
+        CouchResponse view = response == null ? null : response.frozenView();
+        if (view == null)
+        {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return view;
+    }
+
+    /**
+     * Stores response for key and returns a view of it for the caller, the cache owns response
+     * from now on. A response too large to ever fit is handed back as it is.
+     */
+    public CouchResponse put(QueryKey key, CouchResponse response, long ttlMillis)
+    {
+        long size = retainedBytes(response);
+        SharedResponse shared;
+        synchronized (this)
+        {
+            if (ttlMillis <= 0 || size > maxBytes)
+            {
+                return response;
+            }
+            shared = new SharedResponse(response);
+            remove(key);
+            entries.put(key, new Entry(shared, size, now() + TimeUnit.MILLISECONDS.toNanos(ttlMillis)));
+            bytes += size;
+            // a reference for the view handed back, the one shared was created with is the cache's
+            shared.acquire();
+            evict();
+        }
+        return shared.view();
+    }
+
+    /**
+     * Estimates the heap a response holds on to: the raw buffer of lazily decoded rows, otherwise
+     * its results as sent times what decoding them into maps and lists costs
+     */
+    static long retainedBytes(CouchResponse response)
+    {
+        if (response.buffer != null)
+        {
+            return response.buffer.length();
+        }
+        return response.metrics == null ? 0 : response.metrics.getResultSize() * DECODED_EXPANSION;
+    }
+
+    /**
+     * Drops the entry for key
+     */
+    public synchronized void invalidate(QueryKey key)
+    {
+        remove(key);
+    }
+
+    /**
+     * Drops the entries of a statement, whatever their arguments
+     */
+    public synchronized void invalidate(String statement)
+    {
+        for (Iterator<Map.Entry<QueryKey, Entry>> it = entries.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<QueryKey, Entry> entry = it.next();
+            if (entry.getKey().getStatement().equals(statement))
+            {
+                it.remove();
+                drop(entry.getValue());
+            }
+        }
+    }
+
+    public synchronized void invalidateAll()
+    {
+        for (Entry entry : entries.values())
+        {
+            drop(entry);
+        }
+        entries.clear();
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return the share of lookups answered from the cache, 0 before the first one
+     */
+    public double getHitRatio()
+    {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * @return the entries removed to make room, expired ones are not counted
+     */
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    public synchronized int getEntries()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the bytes the cached responses hold, see {@link #getMaxBytes()}
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public synchronized long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    long now()
+    {
+        return System.nanoTime();
+    }
+
+    // called holding the lock
+    private void remove(QueryKey key)
+    {
+        Entry entry = entries.remove(key);
+        if (entry != null)
+        {
+            drop(entry);
+        }
+    }
+
+    // called holding the lock
+    private void drop(Entry entry)
+    {
+        bytes -= entry.size;
+        entry.response.release();
+    }
+
+    // called holding the lock, expired entries go first, then the least recently used
+    private void evict()
+    {
+        if (bytes <= maxBytes)
+        {
+            return;
+        }
+        long now = now();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); )
+        {
+            Entry entry = it.next();
+            if (entry.expires - now <= 0)
+            {
+                it.remove();
+                drop(entry);
+            }
+        }
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && bytes > maxBytes; )
+        {
+            Entry entry = it.next();
+            it.remove();
+            drop(entry);
+            evictions.increment();
+        }
+    }
+
+    private static final class Entry
+    {
+        final SharedResponse response;
+        final long size;
+        final long expires;
+
+        Entry(SharedResponse response, long size, long expires)
+        {
+            this.response = response;
+            this.size = size;
+            this.expires = expires;
+        }
+    }
+}
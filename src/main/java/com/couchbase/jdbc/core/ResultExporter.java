@@ -0,0 +1,293 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import com.couchbase.jdbc.ExportFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies the rows of a {@link ResultStream} to an output stream as they arrive.
+ *
+ * Rows go from the raw response bytes straight into a fixed size output buffer; they are never
+ * decoded into maps. Only strings with escapes in them are decoded, and only for CSV, which
+ * has no escapes of its own.
+ */
+public class ResultExporter
+{
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int count;
+
+    public ResultExporter(OutputStream out, int bufferSize)
+    {
+        this.out = out;
+        this.buffer = new byte[Math.max(bufferSize, 64)];
+    }
+
+    /**
+     * Writes every row of the stream, the stream is read to its end but not closed
+     *
+     * @return the number of rows written
+     */
+    public long export(ResultStream stream, ExportFormat format) throws SQLException, IOException
+    {
+        if (format == ExportFormat.ARROW)
+        {
+            throw new IllegalArgumentException("Arrow is written by ArrowExporter");
+        }
+        stream.start();
+        long rows = format == ExportFormat.CSV ? csv(stream) : ndjson(stream);
+        flush();
+        return rows;
+    }
+
+    private long ndjson(ResultStream stream) throws SQLException, IOException
+    {
+        while (stream.next())
+        {
+            writeCompact(stream.getScanner(), stream.getValueStart(), stream.getValueEnd(), false);
+            write((byte) '\n');
+        }
+        return stream.getRowCount();
+    }
+
+    private long csv(ResultStream stream) throws SQLException, IOException
+    {
+        boolean more = true;
+        List<String> names = new ArrayList<>();
+        Map<String, String> signature = stream.getSignature();
+        if (stream.isSelectStar())
+        {
+            // nothing is declared, the first document decides the columns
+            more = stream.next();
+            if (more)
+            {
+                names = keysOf(stream.getScanner(), stream.getValueStart());
+            }
+        }
+        else if (signature != null)
+        {
+            names.addAll(signature.keySet());
+        }
+
+        byte[][] columns = new byte[names.size()][];
+        for (int c = 0; c < columns.length; c++)
+        {
+            columns[c] = names.get(c).getBytes(StandardCharsets.UTF_8);
+            if (c > 0)
+            {
+                write((byte) ',');
+            }
+            writeCsvString(names.get(c));
+        }
+        if (columns.length > 0)
+        {
+            write(CRLF, 0, CRLF.length);
+        }
+
+        int[] starts = new int[columns.length];
+        int[] ends = new int[columns.length];
+        if (more && !stream.isSelectStar())
+        {
+            more = stream.next();
+        }
+        while (more)
+        {
+            JsonScanner scanner = stream.getScanner();
+            if (stream.isRaw())
+            {
+                starts[0] = stream.getValueStart();
+                ends[0] = stream.getValueEnd();
+            }
+            else
+            {
+                scanner.locateMembers(stream.getValueStart(), columns, starts, ends);
+            }
+            for (int c = 0; c < columns.length; c++)
+            {
+                if (c > 0)
+                {
+                    write((byte) ',');
+                }
+                if (starts[c] >= 0)
+                {
+                    writeCsvValue(scanner, starts[c], ends[c]);
+                }
+            }
+            write(CRLF, 0, CRLF.length);
+            more = stream.next();
+        }
+        return stream.getRowCount();
+    }
+
+    private static List<String> keysOf(JsonScanner scanner, int pos)
+    {
+        List<String> keys = new ArrayList<>();
+        if (scanner.byteAt(pos) != '{')
+        {
+            return keys;
+        }
+        int i = scanner.skipWhitespace(pos + 1);
+        while (scanner.byteAt(i) != '}')
+        {
+            keys.add(scanner.readString(i));
+            i = scanner.skipWhitespace(scanner.expect(scanner.skipString(i), ':'));
+            i = scanner.skipWhitespace(scanner.skipValue(i));
+            if (scanner.byteAt(i) == ',')
+            {
+                i = scanner.skipWhitespace(i + 1);
+            }
+        }
+        return keys;
+    }
+
+    private void writeCsvValue(JsonScanner scanner, int start, int end) throws IOException
+    {
+        switch (scanner.byteAt(start))
+        {
+            case 'n':
+                return;
+            case '"':
+                boolean escaped = false;
+                boolean comma = false;
+                for (int i = start + 1; i < end - 1; i++)
+                {
+                    byte b = scanner.byteAt(i);
+                    if (b == '\\')
+                    {
+                        escaped = true;
+                        break;
+                    }
+                    comma |= b == ',';
+                }
+                if (escaped)
+                {
+                    writeCsvString(scanner.readString(start));
+                }
+                else if (comma)
+                {
+                    write(scanner, start, end);
+                }
+                else
+                {
+                    write(scanner, start + 1, end - 1);
+                }
+                return;
+            case '{':
+            case '[':
+                write((byte) '"');
+                writeCompact(scanner, start, end, true);
+                write((byte) '"');
+                return;
+            default:
+                write(scanner, start, end);
+        }
+    }
+
+    private void writeCsvString(String value) throws IOException
+    {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++)
+        {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        byte[] bytes = (quote ? '"' + value.replace("\"", "\"\"") + '"' : value).getBytes(StandardCharsets.UTF_8);
+        write(bytes, 0, bytes.length);
+    }
+
+    // copies the value without the whitespace between its tokens, optionally doubling quotes for CSV
+    private void writeCompact(JsonScanner scanner, int start, int end, boolean doubleQuotes) throws IOException
+    {
+        boolean inString = false;
+        for (int i = start; i < end; i++)
+        {
+            byte b = scanner.byteAt(i);
+            if (inString)
+            {
+                if (b == '\\')
+                {
+                    write(b);
+                    b = scanner.byteAt(++i);
+                }
+                else if (b == '"')
+                {
+                    inString = false;
+                }
+            }
+            else if (b == ' ' || b == '\n' || b == '\r' || b == '\t')
+            {
+                continue;
+            }
+            else if (b == '"')
+            {
+                inString = true;
+            }
+            if (b == '"' && doubleQuotes)
+            {
+                write(b);
+            }
+            write(b);
+        }
+    }
+
+    private void write(JsonScanner scanner, int start, int end) throws IOException
+    {
+        for (int i = start; i < end; i++)
+        {
+            write(scanner.byteAt(i));
+        }
+    }
+
+    private void write(byte b) throws IOException
+    {
+        if (count == buffer.length)
+        {
+            flush();
+        }
+        buffer[count++] = b;
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            if (count == buffer.length)
+            {
+                flush();
+            }
+            int n = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void flush() throws IOException
+    {
+        if (count > 0)
+        {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads a query response incrementally, one row at a time, through a fixed size window.
+ *
+ * Nothing but the row under the cursor is ever held: the window is refilled from the HTTP
+ * response as the cursor moves, and only grows when a single row does not fit in it. The
+ * members of the envelope other than the results are small and are decoded as they go by;
+ * once the results are exhausted the rest of the envelope is read and handed to the
+ * {@link Completion}, which is where errors reported by the server surface.
+ *
+ * Offsets into the window are only valid until the next call to {@link #next()}.
+ */
+public class ResultStream implements Closeable
+{
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Called once the envelope has been read to its end, with everything but the results
+     */
+    public interface Completion
+    {
+        void complete(CouchResponse response) throws SQLException, IOException;
+    }
+
+    private static final int ENVELOPE = 0;
+    private static final int RESULTS = 1;
+    private static final int DONE = 2;
+
+    private final InputStream in;
+    private final Closeable exchange;
+    private final Completion completion;
+    private final CouchResponse response = new CouchResponse();
+    // the admin endpoint of the node running the query, where it can be cancelled
+    private String adminEndpoint;
+
+    private byte[] window;
+    private int filled;
+    private boolean eof;
+    private JsonScanner scanner;
+
+    // the next byte that has not been consumed
+    private int pos;
+    private int state = ENVELOPE;
+    private boolean started;
+    // the subscriber cancelling and the thread reading may both close
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private boolean firstRow = true;
+    private RowShape shape = RowShape.PLAIN;
+    private long rowCount;
+
+    private int rowStart;
+    private int rowEnd;
+    private int valueStart;
+    private int valueEnd;
+
+    /**
+     * @param in the body of the response
+     * @param exchange closed along with the stream, typically the HTTP response
+     * @param completion checks the envelope once it has been read, may be null
+     * @param bufferSize the initial size of the window
+     */
+    public ResultStream(InputStream in, Closeable exchange, Completion completion, int bufferSize)
+    {
+        this.in = in;
+        this.exchange = exchange;
+        this.completion = completion;
+        this.window = new byte[Math.max(bufferSize, 64)];
+        this.scanner = new JsonScanner(ByteBuffer.wrap(window, 0, 0));
+    }
+
+    /**
+     * Reads the envelope up to the first row, after this the signature is known
+     */
+    public void start() throws SQLException, IOException
+    {
+        if (started)
+        {
+            return;
+        }
+        started = true;
+        while (true)
+        {
+            int mark = pos;
+            try
+            {
+                pos = scanner.expect(pos, '{');
+                break;
+            }
+            catch (IllegalStateException ex)
+            {
+                refill(mark, ex);
+            }
+        }
+        readEnvelope();
+    }
+
+    /**
+     * Moves to the next row
+     *
+     * @return false once the results are exhausted, by then the whole response has been read
+     */
+    public boolean next() throws SQLException, IOException
+    {
+        start();
+        if (state != RESULTS)
+        {
+            return false;
+        }
+        while (true)
+        {
+            int mark = pos;
+            try
+            {
+                int i = scanner.skipWhitespace(pos);
+                byte b = scanner.byteAt(i);
+                if (b == ']')
+                {
+                    pos = i + 1;
+                    state = ENVELOPE;
+                    readEnvelope();
+                    return false;
+                }
+                if (!firstRow)
+                {
+                    if (b != ',')
+                    {
+                        throw scanner.malformed(i, "expected ',' or ']'");
+                    }
+                    i = scanner.skipWhitespace(i + 1);
+                }
+                int end = scanner.skipValue(i);
+                // a number only ends where the next token starts
+                scanner.byteAt(scanner.skipWhitespace(end));
+                locate(i, end);
+                pos = end;
+                firstRow = false;
+                rowCount++;
+                return true;
+            }
+            catch (IllegalStateException ex)
+            {
+                refill(mark, ex);
+            }
+        }
+    }
+
+    // the value of a row is the row itself, or the document it wraps for select *
+    private void locate(int start, int end)
+    {
+        rowStart = start;
+        rowEnd = end;
+        valueStart = start;
+        valueEnd = end;
+        if (shape == RowShape.UNWRAP)
+        {
+            int inner = ParallelRowDecoder.wrappedDocument(scanner, start);
+            if (inner >= 0)
+            {
+                int innerEnd = scanner.skipValue(inner);
+                if (scanner.byteAt(scanner.skipWhitespace(innerEnd)) == '}')
+                {
+                    valueStart = inner;
+                    valueEnd = innerEnd;
+                }
+            }
+        }
+    }
+
+    private void readEnvelope() throws SQLException, IOException
+    {
+        while (state == ENVELOPE)
+        {
+            int mark = pos;
+            try
+            {
+                readMember();
+            }
+            catch (IllegalStateException ex)
+            {
+                refill(mark, ex);
+            }
+            catch (ClassCastException ex)
+            {
+                throw new SQLException("Error decoding query response", ex);
+            }
+        }
+        if (state == DONE && completion != null)
+        {
+            completion.complete(response);
+        }
+    }
+
+    // reads one member of the envelope, or its closing brace
+    private void readMember() throws SQLException
+    {
+        int i = scanner.skipWhitespace(pos);
+        byte b = scanner.byteAt(i);
+        if (b == '}')
+        {
+            pos = i + 1;
+            state = DONE;
+            return;
+        }
+        if (b == ',')
+        {
+            i = scanner.skipWhitespace(i + 1);
+        }
+        String key = scanner.readString(i);
+        i = scanner.skipWhitespace(scanner.expect(scanner.skipString(i), ':'));
+
+        if ("results".equals(key) && scanner.byteAt(i) == '[')
+        {
+            pos = i + 1;
+            state = RESULTS;
+            return;
+        }
+        int end = scanner.skipValue(i);
+        scanner.byteAt(scanner.skipWhitespace(end));
+        switch (key)
+        {
+            case "status":
+                response.status = (String) scanner.readValue(i);
+                break;
+            case "requestID":
+                response.requestId = (String) scanner.readValue(i);
+                break;
+            case "signature":
+                Object signature = scanner.readValue(i);
+                shape = RowShape.of(signature);
+                if (signature instanceof Map)
+                {
+                    //noinspection unchecked
+                    response.signature = (Map) signature;
+                }
+                else if (signature instanceof String)
+                {
+                    response.signature = new HashMap<>();
+                    response.signature.put(RowShape.RAW_COLUMN, (String) signature);
+                }
+                else if (signature != null)
+                {
+                    throw new SQLException("Error reading signature" + signature);
+                }
+                break;
+            case "metrics":
+                response.metrics = BoonJsonCodec.toMetrics((Map) scanner.readValue(i));
+                break;
+            case "errors":
+                response.errors = BoonJsonCodec.toErrors((List) scanner.readValue(i));
+                break;
+            case "warnings":
+                response.warnings = BoonJsonCodec.toErrors((List) scanner.readValue(i));
+                break;
+            default:
+                break;
+        }
+        pos = end;
+    }
+
+    /**
+     * Keeps the bytes from mark on, moved to the start of the window, and reads more after them.
+     * The window only grows when everything in it is still needed.
+     */
+    private void refill(int mark, RuntimeException cause) throws IOException
+    {
+        if (eof)
+        {
+            throw new IOException("Truncated or malformed query response", cause);
+        }
+        int kept = filled - mark;
+        if (mark > 0)
+        {
+            System.arraycopy(window, mark, window, 0, kept);
+        }
+        else if (kept == window.length)
+        {
+            byte[] bigger = new byte[window.length * 2];
+            System.arraycopy(window, 0, bigger, 0, kept);
+            window = bigger;
+        }
+        filled = kept;
+        pos = 0;
+
+        int n = in.read(window, filled, window.length - filled);
+        if (n < 0)
+        {
+            eof = true;
+        }
+        else
+        {
+            filled += n;
+        }
+        scanner = new JsonScanner(ByteBuffer.wrap(window, 0, filled));
+    }
+
+    /**
+     * @return the columns the server declared, "$1" for select raw and "*" for select *
+     */
+    public Map<String, String> getSignature()
+    {
+        return response.signature;
+    }
+
+    /**
+     * @return true if every row is wrapped in its keyspace name
+     */
+    public boolean isSelectStar()
+    {
+        return shape == RowShape.UNWRAP;
+    }
+
+    /**
+     * @return true if every row is a bare value rather than an object
+     */
+    public boolean isRaw()
+    {
+        return shape == RowShape.RAW;
+    }
+
+    /**
+     * @return the envelope without its results, complete once {@link #next()} has returned false
+     */
+    public CouchResponse getResponse()
+    {
+        return response;
+    }
+
+    public long getRowCount()
+    {
+        return rowCount;
+    }
+
+    public JsonScanner getScanner()
+    {
+        return scanner;
+    }
+
+    /**
+     * @return the offset of the current row as the server sent it
+     */
+    public int getRowStart()
+    {
+        return rowStart;
+    }
+
+    public int getRowEnd()
+    {
+        return rowEnd;
+    }
+
+    /**
+     * @return the offset of the value of the current row, the document itself for select *
+     */
+    public int getValueStart()
+    {
+        return valueStart;
+    }
+
+    public int getValueEnd()
+    {
+        return valueEnd;
+    }
+
+    public String getAdminEndpoint()
+    {
+        return adminEndpoint;
+    }
+
+    public void setAdminEndpoint(String adminEndpoint)
+    {
+        this.adminEndpoint = adminEndpoint;
+    }
+
+    /**
+     * @return true once the whole response has been read or the stream has been closed
+     */
+    public boolean isDone()
+    {
+        return state == DONE;
+    }
+
+    RowShape getShape()
+    {
+        return shape;
+    }
+
+    /**
+     * Decodes the current row into the same map a buffered response would hold for it
+     */
+    public Map<String, Object> decodeRow()
+    {
+        return ParallelRowDecoder.decodeRow(scanner, rowStart, shape, null);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        state = DONE;
+        if (exchange != null && closed.compareAndSet(false, true))
+        {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The bytes of a run of values copied out of a response window, which moves on as rows are
+ * read. Used wherever rows have to outlive the position of a {@link ResultStream}.
+ */
+public class RowBuffer
+{
+    private byte[] data = new byte[4096];
+    private int size;
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int rows;
+
+    /**
+     * Copies the value between start and end
+     */
+    public void add(JsonScanner scanner, int start, int end)
+    {
+        int length = end - start;
+        if (size + length > data.length)
+        {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + length));
+        }
+        if (rows == starts.length)
+        {
+            starts = Arrays.copyOf(starts, rows * 2);
+            ends = Arrays.copyOf(ends, rows * 2);
+        }
+        ByteBuffer source = scanner.getBuffer().duplicate();
+        source.position(start);
+        source.get(data, size, length);
+        starts[rows] = size;
+        ends[rows] = size + length;
+        size += length;
+        rows++;
+    }
+
+    public int getRows()
+    {
+        return rows;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return the offset of the i-th value in the scanner returned by {@link #scanner()}
+     */
+    public int getStart(int i)
+    {
+        return starts[i];
+    }
+
+    public int getEnd(int i)
+    {
+        return ends[i];
+    }
+
+    /**
+     * @return a scanner over the values copied so far
+     */
+    public JsonScanner scanner()
+    {
+        return new JsonScanner(ByteBuffer.wrap(data, 0, size));
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps result rows onto instances of a class, through its public setters, its fields or, for
+ * records, its canonical constructor.
+ *
+ * The binding of a class is worked out once with method handles and cached for the life of the
+ * class. Columns are matched to properties by name, ignoring case and underscores. Rows decoded
+ * lazily hand numbers and booleans to primitive setters straight from the response bytes,
+ * without boxing them; other rows, and records, go through the decoded values.
+ */
+public final class RowMapper<T>
+{
+    private static final ClassValue<RowMapper<?>> MAPPERS = new ClassValue<RowMapper<?>>()
+    {
+        @Override
+        protected RowMapper<?> computeValue(Class<?> type)
+        {
+            return new RowMapper<>(type);
+        }
+    };
+
+    private static final Property NONE = new Property(null, null, null, -1);
+
+    private final Class<T> type;
+    private final SQLException unmappable;
+    private final boolean record;
+    private final MethodHandle constructor;
+    private final Map<String, Property> properties = new HashMap<>();
+    private final int parameterCount;
+
+    // column names already looked up, whether they matched or not
+    private final ConcurrentHashMap<String, Property> byColumn = new ConcurrentHashMap<>();
+    // lazy rows of one shape share their names array, so the last one is bound only once
+    private volatile Binding lastBinding;
+
+    /**
+     * @return the mapper of the type, created the first time it is asked for
+     * @throws SQLException if the type has no constructor or properties that can be used
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> RowMapper<T> of(Class<T> type) throws SQLException
+    {
+        RowMapper<T> mapper = (RowMapper<T>) MAPPERS.get(type);
+        if (mapper.unmappable != null)
+        {
+            throw mapper.unmappable;
+        }
+        return mapper;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RowMapper(Class<?> type)
+    {
+        this.type = (Class<T>) type;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        boolean isRecord = false;
+        MethodHandle create = null;
+        int count = 0;
+        SQLException failure = null;
+        try
+        {
+            Object[] components = recordComponents(type);
+            if (components != null)
+            {
+                isRecord = true;
+                count = components.length;
+                Class<?>[] types = new Class<?>[count];
+                for (int i = 0; i < count; i++)
+                {
+                    Method accessor = components[i].getClass().getMethod("getName");
+                    String name = (String) accessor.invoke(components[i]);
+                    types[i] = (Class<?>) components[i].getClass().getMethod("getType").invoke(components[i]);
+                    add(new Property(name, types[i], null, i));
+                }
+                Constructor<?> canonical = type.getDeclaredConstructor(types);
+                canonical.setAccessible(true);
+                create = lookup.unreflectConstructor(canonical)
+                        .asType(MethodType.methodType(Object.class, types))
+                        .asSpreader(Object[].class, count)
+                        .asType(MethodType.methodType(Object.class, Object[].class));
+            }
+            else
+            {
+                Constructor<?> noArgs = type.getDeclaredConstructor();
+                noArgs.setAccessible(true);
+                create = lookup.unreflectConstructor(noArgs).asType(MethodType.methodType(Object.class));
+                for (Method method : type.getMethods())
+                {
+                    String name = method.getName();
+                    if (name.length() > 3 && name.startsWith("set") && method.getParameterCount() == 1
+                            && !Modifier.isStatic(method.getModifiers()))
+                    {
+                        String property = Character.toLowerCase(name.charAt(3)) + name.substring(4);
+                        add(new Property(property, method.getParameterTypes()[0], lookup.unreflect(method), -1));
+                    }
+                }
+                for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass())
+                {
+                    for (Field field : c.getDeclaredFields())
+                    {
+                        int modifiers = field.getModifiers();
+                        if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || Modifier.isTransient(modifiers)
+                                || properties.containsKey(normalize(field.getName())))
+                        {
+                            continue;
+                        }
+                        field.setAccessible(true);
+                        add(new Property(field.getName(), field.getType(), lookup.unreflectSetter(field), -1));
+                    }
+                }
+            }
+            if (properties.isEmpty())
+            {
+                failure = new SQLException("No properties to map rows onto in " + type.getName());
+            }
+        }
+        catch (NoSuchMethodException ex)
+        {
+            failure = new SQLException("Cannot map rows onto " + type.getName() + ", it needs a constructor without arguments", ex);
+        }
+        catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            failure = new SQLException("Cannot map rows onto " + type.getName(), ex);
+        }
+        this.record = isRecord;
+        this.constructor = create;
+        this.parameterCount = count;
+        this.unmappable = failure;
+    }
+
+    // the record components on a JVM that has records, null for any other class
+    private static Object[] recordComponents(Class<?> type) throws ReflectiveOperationException
+    {
+        Method isRecord;
+        try
+        {
+            isRecord = Class.class.getMethod("isRecord");
+        }
+        catch (NoSuchMethodException ex)
+        {
+            return null;
+        }
+        if (!(Boolean) isRecord.invoke(type))
+        {
+            return null;
+        }
+        return (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+    }
+
+    private void add(Property property)
+    {
+        properties.putIfAbsent(normalize(property.name), property);
+    }
+
+    static String normalize(String name)
+    {
+        return name.replace("_", "").toLowerCase(Locale.ROOT);
+    }
+
+    public Class<T> getType()
+    {
+        return type;
+    }
+
+    /**
+     * Creates an instance from one row, columns without a matching property are ignored and
+     * properties without a column keep their default
+     */
+    @SuppressWarnings("unchecked")
+    public T map(Map<String, Object> row) throws SQLException
+    {
+        try
+        {
+            Object target = record ? new Object[parameterCount] : (Object) constructor.invokeExact();
+            if (row instanceof LazyRow)
+            {
+                LazyRow lazy = (LazyRow) row;
+                Property[] columns = bind(lazy.names());
+                for (int i = 0; i < columns.length; i++)
+                {
+                    if (columns[i] != null)
+                    {
+                        columns[i].set(target, lazy, i);
+                    }
+                }
+            }
+            else
+            {
+                for (Map.Entry<String, Object> column : row.entrySet())
+                {
+                    Property property = property(column.getKey());
+                    if (property != null)
+                    {
+                        property.set(target, column.getValue());
+                    }
+                }
+            }
+            if (record)
+            {
+                Object[] arguments = (Object[]) target;
+                for (Property property : properties.values())
+                {
+                    if (arguments[property.index] == null && property.type.isPrimitive())
+                    {
+                        arguments[property.index] = property.defaultValue();
+                    }
+                }
+                target = constructor.invokeExact(arguments);
+            }
+            return (T) target;
+        }
+        catch (SQLException | RuntimeException ex)
+        {
+            throw ex instanceof SQLException ? (SQLException) ex : new SQLException("Error mapping row onto " + type.getName(), ex);
+        }
+        catch (Throwable ex)
+        {
+            throw new SQLException("Error mapping row onto " + type.getName(), ex);
+        }
+    }
+
+    private Property property(String column)
+    {
+        Property property = byColumn.get(column);
+        if (property == null)
+        {
+            property = properties.get(normalize(column));
+            byColumn.put(column, property == null ? NONE : property);
+        }
+        return property == NONE ? null : property;
+    }
+
+    private Property[] bind(String[] names)
+    {
+        Binding binding = lastBinding;
+        if (binding == null || binding.names != names)
+        {
+            Property[] columns = new Property[names.length];
+            for (int i = 0; i < names.length; i++)
+            {
+                columns[i] = property(names[i]);
+            }
+            binding = new Binding(names, columns);
+            lastBinding = binding;
+        }
+        return binding.columns;
+    }
+
+    private static class Binding
+    {
+        final String[] names;
+        final Property[] columns;
+
+        Binding(String[] names, Property[] columns)
+        {
+            this.names = names;
+            this.columns = columns;
+        }
+    }
+
+    private static class Property
+    {
+        final String name;
+        final Class<?> type;
+        final int index;
+        // the setter typed (Object, primitive) for primitives and (Object, Object) for the rest
+        final MethodHandle setter;
+
+        Property(String name, Class<?> type, MethodHandle setter, int index)
+        {
+            this.name = name;
+            this.type = type;
+            this.index = index;
+            this.setter = setter == null ? null
+                    : setter.asType(MethodType.methodType(void.class, Object.class, type.isPrimitive() ? type : Object.class));
+        }
+
+        // reads the value from the response bytes when the setter takes a primitive
+        void set(Object target, LazyRow row, int i) throws Throwable
+        {
+            if (setter != null && type.isPrimitive())
+            {
+                JsonScanner scanner = row.getScanner();
+                int start = row.valueStart(i);
+                byte b = scanner.byteAt(start);
+                if (b == 'n')
+                {
+                    return;
+                }
+                if (type == boolean.class && (b == 't' || b == 'f'))
+                {
+                    setter.invokeExact(target, b == 't');
+                    return;
+                }
+                if (scanner.isNumber(start))
+                {
+                    int end = row.valueEnd(i);
+                    if (type == long.class)
+                    {
+                        setter.invokeExact(target, scanner.parseLong(start, end));
+                        return;
+                    }
+                    if (type == int.class)
+                    {
+                        setter.invokeExact(target, (int) scanner.parseLong(start, end));
+                        return;
+                    }
+                    if (type == double.class)
+                    {
+                        setter.invokeExact(target, scanner.parseDouble(start, end));
+                        return;
+                    }
+                    if (type == float.class)
+                    {
+                        setter.invokeExact(target, (float) scanner.parseDouble(start, end));
+                        return;
+                    }
+                    if (type == short.class)
+                    {
+                        setter.invokeExact(target, (short) scanner.parseLong(start, end));
+                        return;
+                    }
+                    if (type == byte.class)
+                    {
+                        setter.invokeExact(target, (byte) scanner.parseLong(start, end));
+                        return;
+                    }
+                }
+            }
+            set(target, row.getValue(i));
+        }
+
+        void set(Object target, Object value) throws Throwable
+        {
+            if (setter == null)
+            {
+                ((Object[]) target)[index] = convert(value);
+                return;
+            }
+            if (!type.isPrimitive())
+            {
+                setter.invokeExact(target, convert(value));
+                return;
+            }
+            if (value == null)
+            {
+                return;
+            }
+            // numbers are already boxed by the decoder, they are unboxed without a conversion
+            Object converted = value instanceof Number ? value : convert(value);
+            if (type == boolean.class)
+            {
+                setter.invokeExact(target, ((Boolean) convert(value)).booleanValue());
+            }
+            else if (type == char.class)
+            {
+                setter.invokeExact(target, ((Character) convert(value)).charValue());
+            }
+            else if (type == long.class)
+            {
+                setter.invokeExact(target, ((Number) converted).longValue());
+            }
+            else if (type == int.class)
+            {
+                setter.invokeExact(target, ((Number) converted).intValue());
+            }
+            else if (type == double.class)
+            {
+                setter.invokeExact(target, ((Number) converted).doubleValue());
+            }
+            else if (type == float.class)
+            {
+                setter.invokeExact(target, ((Number) converted).floatValue());
+            }
+            else if (type == short.class)
+            {
+                setter.invokeExact(target, ((Number) converted).shortValue());
+            }
+            else if (type == byte.class)
+            {
+                setter.invokeExact(target, ((Number) converted).byteValue());
+            }
+        }
+
+        Object defaultValue() throws SQLException
+        {
+            return convert(type == boolean.class ? Boolean.FALSE : type == char.class ? (Object) '\0' : (Object) 0);
+        }
+
+        // turns a decoded JSON value into the type of the property, boxed for primitives
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Object convert(Object value) throws SQLException
+        {
+            if (value == null)
+            {
+                return null;
+            }
+            Class<?> target = type.isPrimitive() ? box(type) : type;
+            if (target.isInstance(value))
+            {
+                return value;
+            }
+            if (value instanceof Number)
+            {
+                Number number = (Number) value;
+                if (target == Long.class)
+                {
+                    return number.longValue();
+                }
+                if (target == Integer.class)
+                {
+                    return number.intValue();
+                }
+                if (target == Double.class)
+                {
+                    return number.doubleValue();
+                }
+                if (target == Float.class)
+                {
+                    return number.floatValue();
+                }
+                if (target == Short.class)
+                {
+                    return number.shortValue();
+                }
+                if (target == Byte.class)
+                {
+                    return number.byteValue();
+                }
+                if (target == BigDecimal.class)
+                {
+                    return number instanceof BigInteger ? new BigDecimal((BigInteger) number) : new BigDecimal(number.toString());
+                }
+                if (target == BigInteger.class)
+                {
+                    return number instanceof BigDecimal ? ((BigDecimal) number).toBigInteger() : BigInteger.valueOf(number.longValue());
+                }
+            }
+            if (target == String.class && !(value instanceof Map) && !(value instanceof Iterable))
+            {
+                return value.toString();
+            }
+            if (value instanceof String)
+            {
+                String string = (String) value;
+                if (target.isEnum())
+                {
+                    return Enum.valueOf((Class<? extends Enum>) target, string);
+                }
+                if (target == Character.class && string.length() == 1)
+                {
+                    return string.charAt(0);
+                }
+                if (target == Boolean.class)
+                {
+                    return Boolean.valueOf(string);
+                }
+                if (Number.class.isAssignableFrom(target))
+                {
+                    try
+                    {
+                        return convert(new BigDecimal(string.trim()));
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        throw new SQLException("Value of " + name + " is not a number: " + string, ex);
+                    }
+                }
+            }
+            throw new SQLException("Cannot map " + value.getClass().getSimpleName() + " value of " + name + " onto " + type.getName());
+        }
+
+        private static Class<?> box(Class<?> primitive)
+        {
+            return MethodType.methodType(primitive).wrap().returnType();
+        }
+    }
+}
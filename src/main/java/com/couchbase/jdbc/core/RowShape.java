@@ -0,0 +1,53 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+
+package com.couchbase.jdbc.core;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * How the rows of a response are laid out, decided once from the signature instead of being
+ * guessed again for every row.
+ */
+enum RowShape
+{
+    /** every row is an object whose members are the columns */
+    PLAIN,
+    /** select *, a row holding a single object is the document wrapped in its keyspace name */
+    UNWRAP,
+    /** select raw, every row is a bare value returned under "$1" */
+    RAW;
+
+    static final String RAW_COLUMN = "$1";
+
+    static RowShape of(Object signature)
+    {
+        if (signature instanceof String)
+        {
+            return RAW;
+        }
+        if (signature instanceof Map && ((Map) signature).containsKey("*"))
+        {
+            return UNWRAP;
+        }
+        return PLAIN;
+    }
+
+    /**
+     * Wraps a raw value in a row, a singleton is all a read only row of one column needs
+     */
+    static Map<String, Object> rawRow(Object value)
+    {
+        return Collections.singletonMap(RAW_COLUMN, value);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import com.couchbase.jdbc.Row;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Pulls rows from a result stream one at a time, decoding each only when it is asked for.
+ *
+ * Splitting copies the raw bytes of the next run of rows, which is cheap, and leaves decoding
+ * them to whichever thread takes the split, so a parallel stream decodes on every worker while
+ * the response is still read in order. Runs grow with every split, the way the spliterators of
+ * the JDK do for sources of unknown size.
+ *
+ * Errors reading the response are rethrown as {@link UncheckedIOException}, errors reported by
+ * the server as {@link IllegalStateException} with the {@link SQLException} as the cause.
+ */
+public class RowSpliterator implements Spliterator<Row>, Closeable
+{
+    static final int BATCH_UNIT = 256;
+    static final int MAX_BATCH = 1 << 14;
+
+    private final ResultStream stream;
+    private int batch;
+    private boolean done;
+
+    public RowSpliterator(ResultStream stream)
+    {
+        this.stream = stream;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Row> action)
+    {
+        if (!advance())
+        {
+            return false;
+        }
+        action.accept(new Row(stream.decodeRow()));
+        return true;
+    }
+
+    @Override
+    public Spliterator<Row> trySplit()
+    {
+        int n = Math.min(batch + BATCH_UNIT, MAX_BATCH);
+        RowBuffer rows = new RowBuffer();
+        while (rows.getRows() < n && advance())
+        {
+            rows.add(stream.getScanner(), stream.getRowStart(), stream.getRowEnd());
+        }
+        if (rows.getRows() == 0)
+        {
+            return null;
+        }
+        batch = n;
+        return new Segment(rows, rows.scanner(), stream.getShape(), 0, rows.getRows());
+    }
+
+    // moves the stream on, closing it as soon as the last row has been read
+    private boolean advance()
+    {
+        if (done)
+        {
+            return false;
+        }
+        try
+        {
+            if (stream.next())
+            {
+                return true;
+            }
+            close();
+            return false;
+        }
+        catch (IOException ex)
+        {
+            close();
+            throw new UncheckedIOException(ex);
+        }
+        catch (SQLException ex)
+        {
+            close();
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public long estimateSize()
+    {
+        return done ? 0 : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics()
+    {
+        return ORDERED | NONNULL;
+    }
+
+    /**
+     * Closes the response, abandoning any rows not read yet
+     */
+    @Override
+    public void close()
+    {
+        if (done)
+        {
+            return;
+        }
+        done = true;
+        try
+        {
+            stream.close();
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // rows already copied out of the response, decoded as they are consumed
+    private static class Segment implements Spliterator<Row>
+    {
+        private final RowBuffer rows;
+        private final JsonScanner scanner;
+        private final RowShape shape;
+        private int from;
+        private final int to;
+
+        Segment(RowBuffer rows, JsonScanner scanner, RowShape shape, int from, int to)
+        {
+            this.rows = rows;
+            this.scanner = scanner;
+            this.shape = shape;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Row> action)
+        {
+            if (from >= to)
+            {
+                return false;
+            }
+            action.accept(new Row(ParallelRowDecoder.decodeRow(scanner, rows.getStart(from++), shape, null)));
+            return true;
+        }
+
+        @Override
+        public Spliterator<Row> trySplit()
+        {
+            int middle = (from + to) >>> 1;
+            if (middle <= from)
+            {
+                return null;
+            }
+            Segment prefix = new Segment(rows, scanner, shape, from, middle);
+            from = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize()
+        {
+            return to - from;
+        }
+
+        @Override
+        public int characteristics()
+        {
+            return ORDERED | NONNULL | SIZED | SUBSIZED | IMMUTABLE;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import com.couchbase.jdbc.util.JSONTypes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The columns of a result and what kind of values they have held so far.
+ *
+ * A select * signature names no columns, so they are learned from the rows themselves as the
+ * cursor reaches them. Columns are only ever appended, an ordinal never changes once assigned,
+ * and each row is looked at once. The type of an inferred column widens as new kinds of values
+ * turn up: a column that has only held numbers is a number, one that has held numbers and
+ * strings is json, one that has only been null is null.
+ */
+public class SchemaTracker
+{
+    private final ArrayList<Field> fields = new ArrayList<>();
+    private final ArrayList<Column> columns = new ArrayList<>();
+    private final HashMap<String, Integer> ordinals = new HashMap<>();
+    private final boolean inferred;
+
+    private int observedRows;
+
+    // lazy rows of the same shape share their names array, so their ordinals are only looked up once
+    private String[] lastNames;
+    private int[] lastOrdinals;
+
+    private SchemaTracker(boolean inferred)
+    {
+        this.inferred = inferred;
+    }
+
+    /**
+     * @return a schema whose columns and types are the ones the server declared
+     */
+    public static SchemaTracker declared(Map<String, String> signature)
+    {
+        SchemaTracker schema = new SchemaTracker(false);
+        if (signature != null)
+        {
+            for (Map.Entry<String, String> entry : signature.entrySet())
+            {
+                schema.ordinalFor(entry.getKey(), entry.getValue());
+            }
+        }
+        return schema;
+    }
+
+    /**
+     * @return an empty schema that learns its columns from the rows it is shown
+     */
+    public static SchemaTracker inferred()
+    {
+        return new SchemaTracker(true);
+    }
+
+    /**
+     * @return the columns in ordinal order. The list is live, columns are appended as they are found
+     */
+    public ArrayList<Field> getFields()
+    {
+        return fields;
+    }
+
+    /**
+     * @return the zero based ordinal of the column, or -1 if no such column has been seen
+     */
+    public int ordinalOf(String name)
+    {
+        Integer ordinal = ordinals.get(name);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    public Column getColumn(int ordinal)
+    {
+        return columns.get(ordinal);
+    }
+
+    public boolean isInferred()
+    {
+        return inferred;
+    }
+
+    /**
+     * @return how many rows have been looked at, columns of a declared schema never look at any
+     */
+    public int getObservedRows()
+    {
+        return observedRows;
+    }
+
+    /**
+     * Looks at every row up to and including index that has not been looked at yet
+     */
+    public void observeThrough(List<Map<String, Object>> results, int index)
+    {
+        if (!inferred || results == null)
+        {
+            return;
+        }
+        int last = Math.min(index, results.size() - 1);
+        while (observedRows <= last)
+        {
+            observe(results.get(observedRows++));
+        }
+    }
+
+    private void observe(Map<String, Object> row)
+    {
+        if (row instanceof LazyRow)
+        {
+            // the kind of every value is read from its first byte, nothing is decoded
+            LazyRow lazyRow = (LazyRow) row;
+            String[] names = lazyRow.names();
+            if (names != lastNames)
+            {
+                int[] rowOrdinals = new int[names.length];
+                for (int i = 0; i < names.length; i++)
+                {
+                    rowOrdinals[i] = ordinalFor(names[i], "null");
+                }
+                lastNames = names;
+                lastOrdinals = rowOrdinals;
+            }
+            for (int i = 0; i < names.length; i++)
+            {
+                columns.get(lastOrdinals[i]).record(lazyRow.jsonType(i));
+            }
+        }
+        else
+        {
+            for (Map.Entry<String, Object> entry : row.entrySet())
+            {
+                columns.get(ordinalFor(entry.getKey(), "null")).record(jsonTypeOf(entry.getValue()));
+            }
+        }
+    }
+
+    private int ordinalFor(String name, String type)
+    {
+        Integer ordinal = ordinals.get(name);
+        if (ordinal == null)
+        {
+            ordinal = fields.size();
+            Field field = new Field(name, type);
+            fields.add(field);
+            columns.add(new Column(field, ordinal));
+            ordinals.put(name, ordinal);
+        }
+        return ordinal;
+    }
+
+    static int jsonTypeOf(Object value)
+    {
+        if (value == null)
+        {
+            return JSONTypes.JSON_NULL;
+        }
+        if (value instanceof Number)
+        {
+            return JSONTypes.JSON_NUMBER;
+        }
+        if (value instanceof String)
+        {
+            return JSONTypes.JSON_STRING;
+        }
+        if (value instanceof Boolean)
+        {
+            return JSONTypes.JSON_BOOLEAN;
+        }
+        if (value instanceof List)
+        {
+            return JSONTypes.JSON_ARRAY;
+        }
+        return JSONTypes.JSON_MAP;
+    }
+
+    /**
+     * Counts of the kinds of values one column has held, indexed by the {@link JSONTypes} constants
+     */
+    public static class Column
+    {
+        private final Field field;
+        private final int ordinal;
+        private final long[] counts = new long[JSONTypes.JSON_NULL + 1];
+        private int kinds;
+
+        Column(Field field, int ordinal)
+        {
+            this.field = field;
+            this.ordinal = ordinal;
+        }
+
+        void record(int jsonType)
+        {
+            if (counts[jsonType]++ == 0 && jsonType != JSONTypes.JSON_NULL)
+            {
+                kinds++;
+                field.type = typeName();
+            }
+        }
+
+        private String typeName()
+        {
+            switch (getJsonType())
+            {
+                case JSONTypes.JSON_NUMBER:
+                    return "number";
+                case JSONTypes.JSON_STRING:
+                    return "string";
+                case JSONTypes.JSON_BOOLEAN:
+                    return "boolean";
+                case JSONTypes.JSON_NULL:
+                    return "null";
+                default:
+                    return "json";
+            }
+        }
+
+        public Field getField()
+        {
+            return field;
+        }
+
+        public int getOrdinal()
+        {
+            return ordinal;
+        }
+
+        /**
+         * @return how many of the rows seen so far held this kind of value in this column
+         */
+        public long getCount(int jsonType)
+        {
+            return counts[jsonType];
+        }
+
+        /**
+         * @return how many of the rows seen so far had this column at all
+         */
+        public long getPresentCount()
+        {
+            long present = 0;
+            for (long count : counts)
+            {
+                present += count;
+            }
+            return present;
+        }
+
+        /**
+         * @return true if every non null value seen so far was of the same kind
+         */
+        public boolean isUniform()
+        {
+            return kinds <= 1;
+        }
+
+        /**
+         * @return the one kind of non null value the column has held, JSON_OBJECT if it has held
+         * several kinds, JSON_NULL if it has held nothing else
+         */
+        public int getJsonType()
+        {
+            if (kinds == 0)
+            {
+                return JSONTypes.JSON_NULL;
+            }
+            if (kinds > 1)
+            {
+                return JSONTypes.JSON_OBJECT;
+            }
+            for (int type = 0; type < JSONTypes.JSON_NULL; type++)
+            {
+                if (counts[type] > 0)
+                {
+                    return type;
+                }
+            }
+            return JSONTypes.JSON_NULL;
+        }
+    }
+}
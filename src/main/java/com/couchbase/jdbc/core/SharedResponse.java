@@ -0,0 +1,251 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response handed to several readers at once. Each reader gets a view with a cursor and
+ * columns of its own over the same rows, and the response is closed once the last reference
+ * to it is given back.
+ *
+ * The rows are frozen once a second reader gets them: decoders like Boon's build their maps
+ * lazily and are not safe to read from several threads, and a reader must not see another one's
+ * changes. Until then the only reader gets the rows as they were decoded, so a response nobody
+ * shares is never copied. Lazy rows are kept as they are, they already hand every reader
+ * containers of its own.
+ */
+final class SharedResponse
+{
+    private volatile CouchResponse response;
+
+    // guarded by this
+    private int references = 1;
+    private boolean released;
+    // no more references once the response went to its only reader unfrozen
+    private boolean sealed;
+    private boolean frozen;
+    // views over the rows as they were decoded
+    private int rawViews;
+
+    /**
+     * @param response the response, null if it is set once it arrives; the caller holds the
+     * first reference
+     */
+    SharedResponse(CouchResponse response)
+    {
+        this.response = response;
+    }
+
+    /**
+     * Sets the response that arrived. Its rows are frozen when references were taken while it
+     * was on its way, otherwise no one else can join its only reader.
+     */
+    synchronized void set(CouchResponse response)
+    {
+        this.response = response;
+        if (references > 1)
+        {
+            freeze();
+        }
+        else
+        {
+            sealed = true;
+        }
+    }
+
+    /**
+     * Takes another reference, false once the response has been closed
+     */
+    synchronized boolean acquire()
+    {
+        if (released || sealed)
+        {
+            return false;
+        }
+        references++;
+        return true;
+    }
+
+    /**
+     * Refuses further references when there is no response to share after all
+     */
+    synchronized void discard()
+    {
+        released = true;
+    }
+
+    void release()
+    {
+        release(false);
+    }
+
+    private void release(boolean raw)
+    {
+        CouchResponse last = null;
+        synchronized (this)
+        {
+            if (raw)
+            {
+                rawViews--;
+            }
+            if (--references == 0 && !released)
+            {
+                released = true;
+                last = response;
+            }
+        }
+        if (last != null)
+        {
+            last.close();
+        }
+    }
+
+    /**
+     * Returns a view that gives back one reference when it is closed
+     */
+    CouchResponse view()
+    {
+        CouchResponse shared;
+        boolean raw;
+        synchronized (this)
+        {
+            shared = response;
+            raw = !frozen;
+            if (raw)
+            {
+                rawViews++;
+            }
+        }
+        View view = new View(this, raw);
+        view.signature = shared.signature;
+        view.errors = shared.errors;
+        view.warnings = shared.warnings;
+        view.metrics = shared.metrics;
+        view.requestId = shared.requestId;
+        view.status = shared.status;
+        view.results = shared.results;
+        view.codec = shared.codec;
+        return view;
+    }
+
+    /**
+     * Returns a view for a reader that took another reference, freezing the rows the first time.
+     * Null, with the reference given back, while an earlier reader still has the rows unfrozen.
+     */
+    CouchResponse frozenView()
+    {
+        boolean busy;
+        synchronized (this)
+        {
+            busy = !frozen && rawViews > 0;
+            if (!busy)
+            {
+                freeze();
+            }
+        }
+        if (busy)
+        {
+            release();
+            return null;
+        }
+        return view();
+    }
+
+    // guarded by this
+    private void freeze()
+    {
+        if (!frozen && !(response instanceof View && ((View) response).frozen))
+        {
+            response.results = freezeRows(response.results);
+        }
+        frozen = true;
+    }
+
+    static List<Map<String, Object>> freezeRows(List<Map<String, Object>> rows)
+    {
+        if (rows == null)
+        {
+            return null;
+        }
+        List<Map<String, Object>> frozen = new ArrayList<>(rows.size());
+        for (Map<String, Object> row : rows)
+        {
+            frozen.add(row instanceof LazyRow ? row : freezeRow(row));
+        }
+        return Collections.unmodifiableList(frozen);
+    }
+
+    /**
+     * Copies a row into unmodifiable maps and lists all the way down
+     */
+    static Map<String, Object> freezeRow(Map<String, Object> row)
+    {
+        return row == null ? null : Collections.unmodifiableMap(freezeMap(row));
+    }
+
+    private static Map<String, Object> freezeMap(Map<?, ?> map)
+    {
+        Map<String, Object> copy = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : map.entrySet())
+        {
+            copy.put(String.valueOf(entry.getKey()), freezeValue(entry.getValue()));
+        }
+        return copy;
+    }
+
+    private static Object freezeValue(Object value)
+    {
+        if (value instanceof Map)
+        {
+            return Collections.unmodifiableMap(freezeMap((Map<?, ?>) value));
+        }
+        if (value instanceof List)
+        {
+            List<Object> copy = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value)
+            {
+                copy.add(freezeValue(element));
+            }
+            return Collections.unmodifiableList(copy);
+        }
+        return value;
+    }
+
+    private static final class View extends CouchResponse
+    {
+        private final SharedResponse owner;
+        // false while the view reads the rows as they were decoded
+        private final boolean frozen;
+        private boolean closed;
+
+        View(SharedResponse owner, boolean raw)
+        {
+            this.owner = owner;
+            this.frozen = !raw;
+        }
+
+        @Override
+        public void close()
+        {
+            if (!closed)
+            {
+                closed = true;
+                owner.release(!frozen);
+            }
+        }
+    }
+}
@@ -1,17 +1,17 @@
 package com.couchbase.jdbc.core;
 
 import com.couchbase.jdbc.util.JSONTypes;
-import com.couchbase.jdbc.util.TimestampUtils;
+import com.couchbase.jdbc.util.TemporalCodec;
 import com.couchbase.json.SQLJSON;
 import org.boon.core.reflection.Mapper;
 import org.boon.core.reflection.MapperSimple;
 import org.boon.core.value.ValueList;
-import org.boon.json.JsonFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.sql.Date;
 import java.sql.*;
 import java.util.*;
@@ -26,17 +26,39 @@ public class SqlJsonImplementation implements SQLJSON
     Object jsonObject;
     String sqlJson;
     boolean isNull = false;
-    TimestampUtils timestampUtils = new TimestampUtils();
 
+    // set while the value is a document or array that has not been decoded out of the response yet
+    private LazyRow source;
+    private int sourceColumn;
+
+    // the object or array this made its own on the first change, the row it was read from never changes
+    private Object copied;
+
+    private JsonCodec codec = JsonCodecs.getDefault();
 
 
     public SqlJsonImplementation()
     {
 
+    }
+    public SqlJsonImplementation(JsonCodec codec)
+    {
+        this.codec = codec;
     }
     public SqlJsonImplementation(Object jsonObject, Field field )
     {
+        this(jsonObject, field, JsonCodecs.getDefault());
+    }
+    public SqlJsonImplementation(Object jsonObject, Field field, JsonCodec codec )
+    {
+        this.codec = codec;
         this.jsonObject = jsonObject;
+        setType(field, jsonObject);
+        this.field = field;
+    }
+
+    private static void setType(Field field, Object jsonObject)
+    {
         if (jsonObject instanceof String)
             field.setType("string");
         else if (jsonObject instanceof Number)
@@ -48,27 +70,80 @@ public class SqlJsonImplementation implements SQLJSON
         // map should be json as well
         else
             field.setType("json");
+    }
 
+    /**
+     * Wraps a column of a lazily decoded row. Objects and arrays stay as raw bytes in the response
+     * until something asks for their contents, so streaming them back out never decodes them.
+     */
+    public SqlJsonImplementation(LazyRow row, int column, Field field, JsonCodec codec)
+    {
+        this.codec = codec;
+        if (!row.isContainer(column))
+        {
+            this.jsonObject = row.getValue(column);
+            setType(field, jsonObject);
+        }
+        else
+        {
+            source = row;
+            sourceColumn = column;
+            field.setType(row.getScanner().byteAt(row.valueStart(column)) == '[' ? "array" : "json");
+        }
         this.field = field;
     }
 
+    private void decode()
+    {
+        LazyRow row = source;
+        if (row != null)
+        {
+            checkOpen(row);
+            jsonObject = row.getValue(sourceColumn);
+            source = null;
+        }
+    }
+
+    private static void checkOpen(LazyRow row)
+    {
+        if (row.isReleased())
+        {
+            throw new IllegalStateException("The result set this value came from has been closed");
+        }
+    }
+
 
     @Override
     public void free() {
 
     }
 
-    private synchronized void toJson()
+    // racing threads compute the same string, so there is nothing to lock
+    private void toJson()
     {
         if (sqlJson == null )
         {
-            sqlJson = JsonFactory.toJson(jsonObject);
+            LazyRow row = source;
+            if (row != null)
+            {
+                checkOpen(row);
+                sqlJson = row.getRawString(sourceColumn);
+            }
+            else
+            {
+                sqlJson = codec.toJson(jsonObject);
+            }
         }
 
     }
     @Override
     public InputStream getBinaryStream() throws SQLException
     {
+        LazyRow row = source;
+        if (row != null)
+        {
+            return row.getRawStream(sourceColumn);
+        }
         toJson();
         try
         {
@@ -84,6 +159,11 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public Reader getCharacterStream()   throws SQLException
     {
+        LazyRow row = source;
+        if (row != null)
+        {
+            return new InputStreamReader(row.getRawStream(sourceColumn), StandardCharsets.UTF_8);
+        }
         toJson();
         return new StringReader(sqlJson);
     }
@@ -120,6 +200,8 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public void setString(String str) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         field = new Field(null,"string" );
 
         // if it's null set the flag
@@ -142,6 +224,7 @@ public class SqlJsonImplementation implements SQLJSON
 
     public boolean getBoolean() throws SQLException
     {
+        decode();
         int type = JSONTypes.jsonTypes.get(field.getType());
 
         switch (type)
@@ -170,12 +253,15 @@ public class SqlJsonImplementation implements SQLJSON
 
     public void setBoolean(boolean val) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         field = new Field(null,"boolean" );
         jsonObject = val;
     }
 
     public byte getByte() throws SQLException
     {
+        decode();
         if (jsonObject == null )
         {
             isNull = true;
@@ -198,12 +284,15 @@ public class SqlJsonImplementation implements SQLJSON
 
     public void setByte(byte val) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         field = new Field(null,"number" );
         jsonObject = (long)val;
     }
 
     public short getShort() throws SQLException
     {
+        decode();
         if (jsonObject == null )
         {
             isNull = true;
@@ -227,6 +316,8 @@ public class SqlJsonImplementation implements SQLJSON
 
     public void setShort(short val) throws SQLException
     {
+        source = null;
+        sqlJson = null;
 
         field = new Field(null,"number" );
         jsonObject = (long)val;
@@ -235,6 +326,7 @@ public class SqlJsonImplementation implements SQLJSON
 
     public int getInt() throws SQLException
     {
+        decode();
         if (jsonObject == null )
         {
             isNull = true;
@@ -258,6 +350,8 @@ public class SqlJsonImplementation implements SQLJSON
 
     public void setInt(int val) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         field = new Field(null,"number" );
         jsonObject = (long)val;
 
@@ -265,6 +359,7 @@ public class SqlJsonImplementation implements SQLJSON
 
     public long getLong() throws SQLException
     {
+        decode();
         if (jsonObject == null )
         {
             isNull = true;
@@ -287,6 +382,8 @@ public class SqlJsonImplementation implements SQLJSON
 
     public void setLong(long val) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         field = new Field(null,"number" );
         jsonObject = val;
 
@@ -294,6 +391,7 @@ public class SqlJsonImplementation implements SQLJSON
 
     public BigDecimal getBigDecimal() throws SQLException
     {
+        decode();
         if (jsonObject == null )
         {
             isNull = true;
@@ -316,6 +414,8 @@ public class SqlJsonImplementation implements SQLJSON
 
     public void setBigDecimal(BigDecimal val) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         if (val == null)
         {
             field = new Field(null,"null");
@@ -332,6 +432,8 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public void setFloat(float val) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         field = new Field(null,"number" );
         jsonObject = val;
 
@@ -340,6 +442,7 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public float getFloat() throws SQLException
     {
+        decode();
         if (jsonObject == null )
         {
             isNull = true;
@@ -364,6 +467,8 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public void setDouble(double val) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         field = new Field(null,"number" );
         jsonObject = val;
 
@@ -372,6 +477,7 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public double getDouble() throws SQLException
     {
+        decode();
         if (jsonObject == null )
         {
             isNull = true;
@@ -395,18 +501,23 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public void setBytes(byte[] val) throws SQLException
     {
+        source = null;
+        sqlJson = null;
 
     }
 
     @Override
     public byte[] getBytes() throws SQLException
     {
+        decode();
         return new byte[0];
     }
 
     @Override
     public void setDate(Date val, Calendar cal) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         field = new Field(null,"string" );
 
         if (val == null)
@@ -416,13 +527,7 @@ public class SqlJsonImplementation implements SQLJSON
         }
         else
         {
-            if (cal != null)
-            {
-                cal = (Calendar) cal.clone();
-            }
-
-            jsonObject = timestampUtils.toString(cal, val);
-
+            jsonObject = TemporalCodec.format(cal, val);
         }
 
     }
@@ -430,6 +535,7 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public Date getDate(Calendar cal) throws SQLException
     {
+        decode();
         Date date = null;
 
         if (jsonObject == null )
@@ -442,7 +548,7 @@ public class SqlJsonImplementation implements SQLJSON
         {
             if ( jsonObject instanceof String)
             {
-                date = timestampUtils.parse((String)jsonObject);
+                date = TemporalCodec.parseDate((String)jsonObject, cal);
             }
             if (jsonObject instanceof Date)
             {
@@ -458,11 +564,6 @@ public class SqlJsonImplementation implements SQLJSON
             throw new SQLException("value " + jsonObject + " is not a date");
         }
 
-        if ( cal!= null )
-        {
-            date = timestampUtils.applyCalendar(cal, date);
-        }
-
         return date;
     }
 
@@ -470,6 +571,8 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public void setTime(Time val, Calendar cal) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         field = new Field(null,"string" );
 
         if (val == null)
@@ -479,42 +582,35 @@ public class SqlJsonImplementation implements SQLJSON
         }
         else
         {
-            if (cal != null)
-            {
-                cal = (Calendar) cal.clone();
-            }
-
-            jsonObject = timestampUtils.toString(cal, val);
-
+            jsonObject = TemporalCodec.format(cal, val);
         }
     }
 
     @Override
     public Time getTime(Calendar cal) throws SQLException
     {
+        decode();
         Time time;
 
         if ( jsonObject == null ) return null;
 
         try
         {
-            time = timestampUtils.parseTime((String)jsonObject);
+            time = TemporalCodec.parseTime((String)jsonObject, cal);
         }
         catch( Exception ex)
         {
             throw new SQLException("value " + jsonObject +" is not a Time", ex);
         }
 
-        if ( cal != null )
-        {
-            time = timestampUtils.applyCalendar(cal, time);
-        }
         return time;
     }
 
     @Override
     public void setTimestamp(Timestamp val, Calendar cal) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         field = new Field(null,"string" );
 
         if (val == null)
@@ -524,19 +620,14 @@ public class SqlJsonImplementation implements SQLJSON
         }
         else
         {
-            if (cal != null)
-            {
-                cal = (Calendar) cal.clone();
-            }
-
-            jsonObject = timestampUtils.toString(cal, val);
-
+            jsonObject = TemporalCodec.format(cal, val);
         }
     }
 
     @Override
     public Timestamp getTimestamp( Calendar cal ) throws SQLException
     {
+        decode();
         Timestamp ts;
 
         if (jsonObject == null )
@@ -553,7 +644,7 @@ public class SqlJsonImplementation implements SQLJSON
             }
             else if (jsonObject instanceof String)
             {
-                ts = timestampUtils.parseTimestamp((String)jsonObject);
+                ts = TemporalCodec.parseTimestamp((String)jsonObject, cal);
             }
             else
             {
@@ -565,18 +656,12 @@ public class SqlJsonImplementation implements SQLJSON
             throw new SQLException("value " + jsonObject+ "is not a Timestamp", ex);
         }
 
-        if ( cal != null)
-        {
-            ts = timestampUtils.applyCalendar(cal,ts);
-        }
-        /*
-        // check to see if there is a calendar and that it is different than the one used to parse
-        */
         return ts;
     }
 
     public Map getMap() throws SQLException
     {
+        decode();
         if (jsonObject == null )
         {
             isNull = true;
@@ -590,6 +675,8 @@ public class SqlJsonImplementation implements SQLJSON
 
     public void setMap(Map map) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         if (map == null)
         {
             field = new Field(null,"null");
@@ -607,6 +694,7 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public List getArray() throws SQLException
     {
+        decode();
         if (jsonObject == null )
         {
             isNull = true;
@@ -624,6 +712,8 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public void setArray(List array) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         if (array == null)
         {
             field = new Field(null,"null");
@@ -640,6 +730,8 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public void setArray(Object []array) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         if (array == null)
         {
             field = new Field(null,"null");
@@ -655,6 +747,7 @@ public class SqlJsonImplementation implements SQLJSON
 
     public Object getObject() throws SQLException
     {
+        decode();
         switch (field.getSqlType())
         {
             case Types.NUMERIC:
@@ -682,6 +775,8 @@ public class SqlJsonImplementation implements SQLJSON
 
     public void setObject(Object x) throws SQLException
     {
+        source = null;
+        sqlJson = null;
         if (x == null)
         {
             field = new Field(null,"null");
@@ -743,6 +838,7 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public Object getObject(String columnName) throws SQLException
     {
+        decode();
         if (!(jsonObject instanceof Map))
         {
             throw new SQLException("Object is not a json object");
@@ -765,14 +861,21 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public void setObject(String columnName, Object val) throws SQLException
     {
+        decode();
         if (!(jsonObject instanceof Map))
         {
             throw new SQLException("Object is not a json object");
         }
         else
         {
+            if (jsonObject != copied)
+            {
+                //noinspection unchecked
+                jsonObject = copied = new LinkedHashMap((Map) jsonObject);
+            }
             //noinspection unchecked
             ((Map)jsonObject).put(columnName, val);
+            sqlJson = null;
         }
 
     }
@@ -789,6 +892,7 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public Object get(int index)
     {
+        decode();
         if (!(jsonObject instanceof List))
         {
             return null;
@@ -808,16 +912,23 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public void set(int index, Object object) throws SQLException
     {
+        decode();
         if (!(jsonObject instanceof List))
         {
             throw new SQLException("SQLJSON object is not a list");
         }
         else
         {
-            // this is a hack
-            List backingList = ((ValueList) jsonObject).list();
+            if (jsonObject != copied)
+            {
+                // boon lists are read only views over their backing list
+                List backingList = jsonObject instanceof ValueList ? ((ValueList) jsonObject).list() : (List) jsonObject;
+                //noinspection unchecked
+                jsonObject = copied = new ArrayList(backingList);
+            }
             //noinspection unchecked
-            backingList.set(index,object);
+            ((List)jsonObject).set(index, object);
+            sqlJson = null;
         }
     }
 
@@ -850,6 +961,7 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public Object parse(Class clazz)
     {
+        decode();
         Mapper mapper = new MapperSimple();
         //noinspection unchecked
         mapper.fromMap((Map)jsonObject,clazz);
@@ -859,6 +971,7 @@ public class SqlJsonImplementation implements SQLJSON
     @Override
     public Map parse()
     {
+        decode();
         if (field.getType().compareTo("json") == 0
                 //if the signature is *-> * then guess using {
                 || field.getType().startsWith("{"))
@@ -876,16 +989,20 @@ public class SqlJsonImplementation implements SQLJSON
 
     public Object parameterValue()
     {
+        decode();
         return jsonObject;
     }
     public int getLength()
     {
+        toJson();
         return sqlJson.length();
     }
     public int compareTo(SQLJSON obj)
     {
+        decode();
 
         SqlJsonImplementation sqljson = (SqlJsonImplementation)obj;
+        sqljson.decode();
 
         int deltaLength = this.getLength() - sqljson.getLength();
         if ( deltaLength != 0 ) return deltaLength;
@@ -0,0 +1,68 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+package com.couchbase.jdbc.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+/**
+ * Works on UTF-8 bytes end to end. Responses are read into a byte array and scanned in place,
+ * requests are written straight to bytes, so no intermediate String of the whole document is built.
+ */
+public class StreamingJsonCodec implements JsonCodec
+{
+    // rows are decoded on the calling thread, the buffer goes back to the pool as soon as they are
+    private static final ParallelRowDecoder rowDecoder = new ParallelRowDecoder(null, Integer.MAX_VALUE);
+
+    @Override
+    public String getName()
+    {
+        return JsonCodecs.STREAMING;
+    }
+
+    @Override
+    public String toJson(Object value)
+    {
+        return new JsonWriter(64).value(value).toString();
+    }
+
+    @Override
+    public void writeJson(Object value, OutputStream out) throws IOException
+    {
+        new JsonWriter(512).value(value).writeTo(out);
+    }
+
+    @Override
+    public Object fromJson(String json)
+    {
+        JsonScanner scanner = new JsonScanner(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+        int start = scanner.skipWhitespace(0);
+        int end = scanner.skipWhitespace(scanner.skipValue(start));
+        if (end != scanner.limit())
+        {
+            throw new IllegalStateException("Malformed JSON at offset " + end + ": unexpected trailing data");
+        }
+        return scanner.readValue(start);
+    }
+
+    @Override
+    public CouchResponse decodeResponse(InputStream inputStream, long contentLength) throws IOException, SQLException
+    {
+        ResponseBuffer buffer = ResponseBuffer.readHeap(inputStream, contentLength);
+        LazyResponseDecoder decoder = new LazyResponseDecoder(buffer);
+        decoder.setRowDecoder(rowDecoder);
+        return decoder.decode();
+    }
+}
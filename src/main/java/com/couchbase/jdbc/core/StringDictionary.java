@@ -0,0 +1,144 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Canonical instances of the short ascii strings of one column.
+ *
+ * Strings are looked up by their raw bytes, so a value that is already in the dictionary is
+ * never allocated again; every row holding it points at the same instance. The dictionary
+ * stops growing at maxEntries, and gives up altogether once it is full and mostly missing,
+ * which is what a column of ids or names looks like.
+ *
+ * Rows are decoded concurrently, so entries are published with a compare and set. The hit
+ * and miss counts only steer giving up and are allowed to be approximate.
+ */
+final class StringDictionary
+{
+    // longer strings are rarely repeated and would make the dictionary expensive to keep
+    static final int MAX_LENGTH = 64;
+
+    private final AtomicReferenceArray<Entry> table;
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxEntries;
+    private final int mask;
+
+    private int hits;
+    private int misses;
+    private volatile boolean abandoned;
+
+    StringDictionary(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+        int capacity = Integer.highestOneBit(Math.max(maxEntries, 4) * 2 - 1) << 1;
+        this.table = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return the canonical string for the ascii bytes from start to end, or null if the caller
+     * has to decode them itself
+     */
+    String lookup(JsonScanner scanner, int start, int end)
+    {
+        int length = end - start;
+        if (abandoned || length > MAX_LENGTH)
+        {
+            return null;
+        }
+        int hash = 0;
+        for (int i = start; i < end; i++)
+        {
+            hash = 31 * hash + scanner.byteAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        Entry created = null;
+        for (int probes = 0; probes <= mask; probes++)
+        {
+            Entry entry = table.get(slot);
+            if (entry == null)
+            {
+                if (created == null)
+                {
+                    if (size.get() >= maxEntries)
+                    {
+                        // full, a column that keeps missing is not worth hashing any more
+                        if (++misses > 2 * maxEntries && misses > hits)
+                        {
+                            abandoned = true;
+                        }
+                        return null;
+                    }
+                    created = new Entry(scanner.copy(start, length), hash);
+                }
+                if (table.compareAndSet(slot, null, created))
+                {
+                    size.incrementAndGet();
+                    return created.value;
+                }
+                // another thread filled the slot first, look at what it put there
+                entry = table.get(slot);
+            }
+            if (entry.hash == hash && entry.matches(scanner, start, length))
+            {
+                hits++;
+                return entry.value;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    int size()
+    {
+        return size.get();
+    }
+
+    boolean isAbandoned()
+    {
+        return abandoned;
+    }
+
+    private static final class Entry
+    {
+        final byte[] bytes;
+        final int hash;
+        final String value;
+
+        Entry(byte[] bytes, int hash)
+        {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.value = new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+
+        boolean matches(JsonScanner scanner, int start, int length)
+        {
+            if (bytes.length != length)
+            {
+                return false;
+            }
+            for (int i = 0; i < length; i++)
+            {
+                if (bytes[i] != scanner.byteAt(start + i))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.reactive;
+
+import com.couchbase.jdbc.Row;
+import com.couchbase.jdbc.core.ResultStream;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the rows of a query as they are read from the response, never more than the
+ * subscriber has asked for.
+ *
+ * Every subscription runs the query anew once the first rows are requested. The http client
+ * underneath is blocking, so the response is read on the executor and never on the thread
+ * calling {@link Subscription#request(long)}; reading stops whenever demand runs out, leaving
+ * the rest of the response unread in the socket. Cancelling closes the exchange and asks the
+ * query node to stop the request.
+ */
+public class RowPublisher implements Publisher<Row>
+{
+    private static final Logger logger = LoggerFactory.getLogger(RowPublisher.class);
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "couchbase-publisher-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Runs the query of a subscription and cancels it on the server
+     */
+    public interface Source
+    {
+        ResultStream open() throws SQLException;
+
+        void cancel(ResultStream stream) throws SQLException;
+    }
+
+    private final Source source;
+    private final Executor executor;
+
+    /**
+     * @param source runs the query
+     * @param executor reads the response, null to use a shared pool of daemon threads
+     */
+    public RowPublisher(Source source, Executor executor)
+    {
+        this.source = source;
+        this.executor = executor == null ? DEFAULT_EXECUTOR : executor;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Row> subscriber)
+    {
+        if (subscriber == null)
+        {
+            throw new NullPointerException("subscriber");
+        }
+        RowSubscription subscription = new RowSubscription(subscriber);
+        // nothing is signalled until onSubscribe has returned
+        subscription.wip.set(1);
+        subscriber.onSubscribe(subscription);
+        if (subscription.wip.decrementAndGet() > 0)
+        {
+            executor.execute(subscription);
+        }
+    }
+
+    private class RowSubscription implements Subscription, Runnable
+    {
+        private final Subscriber<? super Row> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean cancelled;
+        private volatile ResultStream stream;
+        private volatile Throwable invalidRequest;
+
+        // only touched by the thread draining
+        private boolean finished;
+        private boolean completed;
+
+        RowSubscription(Subscriber<? super Row> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                invalidRequest = new IllegalArgumentException("Requested " + n + " rows, the demand has to be positive");
+            }
+            else
+            {
+                demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel()
+        {
+            if (cancelled)
+            {
+                return;
+            }
+            cancelled = true;
+            // unblocks a read in progress, the server is told on the executor
+            ResultStream current = stream;
+            if (current != null)
+            {
+                closeQuietly(current);
+            }
+            schedule();
+        }
+
+        private void schedule()
+        {
+            if (wip.getAndIncrement() == 0)
+            {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            int missed = 1;
+            do
+            {
+                drain();
+                missed = wip.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+
+        private void drain()
+        {
+            if (finished)
+            {
+                return;
+            }
+            if (cancelled)
+            {
+                finish();
+                return;
+            }
+            if (invalidRequest != null)
+            {
+                finish();
+                subscriber.onError(invalidRequest);
+                return;
+            }
+            try
+            {
+                if (demand.get() == 0)
+                {
+                    return;
+                }
+                if (stream == null)
+                {
+                    stream = source.open();
+                }
+                while (demand.get() > 0 && !cancelled)
+                {
+                    if (!stream.next())
+                    {
+                        completed = true;
+                        finish();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    Row row = new Row(stream.decodeRow());
+                    if (demand.get() != Long.MAX_VALUE)
+                    {
+                        demand.decrementAndGet();
+                    }
+                    subscriber.onNext(row);
+                }
+                if (cancelled)
+                {
+                    finish();
+                }
+            }
+            catch (SQLException | IOException | RuntimeException ex)
+            {
+                boolean quiet = cancelled;
+                finish();
+                if (!quiet)
+                {
+                    subscriber.onError(ex);
+                }
+            }
+        }
+
+        // releases the response, and stops the request on the server if it was abandoned
+        private void finish()
+        {
+            finished = true;
+            ResultStream current = stream;
+            if (current == null)
+            {
+                return;
+            }
+            closeQuietly(current);
+            if (cancelled && !completed)
+            {
+                try
+                {
+                    source.cancel(current);
+                }
+                catch (SQLException | RuntimeException ex)
+                {
+                    logger.warn("Error cancelling request {}", current.getResponse().getRequestId(), ex);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(ResultStream stream)
+    {
+        try
+        {
+            stream.close();
+        }
+        catch (IOException ex)
+        {
+            logger.trace("Error closing response", ex);
+        }
+    }
+}
@@ -11,10 +11,12 @@
 
 package com.couchbase.jdbc.util;
 
-import org.boon.json.JsonFactory;
+import com.couchbase.jdbc.core.JsonCodecs;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by davec on 2015-05-12.
@@ -47,6 +49,14 @@ public class Credentials
     }
     public String toString()
     {
-        return JsonFactory.toJson(credentials);
+        List<Map<String, String>> list = new ArrayList<>(credentials.size());
+        for (Credential credential : credentials)
+        {
+            Map<String, String> map = new HashMap<>();
+            map.put("user", credential.user);
+            map.put("pass", credential.pass);
+            list.add(map);
+        }
+        return JsonCodecs.getDefault().toJson(list);
     }
 }
@@ -0,0 +1,440 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.util;
+
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts between N1QL date strings and the java.sql temporal types.
+ *
+ * The class holds no mutable state apart from a small cache of time zones, so it is safe to
+ * use from any number of threads without locking. The ISO-8601 shapes N1QL produces, such as
+ * <code>2006-01-02T15:04:05.999Z07:00</code> or <code>2006-01-02 15:04:05</code>, are parsed by
+ * hand; anything else goes through {@link DateTimeFormatter#ISO_DATE_TIME}.
+ *
+ * Strings that carry an offset denote an exact instant and the calendar is ignored. Strings
+ * without one are read as wall clock time in the zone of the calendar, or the default zone
+ * if there is no calendar.
+ */
+public final class TemporalCodec
+{
+    private static final int MAX_CACHED_ZONES = 64;
+    private static final ConcurrentHashMap<String, ZoneId> zones = new ConcurrentHashMap<>();
+
+    private static final LocalDate EPOCH_DATE = LocalDate.of(1970, 1, 1);
+
+    private TemporalCodec()
+    {
+    }
+
+    public static Date parseDate(String string, Calendar cal)
+    {
+        Parsed parsed = parse(string, false);
+        LocalDate date = parsed.dateTime.toLocalDate();
+        if (cal == null)
+        {
+            return Date.valueOf(date);
+        }
+        return new Date(date.atStartOfDay(zoneOf(cal)).toInstant().toEpochMilli());
+    }
+
+    public static Time parseTime(String string, Calendar cal)
+    {
+        Parsed parsed = parse(string, true);
+        LocalTime time = parsed.dateTime.toLocalTime();
+        if (parsed.offset != null)
+        {
+            return new Time(EPOCH_DATE.atTime(time).toInstant(parsed.offset).toEpochMilli());
+        }
+        if (cal == null)
+        {
+            return Time.valueOf(time);
+        }
+        return new Time(EPOCH_DATE.atTime(time).atZone(zoneOf(cal)).toInstant().toEpochMilli());
+    }
+
+    public static Timestamp parseTimestamp(String string, Calendar cal)
+    {
+        Parsed parsed = parse(string, false);
+        if (parsed.offset == null && cal == null)
+        {
+            return Timestamp.valueOf(parsed.dateTime);
+        }
+
+        long seconds = parsed.offset != null
+                ? parsed.dateTime.toEpochSecond(parsed.offset)
+                : parsed.dateTime.atZone(zoneOf(cal)).toEpochSecond();
+
+        Timestamp ts = new Timestamp(seconds * 1000);
+        ts.setNanos(parsed.dateTime.getNano());
+        return ts;
+    }
+
+    /**
+     * Formats as <code>yyyy-MM-dd HH:mm:ss.SSSSSS +hh:mm:ss</code> in the zone of the calendar
+     */
+    public static String format(Calendar cal, Timestamp x)
+    {
+        // getTime() already includes the millis of the nanos, the seconds have to be floored for pre epoch values
+        Instant instant = Instant.ofEpochSecond(Math.floorDiv(x.getTime(), 1000), x.getNanos());
+        ZonedDateTime dateTime = instant.atZone(zoneOf(cal));
+
+        StringBuilder sb = new StringBuilder(36);
+        appendDate(sb, dateTime.toLocalDate());
+        sb.append(' ');
+        appendTime(sb, dateTime.toLocalTime());
+        appendOffset(sb, dateTime.getOffset());
+        appendEra(sb, dateTime.toLocalDate());
+        return sb.toString();
+    }
+
+    /**
+     * Formats as <code>HH:mm:ss.SSSSSS +hh:mm:ss</code> in the zone of the calendar
+     */
+    public static String format(Calendar cal, Time x)
+    {
+        ZonedDateTime dateTime = Instant.ofEpochMilli(x.getTime()).atZone(zoneOf(cal));
+
+        StringBuilder sb = new StringBuilder(24);
+        appendTime(sb, dateTime.toLocalTime());
+        appendOffset(sb, dateTime.getOffset());
+        return sb.toString();
+    }
+
+    /**
+     * Formats as <code>yyyy-MM-dd +hh:mm:ss</code> in the zone of the calendar
+     */
+    public static String format(Calendar cal, Date x)
+    {
+        ZonedDateTime dateTime = Instant.ofEpochMilli(x.getTime()).atZone(zoneOf(cal));
+
+        StringBuilder sb = new StringBuilder(24);
+        appendDate(sb, dateTime.toLocalDate());
+        appendEra(sb, dateTime.toLocalDate());
+        appendOffset(sb, dateTime.getOffset());
+        return sb.toString();
+    }
+
+    /**
+     * Returns the zone of the calendar, or the default zone if there is no calendar
+     */
+    public static ZoneId zoneOf(Calendar cal)
+    {
+        return zoneOf(cal == null ? TimeZone.getDefault() : cal.getTimeZone());
+    }
+
+    static ZoneId zoneOf(TimeZone timeZone)
+    {
+        String id = timeZone.getID();
+        ZoneId zone = zones.get(id);
+        if (zone == null)
+        {
+            zone = timeZone.toZoneId();
+            if (zones.size() >= MAX_CACHED_ZONES)
+            {
+                zones.clear();
+            }
+            zones.put(id, zone);
+        }
+        return zone;
+    }
+
+    private static final class Parsed
+    {
+        final LocalDateTime dateTime;
+        final ZoneOffset offset;
+
+        Parsed(LocalDateTime dateTime, ZoneOffset offset)
+        {
+            this.dateTime = dateTime;
+            this.offset = offset;
+        }
+    }
+
+    private static Parsed parse(String string, boolean timeOnly)
+    {
+        String s = string.trim();
+        try
+        {
+            if (timeOnly && !(s.length() > 4 && s.charAt(4) == '-'))
+            {
+                return parseTimeOfDay(s);
+            }
+            return parseDateTime(s);
+        }
+        catch (RuntimeException ex)
+        {
+            return parseSlow(s, ex);
+        }
+    }
+
+    // yyyy-MM-dd[( |T)HH:mm[:ss[.fffffffff]]][ ][Z|+hh[:mm[:ss]]][ BC]
+    private static Parsed parseDateTime(String s)
+    {
+        int year = digits(s, 0, 4);
+        expectChar(s, 4, '-');
+        int month = digits(s, 5, 2);
+        expectChar(s, 7, '-');
+        int day = digits(s, 8, 2);
+
+        int pos = 10;
+        LocalTime time = LocalTime.MIDNIGHT;
+        ZoneOffset offset = null;
+        if (pos < s.length() && (s.charAt(pos) == 'T' || s.charAt(pos) == ' ') && pos + 3 < s.length() && s.charAt(pos + 3) == ':')
+        {
+            int[] end = new int[1];
+            time = readTime(s, pos + 1, end);
+            pos = end[0];
+        }
+        if (pos < s.length())
+        {
+            int[] end = new int[1];
+            offset = readOffset(s, pos, end);
+            pos = end[0];
+        }
+        if (s.regionMatches(pos, " BC", 0, 3))
+        {
+            year = 1 - year;
+            pos += 3;
+        }
+        if (pos != s.length())
+        {
+            throw new IllegalArgumentException(s);
+        }
+        return new Parsed(LocalDateTime.of(LocalDate.of(year, month, day), time), offset);
+    }
+
+    private static Parsed parseTimeOfDay(String s)
+    {
+        int[] end = new int[1];
+        LocalTime time = readTime(s, 0, end);
+        ZoneOffset offset = null;
+        int pos = end[0];
+        if (pos < s.length())
+        {
+            offset = readOffset(s, pos, end);
+            pos = end[0];
+        }
+        if (pos != s.length())
+        {
+            throw new IllegalArgumentException(s);
+        }
+        return new Parsed(LocalDateTime.of(EPOCH_DATE, time), offset);
+    }
+
+    private static LocalTime readTime(String s, int pos, int[] end)
+    {
+        int hour = digits(s, pos, 2);
+        expectChar(s, pos + 2, ':');
+        int minute = digits(s, pos + 3, 2);
+        int second = 0;
+        int nanos = 0;
+        pos += 5;
+
+        if (pos < s.length() && s.charAt(pos) == ':')
+        {
+            second = digits(s, pos + 1, 2);
+            pos += 3;
+            if (pos < s.length() && s.charAt(pos) == '.')
+            {
+                pos++;
+                int scale = 100000000;
+                int start = pos;
+                while (pos < s.length() && isDigit(s.charAt(pos)))
+                {
+                    // anything beyond nanosecond precision is dropped
+                    nanos += (s.charAt(pos) - '0') * scale;
+                    scale /= 10;
+                    pos++;
+                }
+                if (pos == start)
+                {
+                    throw new IllegalArgumentException(s);
+                }
+            }
+        }
+        end[0] = pos;
+        return LocalTime.of(hour, minute, second, nanos);
+    }
+
+    private static ZoneOffset readOffset(String s, int pos, int[] end)
+    {
+        if (s.charAt(pos) == ' ' && pos + 1 < s.length() && s.charAt(pos + 1) != 'B')
+        {
+            pos++;
+        }
+        char c = s.charAt(pos);
+        if (c == 'Z')
+        {
+            end[0] = pos + 1;
+            return ZoneOffset.UTC;
+        }
+        if (c != '+' && c != '-')
+        {
+            end[0] = pos;
+            return null;
+        }
+        int sign = c == '-' ? -1 : 1;
+        pos++;
+
+        int hours = digits(s, pos, 2);
+        int minutes = 0;
+        int seconds = 0;
+        pos += 2;
+        if (pos < s.length() && s.charAt(pos) == ':')
+        {
+            pos++;
+        }
+        if (pos + 1 < s.length() && isDigit(s.charAt(pos)))
+        {
+            minutes = digits(s, pos, 2);
+            pos += 2;
+            if (pos < s.length() && s.charAt(pos) == ':')
+            {
+                pos++;
+            }
+            if (pos + 1 < s.length() && isDigit(s.charAt(pos)))
+            {
+                seconds = digits(s, pos, 2);
+                pos += 2;
+            }
+        }
+        end[0] = pos;
+        return ZoneOffset.ofTotalSeconds(sign * (hours * 3600 + minutes * 60 + seconds));
+    }
+
+    private static Parsed parseSlow(String s, RuntimeException fastPathFailure)
+    {
+        try
+        {
+            TemporalAccessor parsed = DateTimeFormatter.ISO_DATE_TIME.parse(s);
+            LocalDateTime dateTime = LocalDateTime.from(parsed);
+            ZoneOffset offset = null;
+            if (parsed.isSupported(ChronoField.OFFSET_SECONDS))
+            {
+                offset = ZoneOffset.from(parsed);
+            }
+            return new Parsed(dateTime, offset);
+        }
+        catch (DateTimeParseException ex)
+        {
+            IllegalArgumentException failure = new IllegalArgumentException("Unparseable date: " + s, ex);
+            failure.addSuppressed(fastPathFailure);
+            throw failure;
+        }
+    }
+
+    private static int digits(String s, int pos, int count)
+    {
+        if (pos + count > s.length())
+        {
+            throw new IllegalArgumentException(s);
+        }
+        int value = 0;
+        for (int i = pos; i < pos + count; i++)
+        {
+            char c = s.charAt(i);
+            if (!isDigit(c))
+            {
+                throw new IllegalArgumentException(s);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static void expectChar(String s, int pos, char c)
+    {
+        if (pos >= s.length() || s.charAt(pos) != c)
+        {
+            throw new IllegalArgumentException(s);
+        }
+    }
+
+    private static void appendDate(StringBuilder sb, LocalDate date)
+    {
+        int year = date.getYear() > 0 ? date.getYear() : 1 - date.getYear();
+
+        // always use at least four digits for the year so very
+        // early years, like 2, don't get misinterpreted
+        pad(sb, year, 4);
+        sb.append('-');
+        pad(sb, date.getMonthValue(), 2);
+        sb.append('-');
+        pad(sb, date.getDayOfMonth(), 2);
+    }
+
+    private static void appendTime(StringBuilder sb, LocalTime time)
+    {
+        pad(sb, time.getHour(), 2);
+        sb.append(':');
+        pad(sb, time.getMinute(), 2);
+        sb.append(':');
+        pad(sb, time.getSecond(), 2);
+        sb.append('.');
+        pad(sb, time.getNano() / 1000, 6);
+    }
+
+    private static void appendOffset(StringBuilder sb, ZoneOffset offset)
+    {
+        int total = offset.getTotalSeconds();
+        int abs = Math.abs(total);
+
+        sb.append(total >= 0 ? " +" : " -");
+        pad(sb, abs / 3600, 2);
+        sb.append(':');
+        pad(sb, (abs / 60) % 60, 2);
+        sb.append(':');
+        pad(sb, abs % 60, 2);
+    }
+
+    private static void appendEra(StringBuilder sb, LocalDate date)
+    {
+        if (date.getYear() <= 0)
+        {
+            sb.append(" BC");
+        }
+    }
+
+    private static void pad(StringBuilder sb, int value, int width)
+    {
+        for (int limit = 10, i = 1; i < width; i++, limit *= 10)
+        {
+            if (value < limit)
+            {
+                sb.append('0');
+            }
+        }
+        sb.append(value);
+    }
+}
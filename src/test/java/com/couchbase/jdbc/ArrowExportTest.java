@@ -0,0 +1,172 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.arrow.ArrowExporter;
+import com.couchbase.jdbc.core.ResultStream;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes canned responses as Arrow and reads them back with the Arrow stream reader
+ */
+@RunWith(JUnit4.class)
+public class ArrowExportTest
+{
+    private final BufferAllocator allocator = new RootAllocator();
+
+    @After
+    public void close()
+    {
+        allocator.close();
+    }
+
+    private ArrowStreamReader export(String json, int batchRows) throws Exception
+    {
+        ResultStream stream = new ResultStream(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), null, null, 16);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ArrowExporter(allocator, batchRows).export(stream, out);
+        return new ArrowStreamReader(new ByteArrayInputStream(out.toByteArray()), allocator);
+    }
+
+    @Test
+    public void testSelectStar() throws Exception
+    {
+        String json = "{\"signature\": {\"*\":\"*\"}, \"results\": ["
+                + "{\"b\": {\"id\": 1, \"name\": \"a b\", \"tags\": [ 1, 2 ]}},"
+                + "{\"b\": {\"id\": 2.5, \"name\": \"say \\\"hi\\\" \\u00e9\", \"ok\": true}},"
+                + "{\"b\": {\"name\": null, \"id\": -3, \"ok\": false}}"
+                + "], \"status\": \"success\"}";
+        try (ArrowStreamReader reader = export(json, 100))
+        {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            assertEquals("[id, name, tags, ok]", names(root));
+            assertEquals(new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE),
+                         root.getSchema().getFields().get(0).getType());
+
+            assertTrue(reader.loadNextBatch());
+            assertEquals(3, root.getRowCount());
+            Float8Vector id = (Float8Vector) root.getVector("id");
+            assertEquals(1.0, id.get(0), 0);
+            assertEquals(2.5, id.get(1), 0);
+            assertEquals(-3.0, id.get(2), 0);
+
+            VarCharVector name = (VarCharVector) root.getVector("name");
+            assertEquals("a b", name.getObject(0).toString());
+            assertEquals("say \"hi\" \u00e9", name.getObject(1).toString());
+            assertTrue(name.isNull(2));
+
+            VarCharVector tags = (VarCharVector) root.getVector("tags");
+            assertEquals("[ 1, 2 ]", tags.getObject(0).toString());
+            assertTrue(tags.isNull(1));
+
+            BitVector ok = (BitVector) root.getVector("ok");
+            assertTrue(ok.isNull(0));
+            assertEquals(1, ok.get(1));
+            assertEquals(0, ok.get(2));
+            assertFalse(reader.loadNextBatch());
+        }
+    }
+
+    @Test
+    public void testBatchRows() throws Exception
+    {
+        StringBuilder json = new StringBuilder("{\"signature\": {\"n\":\"number\", \"s\":\"json\"}, \"results\": [");
+        for (int i = 0; i < 5; i++)
+        {
+            json.append(i > 0 ? "," : "").append("{\"n\": ").append(i).append(", \"s\": \"v").append(i).append("\"}");
+        }
+        json.append("], \"status\": \"success\"}");
+
+        List<Integer> batches = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        try (ArrowStreamReader reader = export(json.toString(), 2))
+        {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            assertEquals("[n, s]", names(root));
+            while (reader.loadNextBatch())
+            {
+                batches.add(root.getRowCount());
+                for (int i = 0; i < root.getRowCount(); i++)
+                {
+                    values.add((int) ((Float8Vector) root.getVector("n")).get(i) + "=" + root.getVector("s").getObject(i));
+                }
+            }
+        }
+        assertEquals("[2, 2, 1]", batches.toString());
+        assertEquals("[0=v0, 1=v1, 2=v2, 3=v3, 4=v4]", values.toString());
+    }
+
+    @Test
+    public void testDeclaredTypes() throws Exception
+    {
+        // the declared type wins, values of another kind become null
+        String json = "{\"signature\": {\"a\":\"string\", \"b\":\"number\"}, \"results\": ["
+                + "{\"a\": 1, \"b\": \"x\"}, {\"a\": \"y\", \"b\": 12345678901234567890}, {}], \"status\": \"success\"}";
+        try (ArrowStreamReader reader = export(json, 10))
+        {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            assertTrue(reader.loadNextBatch());
+            assertEquals(3, root.getRowCount());
+            VarCharVector a = (VarCharVector) root.getVector("a");
+            assertEquals("1", a.getObject(0).toString());
+            assertEquals("y", a.getObject(1).toString());
+            assertTrue(a.isNull(2));
+            Float8Vector b = (Float8Vector) root.getVector("b");
+            assertTrue(b.isNull(0));
+            assertEquals(1.2345678901234567e19, b.get(1), 1e4);
+            assertTrue(b.isNull(2));
+        }
+    }
+
+    @Test
+    public void testRaw() throws Exception
+    {
+        String json = "{\"signature\": \"json\", \"results\": [true, null, false], \"status\": \"success\"}";
+        try (ArrowStreamReader reader = export(json, 10))
+        {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            assertEquals("[$1]", names(root));
+            assertTrue(reader.loadNextBatch());
+            BitVector value = (BitVector) root.getVector("$1");
+            assertEquals(1, value.get(0));
+            assertTrue(value.isNull(1));
+            assertEquals(0, value.get(2));
+        }
+    }
+
+    private static String names(VectorSchemaRoot root)
+    {
+        List<String> names = new ArrayList<>();
+        root.getSchema().getFields().forEach(field -> names.add(field.getName()));
+        return names.toString();
+    }
+}
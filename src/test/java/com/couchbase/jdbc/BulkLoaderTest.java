@@ -0,0 +1,202 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.BulkLoadStats;
+import com.couchbase.jdbc.core.BulkLoader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class BulkLoaderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // collects statements instead of sending them, counting one mutation per row
+    static class RecordingLoader extends BulkLoader
+    {
+        final List<String> statements = new CopyOnWriteArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+
+        RecordingLoader()
+        {
+            super(null, "default");
+        }
+
+        @Override
+        protected long execute(String statement) throws SQLException
+        {
+            if (failures.getAndDecrement() > 0)
+            {
+                throw new SQLException("Temporary failure");
+            }
+            statements.add(statement);
+            return rows(statement);
+        }
+    }
+
+    private static final Pattern ROW = Pattern.compile("\\(\"[^\"]*\", \\{");
+
+    static int rows(String statement)
+    {
+        Matcher matcher = ROW.matcher(statement);
+        int rows = 0;
+        while (matcher.find())
+        {
+            rows++;
+        }
+        return rows;
+    }
+
+    private File write(int rows) throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < rows; i++)
+        {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"row ").append(i).append("\"}\n");
+        }
+        File file = folder.newFile();
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void testEveryLineLoadedOnce() throws Exception
+    {
+        RecordingLoader loader = new RecordingLoader();
+        loader.setKeyField("id");
+        loader.setConcurrency(3);
+        loader.setMaxBatchRows(7);
+        BulkLoadStats stats = loader.load(write(1000));
+
+        assertEquals(1000, stats.getRowsRead());
+        assertEquals(1000, stats.getRowsLoaded());
+        assertEquals(0, stats.getRowsRejected());
+        assertEquals(stats.getBatches(), loader.statements.size());
+
+        boolean[] seen = new boolean[1000];
+        Matcher key = Pattern.compile("\\(\"(\\d+)\", \\{\"id\":(\\d+),").matcher(String.join("", loader.statements));
+        while (key.find())
+        {
+            int id = Integer.parseInt(key.group(1));
+            assertEquals(key.group(1), key.group(2));
+            assertFalse("row " + id + " loaded twice", seen[id]);
+            seen[id] = true;
+        }
+        for (int i = 0; i < seen.length; i++)
+        {
+            assertTrue("row " + i + " not loaded", seen[i]);
+        }
+        for (String statement : loader.statements)
+        {
+            assertTrue(statement.startsWith("UPSERT INTO `default` (KEY, VALUE) VALUES (\""));
+            assertTrue(rows(statement) <= 7);
+        }
+    }
+
+    @Test
+    public void testBatchBytes() throws Exception
+    {
+        RecordingLoader loader = new RecordingLoader();
+        loader.setKeyField("id");
+        loader.setConcurrency(1);
+        loader.setMaxBatchBytes(100);
+        BulkLoadStats stats = loader.load(write(50));
+
+        assertEquals(50, stats.getRowsLoaded());
+        for (String statement : loader.statements)
+        {
+            // the documents are about 30 bytes each
+            assertTrue(rows(statement) >= 2 && rows(statement) <= 4);
+        }
+    }
+
+    @Test
+    public void testRejectedLines() throws Exception
+    {
+        File file = folder.newFile();
+        String lines = "{\"id\":\"a\",\"v\":1}\r\n"
+                + "\n"
+                + "   \n"
+                + "{\"v\":2}\n"
+                + "[1,2]\n"
+                + "{\"id\":1.5}\n"
+                + "{\"id\":\"b\"} trailing\n"
+                + "{\"id\":\"c\"\n"
+                + "{\"v\":{\"id\":\"nested\"},\"id\":-3}";
+        Files.write(file.toPath(), lines.getBytes(StandardCharsets.UTF_8));
+
+        RecordingLoader loader = new RecordingLoader();
+        loader.setKeyField("id");
+        BulkLoadStats stats = loader.load(file);
+
+        assertEquals(7, stats.getRowsRead());
+        assertEquals(5, stats.getRowsRejected());
+        assertEquals(2, stats.getRowsLoaded());
+        String statement = String.join("", loader.statements);
+        assertTrue(statement.contains("(\"a\", {\"id\":\"a\",\"v\":1})"));
+        assertTrue(statement.contains("(\"-3\", {\"v\":{\"id\":\"nested\"},\"id\":-3})"));
+    }
+
+    @Test
+    public void testRetries() throws Exception
+    {
+        RecordingLoader loader = new RecordingLoader();
+        loader.setKeyField("id");
+        loader.setConcurrency(1);
+        loader.setRetryDelayMillis(1);
+        loader.failures.set(2);
+        BulkLoadStats stats = loader.load(write(10));
+        assertEquals(2, stats.getRetries());
+        assertEquals(10, stats.getRowsLoaded());
+        assertNull(stats.getFirstError());
+
+        loader = new RecordingLoader();
+        loader.setKeyField("id");
+        loader.setConcurrency(1);
+        loader.setMaxBatchRows(5);
+        loader.setMaxRetries(1);
+        loader.setRetryDelayMillis(1);
+        loader.failures.set(2);
+        stats = loader.load(write(10));
+        assertEquals(1, stats.getRetries());
+        assertEquals(5, stats.getRowsFailed());
+        assertEquals(5, stats.getRowsLoaded());
+        assertEquals("Temporary failure", stats.getFirstError().getMessage());
+    }
+
+    @Test
+    public void testGeneratedKeys() throws Exception
+    {
+        RecordingLoader loader = new RecordingLoader();
+        BulkLoadStats stats = loader.load(write(3));
+        assertEquals(3, stats.getRowsLoaded());
+        assertEquals(3, rows(String.join("", loader.statements)));
+        assertTrue(stats.getRowsPerSecond() > 0);
+    }
+}
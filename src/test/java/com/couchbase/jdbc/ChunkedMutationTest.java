@@ -0,0 +1,216 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.ChunkedMutation;
+import com.couchbase.jdbc.core.CouchMetrics;
+import com.couchbase.jdbc.core.CouchResponse;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ChunkedMutationTest
+{
+    private static final Pattern LIMIT = Pattern.compile("LIMIT (\\d+)$");
+    private static final Pattern OFFSET = Pattern.compile("OFFSET (\\d+)");
+
+    // a keyspace of expired flags by key, the statements only ever touch the expired documents
+    static class FakeMutation extends ChunkedMutation
+    {
+        final TreeMap<String, Boolean> expired = new TreeMap<>();
+        final List<String> statements = new ArrayList<>();
+        final List<Integer> limits = new ArrayList<>();
+        long sleepMillis;
+        int cancelAfter = -1;
+        boolean abort;
+
+        FakeMutation(String dml, int documents, int every) throws SQLException
+        {
+            super(null, dml);
+            for (int i = 0; i < documents; i++)
+            {
+                expired.put(String.format("k%04d", i), i % every == 0);
+            }
+        }
+
+        @Override
+        protected CouchResponse send(String statement, Map<String, Object> parameters, boolean mutation) throws SQLException
+        {
+            statements.add(statement);
+            String after = (String) parameters.get("$chunk_after");
+            String upto = (String) parameters.get("$chunk_upto");
+            List<String> matching = new ArrayList<>();
+            for (Map.Entry<String, Boolean> entry : expired.entrySet())
+            {
+                String key = entry.getKey();
+                if (entry.getValue() && (after == null || key.compareTo(after) > 0) && (upto == null || key.compareTo(upto) <= 0))
+                {
+                    matching.add(key);
+                }
+            }
+
+            CouchMetrics metrics = new CouchMetrics();
+            CouchResponse response = new CouchResponse();
+            response.setMetrics(metrics);
+            if (!mutation)
+            {
+                Matcher matcher = OFFSET.matcher(statement);
+                assertTrue(matcher.find());
+                int offset = Integer.parseInt(matcher.group(1));
+                List<Map<String, Object>> rows = new ArrayList<>();
+                if (offset < matching.size())
+                {
+                    rows.add(Collections.<String, Object>singletonMap("k", matching.get(offset)));
+                }
+                response.setResults(rows);
+                return response;
+            }
+
+            Matcher matcher = LIMIT.matcher(statement);
+            int limit = Integer.MAX_VALUE;
+            if (matcher.find())
+            {
+                limit = Integer.parseInt(matcher.group(1));
+                limits.add(limit);
+            }
+            int mutated = 0;
+            for (Iterator<String> keys = matching.iterator(); keys.hasNext() && mutated < limit; mutated++)
+            {
+                expired.put(keys.next(), false);
+            }
+            metrics.setMutationCount(mutated);
+            try
+            {
+                Thread.sleep(sleepMillis);
+            }
+            catch (InterruptedException ex)
+            {
+                throw new SQLException(ex);
+            }
+            if (--cancelAfter == 0)
+            {
+                cancel();
+                if (abort)
+                {
+                    // the request is aborted after the server applied the chunk
+                    throw new SQLException("request aborted");
+                }
+            }
+            return response;
+        }
+    }
+
+    @Test
+    public void testDeleteWithLimit() throws Exception
+    {
+        FakeMutation mutation = new FakeMutation("DELETE FROM ks WHERE expired = true;", 2500, 2);
+        mutation.setChunkSize(500);
+        mutation.setChunkSizeRange(500, 500);
+        assertEquals(1250, mutation.execute());
+        assertEquals(3, mutation.getChunks());
+        assertEquals("DELETE FROM ks WHERE (expired = true) LIMIT 500", mutation.statements.get(0));
+        assertFalse(mutation.expired.containsValue(true));
+    }
+
+    @Test
+    public void testUpdateByKeyRange() throws Exception
+    {
+        FakeMutation mutation = new FakeMutation("UPDATE ks SET expired = false WHERE expired = true", 1000, 1);
+        mutation.setChunkSize(400);
+        mutation.setChunkSizeRange(400, 400);
+        assertEquals(1000, mutation.execute());
+        assertEquals(3, mutation.getChunks());
+        assertEquals("SELECT META().id AS k FROM ks WHERE (expired = true) ORDER BY META().id OFFSET 399 LIMIT 1",
+                     mutation.statements.get(0));
+        assertEquals("UPDATE ks SET expired = false WHERE (expired = true) AND META().id <= $chunk_upto",
+                     mutation.statements.get(1));
+        assertEquals("UPDATE ks SET expired = false WHERE (expired = true) AND META().id > $chunk_after AND META().id <= $chunk_upto",
+                     mutation.statements.get(3));
+        assertEquals("UPDATE ks SET expired = false WHERE (expired = true) AND META().id > $chunk_after",
+                     mutation.statements.get(5));
+    }
+
+    @Test
+    public void testShrinksSlowChunks() throws Exception
+    {
+        FakeMutation mutation = new FakeMutation("DELETE FROM ks WHERE expired = true", 2000, 1);
+        mutation.setChunkSize(1000);
+        mutation.setChunkSizeRange(100, 1000);
+        mutation.setTargetMillis(1);
+        mutation.sleepMillis = 5;
+        assertEquals(2000, mutation.execute());
+        assertEquals("[1000, 500, 250, 125, 100, 100]", mutation.limits.toString());
+    }
+
+    @Test
+    public void testGrowsFastChunks() throws Exception
+    {
+        FakeMutation mutation = new FakeMutation("DELETE FROM ks", 200, 1);
+        mutation.setChunkSize(10);
+        mutation.setChunkSizeRange(10, 80);
+        mutation.setTargetMillis(60000);
+        assertEquals(200, mutation.execute());
+        assertEquals("[10, 20, 40, 80, 80]", mutation.limits.toString());
+        assertEquals("DELETE FROM ks LIMIT 10", mutation.statements.get(0));
+    }
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        FakeMutation mutation = new FakeMutation("DELETE FROM ks WHERE expired = true", 1000, 1);
+        mutation.setChunkSize(100);
+        mutation.setChunkSizeRange(100, 100);
+        mutation.cancelAfter = 2;
+        assertEquals(200, mutation.execute());
+        assertTrue(mutation.isCancelled());
+        assertEquals(2, mutation.getChunks());
+    }
+
+    @Test
+    public void testCancelAbortsTheChunkUnderWay() throws Exception
+    {
+        FakeMutation mutation = new FakeMutation("DELETE FROM ks WHERE expired = true", 1000, 1);
+        mutation.setChunkSize(100);
+        mutation.setChunkSizeRange(100, 100);
+        mutation.cancelAfter = 3;
+        mutation.abort = true;
+        assertEquals(200, mutation.execute());
+        assertEquals(200, mutation.getMutationCount());
+        assertEquals(2, mutation.getChunks());
+        assertEquals(700, Collections.frequency(mutation.expired.values(), true));
+    }
+
+    @Test(expected = SQLException.class)
+    public void testRejectsReturning() throws Exception
+    {
+        new ChunkedMutation(null, "DELETE FROM ks WHERE expired = true RETURNING META().id");
+    }
+
+    @Test(expected = SQLException.class)
+    public void testRejectsSelect() throws Exception
+    {
+        new ChunkedMutation(null, "SELECT * FROM ks");
+    }
+}
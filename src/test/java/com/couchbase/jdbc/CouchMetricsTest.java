@@ -0,0 +1,54 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchMetrics;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class CouchMetricsTest
+{
+    @Test
+    public void testParseDuration() throws Exception
+    {
+        assertEquals(0, CouchMetrics.parseDuration("0"));
+        assertEquals(12, CouchMetrics.parseDuration("12ns"));
+        assertEquals(12345, CouchMetrics.parseDuration("12.345µs"));
+        assertEquals(12345, CouchMetrics.parseDuration("12.345μs"));
+        assertEquals(12345, CouchMetrics.parseDuration("12.345us"));
+        assertEquals(1500000, CouchMetrics.parseDuration("1.5ms"));
+        assertEquals(2123456789, CouchMetrics.parseDuration("2.123456789s"));
+        assertEquals(123250000000L, CouchMetrics.parseDuration("2m3.25s"));
+        assertEquals(3723000000000L, CouchMetrics.parseDuration("1h2m3s"));
+        assertEquals(-1500000, CouchMetrics.parseDuration("-1.5ms"));
+    }
+
+    @Test
+    public void testInvalidDurations() throws Exception
+    {
+        for (String invalid : new String[] { "", "ms", "1", "1.5", "1x", ".s", "-" })
+        {
+            try
+            {
+                CouchMetrics.parseDuration(invalid);
+                fail(invalid);
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchMetrics;
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.DiskResultCache;
+import com.couchbase.jdbc.core.LazyResponseDecoder;
+import com.couchbase.jdbc.core.QueryKey;
+import com.couchbase.jdbc.core.ResponseBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class DiskResultCacheTest
+{
+    private static final long TTL = 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static QueryKey key(String statement, Object... args)
+    {
+        return new QueryKey("http://localhost:8093\0user\0secret", statement, args, null, "default", "not_bounded");
+    }
+
+    // a response as it comes off the network, rows stay in the buffer
+    private static CouchResponse lazy(int rows) throws Exception
+    {
+        byte[] bytes = json(rows);
+        return new LazyResponseDecoder(ResponseBuffer.readHeap(new ByteArrayInputStream(bytes), bytes.length)).decode();
+    }
+
+    private static byte[] json(int rows)
+    {
+        StringBuilder json = new StringBuilder("{\"requestID\":\"r1\",\"signature\":{\"*\":\"*\"},\"results\":[");
+        for (int i = 0; i < rows; i++)
+        {
+            json.append(i == 0 ? "" : ",").append("{\"orders\":{\"id\":").append(i).append(",\"name\":\"order ").append(i).append("\"}}");
+        }
+        json.append("],\"status\":\"success\",\"metrics\":{\"resultCount\":").append(rows).append("}}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Path directory() throws Exception
+    {
+        return folder.getRoot().toPath().resolve("cache");
+    }
+
+    private static File[] files(Path directory)
+    {
+        return directory.toFile().listFiles((dir, name) -> name.endsWith(".cbrc"));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        DiskResultCache cache = new DiskResultCache(directory(), 1 << 20);
+        assertNull(cache.get(key("SELECT * FROM orders")));
+        CouchResponse response = lazy(3);
+        cache.put(key("SELECT * FROM orders"), response, TTL);
+        response.close();
+
+        CBResultSet resultSet = new CBResultSet(null, cache.get(key("SELECT * FROM orders")));
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(resultSet.next());
+            assertEquals(i, resultSet.getInt("id"));
+            assertEquals("order " + i, resultSet.getString("name"));
+        }
+        assertFalse(resultSet.next());
+        resultSet.close();
+
+        assertNull(cache.get(key("SELECT * FROM orders", 1)));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getEntries());
+        assertEquals(cache.getBytes(), files(directory())[0].length());
+        // the credentials are in the key but never on disk
+        for (File file : files(directory()))
+        {
+            assertFalse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1).contains("secret"));
+        }
+    }
+
+    @Test
+    public void testWriteInBackground() throws Exception
+    {
+        List<Runnable> writes = new ArrayList<>();
+        DiskResultCache cache = new DiskResultCache(directory(), 1 << 20, writes::add);
+        byte[] bytes = json(3);
+        CouchResponse response = new LazyResponseDecoder(ResponseBuffer.read(new ByteArrayInputStream(bytes), bytes.length)).decode();
+        cache.putInBackground(key("SELECT * FROM orders"), response, TTL);
+        response.close();
+
+        // the pooled buffer goes to the next response before the file is written
+        byte[] junk = new byte[bytes.length];
+        Arrays.fill(junk, (byte) 'x');
+        ResponseBuffer next = ResponseBuffer.read(new ByteArrayInputStream(junk), junk.length);
+
+        assertNull(cache.get(key("SELECT * FROM orders")));
+        assertEquals(1, writes.size());
+        writes.get(0).run();
+        next.release();
+
+        CBResultSet resultSet = new CBResultSet(null, cache.get(key("SELECT * FROM orders")));
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(resultSet.next());
+            assertEquals("order " + i, resultSet.getString("name"));
+        }
+        assertFalse(resultSet.next());
+        resultSet.close();
+    }
+
+    @Test
+    public void testDecodedResponse() throws Exception
+    {
+        Map<String, String> signature = new HashMap<>();
+        signature.put("*", "*");
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+        {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", i);
+            row.put("tags", Arrays.asList("a", "b"));
+            rows.add(row);
+        }
+        CouchMetrics metrics = new CouchMetrics();
+        metrics.setResultCount(2);
+        CouchResponse response = new CouchResponse();
+        response.setSignature(signature);
+        response.setResults(rows);
+        response.setMetrics(metrics);
+
+        DiskResultCache cache = new DiskResultCache(directory(), 1 << 20);
+        cache.put(key("SELECT * FROM orders"), response, TTL);
+
+        CouchResponse hit = cache.get(key("SELECT * FROM orders"));
+        assertEquals(2, hit.getMetrics().getResultCount());
+        CBResultSet resultSet = new CBResultSet(null, hit);
+        assertTrue(resultSet.next());
+        assertEquals(0, resultSet.getInt("id"));
+        assertTrue(resultSet.next());
+        assertEquals(1, resultSet.getInt("id"));
+        assertFalse(resultSet.next());
+        resultSet.close();
+    }
+
+    @Test
+    public void testFreshEntryIsNotRewritten() throws Exception
+    {
+        DiskResultCache cache = new DiskResultCache(directory(), 1 << 20);
+        cache.put(key("SELECT * FROM orders"), lazy(1), TTL);
+        long bytes = cache.getBytes();
+        cache.put(key("SELECT * FROM orders"), lazy(3), TTL);
+        assertEquals(bytes, cache.getBytes());
+        assertEquals(bytes, files(directory())[0].length());
+
+        CBResultSet resultSet = new CBResultSet(null, cache.get(key("SELECT * FROM orders")));
+        assertTrue(resultSet.next());
+        assertFalse(resultSet.next());
+        resultSet.close();
+    }
+
+    @Test
+    public void testSurvivesRestart() throws Exception
+    {
+        DiskResultCache cache = new DiskResultCache(directory(), 1 << 20);
+        cache.put(key("SELECT * FROM orders"), lazy(5), TTL);
+        cache.put(key("SELECT * FROM orders", 2), lazy(1), 1);
+        Thread.sleep(20);
+
+        DiskResultCache reopened = new DiskResultCache(directory(), 1 << 20);
+        assertEquals(1, reopened.getEntries());
+        assertEquals(1, files(directory()).length);
+        assertEquals(files(directory())[0].length(), reopened.getBytes());
+        CBResultSet resultSet = new CBResultSet(null, reopened.get(key("SELECT * FROM orders")));
+        int count = 0;
+        while (resultSet.next())
+        {
+            count++;
+        }
+        assertEquals(5, count);
+        resultSet.close();
+    }
+
+    @Test
+    public void testExpiry() throws Exception
+    {
+        DiskResultCache cache = new DiskResultCache(directory(), 1 << 20);
+        cache.put(key("SELECT * FROM orders"), lazy(1), 20);
+        Thread.sleep(50);
+        assertNull(cache.get(key("SELECT * FROM orders")));
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, files(directory()).length);
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception
+    {
+        DiskResultCache probe = new DiskResultCache(folder.newFolder().toPath(), 1 << 20);
+        probe.put(key("SELECT 0"), lazy(2), TTL);
+        long size = probe.getBytes();
+
+        DiskResultCache cache = new DiskResultCache(directory(), 2 * size);
+        cache.put(key("SELECT 1"), lazy(2), TTL);
+        cache.put(key("SELECT 2"), lazy(2), TTL);
+        cache.get(key("SELECT 1")).close();
+        cache.put(key("SELECT 3"), lazy(2), TTL);
+
+        assertEquals(2, cache.getEntries());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, files(directory()).length);
+        assertNull(cache.get(key("SELECT 2")));
+        assertNotNull(cache.get(key("SELECT 1")));
+        assertNotNull(cache.get(key("SELECT 3")));
+    }
+
+    @Test
+    public void testCorruptFileIsDropped() throws Exception
+    {
+        DiskResultCache cache = new DiskResultCache(directory(), 1 << 20);
+        cache.put(key("SELECT 1"), lazy(2), TTL);
+        cache.put(key("SELECT 2"), lazy(2), TTL);
+        for (File file : files(directory()))
+        {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+            {
+                raf.setLength(raf.length() - 10);
+            }
+        }
+
+        assertNull(cache.get(key("SELECT 1")));
+        assertEquals(1, cache.getEntries());
+        assertEquals(1, files(directory()).length);
+
+        // the other one is found out when the next process starts
+        DiskResultCache reopened = new DiskResultCache(directory(), 1 << 20);
+        assertEquals(0, reopened.getEntries());
+        assertEquals(0, files(directory()).length);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.ResultExporter;
+import com.couchbase.jdbc.core.ResultStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams canned responses through a window much smaller than the response, no server required
+ */
+@RunWith(JUnit4.class)
+public class ExportTest
+{
+    private static final String SELECT_STAR = "{\n  \"requestID\": \"abc\",\n  \"signature\": {\n    \"*\": \"*\"\n  },\n"
+            + "  \"results\": [\n"
+            + "    {\n      \"b\": {\n        \"id\": 1,\n        \"name\": \"a b\",\n        \"tags\": [ 1, 2 ]\n      }\n    },\n"
+            + "    {\n      \"b\": {\n        \"id\": 22,\n        \"name\": \"say \\\"hi\\\", \\u00e9\",\n        \"tags\": {\"x\": \"1,2\"}\n      }\n    }\n"
+            + "  ],\n  \"status\": \"success\",\n  \"metrics\": {\"resultCount\": 2, \"resultSize\": 100}\n}";
+
+    @Test
+    public void testNdjson() throws Exception
+    {
+        assertEquals("{\"id\":1,\"name\":\"a b\",\"tags\":[1,2]}\n"
+                + "{\"id\":22,\"name\":\"say \\\"hi\\\", \\u00e9\",\"tags\":{\"x\":\"1,2\"}}\n",
+                export(SELECT_STAR, ExportFormat.NDJSON, 64));
+    }
+
+    @Test
+    public void testCsv() throws Exception
+    {
+        assertEquals("id,name,tags\r\n"
+                + "1,a b,\"[1,2]\"\r\n"
+                + "22,\"say \"\"hi\"\", \u00e9\",\"{\"\"x\"\":\"\"1,2\"\"}\"\r\n",
+                export(SELECT_STAR, ExportFormat.CSV, 64));
+
+        // declared columns keep their order, missing and null ones are empty
+        String declared = "{\"signature\": {\"b\":\"string\", \"a\":\"number\"}, \"results\": ["
+                + "{\"a\": 1, \"b\": \"x,y\"}, {\"a\": null}, {\"b\": \"z\", \"c\": true}], \"status\": \"success\"}";
+        assertEquals("b,a\r\n\"x,y\",1\r\n,\r\nz,\r\n", export(declared, ExportFormat.CSV, 16));
+    }
+
+    @Test
+    public void testRaw() throws Exception
+    {
+        String raw = "{\"signature\": \"json\", \"results\": [12345, \"s\", {\"a\": [true]}, null], \"status\": \"success\"}";
+        assertEquals("12345\n\"s\"\n{\"a\":[true]}\nnull\n", export(raw, ExportFormat.NDJSON, 16));
+        assertEquals("$1\r\n12345\r\ns\r\n\"{\"\"a\"\":[true]}\"\r\n\r\n", export(raw, ExportFormat.CSV, 16));
+    }
+
+    @Test
+    public void testRowLargerThanWindow() throws Exception
+    {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+        {
+            name.append("0123456789");
+        }
+        String json = "{\"signature\": {\"*\":\"*\"}, \"results\": [{\"b\": {\"name\": \"" + name + "\"}}, {\"b\": {\"name\": \"x\"}}],"
+                + " \"status\": \"success\"}";
+
+        ResultStream stream = stream(json, null, 64);
+        assertTrue(stream.next());
+        assertEquals(name.toString(), stream.decodeRow().get("name"));
+        assertTrue(stream.next());
+        Map<String, Object> row = stream.decodeRow();
+        assertEquals("x", row.get("name"));
+        assertFalse(stream.next());
+        assertEquals(2, stream.getRowCount());
+        assertEquals("success", stream.getResponse().getStatus());
+    }
+
+    @Test
+    public void testErrorAfterRows() throws Exception
+    {
+        String json = "{\"signature\": {\"a\":\"number\"}, \"results\": [{\"a\": 1}], \"errors\": [{\"code\": 1080, \"msg\": \"timeout\"}],"
+                + " \"status\": \"timeout\"}";
+        ResultStream stream = stream(json, new ResultStream.Completion()
+        {
+            @Override
+            public void complete(CouchResponse response) throws SQLException
+            {
+                if (!"success".equals(response.getStatus()))
+                {
+                    throw new SQLException(response.getErrors().get(0).getMsg(), null, response.getErrors().get(0).getCode());
+                }
+            }
+        }, 16);
+        assertTrue(stream.next());
+        try
+        {
+            stream.next();
+            fail("the server reported an error");
+        }
+        catch (SQLException ex)
+        {
+            assertEquals(1080, ex.getErrorCode());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception
+    {
+        ResultStream stream = stream("{\"signature\": {\"a\":\"number\"}, \"results\": [{\"a\": 1}, {\"a\": 2", null, 16);
+        while (stream.next())
+        {
+            // drain
+        }
+    }
+
+    private static ResultStream stream(String json, ResultStream.Completion completion, int window)
+    {
+        return new ResultStream(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), null, completion, window);
+    }
+
+    private static String export(String json, ExportFormat format, int window) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ResultStream stream = stream(json, null, window))
+        {
+            new ResultExporter(out, 64).export(stream, format);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.JsonCodec;
+import com.couchbase.jdbc.core.JsonCodecs;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the streaming codec against the Boon one on canned documents, no server required
+ */
+@RunWith(JUnit4.class)
+public class JsonCodecTest
+{
+    private static final String RESPONSE = "{\"requestID\": \"abc\", \"signature\": {\"*\":\"*\"}, \"results\": ["
+            + "{\"default\": {\"name\": \"joe\", \"age\": 20, \"tags\": [1, 2], \"ok\": true}},"
+            + "{\"default\": {\"name\": \"sm\\u00e9\\\"th\", \"age\": 12345678901, \"tags\": [], \"ok\": null}}"
+            + "], \"status\": \"success\", \"metrics\": {\"elapsedTime\": \"1.5ms\", \"executionTime\": \"1.2ms\","
+            + " \"resultCount\": 2, \"resultSize\": 100, \"errorCount\": 0}}";
+
+    @Test
+    public void testLookup() throws Exception
+    {
+        assertEquals("boon", JsonCodecs.getDefault().getName());
+        assertEquals("streaming", JsonCodecs.forName(" Streaming ").getName());
+        try
+        {
+            JsonCodecs.forName("nope");
+            fail("unknown codec");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWrite() throws Exception
+    {
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put("statement", "select \"a\\b\"\n");
+        parameters.put("args", Arrays.asList(1, 2.5, "d\u00e9j\u00e0 \ud83d\ude00", null, true));
+        parameters.put("ints", new int[] { 3, 4 });
+        parameters.put("control", "\u0001");
+
+        String expected = "{\"statement\":\"select \\\"a\\\\b\\\"\\n\",\"args\":[1,2.5,\"d\u00e9j\u00e0 \ud83d\ude00\",null,true],"
+                + "\"ints\":[3,4],\"control\":\"\\u0001\"}";
+
+        JsonCodec codec = JsonCodecs.forName("streaming");
+        assertEquals(expected, codec.toJson(parameters));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.writeJson(parameters, out);
+        assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        // both codecs have to agree on what the server gets
+        assertEquals(parameters.get("args"), codec.fromJson(JsonCodecs.getDefault().toJson(parameters.get("args"))));
+        assertEquals(new TreeMap<>((Map) codec.fromJson(expected)).toString(),
+                new TreeMap<>((Map) JsonCodecs.getDefault().fromJson(expected)).toString());
+    }
+
+    @Test
+    public void testDecodeResponse() throws Exception
+    {
+        CouchResponse boon = decode(JsonCodecs.getDefault());
+        CouchResponse streaming = decode(JsonCodecs.forName("streaming"));
+
+        assertEquals(boon.getMetrics().getResultCount(), streaming.getMetrics().getResultCount());
+        assertEquals(boon.getMetrics().getElapsedTime(), streaming.getMetrics().getElapsedTime());
+        assertEquals(1500000, boon.getMetrics().getElapsedTimeNanos());
+        assertEquals(1500000, streaming.getMetrics().getElapsedTimeNanos());
+
+        List<Map<String, Object>> expected = boon.getResults();
+        List<Map<String, Object>> actual = streaming.getResults();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.get(i).keySet(), actual.get(i).keySet());
+            for (String key : expected.get(i).keySet())
+            {
+                assertEquals(key, String.valueOf(expected.get(i).get(key)), String.valueOf(actual.get(i).get(key)));
+            }
+        }
+        assertEquals("sm\u00e9\"th", actual.get(1).get("name"));
+    }
+
+    @Test
+    public void testRowShapes() throws Exception
+    {
+        String star = "{\"signature\": {\"*\":\"*\"}, \"results\": ["
+                + "{\"b\": {\"id\": 1}}, {\"a\": {\"id\": 2}, \"b\": {\"id\": 3}}, {\"b\": 4}, { }],"
+                + " \"status\": \"success\"}";
+        String plain = "{\"signature\": {\"doc\":\"json\"}, \"results\": [{\"doc\": {\"id\": 1}}], \"status\": \"success\"}";
+        String raw = "{\"signature\": \"json\", \"results\": [{\"id\": 1}, \"x\"], \"status\": \"success\"}";
+
+        for (String name : new String[] { "boon", "streaming" })
+        {
+            JsonCodec codec = JsonCodecs.forName(name);
+
+            // only a lone keyspace object is unwrapped, a join keeps both sides
+            List<Map<String, Object>> rows = decode(codec, star).getResults();
+            assertEquals(name, 1, rows.get(0).get("id"));
+            assertEquals(name, 2, rows.get(1).size());
+            assertEquals(name, 4, rows.get(2).get("b"));
+            assertTrue(name, rows.get(3).isEmpty());
+
+            // an object column is never mistaken for a keyspace outside of select *
+            rows = decode(codec, plain).getResults();
+            assertEquals(name, 1, ((Map) rows.get(0).get("doc")).get("id"));
+
+            rows = decode(codec, raw).getResults();
+            assertEquals(name, 1, ((Map) rows.get(0).get("$1")).get("id"));
+            assertEquals(name, "x", rows.get(1).get("$1"));
+        }
+    }
+
+    private static CouchResponse decode(JsonCodec codec) throws Exception
+    {
+        return decode(codec, RESPONSE);
+    }
+
+    private static CouchResponse decode(JsonCodec codec, String json) throws Exception
+    {
+        byte [] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return codec.decodeResponse(new ByteArrayInputStream(bytes), bytes.length);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchMetrics;
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.KeyLookupBatcher;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class KeyLookupBatcherTest
+{
+    private static final String PRINCIPAL = "http://localhost:8093\0user\0null";
+    private static final String OPTIONS = "default\0not_bounded\0false\075";
+    // long enough that a batch only goes out once it is full
+    private static final long WINDOW = 10000000;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final List<String> statements = Collections.synchronizedList(new ArrayList<String>());
+    // the lookup of the busy key is held here, so the lookups after it find one in flight
+    private final CountDownLatch held = new CountDownLatch(1);
+
+    @After
+    public void shutdown()
+    {
+        held.countDown();
+        executor.shutdownNow();
+    }
+
+    // answers use keys with one row per key it knows, select * rows wrapped in the keyspace name
+    private CouchResponse fetch(String statement, Object[] args, boolean star) throws SQLException
+    {
+        fetches.incrementAndGet();
+        statements.add(statement);
+        boolean batched = args[0] instanceof List;
+        if ("busy".equals(args[0]))
+        {
+            try
+            {
+                held.await();
+            }
+            catch (InterruptedException ex)
+            {
+                throw new SQLException(ex);
+            }
+        }
+        Map<String, String> signature = new HashMap<>();
+        signature.put(star ? "*" : "name", star ? "*" : "string");
+        if (batched)
+        {
+            signature.put("$batch_key", "json");
+        }
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Object key : batched ? (List<?>) args[0] : Collections.singletonList(args[0]))
+        {
+            if (key.toString().startsWith("missing"))
+            {
+                continue;
+            }
+            Map<String, Object> document = new HashMap<>();
+            document.put("name", "name of " + key);
+            Map<String, Object> row = new HashMap<>();
+            if (batched)
+            {
+                row.put("$batch_key", key);
+            }
+            if (star)
+            {
+                row.put("orders", document);
+            }
+            else
+            {
+                row.putAll(document);
+            }
+            rows.add(row);
+        }
+        CouchMetrics metrics = new CouchMetrics();
+        metrics.setResultCount(rows.size());
+        CouchResponse response = new CouchResponse();
+        response.setSignature(signature);
+        response.setResults(rows);
+        response.setMetrics(metrics);
+        return response;
+    }
+
+    private Future<CouchResponse> lookup(KeyLookupBatcher batcher, String options, String statement, Object[] args,
+                                         boolean star)
+    {
+        return executor.submit((Callable<CouchResponse>) () ->
+                batcher.lookup(PRINCIPAL, options, statement, args, (sql, batchArgs) -> fetch(sql, batchArgs, star),
+                               () -> fetch(statement, args, star)));
+    }
+
+    private List<Future<CouchResponse>> lookup(KeyLookupBatcher batcher, String statement, boolean star, String... keys)
+    {
+        List<Future<CouchResponse>> futures = new ArrayList<>();
+        for (String key : keys)
+        {
+            futures.add(lookup(batcher, OPTIONS, statement, new Object[] {key}, star));
+        }
+        return futures;
+    }
+
+    // starts a lookup whose request stays out until the test ends, the ones after it batch
+    private void busy(KeyLookupBatcher batcher, String statement, Object[] args, boolean star)
+    {
+        int before = fetches.get();
+        lookup(batcher, OPTIONS, statement, args, star);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fetches.get() == before && System.currentTimeMillis() < deadline)
+        {
+            LockSupport.parkNanos(1000000);
+        }
+    }
+
+    private void busy(KeyLookupBatcher batcher, String statement, boolean star)
+    {
+        busy(batcher, statement, new Object[] {"busy"}, star);
+    }
+
+    private static String name(CouchResponse response) throws SQLException
+    {
+        CBResultSet resultSet = new CBResultSet(null, response);
+        assertTrue(resultSet.next());
+        String name = resultSet.getString("name");
+        assertFalse(resultSet.next());
+        resultSet.close();
+        return name;
+    }
+
+    @Test
+    public void testBatchesConcurrentLookups() throws Exception
+    {
+        KeyLookupBatcher batcher = new KeyLookupBatcher(WINDOW, 3);
+        busy(batcher, "SELECT name FROM orders USE KEYS ?", false);
+        List<Future<CouchResponse>> futures = lookup(batcher, "SELECT name FROM orders USE KEYS ?", false, "k1", "k2", "k3");
+        for (int i = 0; i < 3; i++)
+        {
+            CouchResponse response = futures.get(i).get();
+            assertEquals("name of k" + (i + 1), name(response));
+            assertFalse(response.getResults().get(0).containsKey("$batch_key"));
+        }
+        assertEquals(2, fetches.get());
+        assertEquals("SELECT name, META().id AS `$batch_key` FROM orders USE KEYS $1", statements.get(1));
+        assertEquals(1, batcher.getBatches());
+        assertEquals(4, batcher.getLookups());
+    }
+
+    @Test
+    public void testSelectStarIsUnwrapped() throws Exception
+    {
+        KeyLookupBatcher batcher = new KeyLookupBatcher(WINDOW, 2);
+        String statement = "select * from orders use keys $1 where type = 'order';";
+        busy(batcher, statement, true);
+        List<Future<CouchResponse>> futures = lookup(batcher, statement, true, "k1", "k2");
+        assertEquals("name of k1", name(futures.get(0).get()));
+        assertEquals("name of k2", name(futures.get(1).get()));
+        assertEquals("select *, META().id AS `$batch_key` from orders use keys $1 where type = 'order'", statements.get(1));
+    }
+
+    @Test
+    public void testMissingKeyHasNoRows() throws Exception
+    {
+        KeyLookupBatcher batcher = new KeyLookupBatcher(WINDOW, 2);
+        busy(batcher, "SELECT RAW name FROM orders USE KEYS $1", false);
+        List<Future<CouchResponse>> futures = lookup(batcher, "SELECT RAW name FROM orders USE KEYS $1", false, "k1", "missing");
+        assertEquals("name of k1", name(futures.get(0).get()));
+        CBResultSet resultSet = new CBResultSet(null, futures.get(1).get());
+        assertFalse(resultSet.next());
+        resultSet.close();
+        assertEquals("SELECT name AS `$1`, META().id AS `$batch_key` FROM orders USE KEYS $1", statements.get(1));
+    }
+
+    @Test
+    public void testOtherPlaceholdersAreKept() throws Exception
+    {
+        KeyLookupBatcher batcher = new KeyLookupBatcher(WINDOW, 2);
+        String statement = "SELECT name FROM orders USE KEYS $1 WHERE type = $10";
+        busy(batcher, statement, new Object[] {"busy", 2, 3, 4, 5, 6, 7, 8, 9, "order"}, false);
+        List<Future<CouchResponse>> futures = new ArrayList<>();
+        for (String key : Arrays.asList("k1", "k2"))
+        {
+            futures.add(lookup(batcher, OPTIONS, statement, new Object[] {key, 2, 3, 4, 5, 6, 7, 8, 9, "order"}, false));
+        }
+        assertEquals("name of k1", name(futures.get(0).get()));
+        assertEquals("name of k2", name(futures.get(1).get()));
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void testCallersOfTheSameKeyCannotChangeEachOthersRows() throws Exception
+    {
+        // long enough for all three to join, the batch never fills
+        KeyLookupBatcher batcher = new KeyLookupBatcher(500000, 100);
+        busy(batcher, "SELECT * FROM orders USE KEYS $1", true);
+        List<Future<CouchResponse>> futures = lookup(batcher, "SELECT * FROM orders USE KEYS $1", true, "k1", "k1", "k2");
+        Map<String, Object> first = futures.get(0).get().getResults().get(0);
+        Map<String, Object> second = futures.get(1).get().getResults().get(0);
+        assertEquals("name of k1", second.get("name"));
+        try
+        {
+            first.put("name", "changed");
+            fail("rows handed out by a batch are frozen");
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // expected
+        }
+        assertEquals("name of k1", second.get("name"));
+        assertEquals("name of k2", name(futures.get(2).get()));
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void testLoneLookupIsSentAtOnce() throws Exception
+    {
+        KeyLookupBatcher batcher = new KeyLookupBatcher(WINDOW, 100);
+        // nothing else is in flight, so it does not wait for the window
+        CouchResponse response = lookup(batcher, "SELECT name FROM orders USE KEYS ?", false, "k1").get(0).get(5, TimeUnit.SECONDS);
+        assertEquals("name of k1", name(response));
+        assertEquals(Collections.singletonList("SELECT name FROM orders USE KEYS ?"), statements);
+        assertEquals(0, batcher.getBatches());
+        assertEquals(1, batcher.getLookups());
+    }
+
+    @Test
+    public void testOptionsKeepBatchesApart() throws Exception
+    {
+        KeyLookupBatcher batcher = new KeyLookupBatcher(200000, 2);
+        String statement = "SELECT name FROM orders USE KEYS $1";
+        busy(batcher, statement, false);
+        Future<CouchResponse> mine = lookup(batcher, OPTIONS, statement, new Object[] {"k1"}, false);
+        Future<CouchResponse> other = lookup(batcher, "default\0not_bounded\0false\05", statement, new Object[] {"k2"}, false);
+        assertEquals("name of k1", name(mine.get()));
+        assertEquals("name of k2", name(other.get()));
+        assertEquals(3, fetches.get());
+        assertEquals(0, batcher.getBatches());
+    }
+
+    @Test
+    public void testUnbatchableStatements() throws Exception
+    {
+        KeyLookupBatcher batcher = new KeyLookupBatcher(WINDOW, 100);
+        List<String> unbatchable = Arrays.asList(
+                "SELECT COUNT(*) FROM orders USE KEYS $1",
+                "SELECT DISTINCT name FROM orders USE KEYS $1",
+                "SELECT o.name FROM orders o USE KEYS $1 JOIN customers c ON KEYS o.customer",
+                "SELECT name FROM orders USE KEYS $1 ORDER BY name",
+                "SELECT name FROM orders USE KEYS $1 LIMIT 1",
+                "SELECT name FROM orders USE KEYS [$1, $2]",
+                "SELECT name FROM orders USE KEYS $key",
+                "SELECT name FROM orders USE KEYS $1 WHERE META().id = $1",
+                "SELECT name, $1 AS asked FROM orders USE KEYS $1",
+                "SELECT name FROM orders WHERE id = $1",
+                "UPDATE orders USE KEYS $1 SET name = 'x'");
+        for (String statement : unbatchable)
+        {
+            // nothing waits for a window, these are sent as they are
+            assertNotNull(statement, lookup(batcher, statement, false, "k1").get(0).get(5, TimeUnit.SECONDS));
+        }
+        assertNotNull(lookup(batcher, OPTIONS, "SELECT name FROM orders USE KEYS $1", new Object[] {Arrays.asList("k1", "k2")}, false)
+                              .get(5, TimeUnit.SECONDS));
+        assertEquals(unbatchable.size() + 1, fetches.get());
+        assertEquals(unbatchable, statements.subList(0, unbatchable.size()));
+        assertEquals(0, batcher.getLookups());
+    }
+
+    @Test
+    public void testFailureReachesEveryCaller() throws Exception
+    {
+        KeyLookupBatcher batcher = new KeyLookupBatcher(WINDOW, 2);
+        String statement = "SELECT name FROM orders USE KEYS $1";
+        busy(batcher, statement, false);
+        List<Future<CouchResponse>> futures = new ArrayList<>();
+        for (String key : Arrays.asList("k1", "k2"))
+        {
+            Object[] args = {key};
+            futures.add(executor.submit((Callable<CouchResponse>) () ->
+                    batcher.lookup(PRINCIPAL, OPTIONS, statement, args, (sql, batchArgs) ->
+                                   {
+                                       throw new SQLException("Bad Request");
+                                   }, () -> fetch(statement, args, false))));
+        }
+        for (Future<CouchResponse> future : futures)
+        {
+            try
+            {
+                future.get();
+                fail("expected the batch to fail");
+            }
+            catch (ExecutionException ex)
+            {
+                assertTrue(ex.getCause() instanceof SQLException);
+                assertEquals("Bad Request", ex.getCause().getMessage());
+            }
+        }
+    }
+}
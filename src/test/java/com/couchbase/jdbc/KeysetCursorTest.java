@@ -0,0 +1,177 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchMetrics;
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.KeysetCursor;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class KeysetCursorTest
+{
+    private static final String QUERY = "SELECT META(b).id AS id, b.n FROM b";
+
+    // serves pages from a sorted list of keys instead of a query node
+    static class FakeCursor extends KeysetCursor
+    {
+        final List<String> statements = new ArrayList<>();
+        final int rows;
+        String keyColumn = "id";
+
+        FakeCursor(String sql, int rows) throws SQLException
+        {
+            super(null, sql, "META(b).id", "id");
+            this.rows = rows;
+        }
+
+        @Override
+        protected CouchResponse fetch(String statement, Map<String, Object> parameters) throws SQLException
+        {
+            statements.add(statement);
+            Object last = parameters.get("$keyset_last");
+            Object upper = parameters.get("$keyset_upper");
+            List<Map<String, Object>> page = new ArrayList<>();
+            for (int i = 0; i < rows && page.size() < getPageSize(); i++)
+            {
+                String key = String.format("k%03d", i);
+                if ((last == null || key.compareTo((String) last) > 0) && (upper == null || key.compareTo((String) upper) <= 0))
+                {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put(keyColumn, key);
+                    row.put("n", i);
+                    page.add(row);
+                }
+            }
+            Map<String, String> signature = new HashMap<>();
+            signature.put("id", "string");
+            signature.put("n", "number");
+
+            CouchMetrics metrics = new CouchMetrics();
+            metrics.setResultCount(page.size());
+            metrics.setResultSize(page.size());
+
+            CouchResponse response = new CouchResponse();
+            response.setSignature(signature);
+            response.setResults(page);
+            response.setMetrics(metrics);
+            return response;
+        }
+    }
+
+    // the statements of the first page and of the one after it
+    private static List<String> rewrite(String sql) throws SQLException
+    {
+        FakeCursor cursor = new FakeCursor(sql, 3);
+        cursor.setPageSize(2);
+        assertNotNull(cursor.nextPage());
+        assertNotNull(cursor.nextPage());
+        return cursor.statements;
+    }
+
+    @Test
+    public void testRewrite() throws Exception
+    {
+        assertEquals("[SELECT META(b).id AS id, b.n FROM b ORDER BY META(b).id LIMIT 2, "
+                     + "SELECT META(b).id AS id, b.n FROM b WHERE META(b).id > $keyset_last ORDER BY META(b).id LIMIT 2]",
+                     rewrite(QUERY).toString());
+
+        assertEquals("[SELECT META(b).id AS id, b.n FROM b WHERE (b.n > 1 OR b.n < 0) ORDER BY META(b).id LIMIT 2, "
+                     + "SELECT META(b).id AS id, b.n FROM b WHERE (b.n > 1 OR b.n < 0) AND META(b).id > $keyset_last ORDER BY META(b).id LIMIT 2]",
+                     rewrite(QUERY + " WHERE b.n > 1 OR b.n < 0 ORDER BY b.n DESC;").toString());
+
+        // keywords in strings, comments and subqueries are not clauses of the query
+        List<String> statements = rewrite("select meta(b).id as id, 'order by' as s from b /* limit */ "
+                                          + "where b.t in (select raw t from c limit 5) group by meta(b).id");
+        assertEquals("select meta(b).id as id, 'order by' as s from b /* limit */ where (b.t in (select raw t from c limit 5)) "
+                     + "AND META(b).id > $keyset_last group by meta(b).id ORDER BY META(b).id LIMIT 2", statements.get(1));
+    }
+
+    @Test(expected = SQLException.class)
+    public void testRejectsLimit() throws Exception
+    {
+        new KeysetCursor(null, QUERY + " LIMIT 10", "META(b).id", "id");
+    }
+
+    @Test
+    public void testReadsEveryPage() throws Exception
+    {
+        FakeCursor cursor = new FakeCursor(QUERY, 25);
+        cursor.setPageSize(10);
+        CBResultSet resultSet = new CBResultSet(null, cursor);
+        int n = 0;
+        while (resultSet.next())
+        {
+            assertEquals(n, resultSet.getInt("n"));
+            assertEquals(String.format("k%03d", n), resultSet.getString(1));
+            n++;
+        }
+        assertFalse(resultSet.next());
+        resultSet.close();
+        assertEquals(25, n);
+        // the short third page ends the scan without asking for an empty one
+        assertEquals(3, cursor.statements.size());
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws Exception
+    {
+        FakeCursor cursor = new FakeCursor(QUERY, 25);
+        cursor.setPageSize(10);
+        CBResultSet resultSet = new CBResultSet(null, cursor);
+        for (int i = 0; i < 12; i++)
+        {
+            assertTrue(resultSet.next());
+        }
+        Object checkpoint = resultSet.getCheckpoint();
+        resultSet.close();
+        assertEquals("k011", checkpoint);
+
+        FakeCursor resumed = new FakeCursor(QUERY, 25);
+        resumed.setPageSize(10);
+        resumed.setCheckpoint(checkpoint);
+        resultSet = new CBResultSet(null, resumed);
+        assertTrue(resultSet.next());
+        assertEquals(12, resultSet.getInt("n"));
+        int n = 1;
+        while (resultSet.next())
+        {
+            n++;
+        }
+        assertEquals(13, n);
+    }
+
+    @Test
+    public void testEmpty() throws Exception
+    {
+        CBResultSet resultSet = new CBResultSet(null, new FakeCursor(QUERY, 0));
+        assertFalse(resultSet.next());
+    }
+
+    @Test(expected = SQLException.class)
+    public void testMissingKey() throws Exception
+    {
+        FakeCursor cursor = new FakeCursor(QUERY, 5);
+        cursor.keyColumn = "key";
+        new CBResultSet(null, cursor);
+    }
+}
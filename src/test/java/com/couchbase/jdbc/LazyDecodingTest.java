@@ -0,0 +1,404 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.BufferPool;
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.LazyResponseDecoder;
+import com.couchbase.jdbc.core.ParallelRowDecoder;
+import com.couchbase.jdbc.core.ResponseBuffer;
+import com.couchbase.json.SQLJSON;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decodes canned responses through the lazy decoder, no server required
+ */
+@RunWith(JUnit4.class)
+public class LazyDecodingTest
+{
+    private static CouchResponse decode(String json) throws Exception
+    {
+        byte [] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ResponseBuffer buffer = ResponseBuffer.read(new ByteArrayInputStream(bytes), bytes.length);
+        return new LazyResponseDecoder(buffer).decode();
+    }
+
+    @Test
+    public void testSelectStar() throws Exception
+    {
+        CouchResponse response = decode("{\"requestID\": \"abc\", \"signature\": {\"*\":\"*\"}, \"results\": ["
+                + "{\"default\": {\"name\": \"joe\", \"age\": 20, \"tags\": [1, 2]}},"
+                + "{\"default\": {\"name\": \"sm\\u00e9\\\"th\", \"age\": 12345678901, \"tags\": []}}"
+                + "], \"status\": \"success\", \"metrics\": {\"elapsedTime\": \"1.5ms\", \"executionTime\": \"1.2ms\", \"resultCount\": 2, \"resultSize\": 100}}");
+
+        assertEquals(2, response.getMetrics().getResultCount());
+
+        List<Map<String, Object>> results = response.getResults();
+        assertEquals(2, results.size());
+        assertEquals("joe", results.get(0).get("name"));
+        assertEquals(20, results.get(0).get("age"));
+        assertEquals("smé\"th", results.get(1).get("name"));
+        assertEquals(12345678901L, results.get(1).get("age"));
+        assertEquals(2, ((List) results.get(0).get("tags")).size());
+        assertFalse(results.get(0).containsKey("missing"));
+        assertEquals(3, results.get(1).size());
+
+        response.close();
+    }
+
+    @Test
+    public void testSelectStarJoin() throws Exception
+    {
+        CouchResponse response = decode("{\"signature\": {\"*\":\"*\"}, \"results\": ["
+                + "{\"a\": {\"id\": 2}, \"b\": {\"id\": 3}}, {\"b\" : { \"id\": 4 } }, {\"b\": 5}"
+                + "], \"status\": \"success\"}");
+
+        List<Map<String, Object>> results = response.getResults();
+        assertEquals(3, results.size());
+        assertEquals(3, ((Map) results.get(0).get("b")).get("id"));
+        assertEquals(4, results.get(1).get("id"));
+        assertEquals(5, results.get(2).get("b"));
+
+        response.close();
+    }
+
+    @Test
+    public void testRawSignature() throws Exception
+    {
+        CouchResponse response = decode("{\"signature\": \"json\", \"results\": [1, {\"a\": null}, 123456789012345678901234567890],"
+                + " \"status\": \"success\", \"metrics\": {\"resultCount\": 3}}");
+
+        List<Map<String, Object>> results = response.getResults();
+        assertEquals(1, results.get(0).get("$1"));
+        assertTrue(((Map) results.get(1).get("$1")).containsKey("a"));
+        assertEquals(new BigInteger("123456789012345678901234567890"), results.get(2).get("$1"));
+
+        response.close();
+    }
+
+    @Test
+    public void testErrors() throws Exception
+    {
+        CouchResponse response = decode("{\"errors\": [{\"code\": 3000, \"msg\": \"syntax error\"}], \"status\": \"fatal\","
+                + " \"metrics\": {\"errorCount\": 1}}");
+
+        assertEquals(1, response.getErrors().size());
+        assertEquals("syntax error", response.getErrors().get(0).getMsg());
+        assertNull(response.getResults());
+
+        response.close();
+    }
+
+    @Test
+    public void testWarnings() throws Exception
+    {
+        CouchResponse response = decode("{\"signature\": {\"a\":\"number\"}, \"results\": [{\"a\": 1}], \"status\": \"success\","
+                + " \"warnings\": [{\"code\": 5000, \"msg\": \"first\", \"extra\": {\"x\": [1]}}, {\"msg\": \"second\"}],"
+                + " \"metrics\": {\"elapsedTime\": \"2m3.25s\", \"executionTime\": \"12.5\u00b5s\", \"resultCount\": 1,"
+                + " \"resultSize\": 8, \"warningCount\": 2}}");
+
+        assertEquals(123250000000L, response.getMetrics().getElapsedTimeNanos());
+        assertEquals(12500, response.getMetrics().getExecutionTimeNanos());
+        assertEquals(2, response.getMetrics().getWarningCount());
+
+        CBResultSet resultSet = new CBResultSet(null, response);
+        SQLWarning warning = resultSet.getWarnings();
+        assertEquals("first", warning.getMessage());
+        assertEquals(5000, warning.getErrorCode());
+        assertEquals("second", warning.getNextWarning().getMessage());
+        assertNull(warning.getNextWarning().getNextWarning());
+        resultSet.close();
+    }
+
+    @Test
+    public void testMutationOnly() throws Exception
+    {
+        byte [] bytes = ("{\"requestID\": \"abc\", \"signature\": {\"*\":\"*\"}, \"results\": ["
+                + "{\"default\": {\"name\": \"joe\", \"tags\": [1, {\"a\": \"]\"}]}}, {\"default\": {\"name\": \"sue\"}}"
+                + "], \"status\": \"success\", \"metrics\": {\"elapsedTime\": \"1.5ms\", \"mutationCount\": 2}}").getBytes(StandardCharsets.UTF_8);
+        ResponseBuffer buffer = ResponseBuffer.readHeap(new ByteArrayInputStream(bytes), -1);
+        LazyResponseDecoder decoder = new LazyResponseDecoder(buffer);
+        decoder.setSkipResults(true);
+        CouchResponse response = decoder.decode();
+
+        assertTrue(buffer.isReleased());
+        assertNull(response.getResults());
+        assertEquals(2, response.getMetrics().getMutationCount());
+        assertEquals(1500000, response.getMetrics().getElapsedTimeNanos());
+    }
+
+    @Test
+    public void testParallelRowsKeepOrder() throws Exception
+    {
+        StringBuilder json = new StringBuilder("{\"signature\": {\"*\":\"*\"}, \"results\": [");
+        for (int i = 0; i < 20000; i++)
+        {
+            if (i > 0) json.append(',');
+            json.append("{\"b\": {\"id\": ").append(i).append(", \"name\": \"row ").append(i).append("\"}}");
+        }
+        json.append("], \"status\": \"success\", \"metrics\": {\"resultCount\": 20000}}");
+
+        byte [] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        ResponseBuffer buffer = ResponseBuffer.read(new ByteArrayInputStream(bytes), bytes.length);
+        LazyResponseDecoder decoder = new LazyResponseDecoder(buffer);
+        decoder.setRowDecoder(new ParallelRowDecoder(ParallelRowDecoder.poolFor(4), 0));
+        CouchResponse response = decoder.decode();
+
+        // rows are fully decoded so the buffer is already back in the pool
+        assertTrue(buffer.isReleased());
+
+        List<Map<String, Object>> results = response.getResults();
+        assertEquals(20000, results.size());
+        for (int i = 0; i < results.size(); i++)
+        {
+            assertEquals(i, results.get(i).get("id"));
+            assertEquals("row " + i, results.get(i).get("name"));
+        }
+    }
+
+    @Test
+    public void testDictionaryEncoding() throws Exception
+    {
+        StringBuilder json = new StringBuilder("{\"signature\": {\"*\":\"*\"}, \"results\": [");
+        for (int i = 0; i < 5000; i++)
+        {
+            if (i > 0) json.append(',');
+            json.append("{\"b\": {\"type\": \"").append(i % 3 == 0 ? "route" : "airline")
+                .append("\", \"name\": \"row ").append(i).append("\", \"city\": \"Montr\u00e9al\", \"n\": 1}}");
+        }
+        json.append("], \"status\": \"success\", \"metrics\": {\"resultCount\": 5000}}");
+        byte [] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+
+        for (ParallelRowDecoder rowDecoder : new ParallelRowDecoder[] {
+                new ParallelRowDecoder(null, Integer.MAX_VALUE, 16),
+                new ParallelRowDecoder(ParallelRowDecoder.poolFor(4), 0, 16) })
+        {
+            LazyResponseDecoder decoder = new LazyResponseDecoder(ResponseBuffer.readHeap(new ByteArrayInputStream(bytes), bytes.length));
+            decoder.setRowDecoder(rowDecoder);
+            List<Map<String, Object>> results = decoder.decode().getResults();
+
+            assertEquals(5000, results.size());
+            Map<String, Object> first = results.get(0);
+            for (int i = 0; i < results.size(); i++)
+            {
+                Map<String, Object> row = results.get(i);
+                assertEquals(i % 3 == 0 ? "route" : "airline", row.get("type"));
+                assertSame(results.get(i % 3 == 0 ? 0 : 1).get("type"), row.get("type"));
+                assertSame(first.keySet().iterator().next(), row.keySet().iterator().next());
+
+                // too many distinct names for the dictionary, they still come out right
+                assertEquals("row " + i, row.get("name"));
+                assertEquals("Montr\u00e9al", row.get("city"));
+                assertEquals(1, row.get("n"));
+            }
+        }
+    }
+
+    @Test
+    public void testExactNumbers() throws Exception
+    {
+        CouchResponse response = decode("{\"signature\": {\"id\":\"number\", \"price\":\"number\"}, \"results\": ["
+                + "{\"id\": 9007199254740993, \"price\": 12345678901234.56789},"
+                + "{\"id\": -9223372036854775808, \"price\": 1e2},"
+                + "{\"id\": 9223372036854775808, \"price\": 0.1}"
+                + "], \"status\": \"success\", \"metrics\": {\"resultCount\": 3, \"resultSize\": 100}}");
+
+        CBResultSet resultSet = new CBResultSet(null, response);
+
+        assertTrue(resultSet.next());
+        assertEquals(9007199254740993L, resultSet.getLong("id"));
+        assertEquals(new BigDecimal("12345678901234.56789"), resultSet.getBigDecimal("price"));
+        assertEquals(new BigDecimal("12345678901234.57"), resultSet.getBigDecimal("price", 2));
+
+        assertTrue(resultSet.next());
+        assertEquals(Long.MIN_VALUE, resultSet.getLong("id"));
+        assertEquals(100, resultSet.getInt("price"));
+
+        assertTrue(resultSet.next());
+        assertEquals(new BigDecimal("9223372036854775808"), resultSet.getBigDecimal("id"));
+        assertEquals(new BigDecimal("0.1"), resultSet.getBigDecimal("price"));
+        try
+        {
+            resultSet.getLong("id");
+            fail("value does not fit in a long");
+        }
+        catch (SQLException ex)
+        {
+            // expected
+        }
+        resultSet.close();
+    }
+
+    @Test
+    public void testNarrowingOutOfRange() throws Exception
+    {
+        CouchResponse response = decode("{\"signature\": {\"*\":\"*\"}, \"results\": ["
+                + "{\"small\": 300, \"wide\": 3000000000, \"huge\": 1e30, \"gone\": null}"
+                + "], \"status\": \"success\", \"metrics\": {\"resultCount\": 1, \"resultSize\": 100}}");
+
+        CBResultSet resultSet = new CBResultSet(null, response);
+
+        assertTrue(resultSet.next());
+        assertEquals(300, resultSet.getShort("small"));
+        assertEquals(3000000000L, resultSet.getLong("wide"));
+        assertOutOfRange(resultSet, "small", Byte.class);
+        assertOutOfRange(resultSet, "wide", Integer.class);
+        assertOutOfRange(resultSet, "huge", Long.class);
+
+        assertEquals(0, resultSet.getInt("gone"));
+        assertTrue(resultSet.wasNull());
+        assertEquals(300, resultSet.getInt("small"));
+        assertFalse(resultSet.wasNull());
+
+        resultSet.getLong("gone");
+        assertTrue(resultSet.wasNull());
+        assertEquals(new BigDecimal("1E+30"), resultSet.getBigDecimal("huge"));
+        assertFalse(resultSet.wasNull());
+        resultSet.close();
+    }
+
+    private static void assertOutOfRange(CBResultSet resultSet, String label, Class<?> type) throws Exception
+    {
+        try
+        {
+            if (type == Byte.class)
+            {
+                resultSet.getByte(label);
+            }
+            else if (type == Integer.class)
+            {
+                resultSet.getInt(label);
+            }
+            else
+            {
+                resultSet.getLong(label);
+            }
+            fail(label + " does not fit in a " + type.getSimpleName());
+        }
+        catch (SQLException ex)
+        {
+            assertEquals("numeric value out of range", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testRawJson() throws Exception
+    {
+        String doc = "{\"name\" : \"sm\\u00e9th\", \"n\": 1.50, \"tags\": [ \"a\" ]}";
+        CouchResponse response = decode("{\"signature\": {\"doc\":\"json\", \"tags\":\"json\"}, \"results\": ["
+                + "{\"tags\": [1,  2], \"doc\": " + doc + "}"
+                + "], \"status\": \"success\", \"metrics\": {\"resultCount\": 1, \"resultSize\": 100}}");
+
+        CBResultSet resultSet = new CBResultSet(null, response);
+        assertTrue(resultSet.next());
+
+        // byte for byte what the server sent, whitespace and escapes included
+        assertEquals(doc, resultSet.getString("doc"));
+        assertEquals("[1,  2]", resultSet.getString("tags"));
+        assertEquals(doc, new String(readAll(resultSet.getBinaryStream("doc")), StandardCharsets.UTF_8));
+        assertEquals("[1,  2]", readAll(resultSet.getCharacterStream("tags")));
+
+        SQLJSON json = resultSet.getSQLJSON("doc");
+        assertEquals(doc, new String(readAll(json.getBinaryStream()), StandardCharsets.UTF_8));
+        assertEquals(doc, json.getString());
+        assertEquals("sm\u00e9th", json.getMap().get("name"));
+
+        InputStream afterClose = resultSet.getSQLJSON("tags").getBinaryStream();
+        resultSet.close();
+        try
+        {
+            afterClose.read();
+            fail("stream outlived its result set");
+        }
+        catch (IOException ex)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBodyFillingTheBuffer() throws Exception
+    {
+        // exactly the smallest pooled size, there is no need for a bigger buffer to find the end
+        byte[] bytes = new byte[64 * 1024];
+        Arrays.fill(bytes, (byte) 'x');
+        ResponseBuffer exact = ResponseBuffer.read(new ByteArrayInputStream(bytes), bytes.length);
+        assertEquals(bytes.length, exact.length());
+        assertEquals(bytes.length, exact.getBuffer().capacity());
+        exact.release();
+
+        // a body longer than its content length is still read to the end
+        byte[] more = Arrays.copyOf(bytes, bytes.length + 100);
+        more[bytes.length] = 'y';
+        ResponseBuffer longer = ResponseBuffer.read(new ByteArrayInputStream(more), bytes.length);
+        assertEquals(more.length, longer.length());
+        assertEquals('x', longer.getBuffer().get(bytes.length - 1));
+        assertEquals('y', longer.getBuffer().get(bytes.length));
+        longer.release();
+    }
+
+    @Test
+    public void testHugeBodyIsReadOntoTheHeap() throws Exception
+    {
+        assertFalse(BufferPool.acquire(64 * 1024 * 1024).isDirect());
+
+        // grows through every pooled size, the last step leaves direct memory
+        byte[] bytes = new byte[33 * 1024 * 1024];
+        Arrays.fill(bytes, (byte) 'x');
+        ResponseBuffer buffer = ResponseBuffer.read(new ByteArrayInputStream(bytes), -1);
+        assertEquals(bytes.length, buffer.length());
+        assertFalse(buffer.getBuffer().isDirect());
+        assertEquals('x', buffer.getBuffer().get(bytes.length - 1));
+        buffer.release();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte [] chunk = new byte[7];
+        int n;
+        while ((n = in.read(chunk)) > 0)
+        {
+            out.write(chunk, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static String readAll(Reader reader) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = reader.read()) >= 0)
+        {
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchMetrics;
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.KeysetCursor;
+import com.couchbase.jdbc.core.ParallelExtractor;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ParallelExtractorTest
+{
+    private static final String QUERY = "SELECT META(b).id AS id, b.n FROM b";
+    private static final Pattern OFFSET = Pattern.compile("OFFSET (\\d+)");
+
+    // every range reads the same fake keyspace, the sampling statements are answered from it too
+    static class FakeExtractor extends ParallelExtractor
+    {
+        final List<String> statements = new CopyOnWriteArrayList<>();
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+        final int rows;
+
+        FakeExtractor(int rows) throws SQLException
+        {
+            super(null, QUERY, "META(b).id", "id");
+            this.rows = rows;
+            // a thread per range, so the threads tell how many ranges were read
+            final AtomicInteger count = new AtomicInteger();
+            setExecutor(runnable -> new Thread(runnable, "range-" + count.incrementAndGet()).start());
+        }
+
+        @Override
+        protected KeysetCursor cursor() throws SQLException
+        {
+            return new KeysetCursorTest.FakeCursor(QUERY, rows)
+            {
+                @Override
+                protected CouchResponse fetch(String statement, Map<String, Object> parameters) throws SQLException
+                {
+                    threads.add(Thread.currentThread().getName());
+                    return super.fetch(statement, parameters);
+                }
+            };
+        }
+
+        @Override
+        protected CouchResponse query(String statement) throws SQLException
+        {
+            statements.add(statement);
+            Map<String, Object> row;
+            Matcher matcher = OFFSET.matcher(statement);
+            if (matcher.find())
+            {
+                row = Collections.<String, Object>singletonMap("k", String.format("k%03d", Integer.parseInt(matcher.group(1))));
+            }
+            else
+            {
+                row = Collections.<String, Object>singletonMap("n", rows);
+            }
+            CouchMetrics metrics = new CouchMetrics();
+            metrics.setResultCount(1);
+            metrics.setResultSize(1);
+            CouchResponse response = new CouchResponse();
+            response.setResults(Collections.singletonList(row));
+            response.setMetrics(metrics);
+            return response;
+        }
+    }
+
+    @Test
+    public void testUnorderedReadsEveryRowOnce() throws Exception
+    {
+        FakeExtractor extractor = new FakeExtractor(1000);
+        extractor.setPartitions(4);
+        extractor.setPageSize(50);
+        CBResultSet resultSet = new CBResultSet(null, extractor);
+        boolean[] seen = new boolean[1000];
+        int count = 0;
+        while (resultSet.next())
+        {
+            int n = resultSet.getInt("n");
+            assertFalse(seen[n]);
+            seen[n] = true;
+            count++;
+        }
+        resultSet.close();
+        assertEquals(1000, count);
+        assertEquals(4, extractor.threads.size());
+    }
+
+    @Test
+    public void testSampledSplitPoints() throws Exception
+    {
+        FakeExtractor extractor = new FakeExtractor(1000);
+        extractor.setPartitions(4);
+        assertNotNull(extractor.nextPage());
+        extractor.close();
+        assertEquals(Arrays.asList("SELECT COUNT(*) AS n FROM b",
+                                   "SELECT META(b).id AS k FROM b ORDER BY META(b).id OFFSET 249 LIMIT 1",
+                                   "SELECT META(b).id AS k FROM b ORDER BY META(b).id OFFSET 499 LIMIT 1",
+                                   "SELECT META(b).id AS k FROM b ORDER BY META(b).id OFFSET 749 LIMIT 1"),
+                     extractor.statements);
+    }
+
+    @Test
+    public void testOrdered() throws Exception
+    {
+        FakeExtractor extractor = new FakeExtractor(1000);
+        extractor.setPartitions(3);
+        extractor.setPageSize(64);
+        extractor.setMerge(ParallelExtractor.Merge.ORDERED);
+        CBResultSet resultSet = new CBResultSet(null, extractor);
+        int n = 0;
+        while (resultSet.next())
+        {
+            assertEquals(n++, resultSet.getInt("n"));
+        }
+        resultSet.close();
+        assertEquals(1000, n);
+        assertEquals(3, extractor.threads.size());
+    }
+
+    @Test
+    public void testResumeOrdered() throws Exception
+    {
+        FakeExtractor extractor = new FakeExtractor(1000);
+        extractor.setSplitPoints(Arrays.asList("k249", "k499", "k749"));
+        extractor.setMerge(ParallelExtractor.Merge.ORDERED);
+        extractor.setCheckpoint("k600");
+        CBResultSet resultSet = new CBResultSet(null, extractor);
+        assertTrue(resultSet.next());
+        assertEquals(601, resultSet.getInt("n"));
+        assertEquals("k601", resultSet.getCheckpoint());
+        int count = 1;
+        while (resultSet.next())
+        {
+            count++;
+        }
+        resultSet.close();
+        assertEquals(399, count);
+        // nothing was sampled, the given split points were used
+        assertTrue(extractor.statements.isEmpty());
+    }
+
+    @Test(expected = SQLException.class)
+    public void testUnorderedHasNoCheckpoint() throws Exception
+    {
+        FakeExtractor extractor = new FakeExtractor(10);
+        CBResultSet resultSet = new CBResultSet(null, extractor);
+        assertTrue(resultSet.next());
+        resultSet.getCheckpoint();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchMetrics;
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.PageSource;
+import com.couchbase.jdbc.core.PrefetchingPageSource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class PrefetchingPageSourceTest
+{
+    private static final String QUERY = "SELECT META(b).id AS id, b.n FROM b";
+
+    // hands out pages of one row and resultSize bytes each, failing at page failAt
+    static class CountingSource implements PageSource
+    {
+        final AtomicInteger fetched = new AtomicInteger();
+        final AtomicInteger released = new AtomicInteger();
+        final int pages;
+        final int resultSize;
+        int failAt = -1;
+
+        CountingSource(int pages, int resultSize)
+        {
+            this.pages = pages;
+            this.resultSize = resultSize;
+        }
+
+        @Override
+        public CouchResponse nextPage() throws SQLException
+        {
+            int page = fetched.get();
+            if (page == failAt)
+            {
+                throw new SQLException("Query node went away");
+            }
+            if (page == pages)
+            {
+                return null;
+            }
+            fetched.incrementAndGet();
+
+            CouchMetrics metrics = new CouchMetrics();
+            metrics.setResultCount(1);
+            metrics.setResultSize(resultSize);
+            CouchResponse response = new CouchResponse()
+            {
+                @Override
+                public void close()
+                {
+                    released.incrementAndGet();
+                }
+            };
+            response.setResults(Collections.singletonList(Collections.<String, Object>singletonMap("n", page)));
+            response.setMetrics(metrics);
+            return response;
+        }
+
+        @Override
+        public Object checkpoint(Map<String, Object> row)
+        {
+            return row.get("n");
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    // waits for the background fetches to settle at expected
+    private static void awaitFetched(CountingSource source, int expected) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (source.fetched.get() < expected && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        Thread.sleep(100);
+        assertEquals(expected, source.fetched.get());
+    }
+
+    @Test
+    public void testReadsKeysetPagesInOrder() throws Exception
+    {
+        KeysetCursorTest.FakeCursor cursor = new KeysetCursorTest.FakeCursor(QUERY, 95);
+        cursor.setPageSize(10);
+        CBResultSet resultSet = new CBResultSet(null, new PrefetchingPageSource(cursor));
+        int n = 0;
+        while (resultSet.next())
+        {
+            assertEquals(n, resultSet.getInt("n"));
+            assertEquals(String.format("k%03d", n), resultSet.getCheckpoint());
+            n++;
+        }
+        assertEquals(95, n);
+        resultSet.close();
+    }
+
+    @Test
+    public void testDepth() throws Exception
+    {
+        CountingSource source = new CountingSource(100, 10);
+        PrefetchingPageSource prefetch = new PrefetchingPageSource(source, 3, Long.MAX_VALUE, null);
+        assertNotNull(prefetch.nextPage());
+        // the page handed out plus three waiting
+        awaitFetched(source, 4);
+        assertNotNull(prefetch.nextPage());
+        awaitFetched(source, 5);
+        prefetch.close();
+    }
+
+    @Test
+    public void testMemoryCap() throws Exception
+    {
+        CountingSource source = new CountingSource(100, 100);
+        PrefetchingPageSource prefetch = new PrefetchingPageSource(source, 10, 150, null);
+        assertNotNull(prefetch.nextPage());
+        // the second page leaves the queue under the cap, the third takes it over
+        awaitFetched(source, 3);
+        prefetch.close();
+        assertEquals(2, source.released.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception
+    {
+        CountingSource source = new CountingSource(100, 10);
+        source.failAt = 2;
+        PrefetchingPageSource prefetch = new PrefetchingPageSource(source, 4, Long.MAX_VALUE, null);
+        assertNotNull(prefetch.nextPage());
+        assertNotNull(prefetch.nextPage());
+        try
+        {
+            prefetch.nextPage();
+            fail("expected the failure of the third page");
+        }
+        catch (SQLException ex)
+        {
+            assertEquals("Query node went away", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testExhausted() throws Exception
+    {
+        CountingSource source = new CountingSource(2, 10);
+        PrefetchingPageSource prefetch = new PrefetchingPageSource(source);
+        assertNotNull(prefetch.nextPage());
+        assertNotNull(prefetch.nextPage());
+        assertNull(prefetch.nextPage());
+        assertNull(prefetch.nextPage());
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchMetrics;
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.JsonCodecs;
+import com.couchbase.jdbc.core.LazyResponseDecoder;
+import com.couchbase.jdbc.core.QueryCoalescer;
+import com.couchbase.jdbc.core.QueryKey;
+import com.couchbase.jdbc.core.ResponseBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class QueryCoalescerTest
+{
+    private static final int CALLERS = 16;
+
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final AtomicInteger released = new AtomicInteger();
+
+    private static QueryKey key(Object... args)
+    {
+        return new QueryKey("http://localhost:8093\0user\0null", "SELECT name FROM b WHERE id = ?", args, null,
+                            "default", "not_bounded");
+    }
+
+    private static void awaitCoalesced(QueryCoalescer coalescer, int callers)
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coalescer.getCoalesced() < callers && System.currentTimeMillis() < deadline)
+        {
+            LockSupport.parkNanos(1000000);
+        }
+    }
+
+    private CouchResponse response(int rows)
+    {
+        fetches.incrementAndGet();
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (int i = 0; i < rows; i++)
+        {
+            Map<String, Object> row = new HashMap<>();
+            row.put("name", "n" + i);
+            results.add(row);
+        }
+        Map<String, String> signature = new HashMap<>();
+        signature.put("name", "string");
+        CouchMetrics metrics = new CouchMetrics();
+        metrics.setResultCount(rows);
+        metrics.setResultSize(rows);
+
+        CouchResponse response = new CouchResponse()
+        {
+            @Override
+            public void close()
+            {
+                released.incrementAndGet();
+            }
+        };
+        response.setSignature(signature);
+        response.setResults(results);
+        response.setMetrics(metrics);
+        return response;
+    }
+
+    @Test
+    public void testConcurrentReadsShareOneRequest() throws Exception
+    {
+        final QueryCoalescer coalescer = new QueryCoalescer();
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        try
+        {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < CALLERS; i++)
+            {
+                results.add(executor.submit(() -> {
+                    CouchResponse view = coalescer.execute(key(1), () -> {
+                        // hold the request until every other caller is waiting on it
+                        awaitCoalesced(coalescer, CALLERS - 1);
+                        return response(5);
+                    });
+                    // every view has a cursor of its own
+                    CBResultSet resultSet = new CBResultSet(null, view);
+                    int rows = 0;
+                    while (resultSet.next())
+                    {
+                        assertEquals("n" + rows++, resultSet.getString("name"));
+                    }
+                    resultSet.close();
+                    return rows;
+                }));
+            }
+            for (Future<Integer> result : results)
+            {
+                assertEquals(5, (int) result.get(10, TimeUnit.SECONDS));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        assertEquals(1, fetches.get());
+        assertEquals(1, coalescer.getRequests());
+        assertEquals(CALLERS - 1, coalescer.getCoalesced());
+        // the shared response goes back once the last view is closed
+        assertEquals(1, released.get());
+    }
+
+    // rows of every shape the decoders produce, with containers the readers try to change
+    private static byte[] json(int rows)
+    {
+        StringBuilder json = new StringBuilder("{\"signature\": {\"name\": \"string\", \"doc\": \"json\", \"tags\": \"json\"}, \"results\": [");
+        for (int i = 0; i < rows; i++)
+        {
+            json.append(i == 0 ? "" : ",").append("{\"name\": \"n").append(i).append("\", \"doc\": {\"id\": ").append(i)
+                .append(", \"nested\": {\"a\": [1, 2]}}, \"tags\": [\"x\", \"y\"]}");
+        }
+        json.append("], \"status\": \"success\", \"metrics\": {\"resultCount\": ").append(rows)
+            .append(", \"resultSize\": ").append(json.length()).append("}}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // every caller reads and changes the shared rows at the same moment, none of them sees another's changes
+    @SuppressWarnings("unchecked")
+    private void readFromManyThreads(final QueryCoalescer.Fetch fetch) throws Exception
+    {
+        final int rows = 200;
+        final QueryCoalescer coalescer = new QueryCoalescer();
+        final CyclicBarrier barrier = new CyclicBarrier(CALLERS);
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        try
+        {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < CALLERS; i++)
+            {
+                results.add(executor.submit(() -> {
+                    CouchResponse view = coalescer.execute(key(3), () -> {
+                        awaitCoalesced(coalescer, CALLERS - 1);
+                        return fetch.fetch();
+                    });
+                    barrier.await(10, TimeUnit.SECONDS);
+                    CBResultSet resultSet = new CBResultSet(null, view);
+                    int count = 0;
+                    while (resultSet.next())
+                    {
+                        assertEquals("n" + count, resultSet.getString("name"));
+                        Map<?, ?> doc = (Map<?, ?>) resultSet.getObject("doc");
+                        assertEquals(count, ((Number) doc.get("id")).intValue());
+                        assertEquals(2, ((List<?>) ((Map<?, ?>) doc.get("nested")).get("a")).size());
+                        List<Object> tags = (List<Object>) resultSet.getObject("tags");
+                        assertEquals(Arrays.asList("x", "y"), tags);
+                        try
+                        {
+                            tags.add("mine");
+                            ((Map<Object, Object>) doc).put("id", -1);
+                        }
+                        catch (UnsupportedOperationException ex)
+                        {
+                            // frozen
+                        }
+                        count++;
+                    }
+                    resultSet.close();
+                    return count;
+                }));
+            }
+            for (Future<Integer> result : results)
+            {
+                assertEquals(rows, (int) result.get(10, TimeUnit.SECONDS));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        assertEquals(1, coalescer.getRequests());
+    }
+
+    @Test
+    public void testBoonRowsFromManyThreads() throws Exception
+    {
+        final byte[] bytes = json(200);
+        readFromManyThreads(() -> {
+            try
+            {
+                return JsonCodecs.forName(JsonCodecs.BOON).decodeResponse(new ByteArrayInputStream(bytes), bytes.length);
+            }
+            catch (IOException ex)
+            {
+                throw new SQLException(ex);
+            }
+        });
+    }
+
+    @Test
+    public void testLazyRowsFromManyThreads() throws Exception
+    {
+        final byte[] bytes = json(200);
+        readFromManyThreads(() -> {
+            try
+            {
+                return new LazyResponseDecoder(ResponseBuffer.read(new ByteArrayInputStream(bytes), bytes.length)).decode();
+            }
+            catch (IOException ex)
+            {
+                throw new SQLException(ex);
+            }
+        });
+    }
+
+    @Test
+    public void testKeys() throws Exception
+    {
+        assertEquals(key(1, "a"), key(1, "a"));
+        assertEquals(key(1, "a").hashCode(), key(1, "a").hashCode());
+        assertNotEquals(key(1, "a"), key(1, "b"));
+        assertNotEquals(key(1), new QueryKey("http://localhost:8093\0other\0null", "SELECT name FROM b WHERE id = ?",
+                                             new Object[] {1}, null, "default", "not_bounded"));
+        Map<String, Object> named = new HashMap<>();
+        named.put("$id", 1);
+        assertNotEquals(new QueryKey("p", "s", null, named, null, "not_bounded"),
+                        new QueryKey("p", "s", null, null, null, "not_bounded"));
+        assertEquals(new QueryKey("p", "s", Arrays.asList(1, 2), null, null, "not_bounded"),
+                     new QueryKey("p", "s", Arrays.asList(1, 2), null, null, "not_bounded"));
+    }
+
+    @Test
+    public void testNothingIsKeptAfterTheRequest() throws Exception
+    {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        coalescer.execute(key(1), () -> response(1)).close();
+        coalescer.execute(key(1), () -> response(1)).close();
+        assertEquals(2, fetches.get());
+        assertEquals(2, released.get());
+        assertEquals(0, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void testLoneCallerReadsTheRowsAsDecoded() throws Exception
+    {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        CouchResponse[] fetched = new CouchResponse[1];
+        CouchResponse view = coalescer.execute(key(1), () -> fetched[0] = response(3));
+        // nobody joined, so nothing was copied
+        assertSame(fetched[0].getResults().get(0), view.getResults().get(0));
+        view.close();
+        assertEquals(1, released.get());
+    }
+
+    @Test
+    public void testFailureReachesEveryCaller() throws Exception
+    {
+        final QueryCoalescer coalescer = new QueryCoalescer();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++)
+            {
+                results.add(executor.submit(() -> {
+                    try
+                    {
+                        coalescer.execute(key(2), () -> {
+                            awaitCoalesced(coalescer, 3);
+                            throw new SQLException("Index not found", "42000", 4000);
+                        });
+                        return "no error";
+                    }
+                    catch (SQLException ex)
+                    {
+                        return ex.getMessage() + " " + ex.getErrorCode();
+                    }
+                }));
+            }
+            for (Future<String> result : results)
+            {
+                assertEquals("Index not found 4000", result.get(10, TimeUnit.SECONDS));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFieldsFromManyThreads() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            for (int round = 0; round < 100; round++)
+            {
+                final CouchResponse response = response(1);
+                final CyclicBarrier barrier = new CyclicBarrier(4);
+                List<Future<Integer>> fields = new ArrayList<>();
+                for (int i = 0; i < 4; i++)
+                {
+                    fields.add(executor.submit(() -> {
+                        barrier.await();
+                        return response.getFields().size();
+                    }));
+                }
+                for (Future<Integer> count : fields)
+                {
+                    assertEquals(1, (int) count.get(10, TimeUnit.SECONDS));
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
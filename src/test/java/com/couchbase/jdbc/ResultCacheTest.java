@@ -0,0 +1,238 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchMetrics;
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.QueryKey;
+import com.couchbase.jdbc.core.ResultCache;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ResultCacheTest
+{
+    private static final long TTL = 60000;
+    private static final int EXPANSION = ResultCache.DECODED_EXPANSION;
+
+    private final AtomicInteger released = new AtomicInteger();
+
+    private static QueryKey key(String statement, Object... args)
+    {
+        return new QueryKey("http://localhost:8093\0user\0null", statement, args, null, "default", "not_bounded");
+    }
+
+    // a response of one row whose results were size bytes on the wire, the cache counts them decoded
+    private CouchResponse response(int size)
+    {
+        Map<String, Object> row = new HashMap<>();
+        row.put("size", size);
+        row.put("tags", new ArrayList<>(Arrays.asList("a", "b")));
+        Map<String, String> signature = new HashMap<>();
+        signature.put("size", "number");
+        CouchMetrics metrics = new CouchMetrics();
+        metrics.setResultCount(1);
+        metrics.setResultSize(size);
+
+        CouchResponse response = new CouchResponse()
+        {
+            @Override
+            public void close()
+            {
+                released.incrementAndGet();
+            }
+        };
+        response.setSignature(signature);
+        response.setResults(Collections.singletonList(row));
+        response.setMetrics(metrics);
+        return response;
+    }
+
+    @Test
+    public void testHit() throws Exception
+    {
+        ResultCache cache = new ResultCache(1000 * EXPANSION);
+        assertNull(cache.get(key("SELECT 1")));
+        cache.put(key("SELECT 1"), response(100), TTL).close();
+
+        CouchResponse hit = cache.get(key("SELECT 1"));
+        assertNotNull(hit);
+        CBResultSet resultSet = new CBResultSet(null, hit);
+        assertTrue(resultSet.next());
+        assertEquals(100, resultSet.getInt("size"));
+        resultSet.close();
+
+        assertNull(cache.get(key("SELECT 1", 2)));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1.0 / 3, cache.getHitRatio(), 1e-9);
+        assertEquals(1, cache.getEntries());
+        assertEquals(100 * EXPANSION, cache.getBytes());
+        assertEquals(0, released.get());
+    }
+
+    @Test
+    public void testExpiry() throws Exception
+    {
+        ResultCache cache = new ResultCache(1000 * EXPANSION);
+        cache.put(key("SELECT 1"), response(100), 20).close();
+        Thread.sleep(50);
+        assertNull(cache.get(key("SELECT 1")));
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getBytes());
+        assertEquals(1, released.get());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception
+    {
+        ResultCache cache = new ResultCache(250 * EXPANSION);
+        cache.put(key("SELECT a"), response(100), TTL).close();
+        cache.put(key("SELECT b"), response(100), TTL).close();
+        cache.get(key("SELECT a")).close();
+        cache.put(key("SELECT c"), response(100), TTL).close();
+
+        assertNull(cache.get(key("SELECT b")));
+        assertNotNull(cache.get(key("SELECT a")));
+        assertNotNull(cache.get(key("SELECT c")));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(200 * EXPANSION, cache.getBytes());
+    }
+
+    @Test
+    public void testViewsOutliveInvalidation() throws Exception
+    {
+        ResultCache cache = new ResultCache(1000 * EXPANSION);
+        CouchResponse view = cache.put(key("SELECT 1"), response(100), TTL);
+        cache.invalidateAll();
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, released.get());
+        view.close();
+        assertEquals(1, released.get());
+    }
+
+    @Test
+    public void testInvalidateStatement() throws Exception
+    {
+        ResultCache cache = new ResultCache(1000 * EXPANSION);
+        cache.put(key("SELECT name FROM b WHERE id = ?", 1), response(10), TTL).close();
+        cache.put(key("SELECT name FROM b WHERE id = ?", 2), response(10), TTL).close();
+        cache.put(key("SELECT 1"), response(10), TTL).close();
+        cache.invalidate("SELECT name FROM b WHERE id = ?");
+        assertEquals(1, cache.getEntries());
+        assertEquals(2, released.get());
+        cache.invalidate(key("SELECT 1"));
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void testTooLargeIsNotCached() throws Exception
+    {
+        ResultCache cache = new ResultCache(50 * EXPANSION);
+        CouchResponse response = response(100);
+        assertSame(response, cache.put(key("SELECT 1"), response, TTL));
+        assertEquals(0, cache.getEntries());
+
+        // decoded rows are counted at what they take on the heap, not on the wire
+        cache = new ResultCache(200);
+        response = response(100);
+        assertSame(response, cache.put(key("SELECT 1"), response, TTL));
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void testArgumentsChangedAfterwards() throws Exception
+    {
+        // a prepared statement passes the array its setters write to
+        Object[] args = {1};
+        ResultCache cache = new ResultCache(1000 * EXPANSION);
+        cache.put(key("SELECT name FROM b WHERE id = ?", args), response(100), TTL).close();
+        args[0] = 2;
+        assertNull(cache.get(key("SELECT name FROM b WHERE id = ?", args)));
+        CouchResponse hit = cache.get(key("SELECT name FROM b WHERE id = ?", 1));
+        assertNotNull(hit);
+        hit.close();
+        cache.invalidate(key("SELECT name FROM b WHERE id = ?", 1));
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void testRowsAreFrozenOnTheFirstHit() throws Exception
+    {
+        ResultCache cache = new ResultCache(1000 * EXPANSION);
+        CouchResponse response = response(100);
+        Map<String, Object> row = response.getResults().get(0);
+        CouchResponse stored = cache.put(key("SELECT 1"), response, TTL);
+        assertSame(row, stored.getResults().get(0));
+
+        // the caller that stored the rows still reads them as they were decoded
+        assertNull(cache.get(key("SELECT 1")));
+        stored.close();
+
+        CouchResponse hit = cache.get(key("SELECT 1"));
+        assertNotSame(row, hit.getResults().get(0));
+        assertEquals(row, hit.getResults().get(0));
+        CouchResponse again = cache.get(key("SELECT 1"));
+        assertSame(hit.getResults().get(0), again.getResults().get(0));
+        hit.close();
+        again.close();
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testHitsCannotChangeTheCachedRows() throws Exception
+    {
+        ResultCache cache = new ResultCache(1000 * EXPANSION);
+        cache.put(key("SELECT 1"), response(100), TTL).close();
+
+        CouchResponse hit = cache.get(key("SELECT 1"));
+        Map<String, Object> row = hit.getResults().get(0);
+        try
+        {
+            row.put("size", 1);
+            fail("cached rows are frozen");
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // expected
+        }
+        try
+        {
+            ((List<Object>) row.get("tags")).add("c");
+            fail("cached rows are frozen all the way down");
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // expected
+        }
+        hit.close();
+
+        CouchResponse again = cache.get(key("SELECT 1"));
+        assertEquals(100, again.getResults().get(0).get("size"));
+        assertEquals(Arrays.asList("a", "b"), again.getResults().get(0).get("tags"));
+        again.close();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.JsonCodecs;
+import com.couchbase.jdbc.core.LazyResponseDecoder;
+import com.couchbase.jdbc.core.ResponseBuffer;
+import com.couchbase.jdbc.core.RowMapper;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class RowMapperTest
+{
+    private static final String RESPONSE = "{\"signature\": {\"*\":\"*\"}, \"results\": ["
+            + "{\"b\": {\"id\": 12345678901, \"name\": \"joe\", \"age\": 20, \"score\": 1.5, \"active\": true,"
+            + " \"balance\": 10.25, \"kind\": \"ADMIN\", \"tags\": [1, 2], \"ignored\": 1}},"
+            + "{\"b\": {\"id\": 2, \"name\": null, \"age\": null, \"score\": 3, \"active\": false, \"first_name\": \"sm\\u00e9th\"}}"
+            + "], \"status\": \"success\", \"metrics\": {\"resultCount\": 2, \"resultSize\": 100}}";
+
+    public enum Kind
+    {
+        ADMIN, USER
+    }
+
+    public static class User
+    {
+        private long id;
+        private String name;
+        private int age = -1;
+        private double score;
+        private boolean active;
+        private BigDecimal balance;
+        private Kind kind;
+        private List<Object> tags;
+        private String firstName;
+
+        public void setId(long id)
+        {
+            this.id = id;
+        }
+
+        public void setName(String name)
+        {
+            this.name = name;
+        }
+
+        public void setAge(int age)
+        {
+            this.age = age;
+        }
+
+        public void setScore(double score)
+        {
+            this.score = score;
+        }
+
+        public void setActive(boolean active)
+        {
+            this.active = active;
+        }
+
+        public void setBalance(BigDecimal balance)
+        {
+            this.balance = balance;
+        }
+
+        public void setKind(Kind kind)
+        {
+            this.kind = kind;
+        }
+
+        public void setTags(List<Object> tags)
+        {
+            this.tags = tags;
+        }
+
+        public void setFirstName(String firstName)
+        {
+            this.firstName = firstName;
+        }
+    }
+
+    // no setters, the fields are written directly
+    static class Plain
+    {
+        Long id;
+        String name;
+        double score;
+        final String constant = "x";
+    }
+
+    private static CouchResponse lazy() throws Exception
+    {
+        byte[] bytes = RESPONSE.getBytes(StandardCharsets.UTF_8);
+        return new LazyResponseDecoder(ResponseBuffer.read(new ByteArrayInputStream(bytes), bytes.length)).decode();
+    }
+
+    private static CouchResponse boon() throws Exception
+    {
+        byte[] bytes = RESPONSE.getBytes(StandardCharsets.UTF_8);
+        return JsonCodecs.forName("boon").decodeResponse(new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    @Test
+    public void testSetters() throws Exception
+    {
+        for (CouchResponse response : new CouchResponse[] { lazy(), boon() })
+        {
+            List<User> users = new CBResultSet(null, response).mapTo(User.class);
+            assertEquals(2, users.size());
+
+            User first = users.get(0);
+            assertEquals(12345678901L, first.id);
+            assertEquals("joe", first.name);
+            assertEquals(20, first.age);
+            assertEquals(1.5, first.score, 0);
+            assertTrue(first.active);
+            assertEquals(new BigDecimal("10.25"), first.balance);
+            assertEquals(Kind.ADMIN, first.kind);
+            assertEquals(2, first.tags.size());
+
+            User second = users.get(1);
+            assertEquals(2, second.id);
+            assertNull(second.name);
+            // null leaves a primitive at its default
+            assertEquals(-1, second.age);
+            assertEquals(3.0, second.score, 0);
+            assertFalse(second.active);
+            assertEquals("sméth", second.firstName);
+        }
+    }
+
+    @Test
+    public void testFields() throws Exception
+    {
+        CBResultSet resultSet = new CBResultSet(null, lazy());
+        assertTrue(resultSet.next());
+        Plain plain = resultSet.mapRow(Plain.class);
+        assertEquals(Long.valueOf(12345678901L), plain.id);
+        assertEquals("joe", plain.name);
+        assertEquals(1.5, plain.score, 0);
+        assertEquals("x", plain.constant);
+    }
+
+    @Test
+    public void testConversions() throws Exception
+    {
+        Map<String, Object> row = new HashMap<>();
+        row.put("ID", "42");
+        row.put("score", 7);
+        row.put("name", 12);
+        Plain plain = RowMapper.of(Plain.class).map(row);
+        assertEquals(Long.valueOf(42), plain.id);
+        assertEquals(7.0, plain.score, 0);
+        assertEquals("12", plain.name);
+
+        row.put("score", "many");
+        try
+        {
+            RowMapper.of(Plain.class).map(row);
+            fail("not a number");
+        }
+        catch (SQLException expected)
+        {
+            // the message names the column
+            assertTrue(expected.getMessage().contains("score"));
+        }
+    }
+
+    @Test
+    public void testCached() throws Exception
+    {
+        assertSame(RowMapper.of(User.class), RowMapper.of(User.class));
+    }
+
+    @Test(expected = SQLException.class)
+    public void testNoConstructor() throws Exception
+    {
+        RowMapper.of(Integer.class);
+    }
+}
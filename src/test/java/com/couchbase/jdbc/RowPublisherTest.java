@@ -0,0 +1,226 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.ResultStream;
+import com.couchbase.jdbc.reactive.RowPublisher;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Subscribes to canned responses, reading them on the calling thread unless a test says otherwise
+ */
+@RunWith(JUnit4.class)
+public class RowPublisherTest
+{
+    private final AtomicInteger opened = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+    private final List<String> cancelled = new CopyOnWriteArrayList<>();
+
+    private RowPublisher publisher(int rows, String status, Executor executor)
+    {
+        StringBuilder json = new StringBuilder("{\"requestID\": \"abc\", \"signature\": {\"id\":\"number\"}, \"results\": [");
+        for (int i = 0; i < rows; i++)
+        {
+            json.append(i > 0 ? "," : "").append("{\"id\": ").append(i).append("}");
+        }
+        String response = json.append("], \"status\": \"").append(status).append("\"}").toString();
+
+        return new RowPublisher(new RowPublisher.Source()
+        {
+            @Override
+            public ResultStream open()
+            {
+                opened.incrementAndGet();
+                return new ResultStream(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), closed::incrementAndGet,
+                                        new ResultStream.Completion()
+                {
+                    @Override
+                    public void complete(CouchResponse couchResponse) throws SQLException
+                    {
+                        if (!"success".equals(couchResponse.getStatus()))
+                        {
+                            throw new SQLException("Query failed", null, 1080);
+                        }
+                    }
+                }, 16);
+            }
+
+            @Override
+            public void cancel(ResultStream stream)
+            {
+                cancelled.add(stream.getResponse().getRequestId());
+            }
+        }, executor);
+    }
+
+    static class Recorder implements Subscriber<Row>
+    {
+        final List<Long> ids = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final long initial;
+        volatile Subscription subscription;
+        volatile Throwable error;
+        volatile boolean complete;
+
+        Recorder(long initial)
+        {
+            this.initial = initial;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription)
+        {
+            this.subscription = subscription;
+            if (initial > 0)
+            {
+                subscription.request(initial);
+            }
+        }
+
+        @Override
+        public void onNext(Row row)
+        {
+            ids.add(row.getLong("id"));
+        }
+
+        @Override
+        public void onError(Throwable error)
+        {
+            this.error = error;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete()
+        {
+            complete = true;
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void testDemand() throws Exception
+    {
+        Recorder recorder = new Recorder(2);
+        RowPublisher publisher = publisher(10, "success", Runnable::run);
+        assertEquals(0, opened.get());
+        publisher.subscribe(recorder);
+        assertEquals("[0, 1]", recorder.ids.toString());
+        assertFalse(recorder.complete);
+
+        recorder.subscription.request(3);
+        assertEquals("[0, 1, 2, 3, 4]", recorder.ids.toString());
+        assertEquals(0, closed.get());
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(10, recorder.ids.size());
+        assertTrue(recorder.complete);
+        assertEquals(1, opened.get());
+        assertEquals(1, closed.get());
+        assertTrue(cancelled.isEmpty());
+    }
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        Recorder recorder = new Recorder(3);
+        publisher(10, "success", Runnable::run).subscribe(recorder);
+        recorder.subscription.cancel();
+        recorder.subscription.request(5);
+        assertEquals(3, recorder.ids.size());
+        assertFalse(recorder.complete);
+        assertNull(recorder.error);
+        assertEquals(1, closed.get());
+        assertEquals("[abc]", cancelled.toString());
+    }
+
+    @Test
+    public void testCancelBeforeRequest() throws Exception
+    {
+        Recorder recorder = new Recorder(0);
+        publisher(10, "success", Runnable::run).subscribe(recorder);
+        recorder.subscription.cancel();
+        assertEquals(0, opened.get());
+        assertTrue(cancelled.isEmpty());
+    }
+
+    @Test
+    public void testErrorAfterRows() throws Exception
+    {
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        publisher(3, "timeout", Runnable::run).subscribe(recorder);
+        assertEquals(3, recorder.ids.size());
+        assertEquals(1080, ((SQLException) recorder.error).getErrorCode());
+        assertEquals(1, closed.get());
+        assertTrue(cancelled.isEmpty());
+    }
+
+    @Test
+    public void testInvalidRequest() throws Exception
+    {
+        Recorder recorder = new Recorder(0);
+        publisher(3, "success", Runnable::run).subscribe(recorder);
+        recorder.subscription.request(0);
+        assertTrue(recorder.error instanceof IllegalArgumentException);
+        assertTrue(recorder.ids.isEmpty());
+    }
+
+    @Test
+    public void testOneAtATime() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Recorder recorder = new Recorder(1)
+            {
+                @Override
+                public void onNext(Row row)
+                {
+                    super.onNext(row);
+                    subscription.request(1);
+                }
+            };
+            publisher(500, "success", executor).subscribe(recorder);
+            assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+            assertTrue(recorder.complete);
+            assertEquals(500, recorder.ids.size());
+            for (int i = 0; i < 500; i++)
+            {
+                assertEquals(i, (long) recorder.ids.get(i));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
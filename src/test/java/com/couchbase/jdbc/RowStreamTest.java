@@ -0,0 +1,113 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.ResultStream;
+import com.couchbase.jdbc.core.RowSpliterator;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class RowStreamTest
+{
+    private final AtomicInteger closed = new AtomicInteger();
+
+    private static String response(int rows, String status)
+    {
+        StringBuilder json = new StringBuilder("{\"signature\": {\"*\":\"*\"}, \"results\": [");
+        for (int i = 0; i < rows; i++)
+        {
+            json.append(i > 0 ? "," : "").append("{\"b\": {\"id\": ").append(i).append(", \"name\": \"n").append(i).append("\"}}");
+        }
+        return json.append("], \"status\": \"").append(status).append("\"}").toString();
+    }
+
+    private Stream<Row> stream(String json)
+    {
+        ResultStream results = new ResultStream(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)),
+                                                closed::incrementAndGet, new ResultStream.Completion()
+        {
+            @Override
+            public void complete(CouchResponse response) throws SQLException
+            {
+                if (!"success".equals(response.getStatus()))
+                {
+                    throw new SQLException("Query failed", null, 1080);
+                }
+            }
+        }, 32);
+        RowSpliterator rows = new RowSpliterator(results);
+        return StreamSupport.stream(rows, false).onClose(rows::close);
+    }
+
+    @Test
+    public void testSequential() throws Exception
+    {
+        List<Long> ids = stream(response(10, "success")).map(row -> row.getLong("id")).collect(Collectors.toList());
+        assertEquals("[0, 1, 2, 3, 4, 5, 6, 7, 8, 9]", ids.toString());
+        // read to its end, the exchange is released without waiting for close
+        assertEquals(1, closed.get());
+    }
+
+    @Test
+    public void testParallelKeepsOrder() throws Exception
+    {
+        List<String> names = stream(response(5000, "success")).parallel().map(row -> row.getString("name")).collect(Collectors.toList());
+        assertEquals(5000, names.size());
+        for (int i = 0; i < names.size(); i++)
+        {
+            assertEquals("n" + i, names.get(i));
+        }
+        assertEquals(1, closed.get());
+    }
+
+    @Test
+    public void testCloseEarly() throws Exception
+    {
+        try (Stream<Row> rows = stream(response(100, "success")))
+        {
+            assertEquals(3, rows.limit(3).count());
+            assertEquals(0, closed.get());
+        }
+        assertEquals(1, closed.get());
+    }
+
+    @Test
+    public void testErrorAfterRows() throws Exception
+    {
+        AtomicInteger seen = new AtomicInteger();
+        try (Stream<Row> rows = stream(response(3, "timeout")))
+        {
+            rows.forEach(row -> seen.incrementAndGet());
+            fail("the server reported an error");
+        }
+        catch (IllegalStateException ex)
+        {
+            assertEquals(1080, ((SQLException) ex.getCause()).getErrorCode());
+        }
+        assertEquals(3, seen.get());
+        assertEquals(1, closed.get());
+    }
+}
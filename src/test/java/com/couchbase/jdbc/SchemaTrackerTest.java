@@ -0,0 +1,109 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.JsonCodecs;
+import com.couchbase.jdbc.core.LazyResponseDecoder;
+import com.couchbase.jdbc.core.ResponseBuffer;
+import com.couchbase.jdbc.core.SchemaTracker;
+import com.couchbase.jdbc.util.JSONTypes;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+
+import static org.junit.Assert.*;
+
+/**
+ * Columns of select * results are learned from every row, no server required
+ */
+@RunWith(JUnit4.class)
+public class SchemaTrackerTest
+{
+    private static final String RESPONSE = "{\"signature\": {\"*\":\"*\"}, \"results\": ["
+            + "{\"b\": {\"id\": 1, \"name\": null}},"
+            + "{\"b\": {\"id\": 2, \"name\": \"joe\", \"extra\": true}},"
+            + "{\"b\": {\"id\": \"three\", \"name\": \"sue\"}}"
+            + "], \"status\": \"success\", \"metrics\": {\"resultCount\": 3, \"resultSize\": 100}}";
+
+    @Test
+    public void testLazyRows() throws Exception
+    {
+        byte [] bytes = RESPONSE.getBytes(StandardCharsets.UTF_8);
+        check(new LazyResponseDecoder(ResponseBuffer.readHeap(new ByteArrayInputStream(bytes), bytes.length)).decode());
+    }
+
+    @Test
+    public void testDecodedRows() throws Exception
+    {
+        byte [] bytes = RESPONSE.getBytes(StandardCharsets.UTF_8);
+        check(JsonCodecs.getDefault().decodeResponse(new ByteArrayInputStream(bytes), bytes.length));
+    }
+
+    @Test
+    public void testDeclared() throws Exception
+    {
+        byte [] bytes = ("{\"signature\": {\"id\":\"number\"}, \"results\": [{\"id\": 1}, {\"id\": 2, \"x\": 3}],"
+                + " \"status\": \"success\", \"metrics\": {\"resultCount\": 2, \"resultSize\": 20}}").getBytes(StandardCharsets.UTF_8);
+        CBResultSet resultSet = new CBResultSet(null, JsonCodecs.getDefault().decodeResponse(new ByteArrayInputStream(bytes), bytes.length));
+        while (resultSet.next())
+        {
+            assertEquals(1, resultSet.getMetaData().getColumnCount());
+        }
+        assertFalse(resultSet.response.getSchema().isInferred());
+        assertEquals(0, resultSet.response.getSchema().getObservedRows());
+        resultSet.close();
+    }
+
+    private static void check(CouchResponse response) throws Exception
+    {
+        CBResultSet resultSet = new CBResultSet(null, response);
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        SchemaTracker schema = response.getSchema();
+
+        assertTrue(resultSet.next());
+        assertEquals(2, metaData.getColumnCount());
+        assertEquals(Types.NULL, metaData.getColumnType(2));
+        assertNull(resultSet.getObject("name"));
+
+        // the second row widens name to a string and adds a column, earlier ordinals stay put
+        assertTrue(resultSet.next());
+        assertEquals(3, metaData.getColumnCount());
+        assertEquals(1, resultSet.findColumn("id"));
+        assertEquals(2, resultSet.findColumn("name"));
+        assertEquals(3, resultSet.findColumn("extra"));
+        assertEquals(Types.VARCHAR, metaData.getColumnType(2));
+        assertEquals("joe", resultSet.getObject("name"));
+        assertEquals(Boolean.TRUE, resultSet.getObject(3));
+
+        // a string in a number column makes it json
+        assertTrue(resultSet.next());
+        assertEquals(Types.JAVA_OBJECT, metaData.getColumnType(1));
+        assertFalse(schema.getColumn(0).isUniform());
+        assertEquals(2, schema.getColumn(0).getCount(JSONTypes.JSON_NUMBER));
+        assertEquals(1, schema.getColumn(0).getCount(JSONTypes.JSON_STRING));
+        assertEquals(1, schema.getColumn(1).getCount(JSONTypes.JSON_NULL));
+        assertEquals(JSONTypes.JSON_STRING, schema.getColumn(1).getJsonType());
+        assertEquals(1, schema.getColumn(2).getPresentCount());
+        assertNull(resultSet.getObject("extra"));
+        assertTrue(resultSet.wasMissing());
+
+        assertFalse(resultSet.next());
+        assertEquals(3, schema.getObservedRows());
+        resultSet.close();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc;
+
+import com.couchbase.jdbc.util.TemporalCodec;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class TemporalCodecTest
+{
+    private static final Calendar UTC = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    private static final Calendar TORONTO = Calendar.getInstance(TimeZone.getTimeZone("America/Toronto"));
+
+    @Test
+    public void testParseLocalTimestamp() throws Exception
+    {
+        assertEquals(Timestamp.valueOf("2015-09-01 10:11:12.123456"), TemporalCodec.parseTimestamp("2015-09-01 10:11:12.123456", null));
+        assertEquals(Timestamp.valueOf("2015-09-01 10:11:12"), TemporalCodec.parseTimestamp("2015-09-01T10:11:12", null));
+        assertEquals(Timestamp.valueOf("2015-09-01 00:00:00"), TemporalCodec.parseTimestamp("2015-09-01", null));
+    }
+
+    @Test
+    public void testParseTimestampWithOffset() throws Exception
+    {
+        Timestamp ts = TemporalCodec.parseTimestamp("2015-09-01T10:11:12.5-07:00", TORONTO);
+        assertEquals(1441127472500L, ts.getTime());
+        assertEquals(500000000, ts.getNanos());
+
+        assertEquals(1441102272000L, TemporalCodec.parseTimestamp("2015-09-01T10:11:12Z", null).getTime());
+        assertEquals(1441102272000L, TemporalCodec.parseTimestamp("2015-09-01 10:11:12.000000 +00:00:00", null).getTime());
+    }
+
+    @Test
+    public void testParseWithCalendar() throws Exception
+    {
+        assertEquals(1441102272000L, TemporalCodec.parseTimestamp("2015-09-01 10:11:12", UTC).getTime());
+        assertEquals(1441065600000L, TemporalCodec.parseDate("2015-09-01", UTC).getTime());
+        assertEquals(36672000L, TemporalCodec.parseTime("10:11:12", UTC).getTime());
+        assertEquals(Time.valueOf("10:11:12"), TemporalCodec.parseTime("10:11:12", null));
+        assertEquals(Date.valueOf("2015-09-01"), TemporalCodec.parseDate("2015-09-01T10:11:12Z", null));
+    }
+
+    @Test
+    public void testFormat() throws Exception
+    {
+        Timestamp ts = new Timestamp(1441102272000L);
+        ts.setNanos(123456789);
+        assertEquals("2015-09-01 10:11:12.123456 +00:00:00", TemporalCodec.format(UTC, ts));
+        assertEquals("2015-09-01 06:11:12.123456 -04:00:00", TemporalCodec.format(TORONTO, ts));
+        assertEquals("2015-09-01 +00:00:00", TemporalCodec.format(UTC, new Date(1441102272000L)));
+        assertEquals("10:11:12.000000 +00:00:00", TemporalCodec.format(UTC, new Time(36672000L)));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        Timestamp ts = Timestamp.valueOf("1969-12-31 23:59:59.25");
+        assertEquals(ts, TemporalCodec.parseTimestamp(TemporalCodec.format(TORONTO, ts), null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGarbage() throws Exception
+    {
+        TemporalCodec.parseTimestamp("not a date", null);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+package com.couchbase.jdbc.benchmark;
+
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.JsonCodec;
+import com.couchbase.jdbc.core.JsonCodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Boon codec with the streaming one on a response of {@code rows} documents
+ * and on encoding the parameters of a typical prepared statement.
+ *
+ * Run with: mvn -Pbenchmarks clean test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.couchbase.jdbc.benchmark.JsonCodecBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.boon.faststringutils.disable=true")
+@State(Scope.Thread)
+public class JsonCodecBenchmark
+{
+    @Param({ "boon", "streaming" })
+    public String codecName;
+
+    @Param({ "1", "1000" })
+    public int rows;
+
+    private JsonCodec codec;
+    private byte[] response;
+    private Map<String, Object> parameters;
+    private ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+
+    @Setup
+    public void setup()
+    {
+        codec = JsonCodecs.forName(codecName);
+
+        StringBuilder json = new StringBuilder("{\"requestID\": \"6d4a0c8e\", \"signature\": {\"*\":\"*\"}, \"results\": [");
+        for (int i = 0; i < rows; i++)
+        {
+            if (i > 0) json.append(',');
+            json.append("{\"travel-sample\": {\"id\": ").append(i)
+                .append(", \"type\": \"airline\", \"name\": \"Airline ").append(i)
+                .append("\", \"iata\": \"Q").append(i % 10).append("\", \"icao\": \"MLA\", \"callsign\": \"MILE-AIR\"")
+                .append(", \"country\": \"United States\", \"rating\": ").append(i * 0.25)
+                .append(", \"active\": true, \"routes\": [10, 20, 30]}}");
+        }
+        json.append("], \"status\": \"success\", \"metrics\": {\"elapsedTime\": \"12.3ms\", \"executionTime\": \"12.1ms\",")
+            .append(" \"resultCount\": ").append(rows).append(", \"resultSize\": ").append(rows * 220).append("}}");
+        response = json.toString().getBytes(StandardCharsets.UTF_8);
+
+        parameters = new HashMap<>();
+        parameters.put("statement", "select * from `travel-sample` where type = $1 and country = $2 limit $3");
+        parameters.put("args", Arrays.asList("airline", "United States", 100));
+        parameters.put("namespace", "default");
+        parameters.put("scan_consistency", "not_bounded");
+        parameters.put("timeout", "75s");
+    }
+
+    @Benchmark
+    public void decodeResponse(Blackhole blackhole) throws IOException, SQLException
+    {
+        CouchResponse couchResponse = codec.decodeResponse(new ByteArrayInputStream(response), response.length);
+        // touch every value so lazy maps pay their way too
+        for (Map<String, Object> row : couchResponse.getResults())
+        {
+            for (Object value : row.values())
+            {
+                blackhole.consume(value);
+            }
+        }
+    }
+
+    @Benchmark
+    public int encodeRequest() throws IOException
+    {
+        out.reset();
+        codec.writeJson(parameters, out);
+        return out.size();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        new Runner(new OptionsBuilder().include(JsonCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+package com.couchbase.jdbc.benchmark;
+
+import com.couchbase.jdbc.core.CouchError;
+import com.couchbase.jdbc.core.CouchMetrics;
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.JsonCodec;
+import com.couchbase.jdbc.core.JsonCodecs;
+import org.boon.core.reflection.MapObjectConversion;
+import org.boon.json.JsonFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per response cost of a one row point query, which is mostly the envelope: status, metrics
+ * and a warning. The reflective benchmark converts the metrics and warnings the way the
+ * driver used to, through Boon's MapObjectConversion.
+ *
+ * Run with: mvn -Pbenchmarks clean test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.couchbase.jdbc.benchmark.ResponseEnvelopeBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.boon.faststringutils.disable=true")
+public class ResponseEnvelopeBenchmark
+{
+    private static final String RESPONSE = "{\n"
+            + "    \"requestID\": \"b6e2f8a1-5c1d-4b6e-9a51-0f2c3d4e5f60\",\n"
+            + "    \"signature\": {\"id\": \"json\", \"name\": \"json\"},\n"
+            + "    \"results\": [\n"
+            + "        {\"id\": 10, \"name\": \"40-Mile Air\"}\n"
+            + "    ],\n"
+            + "    \"status\": \"success\",\n"
+            + "    \"warnings\": [{\"code\": 5050, \"msg\": \"Index scan covers a subset of the keys\"}],\n"
+            + "    \"metrics\": {\n"
+            + "        \"elapsedTime\": \"1.683209ms\",\n"
+            + "        \"executionTime\": \"1.647918ms\",\n"
+            + "        \"resultCount\": 1,\n"
+            + "        \"resultSize\": 62,\n"
+            + "        \"warningCount\": 1\n"
+            + "    }\n"
+            + "}\n";
+
+    @State(Scope.Thread)
+    public static class Codec
+    {
+        @Param({ "boon", "streaming" })
+        public String codecName;
+
+        JsonCodec codec;
+        byte[] response;
+
+        @Setup
+        public void setup()
+        {
+            codec = JsonCodecs.forName(codecName);
+            response = RESPONSE.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public CouchResponse decode(Codec state) throws IOException, SQLException
+    {
+        return state.codec.decodeResponse(new ByteArrayInputStream(state.response), state.response.length);
+    }
+
+    @Benchmark
+    public Object reflective()
+    {
+        Map root = (Map) JsonFactory.fromJson(RESPONSE);
+        //noinspection unchecked
+        CouchMetrics metrics = MapObjectConversion.fromMap((Map) root.get("metrics"), CouchMetrics.class);
+        //noinspection unchecked
+        List<CouchError> warnings = MapObjectConversion.convertListOfMapsToObjects(CouchError.class, (List) root.get("warnings"));
+        return warnings.isEmpty() ? metrics : warnings;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        new Runner(new OptionsBuilder().include(ResponseEnvelopeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
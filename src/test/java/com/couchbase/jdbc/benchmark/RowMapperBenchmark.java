@@ -0,0 +1,136 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.benchmark;
+
+import com.couchbase.jdbc.CBResultSet;
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.LazyResponseDecoder;
+import com.couchbase.jdbc.core.ResponseBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps {@code rows} lazily decoded rows onto a bean, once with {@link CBResultSet#mapTo} and
+ * once the way a hand written row mapper calling the getters by label would.
+ *
+ * Run with: mvn -Pbenchmarks clean test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.couchbase.jdbc.benchmark.RowMapperBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.boon.faststringutils.disable=true")
+@State(Scope.Thread)
+public class RowMapperBenchmark
+{
+    @Param({ "1000" })
+    public int rows;
+
+    private byte[] response;
+
+    public static class Airline
+    {
+        private long id;
+        private String name;
+        private double rating;
+        private boolean active;
+
+        public void setId(long id)
+        {
+            this.id = id;
+        }
+
+        public void setName(String name)
+        {
+            this.name = name;
+        }
+
+        public void setRating(double rating)
+        {
+            this.rating = rating;
+        }
+
+        public void setActive(boolean active)
+        {
+            this.active = active;
+        }
+    }
+
+    @Setup
+    public void setup()
+    {
+        StringBuilder json = new StringBuilder("{\"requestID\": \"6d4a0c8e\", \"signature\": {\"*\":\"*\"}, \"results\": [");
+        for (int i = 0; i < rows; i++)
+        {
+            if (i > 0) json.append(',');
+            json.append("{\"travel-sample\": {\"id\": ").append(i)
+                .append(", \"name\": \"Airline ").append(i).append("\", \"rating\": ").append(i % 5).append(".5")
+                .append(", \"active\": true}}");
+        }
+        json.append("], \"status\": \"success\", \"metrics\": {\"resultCount\": ").append(rows)
+            .append(", \"resultSize\": ").append(rows * 80).append("}}");
+        response = json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private CBResultSet resultSet() throws IOException, SQLException
+    {
+        CouchResponse couchResponse = new LazyResponseDecoder(ResponseBuffer.readHeap(new ByteArrayInputStream(response), response.length)).decode();
+        return new CBResultSet(null, couchResponse);
+    }
+
+    @Benchmark
+    public List<Airline> mapTo() throws IOException, SQLException
+    {
+        return resultSet().mapTo(Airline.class);
+    }
+
+    @Benchmark
+    public List<Airline> getters() throws IOException, SQLException
+    {
+        CBResultSet resultSet = resultSet();
+        List<Airline> airlines = new ArrayList<>();
+        while (resultSet.next())
+        {
+            Airline airline = new Airline();
+            airline.setId(resultSet.getLong("id"));
+            airline.setName(resultSet.getString("name"));
+            airline.setRating(resultSet.getDouble("rating"));
+            airline.setActive(resultSet.getBoolean("active"));
+            airlines.add(airline);
+        }
+        return airlines;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        new Runner(new OptionsBuilder().include(RowMapperBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.benchmark;
+
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.JsonCodec;
+import com.couchbase.jdbc.core.JsonCodecs;
+import com.couchbase.jdbc.core.LazyResponseDecoder;
+import com.couchbase.jdbc.core.ResponseBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes {@code rows} rows in both envelope shapes the server sends: select * wrapping every
+ * document in its keyspace name, and select raw returning bare values under "$1".
+ *
+ * Run with: mvn -Pbenchmarks clean test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.couchbase.jdbc.benchmark.RowShapeBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.boon.faststringutils.disable=true")
+@State(Scope.Thread)
+public class RowShapeBenchmark
+{
+    // lazy is the LazyResponseDecoder on its own, the rest are codec names
+    @Param({ "boon", "streaming", "lazy" })
+    public String decoder;
+
+    @Param({ "star", "raw" })
+    public String shape;
+
+    @Param({ "1000" })
+    public int rows;
+
+    private JsonCodec codec;
+    private byte[] response;
+    private String column;
+
+    @Setup
+    public void setup()
+    {
+        boolean raw = "raw".equals(shape);
+        codec = "lazy".equals(decoder) ? null : JsonCodecs.forName(decoder);
+        column = raw ? "$1" : "name";
+
+        StringBuilder json = new StringBuilder("{\"requestID\": \"6d4a0c8e\", \"signature\": ")
+            .append(raw ? "\"json\"" : "{\"*\":\"*\"}").append(", \"results\": [");
+        for (int i = 0; i < rows; i++)
+        {
+            if (i > 0) json.append(',');
+            if (!raw) json.append("{\"travel-sample\": ");
+            json.append("{\"id\": ").append(i)
+                .append(", \"type\": \"airline\", \"name\": \"Airline ").append(i)
+                .append("\", \"iata\": \"Q").append(i % 10).append("\", \"icao\": \"MLA\", \"callsign\": \"MILE-AIR\"")
+                .append(", \"country\": \"United States\", \"active\": true}");
+            if (!raw) json.append('}');
+        }
+        json.append("], \"status\": \"success\", \"metrics\": {\"elapsedTime\": \"12.3ms\", \"executionTime\": \"12.1ms\",")
+            .append(" \"resultCount\": ").append(rows).append(", \"resultSize\": ").append(rows * 160).append("}}");
+        response = json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws IOException, SQLException
+    {
+        CouchResponse couchResponse;
+        if (codec == null)
+        {
+            couchResponse = new LazyResponseDecoder(ResponseBuffer.readHeap(new ByteArrayInputStream(response), response.length)).decode();
+        }
+        else
+        {
+            couchResponse = codec.decodeResponse(new ByteArrayInputStream(response), response.length);
+        }
+        List<Map<String, Object>> results = couchResponse.getResults();
+        for (int i = 0; i < results.size(); i++)
+        {
+            blackhole.consume(results.get(i).get(column));
+        }
+        couchResponse.close();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        new Runner(new OptionsBuilder().include(RowShapeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
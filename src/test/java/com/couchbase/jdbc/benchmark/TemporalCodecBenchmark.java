@@ -0,0 +1,121 @@
+/*
+ * //  Copyright (c) 2015 Couchbase, Inc.
+ * //  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * //  except in compliance with the License. You may obtain a copy of the License at
+ * //    http://www.apache.org/licenses/LICENSE-2.0
+ * //  Unless required by applicable law or agreed to in writing, software distributed under the
+ * //  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * //  either express or implied. See the License for the specific language governing permissions
+ * //  and limitations under the License.
+ */
+
+package com.couchbase.jdbc.benchmark;
+
+import com.couchbase.jdbc.CBResultSet;
+import com.couchbase.jdbc.core.CouchMetrics;
+import com.couchbase.jdbc.core.CouchResponse;
+import com.couchbase.jdbc.core.SqlJsonImplementation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of timestamp conversion with every hardware thread busy, which is where the
+ * old synchronized TimestampUtils fell over.
+ *
+ * Run with: mvn -Pbenchmarks clean test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.couchbase.jdbc.benchmark.TemporalCodecBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.boon.faststringutils.disable=true")
+@Threads(Threads.MAX)
+@State(Scope.Thread)
+public class TemporalCodecBenchmark
+{
+    private CBResultSet resultSet;
+    private SqlJsonImplementation sqlJson;
+    private Calendar utc;
+    private Timestamp timestamp;
+
+    @Setup
+    public void setup() throws SQLException
+    {
+        Map<String, String> signature = new HashMap<>();
+        signature.put("plain", "string");
+        signature.put("iso", "string");
+
+        Map<String, Object> row = new HashMap<>();
+        row.put("plain", "2015-09-01 10:11:12.123456");
+        row.put("iso", "2015-09-01T10:11:12.123456789-07:00");
+        List<Map<String, Object>> results = new ArrayList<>();
+        results.add(row);
+
+        CouchMetrics metrics = new CouchMetrics();
+        metrics.setResultCount(1);
+        metrics.setResultSize(1);
+
+        CouchResponse response = new CouchResponse();
+        response.setSignature(signature);
+        response.setResults(results);
+        response.setMetrics(metrics);
+
+        resultSet = new CBResultSet(null, response);
+        resultSet.next();
+
+        sqlJson = new SqlJsonImplementation();
+        utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        timestamp = Timestamp.valueOf("2015-09-01 10:11:12.123456789");
+    }
+
+    @Benchmark
+    public Timestamp getTimestamp() throws SQLException
+    {
+        return resultSet.getTimestamp("plain");
+    }
+
+    @Benchmark
+    public Timestamp getTimestampWithCalendar() throws SQLException
+    {
+        return resultSet.getTimestamp("plain", utc);
+    }
+
+    @Benchmark
+    public Timestamp getTimestampWithOffset() throws SQLException
+    {
+        return resultSet.getTimestamp("iso");
+    }
+
+    @Benchmark
+    public Object setTimestamp() throws SQLException
+    {
+        sqlJson.setTimestamp(timestamp, utc);
+        return sqlJson.getObject();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        new Runner(new OptionsBuilder().include(TemporalCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}